@@ -0,0 +1,93 @@
+package com.github.ludoviccarretti.benchmark;
+
+import com.github.ludoviccarretti.options.PropertiesOptions;
+import com.github.ludoviccarretti.services.PostgresqlImportService;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Properties;
+
+/**
+ * The export and import modes run by the round trip benchmark
+ */
+public enum BenchmarkMode {
+
+    DEFAULT("default"),
+
+    PARALLEL_EXPORT("parallel export") {
+        @Override
+        void configure(Properties properties) {
+            properties.setProperty(PropertiesOptions.EXPORT_PARALLELISM, "4");
+        }
+    },
+
+    ENCRYPTED("encrypted") {
+        @Override
+        void configure(Properties properties) {
+            properties.setProperty(PropertiesOptions.ENCRYPTION_KEY, KEY);
+        }
+
+        @Override
+        void configure(PostgresqlImportService importService) {
+            importService.setEncryptionKey(KEY);
+        }
+    },
+
+    INSERT_IMPORT("insert import") {
+        @Override
+        void configure(PostgresqlImportService importService) {
+            importService.setUseCopy(false);
+        }
+    },
+
+    FAST_LOAD("fast load") {
+        @Override
+        void configure(PostgresqlImportService importService) {
+            importService.setFastLoad(true);
+        }
+    },
+
+    DEDUP_REPOSITORY("dedup repository") {
+        @Override
+        boolean isRepository() {
+            return true;
+        }
+    };
+
+    private static final String KEY = newKey();
+
+    private final String label;
+
+    BenchmarkMode(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @param properties the properties of the export
+     */
+    void configure(Properties properties) {
+    }
+
+    /**
+     * @param importService the import
+     */
+    void configure(PostgresqlImportService importService) {
+    }
+
+    /**
+     * @return true if the export goes to a deduplicating repository instead of an archive
+     */
+    boolean isRepository() {
+        return false;
+    }
+
+    private static String newKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return Base64.getEncoder().encodeToString(key);
+    }
+}
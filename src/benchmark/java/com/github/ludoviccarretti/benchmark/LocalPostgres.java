@@ -0,0 +1,163 @@
+package com.github.ludoviccarretti.benchmark;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A throwaway PostgreSQL cluster for the benchmarks. It is created with
+ * initdb from the binaries of a local install in a temp directory,
+ * listens on the loopback interface only and is deleted on close
+ */
+public class LocalPostgres implements AutoCloseable {
+
+    public static final String USERNAME = "postgres";
+    public static final String PASSWORD = "benchmark";
+
+    private static Logger logger = LoggerFactory.getLogger(LocalPostgres.class);
+
+    private final File binDir;
+    private final File dataDir;
+    private final int port;
+
+    private LocalPostgres(File binDir, File dataDir, int port) {
+        this.binDir = binDir;
+        this.dataDir = dataDir;
+        this.port = port;
+    }
+
+    /**
+     * This will create and start a new cluster
+     *
+     * @param binDir the directory of initdb and pg_ctl
+     * @return LocalPostgres
+     * @throws IOException          exception
+     * @throws InterruptedException exception
+     */
+    public static LocalPostgres start(File binDir) throws IOException, InterruptedException {
+        File dataDir = Files.createTempDirectory("backup4j-benchmark-pg").toFile();
+        int port;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        LocalPostgres postgres = new LocalPostgres(binDir, dataDir, port);
+        postgres.run("initdb", "-D", dataDir.getPath(), "-U", USERNAME, "-A", "trust", "-E", "UTF8", "--no-locale");
+        postgres.run("pg_ctl", "-D", dataDir.getPath(), "-l", new File(dataDir, "server.log").getPath(), "-w",
+                "-o", "-p " + port + " -c listen_addresses=127.0.0.1 -k " + dataDir.getPath(), "start");
+        logger.info("local PostgreSQL started on port " + port + " in " + dataDir);
+        return postgres;
+    }
+
+    /**
+     * This will find the binaries of a local install: the given
+     * directory, else the one of initdb on the PATH, else the
+     * latest version in the usual install locations
+     *
+     * @param configured the directory to use, can be null
+     * @return the directory of initdb and pg_ctl
+     */
+    public static File findBinaries(String configured) {
+        List<File> candidates = new ArrayList<>();
+        if (configured != null && !configured.isEmpty()) {
+            candidates.add(new File(configured));
+        }
+        String path = System.getenv("PATH");
+        if (path != null) {
+            Arrays.stream(path.split(File.pathSeparator)).map(File::new).forEach(candidates::add);
+        }
+        File[] versions = new File("/usr/lib/postgresql").listFiles();
+        if (versions != null) {
+            Arrays.stream(versions)
+                    .sorted(Comparator.comparing(File::getName, Comparator.comparingInt(LocalPostgres::majorVersion)).reversed())
+                    .map(version -> new File(version, "bin"))
+                    .forEach(candidates::add);
+        }
+        candidates.add(new File("/usr/local/pgsql/bin"));
+        candidates.add(new File("/opt/homebrew/bin"));
+        candidates.add(new File("/usr/local/bin"));
+
+        for (File candidate : candidates) {
+            if (new File(candidate, "initdb").canExecute() && new File(candidate, "pg_ctl").canExecute()) {
+                return candidate;
+            }
+        }
+        throw new IllegalStateException("PostgreSQL binaries not found, set benchmark.pgBin to the directory of initdb and pg_ctl");
+    }
+
+    private static int majorVersion(String name) {
+        try {
+            return Integer.parseInt(name.replaceAll("\\..*", ""));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public String getUrl(String database) {
+        return "jdbc:postgresql://127.0.0.1:" + port + "/" + database;
+    }
+
+    public Connection connect(String database) throws SQLException {
+        return DriverManager.getConnection(getUrl(database), USERNAME, PASSWORD);
+    }
+
+    public void createDatabase(String database) throws SQLException {
+        try (Connection connection = connect("postgres"); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE DATABASE \"" + database + "\"");
+        }
+    }
+
+    public void dropDatabase(String database) throws SQLException {
+        try (Connection connection = connect("postgres"); Statement statement = connection.createStatement()) {
+            statement.execute("DROP DATABASE IF EXISTS \"" + database + "\"");
+        }
+    }
+
+    /**
+     * This will stop the cluster and delete its files
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            run("pg_ctl", "-D", dataDir.getPath(), "-m", "fast", "-w", "stop");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while stopping PostgreSQL", e);
+        } finally {
+            try (Stream<Path> files = Files.walk(dataDir.toPath())) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    private void run(String program, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(binDir, program).getPath());
+        command.addAll(Arrays.asList(args));
+        File output = new File(dataDir.getParentFile(), dataDir.getName() + "-" + program + ".log");
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(output)
+                .start();
+        int exitCode = process.waitFor();
+        String log = new String(Files.readAllBytes(output.toPath()));
+        output.delete();
+        if (exitCode != 0) {
+            throw new IOException(program + " failed with exit code " + exitCode + ":\n" + log);
+        }
+    }
+}
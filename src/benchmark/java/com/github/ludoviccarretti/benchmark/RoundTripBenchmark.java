@@ -0,0 +1,250 @@
+package com.github.ludoviccarretti.benchmark;
+
+import com.github.ludoviccarretti.model.DataComparison;
+import com.github.ludoviccarretti.options.PropertiesOptions;
+import com.github.ludoviccarretti.repository.DedupRepository;
+import com.github.ludoviccarretti.services.DataVerifyService;
+import com.github.ludoviccarretti.services.PostgresqlExportService;
+import com.github.ludoviccarretti.services.PostgresqlImportService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * This benchmark runs full export() and importDatabase() round trips
+ * against a local PostgreSQL filled with a synthetic schema, once per
+ * mode, and reports the throughput, the peak heap and whether the
+ * restored data matches the source. It is configured with system
+ * properties:
+ * <ul>
+ * <li>benchmark.sizeMb: the approximate size of the data, 100 by default</li>
+ * <li>benchmark.smallTables: the number of small tables, 200 by default</li>
+ * <li>benchmark.modes: a comma separated list of modes, e.g. default,fast load, all of them by default</li>
+ * <li>benchmark.pgBin: the directory of initdb and pg_ctl, searched by default</li>
+ * </ul>
+ */
+public class RoundTripBenchmark {
+
+    private static Logger logger = LoggerFactory.getLogger(RoundTripBenchmark.class);
+
+    private static final String SOURCE = "bench_source";
+
+    private final LocalPostgres postgres;
+    private final SyntheticSchema schema;
+    private final File workDir;
+    private long sourceRows;
+    private long sourceBytes;
+
+    public RoundTripBenchmark(LocalPostgres postgres, SyntheticSchema schema, File workDir) {
+        this.postgres = postgres;
+        this.schema = schema;
+        this.workDir = workDir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long sizeMb = Long.getLong("benchmark.sizeMb", 100);
+        int smallTables = Integer.getInteger("benchmark.smallTables", 200);
+        String modeList = System.getProperty("benchmark.modes", "").trim();
+        List<BenchmarkMode> modes = modeList.isEmpty()
+                ? Arrays.asList(BenchmarkMode.values())
+                : Arrays.stream(modeList.split(","))
+                .map(mode -> BenchmarkMode.valueOf(mode.trim().toUpperCase(Locale.ROOT).replace(' ', '_')))
+                .collect(Collectors.toList());
+
+        File workDir = Files.createTempDirectory("backup4j-benchmark").toFile();
+        boolean correct;
+        try (LocalPostgres postgres = LocalPostgres.start(LocalPostgres.findBinaries(System.getProperty("benchmark.pgBin")))) {
+            RoundTripBenchmark benchmark = new RoundTripBenchmark(postgres, new SyntheticSchema(sizeMb, smallTables), workDir);
+            benchmark.setUp();
+            List<Result> results = new ArrayList<>();
+            for (BenchmarkMode mode : modes) {
+                results.add(benchmark.run(mode));
+            }
+            System.out.println(benchmark.report(results));
+            correct = results.stream().allMatch(result -> result.correct);
+        } finally {
+            try (Stream<Path> files = Files.walk(workDir.toPath())) {
+                files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        if (!correct) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * This will create and fill the source database
+     *
+     * @throws Exception exception
+     */
+    public void setUp() throws Exception {
+        postgres.createDatabase(SOURCE);
+        long start = System.nanoTime();
+        try (Connection connection = postgres.connect(SOURCE)) {
+            schema.create(connection);
+            sourceRows = schema.countRows(connection);
+            sourceBytes = schema.dataBytes(connection);
+        }
+        logger.info(String.format("source database filled with %d rows, %.1f MB in %.1f s",
+                sourceRows, sourceBytes / 1048576.0, (System.nanoTime() - start) / 1e9));
+    }
+
+    /**
+     * This will export the source database and import it
+     * into a new database in the given mode
+     *
+     * @param mode the mode
+     * @return the measures of the round trip
+     * @throws Exception exception
+     */
+    public Result run(BenchmarkMode mode) throws Exception {
+        Result result = new Result(mode);
+        File modeDir = new File(workDir, mode.name().toLowerCase(Locale.ROOT));
+
+        Properties properties = connectionProperties(SOURCE);
+        properties.setProperty(PropertiesOptions.TEMP_DIR, modeDir.getPath());
+        properties.setProperty(PropertiesOptions.PRESERVE_GENERATED_ZIP, "true");
+        if (mode.isRepository()) {
+            properties.setProperty(PropertiesOptions.DEDUP_REPOSITORY_DIR, new File(modeDir, "repository").getPath());
+        }
+        mode.configure(properties);
+
+        PostgresqlExportService exportService = new PostgresqlExportService(properties);
+        resetPeakHeap();
+        long start = System.nanoTime();
+        exportService.export();
+        result.exportSeconds = (System.nanoTime() - start) / 1e9;
+        result.exportPeakHeap = getPeakHeap();
+
+        String target = "bench_target_" + mode.name().toLowerCase(Locale.ROOT);
+        postgres.createDatabase(target);
+        PostgresqlImportService importService = PostgresqlImportService.builder()
+                .setDatabase(target)
+                .setJdbcConnString(postgres.getUrl(target))
+                .setUsername(LocalPostgres.USERNAME)
+                .setPassword(LocalPostgres.PASSWORD);
+        mode.configure(importService);
+
+        InputStream repositoryStream = null;
+        if (mode.isRepository()) {
+            DedupRepository repository = new DedupRepository(new File(modeDir, "repository"));
+            String backup = exportService.getSqlFileName().replace(".sql", "");
+            repositoryStream = repository.open(backup);
+            importService.setSqlStream(repositoryStream);
+        } else {
+            File archive = exportService.getGeneratedZipFile();
+            result.archiveBytes = archive.length();
+            importService.setSqlFile(archive);
+        }
+
+        resetPeakHeap();
+        start = System.nanoTime();
+        try {
+            importService.importDatabase();
+        } finally {
+            if (repositoryStream != null) {
+                repositoryStream.close();
+            }
+        }
+        result.importSeconds = (System.nanoTime() - start) / 1e9;
+        result.importPeakHeap = getPeakHeap();
+
+        //the data is compared on the server side of both databases
+        DataComparison comparison = DataVerifyService.builder()
+                .setSourceProperties(properties)
+                .setTargetProperties(connectionProperties(target))
+                .setTables(schema.getTables())
+                .compare();
+        result.correct = comparison.isMatching();
+        if (!result.correct) {
+            logger.error(mode.getLabel() + ": restored data differs from the source: " + comparison);
+        }
+        postgres.dropDatabase(target);
+        exportService.clearTempFiles(false);
+        logger.info(mode.getLabel() + " done, correct: " + result.correct);
+        return result;
+    }
+
+    /**
+     * @param results the results of the modes
+     * @return the report of the benchmark as a table
+     */
+    public String report(List<Result> results) {
+        double megabytes = sourceBytes / 1048576.0;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%nRound trip of %d rows, %.1f MB of table data, %d tables%n%n",
+                sourceRows, megabytes, schema.getTables().size()));
+        report.append(String.format(Locale.ROOT, "%-18s %10s %10s %12s %10s %10s %10s %10s %12s %10s %8s%n",
+                "mode", "export s", "MB/s", "rows/s", "heap MB", "archive MB", "import s", "MB/s", "rows/s", "heap MB", "correct"));
+        for (Result result : results) {
+            report.append(String.format(Locale.ROOT, "%-18s %10.1f %10.1f %12.0f %10.0f %10s %10.1f %10.1f %12.0f %10.0f %8s%n",
+                    result.mode.getLabel(),
+                    result.exportSeconds, megabytes / result.exportSeconds, sourceRows / result.exportSeconds, result.exportPeakHeap / 1048576.0,
+                    result.archiveBytes > 0 ? String.format(Locale.ROOT, "%.1f", result.archiveBytes / 1048576.0) : "-",
+                    result.importSeconds, megabytes / result.importSeconds, sourceRows / result.importSeconds, result.importPeakHeap / 1048576.0,
+                    result.correct ? "yes" : "NO"));
+        }
+        return report.toString();
+    }
+
+    private Properties connectionProperties(String database) {
+        Properties properties = new Properties();
+        properties.setProperty(PropertiesOptions.DB_NAME, database);
+        properties.setProperty(PropertiesOptions.DB_USERNAME, LocalPostgres.USERNAME);
+        properties.setProperty(PropertiesOptions.DB_PASSWORD, LocalPostgres.PASSWORD);
+        properties.setProperty(PropertiesOptions.JDBC_CONNECTION_STRING, postgres.getUrl(database));
+        return properties;
+    }
+
+    private static void resetPeakHeap() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * The measures of one round trip
+     */
+    public static class Result {
+        private final BenchmarkMode mode;
+        private double exportSeconds;
+        private double importSeconds;
+        private long exportPeakHeap;
+        private long importPeakHeap;
+        private long archiveBytes;
+        private boolean correct;
+
+        private Result(BenchmarkMode mode) {
+            this.mode = mode;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.ludoviccarretti.benchmark;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A synthetic schema filled on the server side with generate_series,
+ * sized after a target amount of data: a narrow table, a wide table,
+ * a bytea heavy table, a chain of foreign keys and many small tables.
+ * The data is deterministic so that runs can be compared
+ */
+public class SyntheticSchema {
+
+    private static final long NARROW_ROW = 60;
+    private static final long WIDE_ROW = 700;
+    private static final long BYTEA_ROW = 4 * 1024 + 40;
+    private static final long CHAIN_ROW = 80;
+
+    private final long targetBytes;
+    private final int smallTables;
+    private final List<String> tables = new ArrayList<>();
+
+    /**
+     * @param targetMb    the approximate size of the data in MB
+     * @param smallTables the number of small tables
+     */
+    public SyntheticSchema(long targetMb, int smallTables) {
+        this.targetBytes = targetMb * 1024 * 1024;
+        this.smallTables = smallTables;
+    }
+
+    /**
+     * This will create and fill the tables of the schema
+     *
+     * @param connection a connection to the empty database
+     * @throws SQLException exception
+     */
+    public void create(Connection connection) throws SQLException {
+        long narrowRows = Math.max(1, targetBytes * 30 / 100 / NARROW_ROW);
+        long wideRows = Math.max(1, targetBytes * 30 / 100 / WIDE_ROW);
+        long byteaRows = Math.max(1, targetBytes * 25 / 100 / BYTEA_ROW);
+        long parentRows = Math.max(1, targetBytes * 15 / 100 / CHAIN_ROW / 7);
+
+        try (Statement statement = connection.createStatement()) {
+            execute(statement, "bench_narrow", "CREATE TABLE bench_narrow (id bigint PRIMARY KEY, value integer NOT NULL, label text)",
+                    "INSERT INTO bench_narrow SELECT i, (i * 7) % 1000, 'label-' || i FROM generate_series(1, " + narrowRows + ") i");
+
+            StringBuilder columns = new StringBuilder("id bigint PRIMARY KEY");
+            StringBuilder values = new StringBuilder("i");
+            for (int c = 1; c <= 10; c++) {
+                columns.append(", text_").append(c).append(" text");
+                values.append(", md5(i::text || '").append(c).append("') || md5(i::text)");
+            }
+            for (int c = 1; c <= 10; c++) {
+                columns.append(", int_").append(c).append(" integer");
+                values.append(", (i * ").append(c).append(") % 100000");
+            }
+            for (int c = 1; c <= 5; c++) {
+                columns.append(", flag_").append(c).append(" boolean");
+                values.append(", i % ").append(c + 1).append(" = 0");
+            }
+            columns.append(", amount numeric(12, 2), created_at timestamp, note text");
+            values.append(", (i % 100000) / 100.0, timestamp '2020-01-01' + i * interval '1 minute', CASE WHEN i % 3 = 0 THEN NULL ELSE 'note ' || i END");
+            execute(statement, "bench_wide", "CREATE TABLE bench_wide (" + columns + ")",
+                    "INSERT INTO bench_wide SELECT " + values + " FROM generate_series(1, " + wideRows + ") i");
+
+            execute(statement, "bench_bytea", "CREATE TABLE bench_bytea (id bigint PRIMARY KEY, payload bytea)",
+                    "INSERT INTO bench_bytea SELECT i, decode(repeat(md5(i::text), 128), 'hex') FROM generate_series(1, " + byteaRows + ") i");
+
+            //every parent has two children and every child two grandchildren
+            execute(statement, "bench_parent", "CREATE TABLE bench_parent (id bigint PRIMARY KEY, name text NOT NULL)",
+                    "INSERT INTO bench_parent SELECT i, 'parent-' || i FROM generate_series(1, " + parentRows + ") i");
+            execute(statement, "bench_child", "CREATE TABLE bench_child (id bigint PRIMARY KEY, parent_id bigint NOT NULL REFERENCES bench_parent (id), name text)",
+                    "INSERT INTO bench_child SELECT i, (i + 1) / 2, 'child-' || i FROM generate_series(1, " + parentRows * 2 + ") i");
+            execute(statement, "bench_grandchild", "CREATE TABLE bench_grandchild (id bigint PRIMARY KEY, child_id bigint NOT NULL REFERENCES bench_child (id), name text)",
+                    "INSERT INTO bench_grandchild SELECT i, (i + 1) / 2, 'grandchild-' || i FROM generate_series(1, " + parentRows * 4 + ") i");
+
+            for (int t = 1; t <= smallTables; t++) {
+                String table = String.format("bench_small_%04d", t);
+                execute(statement, table, "CREATE TABLE " + table + " (id integer PRIMARY KEY, name text)",
+                        "INSERT INTO " + table + " SELECT i, 'row-' || i FROM generate_series(1, 10) i");
+            }
+            statement.execute("ANALYZE");
+        }
+        if (!connection.getAutoCommit()) {
+            connection.commit();
+        }
+    }
+
+    private void execute(Statement statement, String table, String ddl, String insert) throws SQLException {
+        statement.execute(ddl);
+        statement.execute(insert);
+        tables.add(table);
+    }
+
+    /**
+     * @return the tables of the schema in creation order
+     */
+    public List<String> getTables() {
+        return Collections.unmodifiableList(tables);
+    }
+
+    /**
+     * @param connection the connection to the database
+     * @return the rows of the schema
+     * @throws SQLException exception
+     */
+    public long countRows(Connection connection) throws SQLException {
+        long rows = 0;
+        try (Statement statement = connection.createStatement()) {
+            for (String table : tables) {
+                try (ResultSet rs = statement.executeQuery("SELECT count(*) FROM " + table)) {
+                    rs.next();
+                    rows += rs.getLong(1);
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @param connection the connection to the database
+     * @return the size of the tables of the schema, without their indexes
+     * @throws SQLException exception
+     */
+    public long dataBytes(Connection connection) throws SQLException {
+        long bytes = 0;
+        try (Statement statement = connection.createStatement()) {
+            for (String table : tables) {
+                try (ResultSet rs = statement.executeQuery("SELECT pg_table_size('" + table + "')")) {
+                    rs.next();
+                    bytes += rs.getLong(1);
+                }
+            }
+        }
+        return bytes;
+    }
+}
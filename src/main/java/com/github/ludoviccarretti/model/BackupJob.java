@@ -0,0 +1,129 @@
+package com.github.ludoviccarretti.model;
+
+import java.util.Properties;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+
+/**
+ * A scheduled export: the export properties of one database
+ * and the cron schedule it should run on
+ */
+public class BackupJob {
+    private final String name;
+    private final CronSchedule schedule;
+    private final Properties properties;
+    private final String host;
+
+    private BackupJob(String name, CronSchedule schedule, Properties properties, String host) {
+        this.name = name;
+        this.schedule = schedule;
+        this.properties = properties;
+        this.host = host;
+    }
+
+    /**
+     * This will create a job from export properties
+     * that also contain SCHEDULE_CRON and optionally SCHEDULE_JOB_NAME.
+     * The job name defaults to the database name
+     *
+     * @param properties the export and schedule properties
+     * @return BackupJob
+     */
+    public static BackupJob fromProperties(Properties properties) {
+        if (!properties.containsKey(SCHEDULE_CRON)) {
+            throw new IllegalArgumentException("Missing " + SCHEDULE_CRON + " property for scheduled backup job");
+        }
+        String name = properties.getProperty(SCHEDULE_JOB_NAME,
+                properties.getProperty(DB_NAME, properties.getProperty(JDBC_CONNECTION_STRING, "")));
+        return BackupJobBuilder.aBackupJob()
+                .withName(name)
+                .withSchedule(CronSchedule.parse(properties.getProperty(SCHEDULE_CRON)))
+                .withProperties(properties)
+                .build();
+    }
+
+    /**
+     * This will extract the database host out of a JDBC connection
+     * string like jdbc:postgresql://host:port/database
+     *
+     * @param properties the export properties
+     * @return String
+     */
+    static String extractHost(Properties properties) {
+        String jdbcURL = properties.getProperty(JDBC_CONNECTION_STRING, "");
+        int start = jdbcURL.indexOf("//");
+        if (start < 0) {
+            return "localhost";
+        }
+        String hostPart = jdbcURL.substring(start + 2);
+        int end = hostPart.indexOf('/');
+        return end < 0 ? hostPart : hostPart.substring(0, end);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CronSchedule getSchedule() {
+        return schedule;
+    }
+
+    public Properties getProperties() {
+        return properties;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public String toString() {
+        return "BackupJob{" +
+                "name='" + name + '\'' +
+                ", schedule=" + schedule +
+                ", host='" + host + '\'' +
+                '}';
+    }
+
+    public static final class BackupJobBuilder {
+        private String name;
+        private CronSchedule schedule;
+        private Properties properties;
+        private String host;
+
+        private BackupJobBuilder() {
+        }
+
+        public static BackupJobBuilder aBackupJob() {
+            return new BackupJobBuilder();
+        }
+
+        public BackupJobBuilder withName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public BackupJobBuilder withSchedule(CronSchedule schedule) {
+            this.schedule = schedule;
+            return this;
+        }
+
+        public BackupJobBuilder withProperties(Properties properties) {
+            this.properties = properties;
+            return this;
+        }
+
+        public BackupJobBuilder withHost(String host) {
+            this.host = host;
+            return this;
+        }
+
+        public BackupJob build() {
+            Properties copy = new Properties();
+            if (properties != null) {
+                copy.putAll(properties);
+            }
+            return new BackupJob(name, schedule, copy, host != null ? host : extractHost(copy));
+        }
+    }
+}
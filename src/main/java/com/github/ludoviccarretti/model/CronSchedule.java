@@ -0,0 +1,170 @@
+package com.github.ludoviccarretti.model;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * A cron like schedule with the five classic fields:
+ * minute, hour, day of month, month and day of week.
+ * Fields support '*', lists, ranges and steps e.g. "0 2 * * 1-5" or "0-59/15 * * * *".
+ * The shortcuts @hourly, @daily, @weekly and @monthly are supported as well
+ */
+public class CronSchedule {
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean dayOfMonthRestricted;
+    private final boolean dayOfWeekRestricted;
+
+    private CronSchedule(String expression, BitSet minutes, BitSet hours, BitSet daysOfMonth, BitSet months, BitSet daysOfWeek,
+                         boolean dayOfMonthRestricted, boolean dayOfWeekRestricted) {
+        this.expression = expression;
+        this.minutes = minutes;
+        this.hours = hours;
+        this.daysOfMonth = daysOfMonth;
+        this.months = months;
+        this.daysOfWeek = daysOfWeek;
+        this.dayOfMonthRestricted = dayOfMonthRestricted;
+        this.dayOfWeekRestricted = dayOfWeekRestricted;
+    }
+
+    /**
+     * This will parse a cron expression
+     *
+     * @param expression the expression e.g. "30 1 * * *"
+     * @return CronSchedule
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static CronSchedule parse(String expression) {
+        String cron = expression == null ? "" : expression.trim();
+        switch (cron) {
+            case "@hourly":
+                cron = "0 * * * *";
+                break;
+            case "@daily":
+            case "@midnight":
+                cron = "0 0 * * *";
+                break;
+            case "@weekly":
+                cron = "0 0 * * 0";
+                break;
+            case "@monthly":
+                cron = "0 0 1 * *";
+                break;
+            default:
+                break;
+        }
+
+        String[] fields = cron.split("\\s+");
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Invalid cron expression, 5 fields expected: " + expression);
+        }
+
+        BitSet daysOfWeek = parseField(fields[4], 0, 7, expression);
+        //both 0 and 7 are sunday
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+        }
+
+        return new CronSchedule(expression,
+                parseField(fields[0], 0, 59, expression),
+                parseField(fields[1], 0, 23, expression),
+                parseField(fields[2], 1, 31, expression),
+                parseField(fields[3], 1, 12, expression),
+                daysOfWeek,
+                !fields[2].equals("*"),
+                !fields[4].equals("*"));
+    }
+
+    private static BitSet parseField(String field, int min, int max, String expression) {
+        BitSet bits = new BitSet(max + 1);
+        try {
+            for (String part : field.split(",")) {
+                int step = 1;
+                String range = part;
+                if (part.contains("/")) {
+                    range = part.substring(0, part.indexOf('/'));
+                    step = Integer.parseInt(part.substring(part.indexOf('/') + 1));
+                }
+
+                int from;
+                int to;
+                if (range.equals("*")) {
+                    from = min;
+                    to = max;
+                } else if (range.contains("-")) {
+                    from = Integer.parseInt(range.substring(0, range.indexOf('-')));
+                    to = Integer.parseInt(range.substring(range.indexOf('-') + 1));
+                } else {
+                    from = Integer.parseInt(range);
+                    to = part.contains("/") ? max : from;
+                }
+
+                if (from < min || to > max || from > to || step <= 0) {
+                    throw new IllegalArgumentException("Invalid cron field '" + field + "' in: " + expression);
+                }
+                for (int i = from; i <= to; i += step) {
+                    bits.set(i);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cron field '" + field + "' in: " + expression, e);
+        }
+        return bits;
+    }
+
+    /**
+     * This will compute the first time strictly after the given
+     * time that matches this schedule
+     *
+     * @param after the reference time
+     * @return LocalDateTime or null if nothing matches in the next 5 years
+     */
+    public LocalDateTime next(LocalDateTime after) {
+        LocalDateTime time = after.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        LocalDateTime limit = time.plusYears(5);
+
+        while (time.isBefore(limit)) {
+            if (!months.get(time.getMonthValue())) {
+                time = time.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+            } else if (!matchesDay(time)) {
+                time = time.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+            } else if (!hours.get(time.getHour())) {
+                time = time.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+            } else if (!minutes.get(time.getMinute())) {
+                time = time.plusMinutes(1);
+            } else {
+                return time;
+            }
+        }
+        return null;
+    }
+
+    private boolean matchesDay(LocalDateTime time) {
+        boolean dayOfMonth = daysOfMonth.get(time.getDayOfMonth());
+        DayOfWeek dayOfWeek = time.getDayOfWeek();
+        boolean dayOfWeekMatch = daysOfWeek.get(dayOfWeek.getValue() % 7);
+
+        //like cron, when both day fields are restricted either of them may match
+        if (dayOfMonthRestricted && dayOfWeekRestricted) {
+            return dayOfMonth || dayOfWeekMatch;
+        }
+        return dayOfMonth && dayOfWeekMatch;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return "CronSchedule{" +
+                "expression='" + expression + '\'' +
+                '}';
+    }
+}
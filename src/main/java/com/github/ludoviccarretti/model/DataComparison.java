@@ -0,0 +1,154 @@
+package com.github.ludoviccarretti.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of the comparison of the data of two databases,
+ * e.g. the source of a backup and the database it was restored to
+ */
+public class DataComparison {
+    private final List<TableComparison> tables;
+    private final List<String> errors;
+
+    public DataComparison(List<TableComparison> tables, List<String> errors) {
+        this.tables = Collections.unmodifiableList(new ArrayList<>(tables));
+        this.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+    }
+
+    public List<TableComparison> getTables() {
+        return tables;
+    }
+
+    /**
+     * @return the errors that are not specific to a table
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public boolean isMatching() {
+        return errors.isEmpty() && tables.stream().allMatch(TableComparison::isMatching);
+    }
+
+    @Override
+    public String toString() {
+        return "DataComparison{" +
+                "matching=" + isMatching() +
+                ", tables=" + tables +
+                ", errors=" + errors +
+                '}';
+    }
+
+    /**
+     * The comparison of one table
+     */
+    public static class TableComparison {
+        private final String table;
+        private final long sourceRows;
+        private final long targetRows;
+        private final boolean matching;
+        private final List<KeyRange> mismatchedRanges;
+        private final String error;
+
+        public TableComparison(String table, long sourceRows, long targetRows, boolean matching, List<KeyRange> mismatchedRanges, String error) {
+            this.table = table;
+            this.sourceRows = sourceRows;
+            this.targetRows = targetRows;
+            this.matching = matching;
+            this.mismatchedRanges = Collections.unmodifiableList(new ArrayList<>(mismatchedRanges));
+            this.error = error;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public long getSourceRows() {
+            return sourceRows;
+        }
+
+        public long getTargetRows() {
+            return targetRows;
+        }
+
+        /**
+         * @return true if both tables have the same rows
+         */
+        public boolean isMatching() {
+            return matching && error == null;
+        }
+
+        /**
+         * @return the ranges of the primary key with different rows,
+         * empty if the table has no single integer key
+         */
+        public List<KeyRange> getMismatchedRanges() {
+            return mismatchedRanges;
+        }
+
+        /**
+         * @return why the table could not be compared, or null
+         */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "TableComparison{" +
+                    "table='" + table + '\'' +
+                    ", sourceRows=" + sourceRows +
+                    ", targetRows=" + targetRows +
+                    ", matching=" + isMatching() +
+                    ", mismatchedRanges=" + mismatchedRanges +
+                    (error != null ? ", error='" + error + '\'' : "") +
+                    '}';
+        }
+    }
+
+    /**
+     * A range of primary key values, from included to to excluded
+     */
+    public static class KeyRange {
+        private final String column;
+        private final long from;
+        private final long to;
+        private final long sourceRows;
+        private final long targetRows;
+
+        public KeyRange(String column, long from, long to, long sourceRows, long targetRows) {
+            this.column = column;
+            this.from = from;
+            this.to = to;
+            this.sourceRows = sourceRows;
+            this.targetRows = targetRows;
+        }
+
+        public String getColumn() {
+            return column;
+        }
+
+        public long getFrom() {
+            return from;
+        }
+
+        public long getTo() {
+            return to;
+        }
+
+        public long getSourceRows() {
+            return sourceRows;
+        }
+
+        public long getTargetRows() {
+            return targetRows;
+        }
+
+        @Override
+        public String toString() {
+            return column + " in [" + from + ", " + to + "): " + sourceRows + " rows in source, " + targetRows + " in target";
+        }
+    }
+}
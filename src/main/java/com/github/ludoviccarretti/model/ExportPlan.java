@@ -0,0 +1,120 @@
+package com.github.ludoviccarretti.model;
+
+import java.util.*;
+
+/**
+ * The order in which the tables of a database are exported:
+ * largest first (LPT), and the tables each worker is expected
+ * to export when they are handed out in that order
+ */
+public class ExportPlan {
+    private final List<TableEstimate> tables;
+    private final List<List<TableEstimate>> workers;
+
+    private ExportPlan(List<TableEstimate> tables, List<List<TableEstimate>> workers) {
+        this.tables = tables;
+        this.workers = workers;
+    }
+
+    /**
+     * This will build the plan of the given tables for a number of
+     * workers, using the longest processing time first rule:
+     * the tables are sorted by size, largest first, and each one is
+     * assigned to the least loaded worker
+     *
+     * @param estimates   the size of every table
+     * @param parallelism the number of workers
+     * @return ExportPlan
+     */
+    public static ExportPlan longestFirst(Collection<TableEstimate> estimates, int parallelism) {
+        List<TableEstimate> sorted = new ArrayList<>(estimates);
+        sorted.sort(Comparator.comparingLong(TableEstimate::getTotalBytes).reversed()
+                .thenComparing(TableEstimate::getTableName));
+
+        int workerCount = Math.max(1, parallelism);
+        List<List<TableEstimate>> workers = new ArrayList<>();
+        long[] loads = new long[workerCount];
+        PriorityQueue<Integer> leastLoaded = new PriorityQueue<>(
+                Comparator.<Integer>comparingLong(worker -> loads[worker]).thenComparingInt(worker -> worker));
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(new ArrayList<>());
+            leastLoaded.add(i);
+        }
+
+        for (TableEstimate table : sorted) {
+            int worker = leastLoaded.poll();
+            workers.get(worker).add(table);
+            loads[worker] += table.getTotalBytes();
+            leastLoaded.add(worker);
+        }
+
+        List<List<TableEstimate>> unmodifiableWorkers = new ArrayList<>();
+        workers.forEach(worker -> unmodifiableWorkers.add(Collections.unmodifiableList(worker)));
+        return new ExportPlan(Collections.unmodifiableList(sorted), Collections.unmodifiableList(unmodifiableWorkers));
+    }
+
+    /**
+     * @return the tables, largest first
+     */
+    public List<TableEstimate> getTables() {
+        return tables;
+    }
+
+    /**
+     * @return the tables expected to be exported by each worker
+     */
+    public List<List<TableEstimate>> getWorkers() {
+        return workers;
+    }
+
+    public long getWorkerBytes(int worker) {
+        return workers.get(worker).stream().mapToLong(TableEstimate::getTotalBytes).sum();
+    }
+
+    public long getTotalBytes() {
+        return tables.stream().mapToLong(TableEstimate::getTotalBytes).sum();
+    }
+
+    public long getTotalRows() {
+        return tables.stream().mapToLong(TableEstimate::getEstimatedRows).sum();
+    }
+
+    /**
+     * @return the load of the most loaded worker, which bounds the export time
+     */
+    public long getMakespanBytes() {
+        long max = 0;
+        for (int i = 0; i < workers.size(); i++) {
+            max = Math.max(max, getWorkerBytes(i));
+        }
+        return max;
+    }
+
+    /**
+     * @return a human readable report of the plan
+     */
+    public String toReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("Export plan: ").append(tables.size()).append(" tables, ")
+                .append(getTotalBytes()).append(" bytes, ~").append(getTotalRows()).append(" rows, ")
+                .append(workers.size()).append(" workers, makespan ").append(getMakespanBytes()).append(" bytes");
+        for (int i = 0; i < workers.size(); i++) {
+            report.append("\nworker ").append(i + 1).append(": ").append(getWorkerBytes(i)).append(" bytes");
+            for (TableEstimate table : workers.get(i)) {
+                report.append("\n    ").append(table.getTableName()).append(" (")
+                        .append(table.getTotalBytes()).append(" bytes, ~")
+                        .append(table.getEstimatedRows()).append(" rows)");
+            }
+        }
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ExportPlan{" +
+                "tables=" + tables.size() +
+                ", workers=" + workers.size() +
+                ", totalBytes=" + getTotalBytes() +
+                '}';
+    }
+}
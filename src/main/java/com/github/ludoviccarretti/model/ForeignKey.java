@@ -0,0 +1,109 @@
+package com.github.ludoviccarretti.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A foreign key constraint: the columns of a table referencing
+ * the columns of a primary key or unique constraint of another one
+ */
+public class ForeignKey {
+    private final String name;
+    private final String tableName;
+    private final List<String> columns;
+    private final String referencedTableName;
+    private final List<String> referencedColumns;
+
+    private ForeignKey(String name, String tableName, List<String> columns, String referencedTableName, List<String> referencedColumns) {
+        this.name = name;
+        this.tableName = tableName;
+        this.columns = columns;
+        this.referencedTableName = referencedTableName;
+        this.referencedColumns = referencedColumns;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the referencing table
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return the referencing columns, in key order
+     */
+    public List<String> getColumns() {
+        return columns;
+    }
+
+    public String getReferencedTableName() {
+        return referencedTableName;
+    }
+
+    /**
+     * @return the referenced columns, in the order of getColumns()
+     */
+    public List<String> getReferencedColumns() {
+        return referencedColumns;
+    }
+
+    @Override
+    public String toString() {
+        return "ForeignKey{" +
+                "name='" + name + '\'' +
+                ", tableName='" + tableName + '\'' +
+                ", columns=" + columns +
+                ", referencedTableName='" + referencedTableName + '\'' +
+                ", referencedColumns=" + referencedColumns +
+                '}';
+    }
+
+    public static final class ForeignKeyBuilder {
+        private String name;
+        private String tableName;
+        private List<String> columns = new ArrayList<>();
+        private String referencedTableName;
+        private List<String> referencedColumns = new ArrayList<>();
+
+        private ForeignKeyBuilder() {
+        }
+
+        public static ForeignKeyBuilder aForeignKey() {
+            return new ForeignKeyBuilder();
+        }
+
+        public ForeignKeyBuilder withName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public ForeignKeyBuilder withTableName(String tableName) {
+            this.tableName = tableName;
+            return this;
+        }
+
+        public ForeignKeyBuilder withColumns(Collection<String> columns) {
+            this.columns = new ArrayList<>(columns);
+            return this;
+        }
+
+        public ForeignKeyBuilder withReferencedTableName(String referencedTableName) {
+            this.referencedTableName = referencedTableName;
+            return this;
+        }
+
+        public ForeignKeyBuilder withReferencedColumns(Collection<String> referencedColumns) {
+            this.referencedColumns = new ArrayList<>(referencedColumns);
+            return this;
+        }
+
+        public ForeignKey build() {
+            return new ForeignKey(name, tableName, columns, referencedTableName, referencedColumns);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.ludoviccarretti.model;
+
+public class TableEstimate {
+    private final String tableName;
+    private final long totalBytes;
+    private final long estimatedRows;
+
+    private TableEstimate(String tableName, long totalBytes, long estimatedRows) {
+        this.tableName = tableName;
+        this.totalBytes = totalBytes;
+        this.estimatedRows = estimatedRows;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return pg_total_relation_size of the table
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return pg_class.reltuples of the table
+     */
+    public long getEstimatedRows() {
+        return estimatedRows;
+    }
+
+    @Override
+    public String toString() {
+        return "TableEstimate{" +
+                "tableName='" + tableName + '\'' +
+                ", totalBytes=" + totalBytes +
+                ", estimatedRows=" + estimatedRows +
+                '}';
+    }
+
+    public static final class TableEstimateBuilder {
+        private String tableName;
+        private long totalBytes;
+        private long estimatedRows;
+
+        private TableEstimateBuilder() {
+        }
+
+        public static TableEstimateBuilder aTableEstimate() {
+            return new TableEstimateBuilder();
+        }
+
+        public TableEstimateBuilder withTableName(String tableName) {
+            this.tableName = tableName;
+            return this;
+        }
+
+        public TableEstimateBuilder withTotalBytes(long totalBytes) {
+            this.totalBytes = totalBytes;
+            return this;
+        }
+
+        public TableEstimateBuilder withEstimatedRows(long estimatedRows) {
+            this.estimatedRows = estimatedRows;
+            return this;
+        }
+
+        public TableEstimate build() {
+            return new TableEstimate(tableName, totalBytes, estimatedRows);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.ludoviccarretti.model;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+
+/**
+ * What to export of one table: the rows matching a WHERE predicate,
+ * a subset of its columns, or nothing at all
+ */
+public class TableFilter {
+    private final String tableName;
+    private final String where;
+    private final List<String> includeColumns;
+    private final Set<String> excludeColumns;
+    private final boolean excluded;
+
+    private TableFilter(String tableName, String where, List<String> includeColumns, Set<String> excludeColumns, boolean excluded) {
+        this.tableName = tableName;
+        this.where = where;
+        this.includeColumns = includeColumns;
+        this.excludeColumns = excludeColumns;
+        this.excluded = excluded;
+    }
+
+    /**
+     * This will read the table filters from the export properties:
+     * EXPORT_EXCLUDE_TABLES lists the tables to skip entirely, and
+     * EXPORT_WHERE.table, EXPORT_INCLUDE_COLUMNS.table and
+     * EXPORT_EXCLUDE_COLUMNS.table configure the filter of one table
+     *
+     * @param properties the export properties
+     * @return the filters by table name
+     */
+    public static Map<String, TableFilter> fromProperties(Properties properties) {
+        Set<String> excludedTables = new HashSet<>(split(properties.getProperty(EXPORT_EXCLUDE_TABLES, "")));
+        Set<String> tableNames = new HashSet<>(excludedTables);
+        for (String key : properties.stringPropertyNames()) {
+            for (String prefix : new String[]{EXPORT_WHERE, EXPORT_INCLUDE_COLUMNS, EXPORT_EXCLUDE_COLUMNS}) {
+                if (key.startsWith(prefix) && key.length() > prefix.length()) {
+                    tableNames.add(key.substring(prefix.length()).trim());
+                }
+            }
+        }
+
+        Map<String, TableFilter> filters = new HashMap<>();
+        for (String tableName : tableNames) {
+            filters.put(tableName, TableFilterBuilder.aTableFilter()
+                    .withTableName(tableName)
+                    .withWhere(properties.getProperty(EXPORT_WHERE + tableName))
+                    .withIncludeColumns(split(properties.getProperty(EXPORT_INCLUDE_COLUMNS + tableName, "")))
+                    .withExcludeColumns(split(properties.getProperty(EXPORT_EXCLUDE_COLUMNS + tableName, "")))
+                    .withExcluded(excludedTables.contains(tableName))
+                    .build());
+        }
+        return filters;
+    }
+
+    private static List<String> split(String value) {
+        return Arrays.stream(value.split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return true if the columns of the table must be known to build the projection
+     */
+    public boolean needsColumns() {
+        return includeColumns.isEmpty() && !excludeColumns.isEmpty();
+    }
+
+    /**
+     * @return true if only some of the columns are exported
+     */
+    public boolean isProjected() {
+        return !includeColumns.isEmpty() || !excludeColumns.isEmpty();
+    }
+
+    /**
+     * This will apply the column include and exclude lists
+     * to the columns of the table, in their table order
+     *
+     * @param columns the columns of the table, may be empty when an include list is set
+     * @return the columns to export
+     */
+    public List<String> project(List<String> columns) {
+        List<String> projected = includeColumns.isEmpty() ? new ArrayList<>(columns) : new ArrayList<>(includeColumns);
+        projected.removeIf(excludeColumns::contains);
+        return projected;
+    }
+
+    /**
+     * The filter of a partitioned table also applies to its partitions,
+     * which have the same columns
+     *
+     * @param partition the name of a partition of the table
+     * @return the same filter for the partition
+     */
+    public TableFilter forPartition(String partition) {
+        return new TableFilter(partition, where, includeColumns, excludeColumns, excluded);
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getWhere() {
+        return where;
+    }
+
+    public List<String> getIncludeColumns() {
+        return includeColumns;
+    }
+
+    public Set<String> getExcludeColumns() {
+        return excludeColumns;
+    }
+
+    public boolean isExcluded() {
+        return excluded;
+    }
+
+    @Override
+    public String toString() {
+        return "TableFilter{" +
+                "tableName='" + tableName + '\'' +
+                ", where='" + where + '\'' +
+                ", includeColumns=" + includeColumns +
+                ", excludeColumns=" + excludeColumns +
+                ", excluded=" + excluded +
+                '}';
+    }
+
+    public static final class TableFilterBuilder {
+        private String tableName;
+        private String where;
+        private List<String> includeColumns = new ArrayList<>();
+        private Set<String> excludeColumns = new HashSet<>();
+        private boolean excluded;
+
+        private TableFilterBuilder() {
+        }
+
+        public static TableFilterBuilder aTableFilter() {
+            return new TableFilterBuilder();
+        }
+
+        public TableFilterBuilder withTableName(String tableName) {
+            this.tableName = tableName;
+            return this;
+        }
+
+        public TableFilterBuilder withWhere(String where) {
+            this.where = where == null || where.trim().isEmpty() ? null : where.trim();
+            return this;
+        }
+
+        public TableFilterBuilder withIncludeColumns(Collection<String> includeColumns) {
+            this.includeColumns = new ArrayList<>(includeColumns);
+            return this;
+        }
+
+        public TableFilterBuilder withExcludeColumns(Collection<String> excludeColumns) {
+            this.excludeColumns = new HashSet<>(excludeColumns);
+            return this;
+        }
+
+        public TableFilterBuilder withExcluded(boolean excluded) {
+            this.excluded = excluded;
+            return this;
+        }
+
+        public TableFilter build() {
+            return new TableFilter(tableName, where, includeColumns, excludeColumns, excluded);
+        }
+    }
+}
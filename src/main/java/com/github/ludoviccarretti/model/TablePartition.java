@@ -0,0 +1,106 @@
+package com.github.ludoviccarretti.model;
+
+/**
+ * A partitioned table or a partition of one, as declared
+ * with PARTITION BY and PARTITION OF
+ */
+public class TablePartition {
+    private final String tableName;
+    private final String parentName;
+    private final String bound;
+    private final String partitionKey;
+
+    private TablePartition(String tableName, String parentName, String bound, String partitionKey) {
+        this.tableName = tableName;
+        this.parentName = parentName;
+        this.bound = bound;
+        this.partitionKey = partitionKey;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return the partitioned table this one is a partition of, or null
+     */
+    public String getParentName() {
+        return parentName;
+    }
+
+    /**
+     * @return the bound of the partition, e.g. FOR VALUES FROM ('2024-01-01') TO ('2024-02-01'), or null
+     */
+    public String getBound() {
+        return bound;
+    }
+
+    /**
+     * @return the partition key of a partitioned table, e.g. RANGE (created_at), or null
+     */
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    /**
+     * @return true if the table has partitions and no data of its own
+     */
+    public boolean isPartitioned() {
+        return partitionKey != null;
+    }
+
+    /**
+     * @return true if the table is a partition of another one
+     */
+    public boolean isPartition() {
+        return parentName != null;
+    }
+
+    @Override
+    public String toString() {
+        return "TablePartition{" +
+                "tableName='" + tableName + '\'' +
+                ", parentName='" + parentName + '\'' +
+                ", bound='" + bound + '\'' +
+                ", partitionKey='" + partitionKey + '\'' +
+                '}';
+    }
+
+    public static final class TablePartitionBuilder {
+        private String tableName;
+        private String parentName;
+        private String bound;
+        private String partitionKey;
+
+        private TablePartitionBuilder() {
+        }
+
+        public static TablePartitionBuilder aTablePartition() {
+            return new TablePartitionBuilder();
+        }
+
+        public TablePartitionBuilder withTableName(String tableName) {
+            this.tableName = tableName;
+            return this;
+        }
+
+        public TablePartitionBuilder withParentName(String parentName) {
+            this.parentName = parentName;
+            return this;
+        }
+
+        public TablePartitionBuilder withBound(String bound) {
+            this.bound = bound;
+            return this;
+        }
+
+        public TablePartitionBuilder withPartitionKey(String partitionKey) {
+            this.partitionKey = partitionKey;
+            return this;
+        }
+
+        public TablePartition build() {
+            return new TablePartition(tableName, parentName, bound, partitionKey);
+        }
+    }
+}
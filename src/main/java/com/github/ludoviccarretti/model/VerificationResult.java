@@ -0,0 +1,109 @@
+package com.github.ludoviccarretti.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of the verification of a backup archive
+ */
+public class VerificationResult {
+    private final String archiveName;
+    private final List<EntryResult> entries;
+    private final List<String> errors;
+
+    public VerificationResult(String archiveName, List<EntryResult> entries, List<String> errors) {
+        this.archiveName = archiveName;
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        this.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+    }
+
+    public String getArchiveName() {
+        return archiveName;
+    }
+
+    public List<EntryResult> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the errors that are not specific to an entry
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public boolean isValid() {
+        return errors.isEmpty() && entries.stream().allMatch(EntryResult::isValid);
+    }
+
+    @Override
+    public String toString() {
+        return "VerificationResult{" +
+                "archiveName='" + archiveName + '\'' +
+                ", valid=" + isValid() +
+                ", entries=" + entries +
+                ", errors=" + errors +
+                '}';
+    }
+
+    /**
+     * The verification of one entry of the archive
+     */
+    public static class EntryResult {
+        private final String name;
+        private final long size;
+        private final boolean checksumVerified;
+        private final long sections;
+        private final List<String> errors;
+
+        public EntryResult(String name, long size, boolean checksumVerified, long sections, List<String> errors) {
+            this.name = name;
+            this.size = size;
+            this.checksumVerified = checksumVerified;
+            this.sections = sections;
+            this.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return true if the archive had checksums for the entry and they matched
+         */
+        public boolean isChecksumVerified() {
+            return checksumVerified;
+        }
+
+        /**
+         * @return the number of SQL sections found in the entry
+         */
+        public long getSections() {
+            return sections;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "EntryResult{" +
+                    "name='" + name + '\'' +
+                    ", size=" + size +
+                    ", checksumVerified=" + checksumVerified +
+                    ", sections=" + sections +
+                    ", errors=" + errors +
+                    '}';
+        }
+    }
+}
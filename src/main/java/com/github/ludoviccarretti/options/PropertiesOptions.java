@@ -9,6 +9,8 @@ public abstract class PropertiesOptions {
     public static final String EMAIL_MESSAGE = "EMAIL_MESSAGE";
     public static final String EMAIL_FROM = "EMAIL_FROM";
     public static final String EMAIL_TO = "EMAIL_TO";
+    public static final String EMAIL_MAX_ATTACHMENT_SIZE = "EMAIL_MAX_ATTACHMENT_SIZE";
+    public static final String EMAIL_RETRIES = "EMAIL_RETRIES";
     public static final String DB_NAME = "DB_NAME";
     public static final String DB_USERNAME = "DB_USERNAME";
     public static final String DB_PASSWORD = "DB_PASSWORD";
@@ -19,4 +21,40 @@ public abstract class PropertiesOptions {
     public static final String JDBC_CONNECTION_STRING = "JDBC_CONNECTION_STRING";
     public static final String JDBC_DRIVER_NAME = "JDBC_DRIVER_NAME";
     public static final String SQL_FILE_NAME = "SQL_FILE_NAME";
+
+    public static final String FETCH_SIZE = "FETCH_SIZE";
+    public static final String EXPORT_PARALLELISM = "EXPORT_PARALLELISM";
+    public static final String EXPORT_EXCLUDE_TABLES = "EXPORT_EXCLUDE_TABLES";
+    public static final String EXPORT_WHERE = "EXPORT_WHERE.";
+    public static final String EXPORT_INCLUDE_COLUMNS = "EXPORT_INCLUDE_COLUMNS.";
+    public static final String EXPORT_EXCLUDE_COLUMNS = "EXPORT_EXCLUDE_COLUMNS.";
+    public static final String EXPORT_SUBSET_ROOTS = "EXPORT_SUBSET_ROOTS";
+    public static final String EXPORT_SUBSET_FOLLOW_CHILDREN = "EXPORT_SUBSET_FOLLOW_CHILDREN";
+    public static final String SPLIT_POST_DATA = "SPLIT_POST_DATA";
+    public static final String EXPORT_LARGE_OBJECTS = "EXPORT_LARGE_OBJECTS";
+    public static final String LARGE_OBJECT_PIECE_SIZE = "LARGE_OBJECT_PIECE_SIZE";
+    public static final String PIPELINE_BUFFER_SIZE = "PIPELINE_BUFFER_SIZE";
+    public static final String PIPELINE_BUFFERS = "PIPELINE_BUFFERS";
+    public static final String KEEP_GENERATED_SQL = "KEEP_GENERATED_SQL";
+    public static final String THROTTLE_ROWS_PER_SECOND = "THROTTLE_ROWS_PER_SECOND";
+    public static final String THROTTLE_READ_BYTES_PER_SECOND = "THROTTLE_READ_BYTES_PER_SECOND";
+    public static final String THROTTLE_WRITE_BYTES_PER_SECOND = "THROTTLE_WRITE_BYTES_PER_SECOND";
+    public static final String MEMORY_BUDGET = "MEMORY_BUDGET";
+
+    public static final String DEDUP_REPOSITORY_DIR = "DEDUP_REPOSITORY_DIR";
+    public static final String SINK_PART_SIZE = "SINK_PART_SIZE";
+    public static final String SINK_UPLOAD_CONCURRENCY = "SINK_UPLOAD_CONCURRENCY";
+    public static final String S3_ENDPOINT = "S3_ENDPOINT";
+    public static final String S3_REGION = "S3_REGION";
+    public static final String S3_BUCKET = "S3_BUCKET";
+    public static final String S3_ACCESS_KEY = "S3_ACCESS_KEY";
+    public static final String S3_SECRET_KEY = "S3_SECRET_KEY";
+    public static final String S3_PREFIX = "S3_PREFIX";
+    public static final String S3_PATH_STYLE = "S3_PATH_STYLE";
+
+    public static final String ENCRYPTION_KEY = "ENCRYPTION_KEY";
+    public static final String ENCRYPTION_CHUNK_SIZE = "ENCRYPTION_CHUNK_SIZE";
+
+    public static final String SCHEDULE_JOB_NAME = "SCHEDULE_JOB_NAME";
+    public static final String SCHEDULE_CRON = "SCHEDULE_CRON";
 }
@@ -0,0 +1,60 @@
+package com.github.ludoviccarretti.repository;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A backup stored in a DedupRepository: the ordered list
+ * of the chunks its content is made of
+ */
+public class BackupManifest {
+    private final String name;
+    private final List<ChunkRef> chunks;
+
+    BackupManifest(String name, List<ChunkRef> chunks) {
+        this.name = name;
+        this.chunks = Collections.unmodifiableList(chunks);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<ChunkRef> getChunks() {
+        return chunks;
+    }
+
+    public long getTotalBytes() {
+        return chunks.stream().mapToLong(ChunkRef::getLength).sum();
+    }
+
+    @Override
+    public String toString() {
+        return "BackupManifest{" +
+                "name='" + name + '\'' +
+                ", chunks=" + chunks.size() +
+                ", totalBytes=" + getTotalBytes() +
+                '}';
+    }
+
+    /**
+     * A reference to a chunk by the SHA-256 of its content
+     */
+    public static final class ChunkRef {
+        private final String hash;
+        private final int length;
+
+        ChunkRef(String hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+}
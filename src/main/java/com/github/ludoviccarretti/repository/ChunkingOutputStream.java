@@ -0,0 +1,130 @@
+package com.github.ludoviccarretti.repository;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cuts what is written into content defined chunks and stores them
+ * in a DedupRepository. Chunk boundaries are found with a gear rolling
+ * hash over the content, so an insertion or deletion only changes
+ * the chunks around it and the rest is deduplicated against previous
+ * backups. Closing the stream records the manifest of the backup
+ */
+public class ChunkingOutputStream extends OutputStream {
+
+    static final int MIN_CHUNK_SIZE = 16 * 1024;
+    static final int AVERAGE_CHUNK_SIZE = 64 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    //a boundary is found when the top bits of the hash are zero, one chance in AVERAGE_CHUNK_SIZE
+    private static final long MASK = -1L << (64 - Integer.numberOfTrailingZeros(AVERAGE_CHUNK_SIZE));
+    private static final long[] GEAR = new long[256];
+
+    static {
+        //a fixed seed keeps the boundaries stable between runs and versions
+        Random random = new Random(0x6261636b757034L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final DedupRepository repository;
+    private final String name;
+    private final MessageDigest digest;
+    private final List<BackupManifest.ChunkRef> chunks = new ArrayList<>();
+    private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+    private int count = 0;
+    private long hash = 0;
+    private long newChunks = 0;
+    private long newBytes = 0;
+    private boolean closed = false;
+    private BackupManifest manifest;
+
+    ChunkingOutputStream(DedupRepository repository, String name) throws IOException {
+        this.repository = repository;
+        this.name = name;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer[count++] = (byte) b;
+        hash = (hash << 1) + GEAR[b & 0xff];
+        if (count >= MAX_CHUNK_SIZE || (count >= MIN_CHUNK_SIZE && (hash & MASK) == 0)) {
+            cut();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            buffer[count++] = b[i];
+            hash = (hash << 1) + GEAR[b[i] & 0xff];
+            if (count >= MAX_CHUNK_SIZE || (count >= MIN_CHUNK_SIZE && (hash & MASK) == 0)) {
+                cut();
+            }
+        }
+    }
+
+    private void cut() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        digest.update(buffer, 0, count);
+        String chunkHash = DedupRepository.hex(digest.digest());
+        if (repository.storeChunk(chunkHash, buffer, count)) {
+            newChunks++;
+            newBytes += count;
+        }
+        chunks.add(new BackupManifest.ChunkRef(chunkHash, count));
+        count = 0;
+        hash = 0;
+    }
+
+    /**
+     * This will store the last chunk and the manifest of the backup
+     *
+     * @throws IOException exception
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        cut();
+        manifest = new BackupManifest(name, chunks);
+        repository.writeManifest(manifest);
+    }
+
+    /**
+     * @return the manifest of the backup, once the stream is closed
+     */
+    public BackupManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return the number of chunks that were not already in the repository
+     */
+    public long getNewChunks() {
+        return newChunks;
+    }
+
+    /**
+     * @return the bytes actually written to the repository, before compression
+     */
+    public long getNewBytes() {
+        return newBytes;
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.ludoviccarretti.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A directory storing backups as content defined chunks.
+ * Every chunk is stored once, compressed, under the SHA-256 of its
+ * content, and every backup is a manifest listing its chunks.
+ * Consecutive dumps that are mostly identical share most of their chunks
+ * so only what changed is written. The layout is:
+ * <pre>
+ * chunks/ab/abcdef...   deflated chunk content
+ * manifests/name.manifest
+ * </pre>
+ */
+public class DedupRepository {
+
+    private static final String MANIFEST_HEADER = "backup4j-manifest 1";
+    private static final String MANIFEST_EXTENSION = ".manifest";
+
+    private final File chunksDir;
+    private final File manifestsDir;
+    private Logger logger = LoggerFactory.getLogger(DedupRepository.class);
+
+    public DedupRepository(File directory) throws IOException {
+        this.chunksDir = new File(directory, "chunks");
+        this.manifestsDir = new File(directory, "manifests");
+        Files.createDirectories(chunksDir.toPath());
+        Files.createDirectories(manifestsDir.toPath());
+    }
+
+    /**
+     * This will open a stream storing a new backup.
+     * The backup is only listed once the stream is closed
+     *
+     * @param name the backup name
+     * @return ChunkingOutputStream
+     * @throws IOException exception
+     */
+    public ChunkingOutputStream create(String name) throws IOException {
+        checkName(name);
+        return new ChunkingOutputStream(this, name);
+    }
+
+    /**
+     * This will open a stream over the content of a backup,
+     * reading its chunks one after the other
+     *
+     * @param name the backup name
+     * @return InputStream
+     * @throws IOException exception
+     */
+    public InputStream open(String name) throws IOException {
+        BackupManifest manifest = readManifest(name);
+        Iterator<BackupManifest.ChunkRef> chunks = manifest.getChunks().iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return openChunk(chunks.next().getHash());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the names of the backups in the repository
+     * @throws IOException exception
+     */
+    public List<String> list() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> manifests = Files.newDirectoryStream(manifestsDir.toPath(), "*" + MANIFEST_EXTENSION)) {
+            for (Path manifest : manifests) {
+                String fileName = manifest.getFileName().toString();
+                names.add(fileName.substring(0, fileName.length() - MANIFEST_EXTENSION.length()));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * This will remove a backup from the list. Its chunks are
+     * only deleted by gc() once no other backup uses them
+     *
+     * @param name the backup name
+     * @return true if the backup existed
+     * @throws IOException exception
+     */
+    public boolean delete(String name) throws IOException {
+        checkName(name);
+        return Files.deleteIfExists(manifestFile(name).toPath());
+    }
+
+    /**
+     * This will delete the chunks no manifest refers to.
+     * Chunks younger than the grace period are kept, as they may
+     * belong to a backup that is still being written
+     *
+     * @param graceMillis the age under which chunks are kept
+     * @return the number of chunks deleted
+     * @throws IOException exception
+     */
+    public long gc(long graceMillis) throws IOException {
+        Set<String> referenced = new HashSet<>();
+        for (String name : list()) {
+            readManifest(name).getChunks().forEach(chunk -> referenced.add(chunk.getHash()));
+        }
+
+        long limit = System.currentTimeMillis() - graceMillis;
+        long deleted = 0;
+        long freed = 0;
+        try (Stream<Path> files = Files.walk(chunksDir.toPath(), 2)) {
+            for (Path chunk : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                String hash = chunk.getFileName().toString();
+                if (referenced.contains(hash) || Files.getLastModifiedTime(chunk).toMillis() > limit) {
+                    continue;
+                }
+                long size = Files.size(chunk);
+                if (Files.deleteIfExists(chunk)) {
+                    deleted++;
+                    freed += size;
+                }
+            }
+        }
+        logger.debug("repository gc deleted " + deleted + " chunks, " + freed + " bytes freed");
+        return deleted;
+    }
+
+    /**
+     * @param name the backup name
+     * @return the manifest of the backup
+     * @throws IOException exception
+     */
+    public BackupManifest readManifest(String name) throws IOException {
+        checkName(name);
+        List<String> lines = Files.readAllLines(manifestFile(name).toPath(), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(MANIFEST_HEADER)) {
+            throw new IOException("Invalid manifest for backup " + name);
+        }
+        List<BackupManifest.ChunkRef> chunks = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split(" ");
+            chunks.add(new BackupManifest.ChunkRef(parts[0], Integer.parseInt(parts[1])));
+        }
+        return new BackupManifest(name, chunks);
+    }
+
+    void writeManifest(BackupManifest manifest) throws IOException {
+        StringBuilder content = new StringBuilder(MANIFEST_HEADER).append('\n');
+        for (BackupManifest.ChunkRef chunk : manifest.getChunks()) {
+            content.append(chunk.getHash()).append(' ').append(chunk.getLength()).append('\n');
+        }
+        File target = manifestFile(manifest.getName());
+        File temp = new File(manifestsDir, manifest.getName() + ".tmp");
+        Files.write(temp.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * This will store a chunk unless it is already in the repository
+     *
+     * @return true if the chunk was new
+     */
+    boolean storeChunk(String hash, byte[] data, int length) throws IOException {
+        File chunk = chunkFile(hash);
+        if (chunk.exists()) {
+            //refresh the chunk so that a concurrent gc keeps it
+            chunk.setLastModified(System.currentTimeMillis());
+            return false;
+        }
+        Files.createDirectories(chunk.getParentFile().toPath());
+        File temp = File.createTempFile(hash, ".tmp", chunk.getParentFile());
+        try (OutputStream out = new DeflaterOutputStream(new FileOutputStream(temp))) {
+            out.write(data, 0, length);
+        }
+        try {
+            Files.move(temp.toPath(), chunk.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            //stored in the meantime by another backup
+            Files.deleteIfExists(temp.toPath());
+            return false;
+        }
+        return true;
+    }
+
+    private InputStream openChunk(String hash) throws IOException {
+        return new InflaterInputStream(new BufferedInputStream(new FileInputStream(chunkFile(hash))));
+    }
+
+    private File chunkFile(String hash) {
+        return new File(new File(chunksDir, hash.substring(0, 2)), hash);
+    }
+
+    private File manifestFile(String name) {
+        return new File(manifestsDir, name + MANIFEST_EXTENSION);
+    }
+
+    private static void checkName(String name) {
+        if (name == null || name.isEmpty() || name.contains("/") || name.contains("\\") || name.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid backup name: " + name);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.ludoviccarretti.services;
+
+/**
+ * A JDK Flight Recorder event of an export or an import: a table
+ * read or encoded, a phase of the backup, an import batch or a stage
+ * of the export pipeline waiting for another. The event starts when
+ * it is created and is recorded by commit(). On a JVM without the
+ * Flight Recorder the events do nothing, and when no recording is
+ * running they cost close to nothing
+ */
+class BackupEvent {
+
+    private static final boolean AVAILABLE = isAvailable();
+    private static final BackupEvent NONE = new BackupEvent();
+
+    BackupEvent() {
+    }
+
+    /**
+     * @param phase the phase of the table, e.g. fetch or encode
+     * @param table the table
+     * @return BackupEvent
+     */
+    static BackupEvent table(String phase, String table) {
+        return AVAILABLE ? JfrEvents.table(phase, table) : NONE;
+    }
+
+    /**
+     * @param phase the phase of the backup, e.g. post-data or email
+     * @return BackupEvent
+     */
+    static BackupEvent phase(String phase) {
+        return AVAILABLE ? JfrEvents.phase(phase) : NONE;
+    }
+
+    /**
+     * @param mode    how the batch is executed, e.g. batch or copy
+     * @param section the section executed, null for a batch of several sections
+     * @return BackupEvent
+     */
+    static BackupEvent importBatch(String mode, String section) {
+        return AVAILABLE ? JfrEvents.importBatch(mode, section) : NONE;
+    }
+
+    /**
+     * @param stage the stage of the pipeline that is waited for
+     * @return BackupEvent
+     */
+    static BackupEvent stall(String stage) {
+        return AVAILABLE ? JfrEvents.stall(stage) : NONE;
+    }
+
+    BackupEvent rows(long rows) {
+        return this;
+    }
+
+    BackupEvent bytes(long bytes) {
+        return this;
+    }
+
+    void commit() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.ludoviccarretti.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory for the executors used to run backup work in the background
+ */
+final class BackupExecutors {
+
+    private static Logger logger = LoggerFactory.getLogger(BackupExecutors.class);
+
+    private BackupExecutors() {
+    }
+
+    /**
+     * This will create an executor running every task on its own
+     * virtual thread when the JVM supports them (JDK 21+).
+     * On older JVMs it falls back to a cached pool of daemon threads
+     *
+     * @param namePrefix the name prefix of the created platform threads
+     * @return ExecutorService
+     */
+    static ExecutorService newDefaultExecutor(String namePrefix) {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) method.invoke(null);
+            logger.debug("using virtual threads for " + namePrefix);
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            logger.debug("virtual threads are not available, using a cached thread pool for " + namePrefix);
+            return Executors.newCachedThreadPool(daemonThreadFactory(namePrefix));
+        }
+    }
+
+    /**
+     * This will create a thread factory for named daemon threads
+     *
+     * @param namePrefix the name prefix of the created threads
+     * @return ThreadFactory
+     */
+    static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.ludoviccarretti.services;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A CompletableFuture for a background export or import.
+ * Cancelling it cancels the work on the database as well
+ * and interrupts the thread running it
+ *
+ * @param <T> the result type
+ */
+public class BackupFuture<T> extends CompletableFuture<T> {
+
+    private final Runnable cancelAction;
+    private volatile Thread runner;
+
+    BackupFuture(Runnable cancelAction) {
+        this.cancelAction = cancelAction;
+    }
+
+    void setRunner(Thread runner) {
+        this.runner = runner;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean res = super.cancel(mayInterruptIfRunning);
+        if (res) {
+            cancelAction.run();
+            Thread current = runner;
+            if (mayInterruptIfRunning && current != null) {
+                current.interrupt();
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.ludoviccarretti.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run statistics of a scheduled backup job.
+ * Durations are in milliseconds
+ */
+public class BackupJobStats {
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong totalDuration = new AtomicLong();
+    private final AtomicLong maxDuration = new AtomicLong();
+    private volatile long lastDuration;
+    private volatile long lastQueueWait;
+
+    void recordRun(long queueWait, long duration, boolean success) {
+        runs.incrementAndGet();
+        if (!success) {
+            failures.incrementAndGet();
+        }
+        totalDuration.addAndGet(duration);
+        maxDuration.accumulateAndGet(duration, Math::max);
+        lastDuration = duration;
+        lastQueueWait = queueWait;
+    }
+
+    void recordSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    public long getRuns() {
+        return runs.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of runs skipped because the previous run was still queued or running
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getLastDuration() {
+        return lastDuration;
+    }
+
+    public long getMaxDuration() {
+        return maxDuration.get();
+    }
+
+    public long getAverageDuration() {
+        long count = runs.get();
+        return count == 0 ? 0 : totalDuration.get() / count;
+    }
+
+    /**
+     * @return the time the last run waited for a concurrency slot
+     */
+    public long getLastQueueWait() {
+        return lastQueueWait;
+    }
+
+    @Override
+    public String toString() {
+        return "BackupJobStats{" +
+                "runs=" + getRuns() +
+                ", failures=" + getFailures() +
+                ", skipped=" + getSkipped() +
+                ", lastDuration=" + getLastDuration() +
+                ", averageDuration=" + getAverageDuration() +
+                ", maxDuration=" + getMaxDuration() +
+                ", lastQueueWait=" + getLastQueueWait() +
+                '}';
+    }
+}
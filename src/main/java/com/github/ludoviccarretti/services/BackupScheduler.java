@@ -0,0 +1,262 @@
+package com.github.ludoviccarretti.services;
+
+import com.github.ludoviccarretti.model.BackupJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs exports of many databases on cron like schedules from one JVM.
+ * The number of exports running at the same time is bounded globally
+ * and per database host, triggers that fire while a previous run of the
+ * same job is still queued or running are skipped, and triggered jobs
+ * wait in a FIFO queue without holding a thread.
+ */
+public class BackupScheduler {
+
+    private final Map<String, BackupJob> jobs = new LinkedHashMap<>();
+    private final Map<String, BackupJobStats> stats = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> triggers = new ConcurrentHashMap<>();
+    private final Set<String> activeJobs = new HashSet<>();
+    private final Deque<QueuedJob> queue = new ArrayDeque<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int maxConcurrentJobs = 4;
+    private int maxConcurrentJobsPerHost = 1;
+    private int running = 0;
+    private Executor executor;
+    private BackupThrottle throttle;
+    private MemoryBudget memoryBudget;
+    private ScheduledExecutorService timer;
+    private PostgresqlAsyncService asyncService;
+    private Logger logger = LoggerFactory.getLogger(BackupScheduler.class);
+    private final String LOG_PREFIX = "java-postgresql-exporter";
+
+    private BackupScheduler() {
+    }
+
+    /**
+     * This function will create a new
+     * BackupScheduler instance thereby facilitating
+     * a builder pattern
+     *
+     * @return BackupScheduler
+     */
+    public static BackupScheduler builder() {
+        return new BackupScheduler();
+    }
+
+    public BackupScheduler setMaxConcurrentJobs(int maxConcurrentJobs) {
+        this.maxConcurrentJobs = Math.max(1, maxConcurrentJobs);
+        return this;
+    }
+
+    public BackupScheduler setMaxConcurrentJobsPerHost(int maxConcurrentJobsPerHost) {
+        this.maxConcurrentJobsPerHost = Math.max(1, maxConcurrentJobsPerHost);
+        return this;
+    }
+
+    /**
+     * The executor running the exports, see PostgresqlAsyncService.setExecutor()
+     *
+     * @param executor the executor
+     * @return BackupScheduler
+     */
+    public BackupScheduler setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * A throttle shared by all the exports run by the scheduler
+     *
+     * @param throttle the throttle
+     * @return BackupScheduler
+     */
+    public BackupScheduler setThrottle(BackupThrottle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * A memory budget shared by all the exports run by the scheduler
+     *
+     * @param memoryBudget the memory budget
+     * @return BackupScheduler
+     */
+    public BackupScheduler setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    public synchronized BackupScheduler addJob(BackupJob job) {
+        if (jobs.containsKey(job.getName())) {
+            throw new IllegalArgumentException("A backup job named " + job.getName() + " is already scheduled");
+        }
+        jobs.put(job.getName(), job);
+        stats.put(job.getName(), new BackupJobStats());
+        if (timer != null) {
+            scheduleNext(job);
+        }
+        return this;
+    }
+
+    /**
+     * This will add one job per properties object,
+     * see BackupJob.fromProperties()
+     *
+     * @param jobProperties the properties of every job
+     * @return BackupScheduler
+     */
+    public BackupScheduler addJobs(List<Properties> jobProperties) {
+        jobProperties.forEach(properties -> addJob(BackupJob.fromProperties(properties)));
+        return this;
+    }
+
+    /**
+     * This will start triggering the jobs on their schedules
+     *
+     * @return BackupScheduler
+     */
+    public synchronized BackupScheduler start() {
+        if (timer != null) {
+            return this;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(BackupExecutors.daemonThreadFactory("backup4j-scheduler"));
+        asyncService = PostgresqlAsyncService.builder().setExecutor(executor).setThrottle(throttle)
+                .setMemoryBudget(memoryBudget);
+        jobs.values().forEach(this::scheduleNext);
+        logger.debug(LOG_PREFIX + ": scheduler started with " + jobs.size() + " jobs");
+        return this;
+    }
+
+    /**
+     * This will stop triggering jobs and drop the queued ones.
+     * Running exports are left to complete
+     */
+    public synchronized void stop() {
+        if (timer == null) {
+            return;
+        }
+        triggers.values().forEach(trigger -> trigger.cancel(false));
+        triggers.clear();
+        timer.shutdownNow();
+        timer = null;
+        for (QueuedJob queued : queue) {
+            activeJobs.remove(queued.job.getName());
+        }
+        queue.clear();
+        asyncService.shutdown();
+    }
+
+    private synchronized void scheduleNext(BackupJob job) {
+        if (timer == null) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime next = job.getSchedule().next(now);
+        if (next == null) {
+            logger.error(LOG_PREFIX + ": backup job " + job.getName() + " will never run again with schedule " + job.getSchedule());
+            return;
+        }
+        long delay = Math.max(0, Duration.between(now, next).toMillis());
+        triggers.put(job.getName(), timer.schedule(() -> trigger(job), delay, TimeUnit.MILLISECONDS));
+    }
+
+    private synchronized void trigger(BackupJob job) {
+        scheduleNext(job);
+        if (!activeJobs.add(job.getName())) {
+            logger.debug(LOG_PREFIX + ": skipping backup job " + job.getName() + ", the previous run is still queued or running");
+            stats.get(job.getName()).recordSkipped();
+            return;
+        }
+        queue.addLast(new QueuedJob(job, System.currentTimeMillis()));
+        dispatch();
+    }
+
+    /**
+     * This will start the queued jobs in FIFO order
+     * as long as the global and per host limits allow it
+     */
+    private synchronized void dispatch() {
+        List<QueuedJob> toStart = new ArrayList<>();
+        Iterator<QueuedJob> iterator = queue.iterator();
+        while (running < maxConcurrentJobs && iterator.hasNext()) {
+            QueuedJob queued = iterator.next();
+            String host = queued.job.getHost();
+            int hostRunning = runningPerHost.getOrDefault(host, 0);
+            if (hostRunning >= maxConcurrentJobsPerHost) {
+                continue;
+            }
+            iterator.remove();
+            running++;
+            runningPerHost.put(host, hostRunning + 1);
+            toStart.add(queued);
+        }
+
+        //started outside of the iteration as a job failing right away re-enters dispatch()
+        toStart.forEach(this::run);
+    }
+
+    private void run(QueuedJob queued) {
+        BackupJob job = queued.job;
+        long started = System.currentTimeMillis();
+        logger.debug(LOG_PREFIX + ": starting backup job " + job.getName());
+        asyncService.exportAsync(job.getProperties()).whenComplete((exportService, error) -> {
+            long finished = System.currentTimeMillis();
+            if (error != null) {
+                logger.error(LOG_PREFIX + ": backup job " + job.getName() + " failed. " + error.getLocalizedMessage());
+            }
+            stats.get(job.getName()).recordRun(started - queued.queuedAt, finished - started, error == null);
+            release(job);
+        });
+    }
+
+    private synchronized void release(BackupJob job) {
+        running--;
+        runningPerHost.merge(job.getHost(), -1, Integer::sum);
+        activeJobs.remove(job.getName());
+        if (timer != null) {
+            dispatch();
+        }
+    }
+
+    /**
+     * @return the number of triggered jobs waiting for a concurrency slot
+     */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of exports currently running
+     */
+    public synchronized int getRunningJobs() {
+        return running;
+    }
+
+    /**
+     * @param jobName the job name
+     * @return the statistics of the job or null for an unknown job
+     */
+    public BackupJobStats getJobStats(String jobName) {
+        return stats.get(jobName);
+    }
+
+    public Map<String, BackupJobStats> getAllJobStats() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    private static final class QueuedJob {
+        private final BackupJob job;
+        private final long queuedAt;
+
+        private QueuedJob(BackupJob job, long queuedAt) {
+            this.job = job;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
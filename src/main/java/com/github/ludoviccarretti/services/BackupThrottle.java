@@ -0,0 +1,77 @@
+package com.github.ludoviccarretti.services;
+
+import java.util.Properties;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+
+/**
+ * Limits the load an export puts on the source database and on the output.
+ * The same instance can be shared by several exports running in parallel,
+ * they then share the budgets. The rates can be adjusted at runtime
+ */
+public class BackupThrottle {
+
+    private final TokenBucket rows;
+    private final TokenBucket readBytes;
+    private final TokenBucket writeBytes;
+
+    public BackupThrottle(long rowsPerSecond, long readBytesPerSecond, long writeBytesPerSecond) {
+        this.rows = new TokenBucket(rowsPerSecond);
+        this.readBytes = new TokenBucket(readBytesPerSecond);
+        this.writeBytes = new TokenBucket(writeBytesPerSecond);
+    }
+
+    /**
+     * This will create a throttle from the THROTTLE_* properties.
+     * Missing properties mean no limit
+     *
+     * @param properties the export properties
+     * @return BackupThrottle
+     */
+    public static BackupThrottle fromProperties(Properties properties) {
+        return new BackupThrottle(
+                Long.parseLong(properties.getProperty(THROTTLE_ROWS_PER_SECOND, "0")),
+                Long.parseLong(properties.getProperty(THROTTLE_READ_BYTES_PER_SECOND, "0")),
+                Long.parseLong(properties.getProperty(THROTTLE_WRITE_BYTES_PER_SECOND, "0")));
+    }
+
+    /**
+     * @return true if any of the limits is set
+     */
+    public boolean isEnabled() {
+        return rows.getRatePerSecond() > 0 || readBytes.getRatePerSecond() > 0 || writeBytes.getRatePerSecond() > 0;
+    }
+
+    void acquireRead(long rowCount, long bytes) throws InterruptedException {
+        rows.acquire(rowCount);
+        readBytes.acquire(bytes);
+    }
+
+    void acquireWrite(long bytes) throws InterruptedException {
+        writeBytes.acquire(bytes);
+    }
+
+    public void setRowsPerSecond(long rowsPerSecond) {
+        rows.setRatePerSecond(rowsPerSecond);
+    }
+
+    public void setReadBytesPerSecond(long readBytesPerSecond) {
+        readBytes.setRatePerSecond(readBytesPerSecond);
+    }
+
+    public void setWriteBytesPerSecond(long writeBytesPerSecond) {
+        writeBytes.setRatePerSecond(writeBytesPerSecond);
+    }
+
+    public long getRowsPerSecond() {
+        return rows.getRatePerSecond();
+    }
+
+    public long getReadBytesPerSecond() {
+        return readBytes.getRatePerSecond();
+    }
+
+    public long getWriteBytesPerSecond() {
+        return writeBytes.getRatePerSecond();
+    }
+}
@@ -0,0 +1,360 @@
+package com.github.ludoviccarretti.services;
+
+import com.github.ludoviccarretti.model.VerificationResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Checks the integrity of a backup archive without connecting to a database:
+ * the CRC-32C, SHA-256 and size of every entry are compared with the ones
+ * recorded by the export, and the SQL entries are parsed to make sure every
+ * section is complete. Entries are verified in parallel, each in one read pass.
+ * Encrypted archives are decrypted as a stream and their entries verified
+ * one after the other, every chunk being authenticated on the way
+ */
+public class BackupVerifyService {
+
+    private File archive;
+    private String encryptionKey;
+    private int parallelism;
+    private Logger logger = LoggerFactory.getLogger(BackupVerifyService.class);
+    private final String LOG_PREFIX = "java-postgresql-exporter";
+
+    private BackupVerifyService() {
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * This function will create a new
+     * BackupVerifyService instance thereby facilitating
+     * a builder pattern
+     *
+     * @return BackupVerifyService
+     */
+    public static BackupVerifyService builder() {
+        return new BackupVerifyService();
+    }
+
+    public BackupVerifyService setArchive(File archive) {
+        this.archive = archive;
+        return this;
+    }
+
+    /**
+     * The base64 AES key of encrypted archives,
+     * the same as the ENCRYPTION_KEY of the export
+     *
+     * @param encryptionKey base64 encoded key
+     * @return BackupVerifyService
+     */
+    public BackupVerifyService setEncryptionKey(String encryptionKey) {
+        this.encryptionKey = encryptionKey;
+        return this;
+    }
+
+    public BackupVerifyService setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * This will verify the archive
+     *
+     * @return VerificationResult
+     * @throws IOException if the archive cannot be opened, or is encrypted and no key is set
+     */
+    public VerificationResult verify() throws IOException {
+        if (isEncrypted()) {
+            return verifyEncrypted();
+        }
+
+        List<String> errors = new ArrayList<>();
+        List<VerificationResult.EntryResult> entries = new ArrayList<>();
+
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            Properties checksums = new Properties();
+            ZipEntry checksumsEntry = zipFile.getEntry(EntryChecksum.CHECKSUMS_ENTRY);
+            if (checksumsEntry != null) {
+                try (InputStream inputStream = zipFile.getInputStream(checksumsEntry)) {
+                    checksums.load(inputStream);
+                }
+            } else {
+                //archives written before checksums were recorded can still have their sections verified
+                logger.debug(LOG_PREFIX + ": No checksums recorded in " + archive.getName() + ", only the SQL sections are verified");
+            }
+
+            List<ZipEntry> toVerify = new ArrayList<>();
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry entry = zipEntries.nextElement();
+                if (!entry.isDirectory() && !entry.getName().equals(EntryChecksum.CHECKSUMS_ENTRY)) {
+                    toVerify.add(entry);
+                }
+            }
+
+            //every entry recorded by the export must still be there
+            Set<String> names = new HashSet<>();
+            toVerify.forEach(entry -> names.add(entry.getName()));
+            checkMissingEntries(checksums, names, errors);
+
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, toVerify.size())),
+                    BackupExecutors.daemonThreadFactory(LOG_PREFIX + "-verify"));
+            try {
+                List<Future<VerificationResult.EntryResult>> futures = new ArrayList<>();
+                for (ZipEntry entry : toVerify) {
+                    futures.add(executor.submit(() -> verifyEntry(zipFile, entry, checksums)));
+                }
+                for (Future<VerificationResult.EntryResult> future : futures) {
+                    entries.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while verifying " + archive.getName());
+            } catch (ExecutionException e) {
+                throw new IOException("unable to verify " + archive.getName(), e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        VerificationResult result = new VerificationResult(archive.getName(), entries, errors);
+        logger.debug(LOG_PREFIX + ": " + result);
+        return result;
+    }
+
+    /**
+     * This will verify an encrypted archive in a single pass over the
+     * decrypted stream. The checksums are the last entry of the archive,
+     * so the entries are compared with them once they have all been read
+     */
+    private VerificationResult verifyEncrypted() throws IOException {
+        if (encryptionKey == null || encryptionKey.isEmpty()) {
+            throw new IOException("The archive " + archive.getName() + " is encrypted, set the key with setEncryptionKey()");
+        }
+        List<String> errors = new ArrayList<>();
+        List<EntryRead> reads = new ArrayList<>();
+        Properties checksums = null;
+
+        try (DecryptingInputStream decrypted = new DecryptingInputStream(
+                new BufferedInputStream(new FileInputStream(archive), 64 * 1024), ChunkedAesGcm.key(encryptionKey))) {
+            try {
+                ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(decrypted, 64 * 1024));
+                ZipEntry entry;
+                boolean readable = true;
+                while (readable && (entry = zipInputStream.getNextEntry()) != null) {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    if (entry.getName().equals(EntryChecksum.CHECKSUMS_ENTRY)) {
+                        checksums = new Properties();
+                        checksums.load(zipInputStream);
+                        continue;
+                    }
+                    EntryRead read = readEntry(entry.getName(), zipInputStream);
+                    reads.add(read);
+                    //the stream cannot be trusted past a chunk that failed
+                    readable = !read.failed;
+                }
+
+                //authenticate the chunks the zip reader did not need, up to the final one
+                byte[] buffer = new byte[64 * 1024];
+                while (readable && decrypted.read(buffer) != -1) {
+                    //drain
+                }
+            } catch (IOException e) {
+                errors.add("Unable to read the encrypted archive: " + e.getLocalizedMessage());
+            }
+        }
+
+        if (checksums == null) {
+            logger.debug(LOG_PREFIX + ": No checksums recorded in " + archive.getName() + ", only the SQL sections are verified");
+            checksums = new Properties();
+        }
+        Set<String> names = new HashSet<>();
+        reads.forEach(read -> names.add(read.name));
+        checkMissingEntries(checksums, names, errors);
+
+        List<VerificationResult.EntryResult> entries = new ArrayList<>();
+        for (EntryRead read : reads) {
+            entries.add(toResult(read, checksums));
+        }
+        VerificationResult result = new VerificationResult(archive.getName(), entries, errors);
+        logger.debug(LOG_PREFIX + ": " + result);
+        return result;
+    }
+
+    /**
+     * This will check, without consuming it, if the
+     * archive starts with the encrypted backup header
+     */
+    private boolean isEncrypted() throws IOException {
+        byte[] header = new byte[ChunkedAesGcm.MAGIC.length];
+        int read = 0;
+        try (InputStream inputStream = new FileInputStream(archive)) {
+            int n;
+            while (read < header.length && (n = inputStream.read(header, read, header.length - read)) != -1) {
+                read += n;
+            }
+        }
+        return ChunkedAesGcm.isEncrypted(header, read);
+    }
+
+    /**
+     * Every entry recorded by the export must still be in the archive
+     */
+    private static void checkMissingEntries(Properties checksums, Set<String> names, List<String> errors) {
+        for (String key : checksums.stringPropertyNames()) {
+            if (key.endsWith(".size")) {
+                String name = key.substring(0, key.length() - ".size".length());
+                if (!names.contains(name)) {
+                    errors.add("Entry " + name + " is missing from the archive");
+                }
+            }
+        }
+    }
+
+    private VerificationResult.EntryResult verifyEntry(ZipFile zipFile, ZipEntry entry, Properties checksums) {
+        try (InputStream inputStream = zipFile.getInputStream(entry)) {
+            return toResult(readEntry(entry.getName(), inputStream), checksums);
+        } catch (IOException e) {
+            List<String> errors = new ArrayList<>();
+            errors.add("Unable to read the entry: " + e.getLocalizedMessage());
+            return new VerificationResult.EntryResult(entry.getName(), 0, false, 0, errors);
+        }
+    }
+
+    /**
+     * This will read an entry once, computing its checksums
+     * while the SQL sections are parsed out of it. The stream is
+     * read up to its end but not closed
+     */
+    private EntryRead readEntry(String name, InputStream entryStream) throws IOException {
+        EntryRead read = new EntryRead(name);
+        List<String> errors = read.errors;
+
+        try {
+            InputStream inputStream = new ChecksumInputStream(entryStream, read.checksum);
+            if (name.toLowerCase().endsWith(".sql")) {
+                //sections are only counted, never buffered
+                List<String> unknown = new ArrayList<>();
+                long[] count = new long[1];
+                SqlSectionReader reader = new SqlSectionReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), section -> {
+                    count[0]++;
+                    if (section.getKind() == SqlSection.Kind.UNKNOWN) {
+                        unknown.add("Unknown section type for " + section.getName());
+                    }
+                    return false;
+                });
+                reader.next();
+                read.sections = count[0];
+                errors.addAll(unknown);
+                if (reader.getUnterminatedSection() != null) {
+                    errors.add("Section " + reader.getUnterminatedSection() + " has no end, the entry is truncated");
+                }
+            }
+            byte[] buffer = new byte[64 * 1024];
+            while (inputStream.read(buffer) != -1) {
+                //read what the parser left, the checksums cover the whole entry
+            }
+        } catch (IOException e) {
+            read.fail(e);
+        }
+        return read;
+    }
+
+    /**
+     * This will compare what was read of an entry with its recorded checksums
+     */
+    private static VerificationResult.EntryResult toResult(EntryRead read, Properties checksums) {
+        if (read.failed) {
+            return new VerificationResult.EntryResult(read.name, 0, false, read.sections, read.errors);
+        }
+        List<String> errors = read.errors;
+        EntryChecksum checksum = read.checksum;
+        String name = read.name;
+
+        boolean checksumVerified = false;
+        String expectedSize = checksums.getProperty(name + ".size");
+        if (expectedSize != null) {
+            String crc32c = checksum.getCrc32c();
+            String sha256 = checksum.getSha256();
+            if (Long.parseLong(expectedSize) != checksum.getSize()) {
+                errors.add("Size mismatch: expected " + expectedSize + " bytes, found " + checksum.getSize());
+            }
+            if (!crc32c.equals(checksums.getProperty(name + ".crc32c"))) {
+                errors.add("CRC-32C mismatch: expected " + checksums.getProperty(name + ".crc32c") + ", found " + crc32c);
+            }
+            if (!sha256.equals(checksums.getProperty(name + ".sha256"))) {
+                errors.add("SHA-256 mismatch: expected " + checksums.getProperty(name + ".sha256") + ", found " + sha256);
+            }
+            checksumVerified = errors.isEmpty();
+        }
+        return new VerificationResult.EntryResult(name, checksum.getSize(), checksumVerified, read.sections, errors);
+    }
+
+    /**
+     * What was read of an entry, before it is compared with the recorded checksums
+     */
+    private static final class EntryRead {
+        private final String name;
+        private final EntryChecksum checksum;
+        private final List<String> errors = new ArrayList<>();
+        private long sections;
+        private boolean failed;
+
+        private EntryRead(String name) throws IOException {
+            this.name = name;
+            this.checksum = new EntryChecksum();
+        }
+
+        private void fail(IOException e) {
+            failed = true;
+            errors.add("Unable to read the entry: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * An input stream computing the checksums of what is read through it
+     */
+    private static final class ChecksumInputStream extends FilterInputStream {
+        private final EntryChecksum checksum;
+
+        private ChecksumInputStream(InputStream in, EntryChecksum checksum) {
+            super(in);
+            this.checksum = checksum;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                checksum.update(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                checksum.update(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package com.github.ludoviccarretti.services;
+
+import org.postgresql.PGConnection;
+import org.postgresql.replication.LogSequenceNumber;
+import org.postgresql.replication.PGReplicationStream;
+import org.postgresql.replication.ReplicationSlotInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+
+/**
+ * Captures the changes of a database continuously through a logical
+ * replication slot (test_decoding plugin) and appends them, as SQL,
+ * to compressed delta segments following a base backup. Every segment
+ * holds the transactions committed between two LSNs, one section per
+ * transaction, and is named delta-firstLSN-lastLSN.sql.gz so that the
+ * segments sort in commit order. The import service replays a base
+ * backup and its deltas up to a chosen LSN.
+ * <p>
+ * The slot is only advanced once a segment is safely on disk, so a
+ * capture restarted after a crash resumes from the last segment
+ * without losing or repeating a transaction.
+ */
+public class ChangeCaptureService {
+
+    static final String STATE_FILE = "capture.properties";
+    static final String BASE_LSN = "base.lsn";
+    static final String FLUSHED_LSN = "flushed.lsn";
+
+    private Properties properties;
+    private String slotName;
+    private File deltaDir;
+    private long segmentSize;
+    private long segmentInterval;
+    private volatile boolean running;
+    private Connection replicationConnection;
+    private Connection queryConnection;
+    private final Map<String, List<String>> keyColumns = new HashMap<>();
+    private Logger logger = LoggerFactory.getLogger(ChangeCaptureService.class);
+    private final String LOG_PREFIX = "java-postgresql-exporter";
+
+    private Segment segment;
+
+    private ChangeCaptureService() {
+        this.slotName = "backup4j";
+        this.segmentSize = 64L * 1024 * 1024;
+        this.segmentInterval = TimeUnit.MINUTES.toMillis(1);
+    }
+
+    /**
+     * This function will create a new
+     * ChangeCaptureService instance thereby facilitating
+     * a builder pattern
+     *
+     * @return ChangeCaptureService
+     */
+    public static ChangeCaptureService builder() {
+        return new ChangeCaptureService();
+    }
+
+    /**
+     * The connection properties of the database, as for the export.
+     * They are also used for the base backup
+     *
+     * @param properties the export properties
+     * @return ChangeCaptureService
+     */
+    public ChangeCaptureService setProperties(Properties properties) {
+        this.properties = properties;
+        return this;
+    }
+
+    public ChangeCaptureService setSlotName(String slotName) {
+        this.slotName = slotName;
+        return this;
+    }
+
+    /**
+     * The directory the delta segments and the capture state are written to
+     *
+     * @param deltaDir the directory
+     * @return ChangeCaptureService
+     */
+    public ChangeCaptureService setDeltaDir(File deltaDir) {
+        this.deltaDir = deltaDir;
+        return this;
+    }
+
+    /**
+     * A segment is closed once it holds this many bytes of SQL
+     *
+     * @param segmentSize uncompressed size in bytes, 64MB by default
+     * @return ChangeCaptureService
+     */
+    public ChangeCaptureService setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * A segment is closed at the latest after this delay, which
+     * bounds the changes lost if the capture host is lost
+     *
+     * @param segmentInterval the delay in milliseconds, one minute by default
+     * @return ChangeCaptureService
+     */
+    public ChangeCaptureService setSegmentInterval(long segmentInterval) {
+        this.segmentInterval = segmentInterval;
+        return this;
+    }
+
+    /**
+     * This will create the replication slot and export the database
+     * in the snapshot of the slot, so that the captured changes start
+     * exactly where the base backup ends. The replication connection
+     * is kept open for capture()
+     *
+     * @return the export service of the base backup
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     * @throws IOException            exception
+     */
+    public PostgresqlExportService baseBackup() throws SQLException, ClassNotFoundException, IOException {
+        deltaDir.mkdirs();
+        replicationConnection = PostgresqlBaseService.connectForReplication(properties);
+        ReplicationSlotInfo slot = replicationConnection.unwrap(PGConnection.class)
+                .getReplicationAPI()
+                .createReplicationSlot()
+                .logical()
+                .withSlotName(slotName)
+                .withOutputPlugin("test_decoding")
+                .make();
+        logger.debug(LOG_PREFIX + ": replication slot " + slotName + " created at " + slot.getConsistentPoint().asString());
+
+        //the snapshot stays valid as long as the replication connection is idle
+        PostgresqlExportService exportService = new PostgresqlExportService(properties).setSnapshot(slot.getSnapshotName());
+        exportService.export();
+
+        Properties state = new Properties();
+        state.setProperty(BASE_LSN, slot.getConsistentPoint().asString());
+        state.setProperty(FLUSHED_LSN, slot.getConsistentPoint().asString());
+        saveState(state);
+        return exportService;
+    }
+
+    /**
+     * This will stream the changes of the slot into delta segments
+     * until stop() is called. It resumes after the last segment
+     * written by a previous run
+     *
+     * @throws SQLException           exception, also when a change cannot be replayed:
+     *                                the slot is left before it so it is captured again
+     * @throws ClassNotFoundException exception
+     * @throws IOException            exception
+     */
+    public void capture() throws SQLException, ClassNotFoundException, IOException {
+        running = true;
+        deltaDir.mkdirs();
+        Properties state = loadState();
+
+        //segments that were not closed are captured again
+        File[] partials = deltaDir.listFiles((dir, name) -> name.endsWith(".part"));
+        if (partials != null) {
+            for (File partial : partials) {
+                Files.deleteIfExists(partial.toPath());
+            }
+        }
+
+        if (replicationConnection == null) {
+            replicationConnection = PostgresqlBaseService.connectForReplication(properties);
+        }
+        LogSequenceNumber from = LogSequenceNumber.valueOf(state.getProperty(FLUSHED_LSN, LogSequenceNumber.INVALID_LSN.asString()));
+        PGReplicationStream stream = replicationConnection.unwrap(PGConnection.class)
+                .getReplicationAPI()
+                .replicationStream()
+                .logical()
+                .withSlotName(slotName)
+                .withStartPosition(from)
+                .withSlotOption("include-xids", false)
+                .withSlotOption("skip-empty-xacts", true)
+                .withStatusInterval(10, TimeUnit.SECONDS)
+                .start();
+        logger.debug(LOG_PREFIX + ": capturing changes of slot " + slotName + " from " + from.asString());
+
+        StringBuilder transaction = null;
+        try {
+            while (running) {
+                ByteBuffer buffer = stream.readPending();
+                if (buffer == null) {
+                    if (segment != null && segment.isDue()) {
+                        closeSegment(stream, state);
+                    }
+                    TimeUnit.MILLISECONDS.sleep(10);
+                    continue;
+                }
+
+                String message = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+                if (message.startsWith("BEGIN")) {
+                    transaction = new StringBuilder();
+                } else if (message.startsWith("COMMIT")) {
+                    if (transaction != null && transaction.length() > 0) {
+                        appendTransaction(stream.getLastReceiveLSN(), transaction);
+                        if (segment.isDue()) {
+                            closeSegment(stream, state);
+                        }
+                    }
+                    transaction = null;
+                } else if (transaction != null) {
+                    transaction.append(toSql(message)).append('\n');
+                }
+            }
+            if (segment != null) {
+                closeSegment(stream, state);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while capturing changes");
+        } finally {
+            if (segment != null) {
+                segment.discard();
+                segment = null;
+            }
+            stream.close();
+            close();
+        }
+    }
+
+    /**
+     * This will make capture() return once the
+     * current segment is closed
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * This will drop the replication slot. Until it is dropped
+     * the server keeps the WAL the slot has not consumed
+     *
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     */
+    public void dropSlot() throws SQLException, ClassNotFoundException {
+        if (replicationConnection == null) {
+            replicationConnection = PostgresqlBaseService.connectForReplication(properties);
+        }
+        try {
+            replicationConnection.unwrap(PGConnection.class).getReplicationAPI().dropReplicationSlot(slotName);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * @return the LSN the base backup was taken at, or null
+     * @throws IOException exception
+     */
+    public String getBaseLsn() throws IOException {
+        return loadState().getProperty(BASE_LSN);
+    }
+
+    /**
+     * This will generate the statement replaying a change. A table change
+     * that cannot be replayed stops the capture: the segment holding it is
+     * never closed, so the slot is not confirmed past it and no change is lost
+     *
+     * @param message the message of the plugin
+     * @return the SQL, or a comment for a message that is not a table change
+     * @throws SQLException if the change cannot be parsed or its row cannot be identified
+     */
+    private String toSql(String message) throws SQLException, ClassNotFoundException {
+        TestDecodingParser.Change change;
+        try {
+            change = TestDecodingParser.parse(message);
+        } catch (IllegalArgumentException e) {
+            throw new SQLException(LOG_PREFIX + ": unable to parse change " + message + ", the capture is stopped", e);
+        }
+        if (change == null) {
+            return "-- " + message.replace('\n', ' ');
+        }
+        String sql = TestDecodingParser.toSql(change, getKeyColumns(change.table));
+        if (sql == null) {
+            throw new SQLException(LOG_PREFIX + ": no key to replay change " + message +
+                    ", set a primary key or REPLICA IDENTITY FULL on " + change.table + ", the capture is stopped");
+        }
+        return sql;
+    }
+
+    /**
+     * This will return the columns identifying a row of the table:
+     * the ones of its replica identity index, or its primary key
+     *
+     * @param table the table as printed by test_decoding
+     * @return the quoted column names
+     */
+    private List<String> getKeyColumns(String table) throws SQLException, ClassNotFoundException {
+        List<String> columns = keyColumns.get(table);
+        if (columns != null) {
+            return columns;
+        }
+        if (queryConnection == null) {
+            String jdbcURL = properties.getProperty(JDBC_CONNECTION_STRING, "");
+            queryConnection = PostgresqlBaseService.connectWithURL(properties.getProperty(DB_USERNAME), properties.getProperty(DB_PASSWORD),
+                    jdbcURL.isEmpty() ? "jdbc:postgresql://localhost:5432/" + properties.getProperty(DB_NAME) : jdbcURL,
+                    properties.getProperty(JDBC_DRIVER_NAME, ""));
+        }
+        columns = new ArrayList<>();
+        try (PreparedStatement ps = queryConnection.prepareStatement("SELECT i.indexrelid, quote_ident(a.attname)\n" +
+                "FROM pg_catalog.pg_index i\n" +
+                "         JOIN pg_catalog.pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = ANY (i.indkey)\n" +
+                "WHERE i.indrelid = CAST(? AS regclass)\n" +
+                "  AND (i.indisreplident OR i.indisprimary)\n" +
+                "ORDER BY i.indisreplident DESC, i.indexrelid;")) {
+            ps.setString(1, table);
+            ResultSet rs = ps.executeQuery();
+            long index = -1;
+            while (rs.next()) {
+                if (index != -1 && index != rs.getLong(1)) {
+                    break;
+                }
+                index = rs.getLong(1);
+                columns.add(rs.getString(2));
+            }
+            rs.close();
+        }
+        keyColumns.put(table, columns);
+        return columns;
+    }
+
+    private void appendTransaction(LogSequenceNumber lsn, StringBuilder transaction) throws IOException {
+        if (segment == null) {
+            segment = new Segment(lsn);
+        }
+        segment.append("\n--\n" + PostgresqlBaseService.SQL_START_PATTERN + " change : " + lsn.asString() + "\n--\n"
+                + transaction
+                + "--\n" + PostgresqlBaseService.SQL_END_PATTERN + " change : " + lsn.asString() + "\n--\n", lsn);
+    }
+
+    /**
+     * This will close the current segment and only then
+     * confirm its last LSN to the server and in the state
+     */
+    private void closeSegment(PGReplicationStream stream, Properties state) throws IOException, SQLException {
+        LogSequenceNumber last = segment.close();
+        segment = null;
+        state.setProperty(FLUSHED_LSN, last.asString());
+        saveState(state);
+        stream.setFlushedLSN(last);
+        stream.setAppliedLSN(last);
+        stream.forceUpdateStatus();
+        logger.debug(LOG_PREFIX + ": changes captured up to " + last.asString());
+    }
+
+    private Properties loadState() throws IOException {
+        Properties state = new Properties();
+        File file = new File(deltaDir, STATE_FILE);
+        if (file.isFile()) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                state.load(inputStream);
+            }
+        }
+        return state;
+    }
+
+    private void saveState(Properties state) throws IOException {
+        File temp = new File(deltaDir, STATE_FILE + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(temp)) {
+            state.store(outputStream, "Change capture state of slot " + slotName);
+            outputStream.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(deltaDir, STATE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void close() {
+        for (Connection connection : new Connection[]{replicationConnection, queryConnection}) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    logger.debug(LOG_PREFIX + ": unable to close connection. " + e.getLocalizedMessage());
+                }
+            }
+        }
+        replicationConnection = null;
+        queryConnection = null;
+    }
+
+    /**
+     * This will format an LSN so that file names sort in LSN order
+     */
+    static String formatLsn(LogSequenceNumber lsn) {
+        return String.format("%016X", lsn.asLong());
+    }
+
+    /**
+     * A delta segment being written
+     */
+    private final class Segment {
+        private final LogSequenceNumber first;
+        private final File partFile;
+        private final FileOutputStream fileStream;
+        private final BufferedOutputStream bufferedStream;
+        private final GZIPOutputStream gzipStream;
+        private final Writer writer;
+        private final long openedAt;
+        private LogSequenceNumber last;
+        private long size;
+
+        private Segment(LogSequenceNumber first) throws IOException {
+            this.first = first;
+            this.partFile = new File(deltaDir, "delta-" + formatLsn(first) + ".part");
+            this.fileStream = new FileOutputStream(partFile);
+            this.bufferedStream = new BufferedOutputStream(fileStream, 64 * 1024);
+            this.gzipStream = new GZIPOutputStream(bufferedStream);
+            this.writer = new OutputStreamWriter(gzipStream, StandardCharsets.UTF_8);
+            this.openedAt = System.currentTimeMillis();
+        }
+
+        private void append(String sql, LogSequenceNumber lsn) throws IOException {
+            writer.write(sql);
+            size += sql.length();
+            last = lsn;
+        }
+
+        private boolean isDue() {
+            return size >= segmentSize || System.currentTimeMillis() - openedAt >= segmentInterval;
+        }
+
+        private LogSequenceNumber close() throws IOException {
+            writer.flush();
+            gzipStream.finish();
+            bufferedStream.flush();
+            fileStream.getFD().sync();
+            writer.close();
+            Files.move(partFile.toPath(), new File(deltaDir, "delta-" + formatLsn(first) + "-" + formatLsn(last) + ".sql.gz").toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            return last;
+        }
+
+        private void discard() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.debug(LOG_PREFIX + ": unable to close segment. " + e.getLocalizedMessage());
+            }
+            partFile.delete();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.ludoviccarretti.services;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream computing the checksums of what goes through it
+ */
+class ChecksumOutputStream extends FilterOutputStream {
+
+    private final EntryChecksum checksum;
+
+    ChecksumOutputStream(OutputStream out, EntryChecksum checksum) {
+        super(out);
+        this.checksum = checksum;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checksum.update(new byte[]{(byte) b}, 0, 1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checksum.update(b, off, len);
+        out.write(b, off, len);
+    }
+
+    /**
+     * Closing the entry is left to the archive
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
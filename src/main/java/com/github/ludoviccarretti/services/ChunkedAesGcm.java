@@ -0,0 +1,112 @@
+package com.github.ludoviccarretti.services;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+/**
+ * The layout of encrypted backups. The content is cut into chunks
+ * that are encrypted and authenticated on their own with AES-GCM:
+ * <pre>
+ * header : magic "B4JENC" | version (1 byte) | chunk size (int) | nonce prefix (8 bytes)
+ * chunk  : final flag (1 byte) | ciphertext length (int) | ciphertext and tag
+ * </pre>
+ * The nonce of a chunk is the nonce prefix followed by the chunk index.
+ * The header, the chunk index and the final flag are authenticated with
+ * every chunk, so chunks cannot be reordered, dropped or truncated away
+ */
+final class ChunkedAesGcm {
+
+    static final byte[] MAGIC = "B4JENC".getBytes(StandardCharsets.US_ASCII);
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + 8;
+    static final int TAG_LENGTH = 16;
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private ChunkedAesGcm() {
+    }
+
+    /**
+     * This will decode a base64 AES key of 16, 24 or 32 bytes
+     *
+     * @param base64Key the key
+     * @return SecretKey
+     */
+    static SecretKey key(String base64Key) {
+        byte[] key = Base64.getDecoder().decode(base64Key.trim());
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("the encryption key must be a base64 encoded AES key of 16, 24 or 32 bytes");
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * @param header the first bytes of a file or stream
+     * @param length the number of bytes available in header
+     * @return true if they start with the encrypted backup magic
+     */
+    static boolean isEncrypted(byte[] header, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] header(int chunkSize, byte[] noncePrefix) {
+        return ByteBuffer.allocate(HEADER_LENGTH)
+                .put(MAGIC)
+                .put(VERSION)
+                .putInt(chunkSize)
+                .put(noncePrefix)
+                .array();
+    }
+
+    /**
+     * This will encrypt or decrypt one chunk
+     *
+     * @param mode    Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param key     the key
+     * @param header  the header of the file
+     * @param index   the chunk index
+     * @param last    whether it is the final chunk
+     * @param input   the chunk content
+     * @param length  the number of bytes of input to process
+     * @return the processed bytes
+     * @throws IOException if the chunk fails authentication
+     */
+    static byte[] process(int mode, SecretKey key, byte[] header, long index, boolean last,
+                          byte[] input, int length) throws IOException {
+        if (index > 0xFFFFFFFFL) {
+            throw new IOException("too many chunks for a single encrypted backup");
+        }
+        byte[] nonce = ByteBuffer.allocate(12)
+                .put(header, MAGIC.length + 1 + 4, 8)
+                .putInt((int) index)
+                .array();
+        byte[] aad = ByteBuffer.allocate(header.length + 9)
+                .put(header)
+                .putLong(index)
+                .put((byte) (last ? 1 : 0))
+                .array();
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(aad);
+            return cipher.doFinal(input, 0, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("unable to " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "authenticate")
+                    + " chunk " + index + " of the backup", e);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.github.ludoviccarretti.services;
+
+import com.github.ludoviccarretti.model.DataComparison;
+import com.github.ludoviccarretti.model.TableEstimate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the data of two databases, e.g. the source of a backup and
+ * the database it was restored to, without reading the rows on the
+ * client: the row count and an order independent hash of every table
+ * are computed on the server side of both databases. When a table with
+ * a single integer primary key differs, it is hashed again per range of
+ * its key to report the ranges that differ. The tables are compared in
+ * parallel, each worker with its own connection to both databases
+ */
+public class DataVerifyService {
+
+    private Properties sourceProperties;
+    private Properties targetProperties;
+    private Set<String> tables;
+    private int parallelism;
+    private long rangeSize;
+    private volatile boolean cancelled;
+    private final Set<Statement> workerStatements = ConcurrentHashMap.newKeySet();
+    private Logger logger = LoggerFactory.getLogger(DataVerifyService.class);
+    private final String LOG_PREFIX = "java-postgresql-exporter";
+
+    private DataVerifyService() {
+        this.parallelism = Math.min(4, Runtime.getRuntime().availableProcessors());
+        this.rangeSize = RangeHasher.DEFAULT_RANGE_SIZE;
+    }
+
+    /**
+     * This function will create a new
+     * DataVerifyService instance thereby facilitating
+     * a builder pattern
+     *
+     * @return DataVerifyService
+     */
+    public static DataVerifyService builder() {
+        return new DataVerifyService();
+    }
+
+    /**
+     * @param sourceProperties the connection properties of the source database, as for the export
+     * @return DataVerifyService
+     */
+    public DataVerifyService setSourceProperties(Properties sourceProperties) {
+        this.sourceProperties = sourceProperties;
+        return this;
+    }
+
+    /**
+     * @param targetProperties the connection properties of the restored database, as for the export
+     * @return DataVerifyService
+     */
+    public DataVerifyService setTargetProperties(Properties targetProperties) {
+        this.targetProperties = targetProperties;
+        return this;
+    }
+
+    /**
+     * Only compare these tables instead of all the tables of the source
+     *
+     * @param tables the table names
+     * @return DataVerifyService
+     */
+    public DataVerifyService setTables(Collection<String> tables) {
+        this.tables = new LinkedHashSet<>(tables);
+        return this;
+    }
+
+    /**
+     * @param parallelism the number of tables compared at the same time
+     * @return DataVerifyService
+     */
+    public DataVerifyService setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * @param rangeSize the number of key values of the ranges reported for a table that differs
+     * @return DataVerifyService
+     */
+    public DataVerifyService setRangeSize(long rangeSize) {
+        this.rangeSize = Math.max(1, rangeSize);
+        return this;
+    }
+
+    /**
+     * This will compare the two databases
+     *
+     * @return DataComparison
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     */
+    public DataComparison compare() throws SQLException, ClassNotFoundException {
+        if (sourceProperties == null || targetProperties == null) {
+            throw new IllegalStateException(LOG_PREFIX + ": the source and target properties must be set");
+        }
+        cancelled = false;
+        List<String> errors = new ArrayList<>();
+
+        //largest tables first so that a big table does not start last
+        List<String> toCompare;
+        try (Connection source = PostgresqlBaseService.connect(sourceProperties);
+             Connection target = PostgresqlBaseService.connect(targetProperties);
+             Statement sourceStmt = source.createStatement();
+             Statement targetStmt = target.createStatement()) {
+            toCompare = PostgresqlBaseService.getTableEstimates(sourceStmt).stream()
+                    .sorted(Comparator.comparingLong(TableEstimate::getTotalBytes).reversed())
+                    .map(TableEstimate::getTableName)
+                    .filter(table -> tables == null || tables.contains(table))
+                    .collect(Collectors.toList());
+            if (tables == null) {
+                Set<String> sourceTables = new HashSet<>(toCompare);
+                PostgresqlBaseService.getTableEstimates(targetStmt).stream()
+                        .map(TableEstimate::getTableName)
+                        .filter(table -> !sourceTables.contains(table))
+                        .forEach(table -> errors.add("table " + table + " is only in the target database"));
+            } else {
+                tables.stream()
+                        .filter(table -> !toCompare.contains(table))
+                        .forEach(table -> errors.add("table " + table + " is not in the source database"));
+            }
+        }
+
+        Queue<String> pending = new ConcurrentLinkedQueue<>(toCompare);
+        Map<String, DataComparison.TableComparison> results = new ConcurrentHashMap<>();
+        int workers = Math.max(1, Math.min(parallelism, toCompare.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(workers, BackupExecutors.daemonThreadFactory(LOG_PREFIX + "-data-verify"));
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            futures.add(executor.submit(() -> {
+                compareWorker(pending, results);
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new SQLException(LOG_PREFIX + ": interrupted while comparing the data");
+        } catch (ExecutionException e) {
+            cancel();
+            throw new SQLException(LOG_PREFIX + ": data verification worker failed", e.getCause());
+        }
+
+        List<DataComparison.TableComparison> comparisons = toCompare.stream()
+                .map(results::get)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        DataComparison comparison = new DataComparison(comparisons, errors);
+        logger.debug(LOG_PREFIX + ": " + comparisons.size() + " tables compared, matching: " + comparison.isMatching());
+        return comparison;
+    }
+
+    /**
+     * A worker comparing tables until none is left
+     *
+     * @param pending the tables left to compare
+     * @param results the comparisons by table
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     */
+    private void compareWorker(Queue<String> pending, Map<String, DataComparison.TableComparison> results) throws SQLException, ClassNotFoundException {
+        try (Connection source = PostgresqlBaseService.connect(sourceProperties);
+             Connection target = PostgresqlBaseService.connect(targetProperties);
+             Statement sourceStmt = source.createStatement();
+             Statement targetStmt = target.createStatement()) {
+            source.setReadOnly(true);
+            target.setReadOnly(true);
+            workerStatements.add(sourceStmt);
+            workerStatements.add(targetStmt);
+            try {
+                String table;
+                while (!cancelled && (table = pending.poll()) != null) {
+                    results.put(table, compareTable(sourceStmt, targetStmt, table));
+                }
+            } finally {
+                workerStatements.remove(sourceStmt);
+                workerStatements.remove(targetStmt);
+            }
+        }
+    }
+
+    private DataComparison.TableComparison compareTable(Statement sourceStmt, Statement targetStmt, String table) {
+        BackupEvent event = BackupEvent.table("verify", table);
+        RangeHasher.Hash sourceHash;
+        RangeHasher.Hash targetHash;
+        try {
+            sourceHash = RangeHasher.hashTable(sourceStmt, table);
+        } catch (SQLException e) {
+            return new DataComparison.TableComparison(table, 0, 0, false, Collections.emptyList(),
+                    "unable to hash the source table: " + e.getLocalizedMessage());
+        }
+        try {
+            targetHash = RangeHasher.hashTable(targetStmt, table);
+        } catch (SQLException e) {
+            return new DataComparison.TableComparison(table, sourceHash.getRows(), 0, false, Collections.emptyList(),
+                    "unable to hash the target table: " + e.getLocalizedMessage());
+        }
+        event.rows(sourceHash.getRows()).commit();
+
+        if (sourceHash.equals(targetHash)) {
+            return new DataComparison.TableComparison(table, sourceHash.getRows(), targetHash.getRows(), true, Collections.emptyList(), null);
+        }
+
+        //narrow the difference down to ranges of the key
+        List<DataComparison.KeyRange> ranges = new ArrayList<>();
+        try {
+            String column = RangeHasher.getRangeColumn(PostgresqlBaseService.getPrimaryKeyColumns(sourceStmt, table));
+            if (column != null) {
+                SortedMap<Long, RangeHasher.Hash> sourceRanges = RangeHasher.hashRanges(sourceStmt, table, column, rangeSize, Long.MIN_VALUE, Long.MAX_VALUE);
+                SortedMap<Long, RangeHasher.Hash> targetRanges = RangeHasher.hashRanges(targetStmt, table, column, rangeSize, Long.MIN_VALUE, Long.MAX_VALUE);
+                SortedSet<Long> starts = new TreeSet<>(sourceRanges.keySet());
+                starts.addAll(targetRanges.keySet());
+                for (long start : starts) {
+                    RangeHasher.Hash sourceRange = sourceRanges.get(start);
+                    RangeHasher.Hash targetRange = targetRanges.get(start);
+                    if (!Objects.equals(sourceRange, targetRange)) {
+                        ranges.add(new DataComparison.KeyRange(column, start, start + rangeSize,
+                                sourceRange == null ? 0 : sourceRange.getRows(),
+                                targetRange == null ? 0 : targetRange.getRows()));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.debug(LOG_PREFIX + ": unable to hash the ranges of " + table + ". " + e.getLocalizedMessage());
+        }
+        logger.debug(LOG_PREFIX + ": " + table + " differs, " + sourceHash + " in source and " + targetHash + " in target, "
+                + ranges.size() + " ranges differ");
+        return new DataComparison.TableComparison(table, sourceHash.getRows(), targetHash.getRows(), false, ranges, null);
+    }
+
+    /**
+     * This will cancel a running comparison.
+     * The running queries are cancelled on the server
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Statement statement : new ArrayList<>(workerStatements)) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                logger.debug(LOG_PREFIX + ": unable to cancel the running statement. " + e.getLocalizedMessage());
+            }
+        }
+    }
+}
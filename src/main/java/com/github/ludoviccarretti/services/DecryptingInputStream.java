@@ -0,0 +1,88 @@
+package com.github.ludoviccarretti.services;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream decrypting a backup written by EncryptingOutputStream.
+ * Every chunk is authenticated before any of its bytes are returned,
+ * and the stream fails if it ends before the final chunk
+ */
+class DecryptingInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final SecretKey key;
+    private final byte[] header = new byte[ChunkedAesGcm.HEADER_LENGTH];
+    private final int chunkSize;
+
+    private byte[] chunk = new byte[0];
+    private int position;
+    private long index;
+    private boolean finished;
+
+    DecryptingInputStream(InputStream in, SecretKey key) throws IOException {
+        this.in = new DataInputStream(in);
+        this.key = key;
+        this.in.readFully(header);
+        if (!ChunkedAesGcm.isEncrypted(header, header.length)) {
+            throw new IOException("not an encrypted backup");
+        }
+        if (header[ChunkedAesGcm.MAGIC.length] != ChunkedAesGcm.VERSION) {
+            throw new IOException("unsupported encrypted backup version " + header[ChunkedAesGcm.MAGIC.length]);
+        }
+        this.chunkSize = ((header[7] & 0xFF) << 24) | ((header[8] & 0xFF) << 16) | ((header[9] & 0xFF) << 8) | (header[10] & 0xFF);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (position == chunk.length) {
+            if (finished) {
+                return -1;
+            }
+            nextChunk();
+        }
+        int n = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    private void nextChunk() throws IOException {
+        boolean last;
+        int length;
+        byte[] encrypted;
+        try {
+            last = in.readByte() == 1;
+            length = in.readInt();
+            if (length < ChunkedAesGcm.TAG_LENGTH || length > chunkSize + ChunkedAesGcm.TAG_LENGTH) {
+                throw new IOException("invalid length for chunk " + index + " of the encrypted backup");
+            }
+            encrypted = new byte[length];
+            in.readFully(encrypted);
+        } catch (EOFException e) {
+            throw new IOException("the encrypted backup is truncated at chunk " + index);
+        }
+        chunk = ChunkedAesGcm.process(Cipher.DECRYPT_MODE, key, header, index++, last, encrypted, length);
+        position = 0;
+        finished = last;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -3,12 +3,16 @@ package com.github.ludoviccarretti.services;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.mail.*;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
-import java.io.File;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -16,6 +20,12 @@ import java.util.Properties;
  */
 class EmailService {
 
+    static final long DEFAULT_MAX_ATTACHMENT_SIZE = 20L * 1024 * 1024;
+
+    //room left in every message for its headers and body, and in every attachment for its part headers
+    private static final long MESSAGE_OVERHEAD = 16 * 1024;
+    private static final long PART_OVERHEAD = 1024;
+
     private String host = "";
     private int port = 0;
     private String fromAdd = "";
@@ -25,6 +35,10 @@ class EmailService {
     private String subject = "";
     private String msg = "";
     private File[] attachments;
+    private long maxAttachmentSize = DEFAULT_MAX_ATTACHMENT_SIZE;
+    private int retries = 3;
+    private Session session;
+    private Transport transport;
     private Logger logger = LoggerFactory.getLogger(EmailService.class);
     private final String LOG_PREFIX = "java-postgresql-exporter";
 
@@ -87,6 +101,28 @@ class EmailService {
         return this;
     }
 
+    /**
+     * Attachments that do not fit in a message of this size once
+     * base64 encoded are split into volumes (name.001, name.002, ...)
+     * sent in separate messages
+     *
+     * @param maxAttachmentSize bytes of a message on the wire
+     * @return EmailService
+     */
+    EmailService setMaxAttachmentSize(long maxAttachmentSize) {
+        this.maxAttachmentSize = Math.max(1, maxAttachmentSize);
+        return this;
+    }
+
+    /**
+     * @param retries the number of times a message is sent again after a failure
+     * @return EmailService
+     */
+    EmailService setRetries(int retries) {
+        this.retries = Math.max(0, retries);
+        return this;
+    }
+
     /**
      * This will check if the necessary properties
      * are set for sending an email successfully
@@ -107,8 +143,10 @@ class EmailService {
 
 
     /**
-     * This function will send an email
-     * and add the generated sql file as an attachment
+     * This function will send the attachments by email,
+     * split into size capped volumes when needed and grouped
+     * into messages that stay under the cap, all of them sent
+     * over a single SMTP connection
      *
      * @return boolean
      */
@@ -119,63 +157,284 @@ class EmailService {
             return false;
         }
 
-        Properties prop = new Properties();
-        prop.put("mail.smtp.auth", true);
-        prop.put("mail.smtp.starttls.enable", "true");
-        prop.put("mail.smtp.host", this.host);
-        prop.put("mail.smtp.port", this.port);
-        prop.put("mail.smtp.ssl.trust", host);
+        List<List<Volume>> messages = planMessages();
+        logger.debug(LOG_PREFIX + ": " + this.attachments.length + " attachments found, sending them in " + messages.size() + " messages");
+
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                String messageSubject = messages.size() == 1 ? subject : subject + " (" + (i + 1) + "/" + messages.size() + ")";
+                sendWithRetries(messageSubject, messages.get(i));
+            }
+            logger.debug(LOG_PREFIX + ": MESSAGE SENT SUCCESSFULLY");
+            return true;
+
+        } catch (Exception e) {
+            logger.error(LOG_PREFIX + ": MESSAGE NOT SENT. " + e.getLocalizedMessage());
+            e.printStackTrace();
+            return false;
+        } finally {
+            close();
+        }
+
+    }
 
-        logger.debug(LOG_PREFIX + ": Mail properties set");
+    /**
+     * This will cut the attachments into volumes that fit in a
+     * message of maxAttachmentSize bytes once base64 encoded, and
+     * group the volumes into messages that stay under that size
+     *
+     * @return the volumes of every message
+     */
+    private List<List<Volume>> planMessages() {
+        long maxVolumeSize = maxRawSize(maxAttachmentSize - MESSAGE_OVERHEAD - PART_OVERHEAD);
+        List<Volume> volumes = new ArrayList<>();
+        for (File file : attachments) {
+            long length = file.length();
+            if (length <= maxVolumeSize) {
+                volumes.add(new Volume(file, file.getName(), 0, length));
+                continue;
+            }
+            int count = (int) ((length + maxVolumeSize - 1) / maxVolumeSize);
+            for (int i = 0; i < count; i++) {
+                long offset = i * maxVolumeSize;
+                volumes.add(new Volume(file, String.format("%s.%03d", file.getName(), i + 1), offset,
+                        Math.min(maxVolumeSize, length - offset)));
+            }
+        }
 
-        Session session = Session.getInstance(prop, new Authenticator() {
-            @Override
-            protected PasswordAuthentication getPasswordAuthentication() {
-                return new PasswordAuthentication(username, password);
+        List<List<Volume>> messages = new ArrayList<>();
+        List<Volume> current = new ArrayList<>();
+        long currentSize = MESSAGE_OVERHEAD;
+        for (Volume volume : volumes) {
+            long volumeSize = encodedSize(volume.length) + PART_OVERHEAD;
+            if (!current.isEmpty() && currentSize + volumeSize > maxAttachmentSize) {
+                messages.add(current);
+                current = new ArrayList<>();
+                currentSize = MESSAGE_OVERHEAD;
             }
-        });
+            current.add(volume);
+            currentSize += volumeSize;
+        }
+        if (!current.isEmpty()) {
+            messages.add(current);
+        }
+        return messages;
+    }
 
-        logger.debug(LOG_PREFIX + ": Mail Session Created");
+    /**
+     * This will compute the size of base64 encoded data:
+     * 4 bytes for every 3, plus a CRLF every 76 characters
+     *
+     * @param length the raw size
+     * @return the encoded size
+     */
+    static long encodedSize(long length) {
+        long encoded = (length + 2) / 3 * 4;
+        return encoded + (encoded + 75) / 76 * 2;
+    }
 
-        try {
+    /**
+     * @param encodedSize the room available on the wire
+     * @return the largest raw size, at least 1, whose encoded size fits
+     */
+    static long maxRawSize(long encodedSize) {
+        long raw = Math.max(1, encodedSize / 78 * 76 / 4 * 3);
+        while (raw > 1 && encodedSize(raw) > encodedSize) {
+            raw -= 3;
+        }
+        return Math.max(1, raw);
+    }
+
+    /**
+     * This will send one message over the shared SMTP connection,
+     * reconnecting and trying again up to the configured number of retries
+     *
+     * @param messageSubject the subject of the message
+     * @param volumes        the attachments of the message
+     * @throws MessagingException when every attempt failed
+     */
+    private void sendWithRetries(String messageSubject, List<Volume> volumes) throws MessagingException {
+        MessagingException last = null;
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            try {
+                Message message = createMessage(messageSubject, volumes);
+                Transport smtp = getTransport();
+                smtp.sendMessage(message, message.getAllRecipients());
+                logger.debug(LOG_PREFIX + ": " + messageSubject + " sent");
+                return;
+            } catch (MessagingException e) {
+                last = e;
+                logger.debug(LOG_PREFIX + ": " + messageSubject + " not sent, attempt " + (attempt + 1) + ". " + e.getLocalizedMessage());
+                closeTransport();
+            }
+        }
+        throw last;
+    }
+
+    private Message createMessage(String messageSubject, List<Volume> volumes) throws MessagingException {
 //			create a default mime message object
-            Message message = new MimeMessage(session);
-            message.setFrom(new InternetAddress(fromAdd));
-            message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(toAdd));
-            message.setSubject(subject);
+        Message message = new MimeMessage(getSession());
+        message.setFrom(new InternetAddress(fromAdd));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(toAdd));
+        message.setSubject(messageSubject);
 
 //          body part for message
-            MimeBodyPart mimeBodyPart = new MimeBodyPart();
-            mimeBodyPart.setContent(msg, "text/html");
+        MimeBodyPart mimeBodyPart = new MimeBodyPart();
+        mimeBodyPart.setContent(msg, "text/html");
+
+//          create a multipart to combine them together
+        Multipart multipart = new MimeMultipart();
+        multipart.addBodyPart(mimeBodyPart);
 
-//          body part for attachments
+//          one body part per attachment, streamed from the file when the message is sent
+        for (Volume volume : volumes) {
             MimeBodyPart attachmentBodyPart = new MimeBodyPart();
-            logger.debug(LOG_PREFIX + ": " + this.attachments.length + " attachments found");
-            for (File file : this.attachments) {
-                attachmentBodyPart.attachFile(file);
+            attachmentBodyPart.setDataHandler(new DataHandler(new FileRangeDataSource(volume)));
+            attachmentBodyPart.setFileName(volume.name);
+            attachmentBodyPart.setDisposition(Part.ATTACHMENT);
+            multipart.addBodyPart(attachmentBodyPart);
+        }
+
+        //now set the multipart as the content of the message
+        message.setContent(multipart);
+        return message;
+    }
+
+    private Session getSession() {
+        if (session == null) {
+            Properties prop = new Properties();
+            prop.put("mail.smtp.auth", true);
+            prop.put("mail.smtp.starttls.enable", "true");
+            prop.put("mail.smtp.host", this.host);
+            prop.put("mail.smtp.port", this.port);
+            prop.put("mail.smtp.ssl.trust", host);
+
+            logger.debug(LOG_PREFIX + ": Mail properties set");
+
+            session = Session.getInstance(prop, new Authenticator() {
+                @Override
+                protected PasswordAuthentication getPasswordAuthentication() {
+                    return new PasswordAuthentication(username, password);
+                }
+            });
+
+            logger.debug(LOG_PREFIX + ": Mail Session Created");
+        }
+        return session;
+    }
+
+    private Transport getTransport() throws MessagingException {
+        if (transport == null || !transport.isConnected()) {
+            transport = getSession().getTransport("smtp");
+            transport.connect(host, port, username, password);
+            logger.debug(LOG_PREFIX + ": SMTP connection opened");
+        }
+        return transport;
+    }
+
+    private void closeTransport() {
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                logger.debug(LOG_PREFIX + ": unable to close the SMTP connection. " + e.getLocalizedMessage());
             }
+            transport = null;
+        }
+    }
 
-//          create a multipart to combine them together
-            Multipart multipart = new MimeMultipart();
-            multipart.addBodyPart(mimeBodyPart);
-            multipart.addBodyPart(attachmentBodyPart);
+    /**
+     * This will close the SMTP connection, if it is open
+     */
+    void close() {
+        closeTransport();
+    }
 
-            //now set the multipart as the content of the message
-            message.setContent(multipart);
+    /**
+     * A byte range of an attachment sent as one volume
+     */
+    private static final class Volume {
+        private final File file;
+        private final String name;
+        private final long offset;
+        private final long length;
+
+        private Volume(File file, String name, long offset, long length) {
+            this.file = file;
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A DataSource reading a volume straight from its file,
+     * so attachments are never loaded in memory
+     */
+    private static final class FileRangeDataSource implements DataSource {
+        private final Volume volume;
 
-//			send the message
-            Transport.send(message);
+        private FileRangeDataSource(Volume volume) {
+            this.volume = volume;
+        }
 
-            logger.debug(LOG_PREFIX + ": MESSAGE SENT SUCCESSFULLY");
+        @Override
+        public InputStream getInputStream() throws IOException {
+            RandomAccessFile file = new RandomAccessFile(volume.file, "r");
+            try {
+                file.seek(volume.offset);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            return new BufferedInputStream(new InputStream() {
+                private long remaining = volume.length;
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int b = file.read();
+                    if (b >= 0) {
+                        remaining--;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int read = file.read(b, off, (int) Math.min(len, remaining));
+                    if (read > 0) {
+                        remaining -= read;
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    file.close();
+                }
+            }, 64 * 1024);
+        }
 
-            return true;
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("read only data source");
+        }
 
-        } catch (Exception e) {
-            logger.debug(LOG_PREFIX + ": MESSAGE NOT SENT. " + e.getLocalizedMessage());
-            e.printStackTrace();
-            return false;
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
         }
 
+        @Override
+        public String getName() {
+            return volume.name;
+        }
     }
 
 }
@@ -0,0 +1,125 @@
+package com.github.ludoviccarretti.services;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An output stream encrypting what is written to it in the chunked
+ * AES-GCM layout of ChunkedAesGcm. Chunks are encrypted in parallel
+ * and written in order; at most parallelism chunks are in flight
+ */
+class EncryptingOutputStream extends OutputStream {
+
+    private final DataOutputStream out;
+    private final SecretKey key;
+    private final byte[] header;
+    private final int chunkSize;
+    private final int parallelism;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] buffer;
+    private int count;
+    private long index;
+    private boolean closed;
+
+    EncryptingOutputStream(OutputStream out, SecretKey key, int chunkSize, int parallelism) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.key = key;
+        this.chunkSize = chunkSize;
+        this.parallelism = Math.max(1, parallelism);
+        this.executor = Executors.newFixedThreadPool(this.parallelism, BackupExecutors.daemonThreadFactory("java-postgresql-exporter-encrypt"));
+        this.buffer = new byte[chunkSize];
+
+        byte[] noncePrefix = new byte[8];
+        new SecureRandom().nextBytes(noncePrefix);
+        this.header = ChunkedAesGcm.header(chunkSize, noncePrefix);
+        this.out.write(header);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, chunkSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            //a full chunk is only sealed once more data shows it is not the final one
+            if (count == chunkSize && len > 0) {
+                submit(false);
+            }
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        byte[] chunk = buffer;
+        int length = count;
+        long chunkIndex = index++;
+        pending.add(executor.submit(() -> ChunkedAesGcm.process(Cipher.ENCRYPT_MODE, key, header, chunkIndex, last, chunk, length)));
+        buffer = new byte[chunkSize];
+        count = 0;
+        while (pending.size() > (last ? 0 : parallelism)) {
+            writeChunk(pending.size() == 1 && last);
+        }
+    }
+
+    private void writeChunk(boolean last) throws IOException {
+        byte[] encrypted;
+        try {
+            encrypted = pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while encrypting the backup");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        out.writeByte(last ? 1 : 0);
+        out.writeInt(encrypted.length);
+        out.write(encrypted);
+    }
+
+    /**
+     * This will seal the final chunk, possibly empty,
+     * and close the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            submit(true);
+            out.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+        out.close();
+    }
+
+    /**
+     * This will stop the encryption without sealing the
+     * final chunk, leaving an output that fails decryption
+     */
+    void abort() {
+        closed = true;
+        executor.shutdownNow();
+    }
+}
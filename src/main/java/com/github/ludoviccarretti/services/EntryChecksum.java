@@ -0,0 +1,63 @@
+package com.github.ludoviccarretti.services;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Computes the CRC-32C, SHA-256 and size of an archive entry
+ * as its content goes through, and stores them in the
+ * checksums entry of the archive
+ */
+class EntryChecksum {
+
+    static final String CHECKSUMS_ENTRY = "backup4j-checksums.properties";
+
+    private final Crc32c crc = new Crc32c();
+    private final MessageDigest sha256;
+    private long size = 0;
+
+    EntryChecksum() throws IOException {
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    void update(byte[] b, int off, int len) {
+        crc.update(b, off, len);
+        sha256.update(b, off, len);
+        size += len;
+    }
+
+    String getCrc32c() {
+        return String.format("%08x", crc.getValue());
+    }
+
+    String getSha256() {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha256.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * This will record the checksums of an entry.
+     * The SHA-256 can only be read once
+     *
+     * @param checksums the checksums of the archive
+     * @param entryName the entry name
+     */
+    void store(Properties checksums, String entryName) {
+        checksums.setProperty(entryName + ".size", String.valueOf(size));
+        checksums.setProperty(entryName + ".crc32c", getCrc32c());
+        checksums.setProperty(entryName + ".sha256", getSha256());
+    }
+}
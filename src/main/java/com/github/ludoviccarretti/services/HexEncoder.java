@@ -0,0 +1,59 @@
+package com.github.ludoviccarretti.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Encodes binary content as hex straight into the generated SQL,
+ * a fixed size piece at a time, without an intermediate String
+ */
+final class HexEncoder {
+
+    static final int PIECE_SIZE = 64 * 1024;
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private HexEncoder() {
+    }
+
+    /**
+     * This will append the content of the stream
+     * as hex digits, reading at most limit bytes
+     *
+     * @param sql   the generated SQL
+     * @param in    the binary content
+     * @param limit the maximum number of bytes to read
+     * @return the number of bytes read
+     * @throws IOException exception
+     */
+    static long append(StringBuilder sql, InputStream in, long limit) throws IOException {
+        byte[] piece = new byte[(int) Math.min(PIECE_SIZE, Math.max(1, limit))];
+        long total = 0;
+        int read;
+        while (total < limit && (read = in.read(piece, 0, (int) Math.min(piece.length, limit - total))) != -1) {
+            for (int i = 0; i < read; i++) {
+                sql.append(DIGITS[(piece[i] >> 4) & 0xF]).append(DIGITS[piece[i] & 0xF]);
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * This will append the hex digits of what
+     * a single read of the stream returns
+     *
+     * @param sql   the generated SQL
+     * @param in    the binary content
+     * @param piece the buffer to read into
+     * @return the number of bytes read, -1 at the end of the stream
+     * @throws IOException exception
+     */
+    static int append(StringBuilder sql, InputStream in, byte[] piece) throws IOException {
+        int read = in.read(piece);
+        for (int i = 0; i < read; i++) {
+            sql.append(DIGITS[(piece[i] >> 4) & 0xF]).append(DIGITS[piece[i] & 0xF]);
+        }
+        return read;
+    }
+}
@@ -0,0 +1,270 @@
+package com.github.ludoviccarretti.services;
+
+/**
+ * Rewrites the multi-row INSERT of a table insert section, as generated
+ * by the export service, into the text format of COPY. Values are
+ * converted one row at a time so the COPY stream can be fed as the
+ * section is read. Anything the export does not generate is rejected
+ * with an IllegalArgumentException so the caller can fall back to
+ * executing the INSERT itself
+ */
+class InsertToCopyConverter {
+
+    private final String sql;
+    private final String copyCommand;
+    private int pos;
+    private boolean finished;
+
+    /**
+     * @param sql the SQL of a table insert section
+     * @throws IllegalArgumentException if the section is not a single INSERT ... VALUES
+     */
+    InsertToCopyConverter(String sql) {
+        this.sql = sql;
+        this.pos = 0;
+        skipComments();
+        expectWord("INSERT");
+        expectWord("INTO");
+        String table = readIdentifier();
+        skipWhitespace();
+        expect('(');
+        StringBuilder columns = new StringBuilder();
+        while (true) {
+            skipWhitespace();
+            columns.append(readIdentifier());
+            skipWhitespace();
+            if (peek() == ',') {
+                pos++;
+                columns.append(", ");
+            } else {
+                expect(')');
+                break;
+            }
+        }
+        expectWord("VALUES");
+        this.copyCommand = "COPY " + table + " (" + columns + ") FROM STDIN";
+    }
+
+    /**
+     * @return the COPY command to start, e.g. COPY "t" ("a", "b") FROM STDIN
+     */
+    String getCopyCommand() {
+        return copyCommand;
+    }
+
+    /**
+     * This will append the next row in COPY text format,
+     * terminated by a line feed
+     *
+     * @param out the COPY data
+     * @return false when there is no row left
+     */
+    boolean nextRow(StringBuilder out) {
+        if (finished) {
+            return false;
+        }
+        skipWhitespace();
+        expect('(');
+        boolean first = true;
+        while (true) {
+            if (!first) {
+                out.append('\t');
+            }
+            first = false;
+            skipWhitespace();
+            readValue(out);
+            skipWhitespace();
+            char c = next();
+            if (c == ')') {
+                break;
+            }
+            if (c != ',') {
+                throw unexpected(c);
+            }
+        }
+        out.append('\n');
+
+        skipWhitespace();
+        char c = next();
+        if (c == ';') {
+            finished = true;
+        } else if (c != ',') {
+            throw unexpected(c);
+        }
+        return true;
+    }
+
+    /**
+     * @return what follows the INSERT statement once all rows are read,
+     * without the comments, empty if nothing
+     */
+    String getRemainder() {
+        int saved = pos;
+        skipComments();
+        String remainder = sql.substring(pos).trim();
+        pos = saved;
+        return remainder;
+    }
+
+    private void readValue(StringBuilder out) {
+        char c = peek();
+        if (c == '\'') {
+            pos++;
+            escape(readString(), out);
+        } else if (sql.startsWith("decode('", pos)) {
+            pos += "decode('".length();
+            String hex = readString();
+            skipWhitespace();
+            expect(',');
+            skipWhitespace();
+            expect('\'');
+            if (!"hex".equals(readString())) {
+                throw new IllegalArgumentException("unsupported decode() format at offset " + pos);
+            }
+            skipWhitespace();
+            expect(')');
+            //bytea in COPY text format, the backslash is escaped
+            out.append("\\\\x").append(hex);
+        } else {
+            int start = pos;
+            while (pos < sql.length() && sql.charAt(pos) != ',' && sql.charAt(pos) != ')') {
+                pos++;
+            }
+            String token = sql.substring(start, pos).trim();
+            if (token.equalsIgnoreCase("null")) {
+                out.append("\\N");
+            } else if (token.matches("-?[0-9]+(\\.[0-9]+)?([eE][-+]?[0-9]+)?|true|false")) {
+                out.append(token);
+            } else {
+                throw new IllegalArgumentException("unsupported value '" + token + "' at offset " + start);
+            }
+        }
+    }
+
+    /**
+     * This will read a quoted string up to its closing quote.
+     * Both '' and the \' written by the export stand for a quote
+     */
+    private String readString() {
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            if (pos >= sql.length()) {
+                throw new IllegalArgumentException("unterminated string");
+            }
+            char c = sql.charAt(pos++);
+            if (c == '\\' && pos < sql.length() && sql.charAt(pos) == '\'') {
+                value.append('\'');
+                pos++;
+            } else if (c == '\'') {
+                if (pos < sql.length() && sql.charAt(pos) == '\'') {
+                    value.append('\'');
+                    pos++;
+                } else {
+                    return value.toString();
+                }
+            } else {
+                value.append(c);
+            }
+        }
+    }
+
+    private static void escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private String readIdentifier() {
+        skipWhitespace();
+        int start = pos;
+        if (peek() == '"') {
+            pos++;
+            while (true) {
+                if (pos >= sql.length()) {
+                    throw new IllegalArgumentException("unterminated identifier");
+                }
+                if (sql.charAt(pos++) == '"') {
+                    if (pos < sql.length() && sql.charAt(pos) == '"') {
+                        pos++;
+                    } else {
+                        break;
+                    }
+                }
+            }
+        } else {
+            while (pos < sql.length() && (Character.isLetterOrDigit(sql.charAt(pos)) || sql.charAt(pos) == '_' || sql.charAt(pos) == '.')) {
+                pos++;
+            }
+        }
+        if (start == pos) {
+            throw new IllegalArgumentException("identifier expected at offset " + pos);
+        }
+        return sql.substring(start, pos);
+    }
+
+    private void skipComments() {
+        while (true) {
+            skipWhitespace();
+            if (sql.startsWith("--", pos)) {
+                int end = sql.indexOf('\n', pos);
+                pos = end < 0 ? sql.length() : end + 1;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < sql.length() && Character.isWhitespace(sql.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private void expectWord(String word) {
+        skipWhitespace();
+        if (!sql.regionMatches(true, pos, word, 0, word.length())) {
+            throw new IllegalArgumentException(word + " expected at offset " + pos);
+        }
+        pos += word.length();
+    }
+
+    private void expect(char expected) {
+        char c = next();
+        if (c != expected) {
+            throw unexpected(c);
+        }
+    }
+
+    private char peek() {
+        if (pos >= sql.length()) {
+            throw new IllegalArgumentException("unexpected end of statement");
+        }
+        return sql.charAt(pos);
+    }
+
+    private char next() {
+        char c = peek();
+        pos++;
+        return c;
+    }
+
+    private IllegalArgumentException unexpected(char c) {
+        return new IllegalArgumentException("unexpected '" + c + "' at offset " + (pos - 1));
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.ludoviccarretti.services;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * The Flight Recorder events behind BackupEvent. This class is only
+ * loaded when the JVM has the Flight Recorder. The events can be
+ * enabled and given thresholds like the JDK ones, by their name
+ */
+final class JfrEvents {
+
+    private static final String CATEGORY = "PostgreSQL Backup";
+
+    private JfrEvents() {
+    }
+
+    static BackupEvent table(String phase, String table) {
+        TableEvent event = new TableEvent();
+        event.phase = phase;
+        event.table = table;
+        return new Handle(event);
+    }
+
+    static BackupEvent phase(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        return new Handle(event);
+    }
+
+    static BackupEvent importBatch(String mode, String section) {
+        ImportBatchEvent event = new ImportBatchEvent();
+        event.mode = mode;
+        event.section = section;
+        return new Handle(event);
+    }
+
+    static BackupEvent stall(String stage) {
+        StallEvent event = new StallEvent();
+        event.stage = stage;
+        return new Handle(event);
+    }
+
+    @Name("com.github.ludoviccarretti.Table")
+    @Label("Backup Table")
+    @Category(CATEGORY)
+    @Description("The rows of a table read from the database or encoded as SQL")
+    static class TableEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Table")
+        String table;
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.github.ludoviccarretti.Phase")
+    @Label("Backup Phase")
+    @Category(CATEGORY)
+    @Description("A phase of an export or an import")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.github.ludoviccarretti.ImportBatch")
+    @Label("Import Batch")
+    @Category(CATEGORY)
+    @Description("Statements of a dump executed in one round trip")
+    static class ImportBatchEvent extends Event {
+        @Label("Mode")
+        String mode;
+
+        @Label("Section")
+        String section;
+
+        @Label("Rows")
+        @Description("The statements of a batch or the rows copied")
+        long rows;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.github.ludoviccarretti.PipelineStall")
+    @Label("Export Pipeline Stall")
+    @Category(CATEGORY)
+    @Description("The export pipeline waiting for a stage to take the output of the previous one")
+    @Threshold("10 ms")
+    static class StallEvent extends Event {
+        @Label("Stage")
+        String stage;
+    }
+
+    private static final class Handle extends BackupEvent {
+
+        private final Event event;
+        private long rows;
+        private long bytes;
+
+        private Handle(Event event) {
+            this.event = event;
+            event.begin();
+        }
+
+        @Override
+        BackupEvent rows(long rows) {
+            this.rows += rows;
+            return this;
+        }
+
+        @Override
+        BackupEvent bytes(long bytes) {
+            this.bytes += bytes;
+            return this;
+        }
+
+        @Override
+        void commit() {
+            event.end();
+            if (!event.shouldCommit()) {
+                return;
+            }
+            if (event instanceof TableEvent) {
+                ((TableEvent) event).rows = rows;
+                ((TableEvent) event).bytes = bytes;
+            } else if (event instanceof PhaseEvent) {
+                ((PhaseEvent) event).rows = rows;
+                ((PhaseEvent) event).bytes = bytes;
+            } else if (event instanceof ImportBatchEvent) {
+                ((ImportBatchEvent) event).rows = rows;
+                ((ImportBatchEvent) event).bytes = bytes;
+            }
+            event.commit();
+        }
+    }
+}
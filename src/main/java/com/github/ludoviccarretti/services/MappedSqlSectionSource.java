@@ -0,0 +1,155 @@
+package com.github.ludoviccarretti.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Predicate;
+
+/**
+ * Reads the sections of a plain .sql dump through a memory mapping
+ * of the file. The file is mapped window by window and the section
+ * boundaries are searched directly over the mapped bytes, so only
+ * the statements that are handed to the driver end up on the heap.
+ */
+class MappedSqlSectionSource implements SqlSectionSource {
+
+    static final long DEFAULT_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    private static final byte[] START = PostgresqlBaseService.SQL_START_PATTERN.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] END = PostgresqlBaseService.SQL_END_PATTERN.getBytes(StandardCharsets.UTF_8);
+
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+    private final Predicate<SqlSection> filter;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    MappedSqlSectionSource(File file, Predicate<SqlSection> filter) throws IOException {
+        this(file, filter, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedSqlSectionSource(File file, Predicate<SqlSection> filter, long windowSize) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        this.filter = filter;
+        this.position = 0;
+    }
+
+    @Override
+    public SqlSection next() throws IOException {
+        while (position < size) {
+            long lineStart = position;
+            long lineEnd = findLineEnd(lineStart);
+            position = lineEnd + 1;
+
+            if (!startsWith(lineStart, lineEnd, START)) {
+                continue;
+            }
+
+            SqlSection header = SqlSection.parseHeader(decode(lineStart, lineEnd));
+
+            //consume the section up to its end pattern
+            long sectionEnd = size;
+            while (position < size) {
+                long start = position;
+                long end = findLineEnd(start);
+                position = end + 1;
+                if (startsWith(start, end, END)) {
+                    sectionEnd = start;
+                    break;
+                }
+            }
+
+            if (header != null && filter.test(header)) {
+                return header.withSql(decode(lineStart, sectionEnd));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This will return the position of the next line feed
+     * or the end of the file
+     */
+    private long findLineEnd(long from) throws IOException {
+        long pos = from;
+        while (pos < size) {
+            ensureMapped(pos);
+            int limit = (int) Math.min(window.limit(), size - windowStart);
+            for (int i = (int) (pos - windowStart); i < limit; i++) {
+                if (window.get(i) == '\n') {
+                    return windowStart + i;
+                }
+            }
+            pos = windowStart + limit;
+        }
+        return size;
+    }
+
+    private boolean startsWith(long from, long to, byte[] pattern) throws IOException {
+        if (to - from < pattern.length) {
+            return false;
+        }
+        for (int i = 0; i < pattern.length; i++) {
+            ensureMapped(from + i);
+            if (window.get((int) (from + i - windowStart)) != pattern[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This will decode the bytes between the given positions
+     * into a String. The bytes are read from the current window;
+     * a section crossing the window boundary moves the window to
+     * its start, and only a section larger than a whole window
+     * is mapped on its own
+     */
+    private String decode(long from, long to) throws IOException {
+        long length = to - from;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("SQL section of " + length + " bytes at offset " + from + " is too large to be executed");
+        }
+        if (length > windowSize) {
+            ByteBuffer slice = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+            return StandardCharsets.UTF_8.decode(slice).toString();
+        }
+
+        ensureMapped(from);
+        if (to > windowStart + window.limit()) {
+            remap(from);
+        }
+        ByteBuffer slice = window.duplicate();
+        ((Buffer) slice).limit((int) (to - windowStart));
+        ((Buffer) slice).position((int) (from - windowStart));
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+
+    private void ensureMapped(long pos) throws IOException {
+        if (window != null && pos >= windowStart && pos < windowStart + window.limit()) {
+            return;
+        }
+        remap(pos);
+    }
+
+    private void remap(long pos) throws IOException {
+        windowStart = pos;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,175 @@
+package com.github.ludoviccarretti.services;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+
+/**
+ * Limits the memory the rows of exports and imports take on the heap.
+ * Every thread reading or loading rows takes a lease on the budget and
+ * gets an equal share of what the fixed buffers leave. Its fetch window,
+ * the rows of an INSERT statement and the sections of an import batch
+ * are sized from its share and the average width of the rows of the
+ * current table, sampled as they go. The same instance can be shared by
+ * several exports and imports running in parallel, and resized at runtime
+ */
+public class MemoryBudget {
+
+    static final int MIN_FETCH_SIZE = 16;
+    static final int MAX_FETCH_SIZE = 100_000;
+    static final long MAX_INSERT_ROWS = 1_000_000;
+    static final int MAX_BATCH_SIZE = 10_000;
+
+    //a row of unknown width until the first one is read
+    private static final long DEFAULT_ROW_WIDTH = 1024;
+    //the rows are held as UTF-16 strings
+    private static final int CHAR_BYTES = 2;
+
+    private volatile long bytes;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicInteger leases = new AtomicInteger();
+
+    public MemoryBudget(long bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * This will create a budget from the MEMORY_BUDGET property,
+     * in bytes. It returns null when the property is not set
+     *
+     * @param properties the export or import properties
+     * @return MemoryBudget or null
+     */
+    public static MemoryBudget fromProperties(Properties properties) {
+        long bytes = Long.parseLong(properties.getProperty(MEMORY_BUDGET, "0"));
+        return bytes > 0 ? new MemoryBudget(bytes) : null;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * This will set aside the memory of fixed buffers,
+     * e.g. the ones of the export pipeline. It throws when
+     * the budget would have nothing left for the rows
+     *
+     * @param buffers the size of the buffers in bytes
+     */
+    void reserve(long buffers) {
+        long total = reserved.addAndGet(buffers);
+        long budget = bytes;
+        if (total >= budget) {
+            reserved.addAndGet(-buffers);
+            throw new IllegalStateException("java-postgresql-exporter: the memory budget of " + budget + " bytes leaves nothing for the rows once "
+                    + total + " bytes of fixed buffers are reserved, raise MEMORY_BUDGET or lower PIPELINE_BUFFERS and PIPELINE_BUFFER_SIZE");
+        }
+    }
+
+    void release(long buffers) {
+        reserved.addAndGet(-buffers);
+    }
+
+    /**
+     * @return a lease for a thread reading or loading rows, to close once done
+     */
+    Lease lease() {
+        leases.incrementAndGet();
+        return new Lease();
+    }
+
+    /**
+     * @return the share of every lease in bytes
+     */
+    long getShare() {
+        return Math.max(0, bytes - reserved.get()) / Math.max(1, leases.get());
+    }
+
+    /**
+     * The share of the budget of one thread, and the
+     * average width of the rows of its current table
+     */
+    final class Lease implements AutoCloseable {
+        private long estimatedWidth = DEFAULT_ROW_WIDTH;
+        private long sampledChars;
+        private long samples;
+        private boolean closed;
+
+        private Lease() {
+        }
+
+        /**
+         * This will forget the rows sampled so far
+         *
+         * @param estimatedWidth the expected width of a row, e.g. from the table statistics, 0 if unknown
+         */
+        void startTable(long estimatedWidth) {
+            this.estimatedWidth = estimatedWidth > 0 ? estimatedWidth : DEFAULT_ROW_WIDTH;
+            this.sampledChars = 0;
+            this.samples = 0;
+        }
+
+        /**
+         * @param chars the length of a row, or of an import section, once encoded as SQL
+         */
+        void sample(long chars) {
+            sampledChars += chars;
+            samples++;
+        }
+
+        /**
+         * @return the average size of a row on the heap
+         */
+        long getRowBytes() {
+            long chars = samples == 0 ? estimatedWidth : sampledChars / samples;
+            return Math.max(1, chars) * CHAR_BYTES;
+        }
+
+        /**
+         * @return the rows of the fetch window, a quarter of the share
+         */
+        int fetchSize() {
+            return (int) clamp(getShare() / 4 / getRowBytes(), MIN_FETCH_SIZE, MAX_FETCH_SIZE);
+        }
+
+        /**
+         * @return the rows of an INSERT statement, a quarter of the share,
+         * so that the import holds a bounded statement as well
+         */
+        long insertRows() {
+            return clamp(getShare() / 4 / getRowBytes(), 1, MAX_INSERT_ROWS);
+        }
+
+        /**
+         * @return the sections of an import batch, half of the share
+         */
+        int batchSize() {
+            return (int) clamp(batchBytes() / getRowBytes(), 1, MAX_BATCH_SIZE);
+        }
+
+        /**
+         * @return the size of the SQL of an import batch on the heap
+         */
+        long batchBytes() {
+            return Math.max(1, getShare() / 2);
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                leases.decrementAndGet();
+            }
+        }
+
+        private long clamp(long value, long min, long max) {
+            return Math.max(min, Math.min(max, value));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.github.ludoviccarretti.services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An output stream handing what is written to it over to a thread
+ * of its own, which writes it to the underlying stream. The bytes go
+ * through a fixed ring of reusable buffers: the writer blocks once
+ * all of them are waiting to be written, so a slow downstream slows
+ * the writer down instead of growing the memory used
+ */
+class PipelineOutputStream extends OutputStream {
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    static final int DEFAULT_BUFFERS = 16;
+
+    private static final Buffer END = new Buffer(0);
+
+    private final OutputStream out;
+    private final BlockingQueue<Buffer> free;
+    private final BlockingQueue<Buffer> filled;
+    private final String stage;
+    private final Thread thread;
+
+    private volatile Throwable failure;
+    private Buffer current;
+    private boolean finished;
+
+    /**
+     * @param out        the underlying stream
+     * @param stage      the name of the stage writing to the underlying stream
+     * @param bufferSize the size of the buffers
+     * @param buffers    the number of buffers
+     */
+    PipelineOutputStream(OutputStream out, String stage, int bufferSize, int buffers) {
+        this.out = out;
+        this.stage = stage;
+        this.free = new ArrayBlockingQueue<>(Math.max(2, buffers));
+        this.filled = new ArrayBlockingQueue<>(Math.max(2, buffers) + 1);
+        for (int i = 0; i < Math.max(2, buffers); i++) {
+            free.add(new Buffer(bufferSize));
+        }
+        this.thread = BackupExecutors.daemonThreadFactory("java-postgresql-exporter-" + stage).newThread(this::drain);
+        this.thread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (current == null) {
+                current = take();
+            }
+            int n = Math.min(len, current.data.length - current.length);
+            System.arraycopy(b, off, current.data, current.length, n);
+            current.length += n;
+            off += n;
+            len -= n;
+            if (current.length == current.data.length) {
+                handOver();
+            }
+        }
+    }
+
+    /**
+     * The buffered bytes are handed over as they are,
+     * the underlying stream is not flushed
+     */
+    @Override
+    public void flush() throws IOException {
+        if (current != null && current.length > 0) {
+            handOver();
+        }
+    }
+
+    /**
+     * This will wait for everything written so far to reach
+     * the underlying stream and stop the thread.
+     * The underlying stream is flushed but left open
+     *
+     * @throws IOException the failure of the underlying stream
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        flush();
+        finished = true;
+        put(END);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            thread.interrupt();
+            throw new InterruptedIOException("interrupted while writing the backup");
+        }
+        checkFailure();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /**
+     * This will stop the thread without writing
+     * what is still waiting in the buffers
+     */
+    void abort() {
+        finished = true;
+        thread.interrupt();
+    }
+
+    private void handOver() throws IOException {
+        Buffer buffer = current;
+        current = null;
+        put(buffer);
+    }
+
+    private Buffer take() throws IOException {
+        checkFailure();
+        Buffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        //every buffer is waiting for the stage
+        BackupEvent stall = BackupEvent.stall(stage);
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing the backup");
+        } finally {
+            stall.commit();
+        }
+    }
+
+    private void put(Buffer buffer) throws IOException {
+        checkFailure();
+        try {
+            filled.put(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing the backup");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable error = failure;
+        if (error instanceof IOException) {
+            throw new IOException(error.getMessage(), error);
+        } else if (error != null) {
+            throw new IOException(error);
+        }
+    }
+
+    /**
+     * The loop of the thread. After a failure the buffers are still
+     * taken and given back, so that the writer never waits forever
+     * and gets the failure on its next call
+     */
+    private void drain() {
+        BackupEvent event = BackupEvent.phase(stage);
+        try {
+            Buffer buffer;
+            while ((buffer = filled.take()) != END) {
+                try {
+                    if (failure == null) {
+                        out.write(buffer.data, 0, buffer.length);
+                        event.bytes(buffer.length);
+                    }
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    buffer.length = 0;
+                    free.add(buffer);
+                }
+            }
+        } catch (InterruptedException e) {
+            if (failure == null) {
+                failure = new InterruptedIOException("pipeline stage interrupted");
+            }
+        } finally {
+            event.commit();
+        }
+    }
+
+    private static final class Buffer {
+        private final byte[] data;
+        private int length;
+
+        private Buffer(int size) {
+            this.data = new byte[size];
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.github.ludoviccarretti.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Non blocking front of the export and import services.
+ * Every job gets its own service instance, so a single
+ * PostgresqlAsyncService can run many jobs concurrently.
+ * By default the jobs run on virtual threads (JDK 21+)
+ */
+public class PostgresqlAsyncService {
+
+    private Executor executor;
+    private ExecutorService defaultExecutor;
+    private BackupThrottle throttle;
+    private MemoryBudget memoryBudget;
+    private Logger logger = LoggerFactory.getLogger(PostgresqlAsyncService.class);
+    private final String LOG_PREFIX = "java-postgresql-exporter";
+
+    private PostgresqlAsyncService() {
+    }
+
+    /**
+     * This function will create a new
+     * PostgresqlAsyncService instance thereby facilitating
+     * a builder pattern
+     *
+     * @return PostgresqlAsyncService
+     */
+    public static PostgresqlAsyncService builder() {
+        return new PostgresqlAsyncService();
+    }
+
+    /**
+     * The executor running the jobs. When not set, a virtual thread
+     * per task executor is used, or a cached thread pool on older JVMs
+     *
+     * @param executor the executor
+     * @return PostgresqlAsyncService
+     */
+    public PostgresqlAsyncService setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * A throttle shared by all the exports run by this service
+     *
+     * @param throttle the throttle
+     * @return PostgresqlAsyncService
+     */
+    public PostgresqlAsyncService setThrottle(BackupThrottle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * A memory budget shared by all the exports and imports run by this service
+     *
+     * @param memoryBudget the memory budget
+     * @return PostgresqlAsyncService
+     */
+    public PostgresqlAsyncService setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * This will export the database described by the properties
+     * in the background. The returned future completes with the
+     * export service of the job, giving access to the generated
+     * zip file and SQL. It completes exceptionally when the
+     * properties are invalid or the export fails
+     *
+     * @param properties the export configuration, copied for the job
+     * @return BackupFuture
+     */
+    public BackupFuture<PostgresqlExportService> exportAsync(Properties properties) {
+        Properties jobProperties = new Properties();
+        jobProperties.putAll(properties);
+        PostgresqlExportService exportService = new PostgresqlExportService(jobProperties);
+        if (throttle != null) {
+            exportService.setThrottle(throttle);
+        }
+        if (memoryBudget != null) {
+            exportService.setMemoryBudget(memoryBudget);
+        }
+        return submit(() -> {
+            exportService.export();
+            return exportService;
+        }, exportService::cancel);
+    }
+
+    /**
+     * This will run an import in the background, on a new
+     * import service built by the supplier for this job only
+     *
+     * @param importServices builds a fully configured import service
+     * @return BackupFuture
+     */
+    public BackupFuture<Boolean> importAsync(Supplier<PostgresqlImportService> importServices) {
+        PostgresqlImportService importService = importServices.get();
+        if (memoryBudget != null) {
+            importService.setMemoryBudget(memoryBudget);
+        }
+        return submit(importService::importDatabase, importService::cancel);
+    }
+
+    /**
+     * This will stop the default executor, if one was created.
+     * An executor supplied through setExecutor is left untouched
+     */
+    public synchronized void shutdown() {
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+            defaultExecutor = null;
+        }
+    }
+
+    private <T> BackupFuture<T> submit(Callable<T> task, Runnable cancelAction) {
+        BackupFuture<T> future = new BackupFuture<>(cancelAction);
+        try {
+            getExecutor().execute(() -> {
+                if (future.isDone()) {
+                    return;
+                }
+                future.setRunner(Thread.currentThread());
+                try {
+                    future.complete(task.call());
+                } catch (Throwable e) {
+                    logger.debug(LOG_PREFIX + ": background job failed. " + e.getLocalizedMessage());
+                    future.completeExceptionally(e);
+                } finally {
+                    future.setRunner(null);
+                    //do not leak a cancellation interrupt to the next task of a pooled thread
+                    Thread.interrupted();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private synchronized Executor getExecutor() {
+        if (executor != null) {
+            return executor;
+        }
+        if (defaultExecutor == null) {
+            defaultExecutor = BackupExecutors.newDefaultExecutor(LOG_PREFIX);
+        }
+        return defaultExecutor;
+    }
+}
@@ -1,16 +1,29 @@
 package com.github.ludoviccarretti.services;
 
+import com.github.ludoviccarretti.model.ForeignKey;
 import com.github.ludoviccarretti.model.InformationSchemaGenerator;
+import com.github.ludoviccarretti.model.TableEstimate;
+import com.github.ludoviccarretti.model.TablePartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Properties;
 
+import static com.github.ludoviccarretti.model.ForeignKey.ForeignKeyBuilder;
 import static com.github.ludoviccarretti.model.InformationSchemaSequence.InformationSchemaSequenceBuilder;
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
 import static com.github.ludoviccarretti.model.InformationSchemaTable.InformationSchemaTableBuilder;
+import static com.github.ludoviccarretti.model.TableEstimate.TableEstimateBuilder;
+import static com.github.ludoviccarretti.model.TablePartition.TablePartitionBuilder;
 
 /**
  * Created by lcarretti on 30-Sep-19.
@@ -60,6 +73,51 @@ public class PostgresqlBaseService {
         return doConnect(driver, jdbcURL, username, password);
     }
 
+    /**
+     * This will connect to the database configured by
+     * DB_NAME or JDBC_CONNECTION_STRING in the properties
+     *
+     * @param properties the properties
+     * @return Connection
+     * @throws ClassNotFoundException exception
+     * @throws SQLException           exception
+     */
+    static Connection connect(Properties properties) throws ClassNotFoundException, SQLException {
+        String jdbcURL = properties.getProperty(JDBC_CONNECTION_STRING, "");
+        String driverName = properties.getProperty(JDBC_DRIVER_NAME, "");
+        if (jdbcURL.isEmpty()) {
+            return connect(properties.getProperty(DB_USERNAME), properties.getProperty(DB_PASSWORD), properties.getProperty(DB_NAME), driverName);
+        }
+        return connectWithURL(properties.getProperty(DB_USERNAME), properties.getProperty(DB_PASSWORD), jdbcURL, driverName);
+    }
+
+    /**
+     * This will open a logical replication connection to the database
+     * configured by DB_NAME or JDBC_CONNECTION_STRING in the properties.
+     * Such a connection can only run replication commands
+     *
+     * @param properties the export properties
+     * @return Connection
+     * @throws ClassNotFoundException exception
+     * @throws SQLException           exception
+     */
+    static Connection connectForReplication(Properties properties) throws ClassNotFoundException, SQLException {
+        String jdbcURL = properties.getProperty(JDBC_CONNECTION_STRING, "");
+        String url = jdbcURL.isEmpty() ? "jdbc:postgresql://localhost:5432/" + properties.getProperty(DB_NAME) : jdbcURL;
+        String driverName = properties.getProperty(JDBC_DRIVER_NAME, "");
+        Class.forName(driverName.isEmpty() ? "org.postgresql.Driver" : driverName);
+
+        Properties connectionProperties = new Properties();
+        connectionProperties.setProperty("user", properties.getProperty(DB_USERNAME));
+        connectionProperties.setProperty("password", properties.getProperty(DB_PASSWORD));
+        connectionProperties.setProperty("replication", "database");
+        connectionProperties.setProperty("assumeMinServerVersion", "9.4");
+        connectionProperties.setProperty("preferQueryMode", "simple");
+        Connection connection = DriverManager.getConnection(url, connectionProperties);
+        logger.debug("DB Connected Successfully for logical replication");
+        return connection;
+    }
+
     /**
      * This will attempt to connect to a database using
      * the provided parameters.
@@ -116,9 +174,27 @@ public class PostgresqlBaseService {
      * @throws SQLException exception
      */
     static List<InformationSchemaGenerator> getAllTables(Statement stmt) throws SQLException {
+        return getAllTables(stmt, true);
+    }
+
+    /**
+     * This is a utility function to get the names of all
+     * the tables that're in the database supplied, with their DDL.
+     * Without inline constraints, the primary key, unique, exclusion
+     * and foreign key constraints are left out of the DDL so that
+     * they can be created after the data is loaded.
+     * Partitioned tables come before their partitions
+     *
+     * @param stmt              Statement object
+     * @param inlineConstraints whether the DDL defines all the constraints
+     * @return List\<InformationSchemaGenerator\>
+     * @throws SQLException exception
+     */
+    static List<InformationSchemaGenerator> getAllTables(Statement stmt, boolean inlineConstraints) throws SQLException {
+        Map<String, TablePartition> partitions = getPartitions(stmt);
         List<InformationSchemaGenerator> table = new ArrayList<>();
         ResultSet rs = stmt.executeQuery("SELECT p.tablename,\n" +
-                "       generate_create_table_statement(CAST(p.tablename AS text))\n" +
+                "       generate_create_table_statement(CAST(p.tablename AS text), " + inlineConstraints + ")\n" +
                 "FROM pg_catalog.pg_tables p\n" +
                 "WHERE schemaname != 'pg_catalog'\n" +
                 "  AND schemaname != 'information_schema';");
@@ -126,13 +202,307 @@ public class PostgresqlBaseService {
             table.add(
                     InformationSchemaTableBuilder.anInformationSchemaTable()
                             .withTableName(rs.getString(1))
-                            .withSql(rs.getString(2))
+                            .withSql(getPartitionedSql(partitions.get(rs.getString(1)), rs.getString(2)))
                             .build()
             );
         }
+        rs.close();
+
+        //a partition can only be created once its parent exists
+        table.sort(Comparator.comparingInt(t -> getPartitionDepth(partitions, t.getName())));
         return table;
     }
 
+    /**
+     * This will turn the DDL of a partitioned table or of a partition
+     * into the one declaring the partitioning: a partitioned table gets
+     * its PARTITION BY clause, and a partition is created PARTITION OF
+     * its parent, from which it inherits its columns and constraints
+     *
+     * @param partition the partitioning of the table, can be null
+     * @param sql       the DDL of the table
+     * @return the DDL of the table
+     */
+    private static String getPartitionedSql(TablePartition partition, String sql) {
+        if (partition == null) {
+            return sql;
+        }
+        String partitionBy = partition.isPartitioned() ? "\nPARTITION BY " + partition.getPartitionKey() : "";
+        if (partition.isPartition()) {
+            return "CREATE TABLE " + RangeHasher.quote(partition.getTableName())
+                    + " PARTITION OF " + RangeHasher.quote(partition.getParentName())
+                    + " " + partition.getBound() + partitionBy + ";";
+        }
+        int end = sql.lastIndexOf(");");
+        return end < 0 ? sql : sql.substring(0, end + 1) + partitionBy + ";";
+    }
+
+    private static int getPartitionDepth(Map<String, TablePartition> partitions, String table) {
+        int depth = 0;
+        TablePartition partition = partitions.get(table);
+        while (partition != null && partition.isPartition()) {
+            depth++;
+            partition = partitions.get(partition.getParentName());
+        }
+        return depth;
+    }
+
+    /**
+     * This is a utility function to get the partitioned tables
+     * (relkind 'p') and their partitions (pg_inherits), parents
+     * first. It is empty before PostgreSQL 10
+     *
+     * @param stmt Statement object
+     * @return Map\<String, TablePartition\> by table name
+     * @throws SQLException exception
+     */
+    static Map<String, TablePartition> getPartitions(Statement stmt) throws SQLException {
+        Map<String, TablePartition> partitions = new LinkedHashMap<>();
+        if (stmt.getConnection().getMetaData().getDatabaseMajorVersion() < 10) {
+            return partitions;
+        }
+        ResultSet rs = stmt.executeQuery("SELECT c.relname,\n" +
+                "       p.relname,\n" +
+                "       pg_get_expr(c.relpartbound, c.oid),\n" +
+                "       CASE WHEN c.relkind = 'p' THEN pg_get_partkeydef(c.oid) END\n" +
+                "FROM pg_catalog.pg_class c\n" +
+                "         JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace\n" +
+                "         LEFT JOIN pg_catalog.pg_inherits i ON i.inhrelid = c.oid AND c.relispartition\n" +
+                "         LEFT JOIN pg_catalog.pg_class p ON p.oid = i.inhparent\n" +
+                "WHERE (c.relkind = 'p' OR c.relispartition)\n" +
+                "  AND c.relkind IN ('r', 'p')\n" +
+                "  AND n.nspname != 'pg_catalog'\n" +
+                "  AND n.nspname != 'information_schema'\n" +
+                "ORDER BY c.relispartition, c.relname;");
+        while (rs.next()) {
+            partitions.put(rs.getString(1),
+                    TablePartitionBuilder.aTablePartition()
+                            .withTableName(rs.getString(1))
+                            .withParentName(rs.getString(2))
+                            .withBound(rs.getString(3))
+                            .withPartitionKey(rs.getString(4))
+                            .build()
+            );
+        }
+        rs.close();
+        return partitions;
+    }
+
+    /**
+     * This is a utility function to get the size on disk
+     * (pg_total_relation_size) and the estimated row count (reltuples)
+     * of all the tables that're in the database supplied. Partitioned
+     * tables hold no data, their partitions are listed instead
+     *
+     * @param stmt Statement object
+     * @return List\<TableEstimate\>
+     * @throws SQLException exception
+     */
+    static List<TableEstimate> getTableEstimates(Statement stmt) throws SQLException {
+        List<TableEstimate> estimates = new ArrayList<>();
+        ResultSet rs = stmt.executeQuery("SELECT p.tablename,\n" +
+                "       pg_total_relation_size(c.oid),\n" +
+                "       GREATEST(c.reltuples, 0)::bigint\n" +
+                "FROM pg_catalog.pg_tables p\n" +
+                "         JOIN pg_catalog.pg_namespace n ON n.nspname = p.schemaname\n" +
+                "         JOIN pg_catalog.pg_class c ON c.relnamespace = n.oid AND c.relname = p.tablename\n" +
+                "WHERE p.schemaname != 'pg_catalog'\n" +
+                "  AND p.schemaname != 'information_schema'\n" +
+                "  AND c.relkind = 'r';");
+        while (rs.next()) {
+            estimates.add(
+                    TableEstimateBuilder.aTableEstimate()
+                            .withTableName(rs.getString(1))
+                            .withTotalBytes(rs.getLong(2))
+                            .withEstimatedRows(rs.getLong(3))
+                            .build()
+            );
+        }
+        rs.close();
+        return estimates;
+    }
+
+    /**
+     * This is a utility function to get the post-data definitions
+     * of the tables: the primary key, unique, exclusion and foreign
+     * key constraints, and the indexes that do not back a constraint.
+     * The ones of a partitioned table are defined on it only, the
+     * partitions inherit them when they are created.
+     * Every definition is returned as a section named after its table
+     *
+     * @param stmt Statement object
+     * @return List\<SqlSection\>
+     * @throws SQLException exception
+     */
+    static List<SqlSection> getPostDataDefinitions(Statement stmt) throws SQLException {
+        List<SqlSection> definitions = new ArrayList<>();
+        ResultSet rs = stmt.executeQuery("SELECT cl.relname,\n" +
+                "       c.contype,\n" +
+                "       'ALTER TABLE ' || quote_ident(n.nspname) || '.' || quote_ident(cl.relname) ||\n" +
+                "       ' ADD CONSTRAINT ' || quote_ident(c.conname) || ' ' || pg_get_constraintdef(c.oid)\n" +
+                "FROM pg_catalog.pg_constraint c\n" +
+                "         JOIN pg_catalog.pg_class cl ON cl.oid = c.conrelid\n" +
+                "         JOIN pg_catalog.pg_namespace n ON n.oid = cl.relnamespace\n" +
+                "WHERE c.contype IN ('p', 'u', 'f', 'x')\n" +
+                "  AND cl.relkind IN ('r', 'p')\n" +
+                "  AND c.coninhcount = 0\n" +
+                "  AND n.nspname != 'pg_catalog'\n" +
+                "  AND n.nspname != 'information_schema'\n" +
+                "  AND n.nspname !~ '^pg_toast'\n" +
+                "ORDER BY cl.relname, c.conname;");
+        while (rs.next()) {
+            SqlSection.Kind kind = "f".equals(rs.getString(2)) ? SqlSection.Kind.FOREIGN_KEY : SqlSection.Kind.CONSTRAINT;
+            definitions.add(new SqlSection(kind, rs.getString(1), rs.getString(3)));
+        }
+        rs.close();
+
+        rs = stmt.executeQuery("SELECT cl.relname,\n" +
+                "       pg_get_indexdef(i.indexrelid)\n" +
+                "FROM pg_catalog.pg_index i\n" +
+                "         JOIN pg_catalog.pg_class cl ON cl.oid = i.indrelid\n" +
+                "         JOIN pg_catalog.pg_namespace n ON n.oid = cl.relnamespace\n" +
+                "WHERE cl.relkind IN ('r', 'p')\n" +
+                "  AND n.nspname != 'pg_catalog'\n" +
+                "  AND n.nspname != 'information_schema'\n" +
+                "  AND n.nspname !~ '^pg_toast'\n" +
+                "  AND NOT EXISTS(SELECT 1 FROM pg_catalog.pg_inherits h WHERE h.inhrelid = i.indexrelid)\n" +
+                "  AND NOT EXISTS(SELECT 1\n" +
+                "                 FROM pg_catalog.pg_constraint c\n" +
+                "                 WHERE c.conindid = i.indexrelid\n" +
+                "                   AND c.contype IN ('p', 'u', 'x'))\n" +
+                "ORDER BY cl.relname;");
+        while (rs.next()) {
+            definitions.add(new SqlSection(SqlSection.Kind.INDEX, rs.getString(1), rs.getString(2)));
+        }
+        rs.close();
+        return definitions;
+    }
+
+    /**
+     * This is a utility function to get the foreign keys
+     * of the tables. The ones of a partitioned table are
+     * listed on it only, not on every partition
+     *
+     * @param stmt Statement object
+     * @return List\<ForeignKey\>
+     * @throws SQLException exception
+     */
+    static List<ForeignKey> getForeignKeys(Statement stmt) throws SQLException {
+        List<ForeignKey> foreignKeys = new ArrayList<>();
+        ResultSet rs = stmt.executeQuery("SELECT c.conname,\n" +
+                "       cl.relname,\n" +
+                "       ARRAY(SELECT a.attname\n" +
+                "             FROM unnest(c.conkey) WITH ORDINALITY AS k(attnum, position)\n" +
+                "                      JOIN pg_catalog.pg_attribute a ON a.attrelid = c.conrelid AND a.attnum = k.attnum\n" +
+                "             ORDER BY k.position),\n" +
+                "       r.relname,\n" +
+                "       ARRAY(SELECT a.attname\n" +
+                "             FROM unnest(c.confkey) WITH ORDINALITY AS k(attnum, position)\n" +
+                "                      JOIN pg_catalog.pg_attribute a ON a.attrelid = c.confrelid AND a.attnum = k.attnum\n" +
+                "             ORDER BY k.position)\n" +
+                "FROM pg_catalog.pg_constraint c\n" +
+                "         JOIN pg_catalog.pg_class cl ON cl.oid = c.conrelid\n" +
+                "         JOIN pg_catalog.pg_class r ON r.oid = c.confrelid\n" +
+                "         JOIN pg_catalog.pg_namespace n ON n.oid = cl.relnamespace\n" +
+                "WHERE c.contype = 'f'\n" +
+                "  AND c.coninhcount = 0\n" +
+                "  AND n.nspname != 'pg_catalog'\n" +
+                "  AND n.nspname != 'information_schema'\n" +
+                "ORDER BY cl.relname, c.conname;");
+        while (rs.next()) {
+            foreignKeys.add(
+                    ForeignKeyBuilder.aForeignKey()
+                            .withName(rs.getString(1))
+                            .withTableName(rs.getString(2))
+                            .withColumns(Arrays.asList((String[]) rs.getArray(3).getArray()))
+                            .withReferencedTableName(rs.getString(4))
+                            .withReferencedColumns(Arrays.asList((String[]) rs.getArray(5).getArray()))
+                            .build()
+            );
+        }
+        rs.close();
+        return foreignKeys;
+    }
+
+    /**
+     * This is a utility function to get the names of the
+     * tables by oid, e.g. to resolve the tableoid of a row
+     *
+     * @param stmt Statement object
+     * @return Map\<Long, String\> of oid to table name
+     * @throws SQLException exception
+     */
+    static Map<Long, String> getTableNamesByOid(Statement stmt) throws SQLException {
+        Map<Long, String> tables = new HashMap<>();
+        ResultSet rs = stmt.executeQuery("SELECT c.oid, c.relname\n" +
+                "FROM pg_catalog.pg_class c\n" +
+                "         JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace\n" +
+                "WHERE c.relkind IN ('r', 'p')\n" +
+                "  AND n.nspname != 'pg_catalog'\n" +
+                "  AND n.nspname != 'information_schema';");
+        while (rs.next()) {
+            tables.put(rs.getLong(1), rs.getString(2));
+        }
+        rs.close();
+        return tables;
+    }
+
+    /**
+     * This is a utility function to get the column names
+     * of a table, in their table order
+     *
+     * @param stmt  Statement object
+     * @param table the table name
+     * @return List\<String\>
+     * @throws SQLException exception
+     */
+    static List<String> getColumnNames(Statement stmt, String table) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        try (PreparedStatement ps = stmt.getConnection().prepareStatement("SELECT a.attname\n" +
+                "FROM pg_catalog.pg_attribute a\n" +
+                "WHERE a.attrelid = CAST(? AS regclass)\n" +
+                "  AND a.attnum > 0\n" +
+                "  AND NOT a.attisdropped\n" +
+                "ORDER BY a.attnum;")) {
+            ps.setString(1, "\"" + table.replace("\"", "\"\"") + "\"");
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                columns.add(rs.getString(1));
+            }
+            rs.close();
+        }
+        return columns;
+    }
+
+    /**
+     * This is a utility function to get the columns of the
+     * primary key of a table with their type, in key order.
+     * It is empty if the table has no primary key
+     *
+     * @param stmt  Statement object
+     * @param table the table name
+     * @return Map\<String, String\> of column name to type name
+     * @throws SQLException exception
+     */
+    static Map<String, String> getPrimaryKeyColumns(Statement stmt, String table) throws SQLException {
+        Map<String, String> columns = new LinkedHashMap<>();
+        try (PreparedStatement ps = stmt.getConnection().prepareStatement("SELECT a.attname, format_type(a.atttypid, a.atttypmod)\n" +
+                "FROM pg_catalog.pg_index i\n" +
+                "         CROSS JOIN LATERAL unnest(i.indkey) WITH ORDINALITY AS k(attnum, position)\n" +
+                "         JOIN pg_catalog.pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = k.attnum\n" +
+                "WHERE i.indrelid = CAST(? AS regclass)\n" +
+                "  AND i.indisprimary\n" +
+                "ORDER BY k.position;")) {
+            ps.setString(1, "\"" + table.replace("\"", "\"\"") + "\"");
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                columns.put(rs.getString(1), rs.getString(2));
+            }
+            rs.close();
+        }
+        return columns;
+    }
+
     /**
      * Create a function to create the similar function of MySQL 'SHOW CREATE TABLE'
      *
@@ -140,7 +510,9 @@ public class PostgresqlBaseService {
      * @throws SQLException exception
      */
     static void createPostgresSqlFunction(Statement stmt) throws SQLException {
-        stmt.execute("CREATE OR REPLACE FUNCTION public.generate_create_table_statement(p_table_name CHARACTER varying) RETURNS\n" +
+        stmt.execute("DROP FUNCTION IF EXISTS public.generate_create_table_statement(CHARACTER varying);");
+        stmt.execute("CREATE OR REPLACE FUNCTION public.generate_create_table_statement(p_table_name CHARACTER varying,\n" +
+                "    p_inline_constraints boolean DEFAULT true) RETURNS\n" +
                 "SETOF text AS $BODY$\n" +
                 "DECLARE\n" +
                 "    v_table_ddl   text;\n" +
@@ -152,7 +524,7 @@ public class PostgresqlBaseService {
                 "    FOR table_rec IN\n" +
                 "        SELECT c.relname FROM pg_catalog.pg_class c\n" +
                 "            LEFT JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace\n" +
-                "                WHERE relkind = 'r'\n" +
+                "                WHERE relkind IN ('r', 'p')\n" +
                 "                AND relname~ ('^('||p_table_name||')$')\n" +
                 "                AND n.nspname <> 'pg_catalog'\n" +
                 "                AND n.nspname <> 'information_schema'\n" +
@@ -231,6 +603,7 @@ public class PostgresqlBaseService {
                 "                            SELECT oid FROM pg_class WHERE relname = table_rec.relname\n" +
                 "                        ) AND attname='tableoid'\n" +
                 "                    )\n" +
+                "                    AND (p_inline_constraints OR c.contype NOT IN ('p', 'u', 'f', 'x'))\n" +
                 "        LOOP\n" +
                 "            v_table_ddl:=v_table_ddl||','||chr(10);\n" +
                 "            v_table_ddl:=v_table_ddl||'CONSTRAINT '||constraint_rec.conname;\n" +
@@ -258,7 +631,7 @@ public class PostgresqlBaseService {
      * @throws SQLException exception
      */
     static void deletePostgresSqlFunction(Statement stmt) throws SQLException {
-        stmt.execute("DROP FUNCTION generate_create_table_statement(p_table_name CHARACTER varying);");
+        stmt.execute("DROP FUNCTION generate_create_table_statement(p_table_name CHARACTER varying, p_inline_constraints boolean);");
         stmt.execute("DROP FUNCTION exec(text);");
     }
 }
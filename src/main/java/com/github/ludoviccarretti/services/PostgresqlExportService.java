@@ -1,19 +1,34 @@
 package com.github.ludoviccarretti.services;
 
+import com.github.ludoviccarretti.model.ExportPlan;
 import com.github.ludoviccarretti.model.InformationSchemaGenerator;
+import com.github.ludoviccarretti.model.TableEstimate;
+import com.github.ludoviccarretti.model.TableFilter;
+import com.github.ludoviccarretti.model.TablePartition;
+import com.github.ludoviccarretti.repository.ChunkingOutputStream;
+import com.github.ludoviccarretti.repository.DedupRepository;
+import com.github.ludoviccarretti.sink.BackupSink;
+import com.github.ludoviccarretti.sink.LocalFileSink;
+import com.github.ludoviccarretti.sink.MultipartOutputStream;
+import com.github.ludoviccarretti.sink.S3Sink;
+import org.postgresql.PGConnection;
+import org.postgresql.largeobject.LargeObject;
+import org.postgresql.largeobject.LargeObjectManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.zeroturnaround.zip.ZipUtil;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.text.SimpleDateFormat;
+import java.util.*;
 import java.util.Date;
-import java.util.List;
-import java.util.Objects;
-import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static com.github.ludoviccarretti.options.PropertiesOptions.*;
 
@@ -22,7 +37,9 @@ import static com.github.ludoviccarretti.options.PropertiesOptions.*;
  */
 public class PostgresqlExportService {
 
-    private Statement stmt;
+    private volatile Statement stmt;
+    private volatile boolean cancelled = false;
+    private final Set<Statement> workerStatements = ConcurrentHashMap.newKeySet();
     private String database;
     private String generatedSql = "";
     private Logger logger = LoggerFactory.getLogger(getClass());
@@ -32,6 +49,16 @@ public class PostgresqlExportService {
     private String zipFileName = "";
     private Properties properties;
     private File generatedZipFile;
+    private BackupThrottle throttle;
+    private MemoryBudget memoryBudget;
+    private Map<String, Long> rowWidths = new HashMap<>();
+    private BackupSink sink;
+    private Map<String, TableFilter> tableFilters;
+    private List<String> subsetRoots;
+    private RowSubset subset;
+    private String snapshot;
+    static final long DEFAULT_LARGE_OBJECT_PIECE_SIZE = 1024 * 1024;
+    private static final Pattern RELATION_NAME_PATTERN = Pattern.compile("\"Relation Name\": \"([^\"]*)\"");
 
     public PostgresqlExportService(Properties properties) {
         this.properties = properties;
@@ -143,115 +170,500 @@ public class PostgresqlExportService {
 
 
     /**
-     * This function will generate the insert statements needed
+     * This function will write the insert statements needed
      * to recreate the table under processing.
+     * The rows are read through a cursor, fetchSize rows at a time,
+     * and the reads are limited by the throttle when one is configured.
+     * The SQL is written out as it is encoded, the binary cells a
+     * piece at a time, so neither a statement nor a cell is held
+     * as a whole. Under a memory budget the fetch window and the
+     * rows of every insert statement are sized from the width of the rows
      *
+     * @param stmt  the statement to read the rows with
      * @param table the table to get inserts statement for
-     * @return String generated SQL insert
+     * @param lease the share of the memory budget, can be null
+     * @param out   where the statements are written
      * @throws SQLException exception
+     * @throws IOException  exception
      */
-    private String getDataInsertStatement(String table) throws SQLException {
+    private void writeDataInsertStatement(Statement stmt, String table, MemoryBudget.Lease lease, Writer out) throws SQLException, IOException {
 
         StringBuilder sql = new StringBuilder();
 
-        ResultSet rs = stmt.executeQuery("SELECT * FROM " + table + ";");
+        prepareFetch(stmt, table, lease);
+        ResultSet rs = stmt.executeQuery(getSelectQuery(stmt, table));
 
-        //move to the last row to get max rows returned
-        rs.last();
-        int rowCount = rs.getRow();
+        //there are no records, nothing to write
+        if (!rs.next()) {
+            rs.close();
+            return;
+        }
+
+        BackupEvent event = BackupEvent.table("fetch and encode", table);
+        ResultSetMetaData metaData = rs.getMetaData();
+        int[] types = RowEncoder.getColumnTypes(metaData);
+        String[] columns = RowEncoder.getColumnNames(metaData);
+        RowEncoder.appendHeader(sql, table, columns);
 
-        //there are no records just return empty string
-        if (rowCount <= 0) {
-            return sql.toString();
+        //now we're going to build the values for data insertion
+        long insertRows = lease == null ? Long.MAX_VALUE : lease.insertRows();
+        long rows = 0;
+        long bytes = 0;
+        int windowRows = 0;
+        try {
+            do {
+                if (rows == insertRows) {
+                    //a new statement so that the import holds one at a time
+                    RowEncoder.appendFooter(sql, table);
+                    RowEncoder.appendHeader(sql, table, columns);
+                    insertRows = lease.insertRows();
+                    rows = 0;
+                }
+                long length = RowEncoder.appendRow(sql, rs, types, rows == 0, false, out::write);
+                throttleRead(length);
+                event.rows(1);
+                bytes += length;
+                rows++;
+                if (lease != null) {
+                    lease.sample(length);
+                    if (++windowRows >= rs.getFetchSize()) {
+                        rs.setFetchSize(lease.fetchSize());
+                        windowRows = 0;
+                    }
+                }
+            } while (rs.next());
+        } finally {
+            rs.close();
         }
 
-        sql.append("\n--").append("\n-- Inserts of ").append(table).append("\n--\n\n");
+        RowEncoder.appendFooter(sql, table);
+        out.append(sql);
+        event.bytes(bytes).commit();
+    }
 
-        sql.append("\n--\n")
-                .append(PostgresqlBaseService.SQL_START_PATTERN).append(" table insert : ").append(table)
-                .append("\n--\n");
+    /**
+     * This will read the rows of the table and hand them over
+     * to the pipeline, which encodes them on its own thread
+     * while the next rows are fetched. Under a memory budget the
+     * fetch window and the rows of every insert statement are
+     * sized from the width of the rows
+     *
+     * @param stmt     the statement to read the rows with
+     * @param table    the table
+     * @param pipeline the pipeline of the export
+     * @param lease    the share of the memory budget, can be null
+     * @throws SQLException exception
+     */
+    private void exportTableData(Statement stmt, String table, SqlPipeline pipeline, MemoryBudget.Lease lease) throws SQLException {
+        prepareFetch(stmt, table, lease);
+        ResultSet rs = stmt.executeQuery(getSelectQuery(stmt, table));
 
-        sql.append("INSERT INTO \"").append(table).append("\" (");
+        //there are no records, nothing to write
+        if (!rs.next()) {
+            rs.close();
+            return;
+        }
 
+        BackupEvent event = BackupEvent.table("fetch", table);
         ResultSetMetaData metaData = rs.getMetaData();
-        int columnCount = metaData.getColumnCount();
+        int[] types = RowEncoder.getColumnTypes(metaData);
+        String[] columns = RowEncoder.getColumnNames(metaData);
+        //the binary cells are encoded here a piece at a time
+        //rather than held whole in a batch waiting to be encoded
+        StringBuilder sql = RowEncoder.hasBinary(types) ? new StringBuilder() : null;
+        pipeline.beginInsert(table, columns);
+        long insertRows = lease == null ? Long.MAX_VALUE : lease.insertRows();
+        long rows = 0;
+        int windowRows = 0;
+        try {
+            do {
+                if (rows == insertRows) {
+                    //a new statement so that the import holds one at a time
+                    endInsert(pipeline, sql);
+                    pipeline.beginInsert(table, columns);
+                    insertRows = lease.insertRows();
+                    rows = 0;
+                }
+                long length;
+                if (sql != null) {
+                    length = RowEncoder.appendRow(sql, rs, types, rows == 0, false, pipeline::text);
+                } else {
+                    Object[] values = RowEncoder.readRow(rs, types);
+                    length = RowEncoder.estimateLength(values);
+                    pipeline.row(values, length);
+                }
+                throttleRead(length);
+                event.rows(1).bytes(length);
+                rows++;
+                if (lease != null) {
+                    lease.sample(length);
+                    if (++windowRows >= rs.getFetchSize()) {
+                        rs.setFetchSize(lease.fetchSize());
+                        windowRows = 0;
+                    }
+                }
+            } while (rs.next());
+        } catch (IOException e) {
+            throw new SQLException(LOG_PREFIX + ": unable to read the binary data of table " + table, e);
+        } finally {
+            rs.close();
+        }
+        //only a table read to the end closes its insert, a failure
+        //fails the export rather than keep a partial table
+        endInsert(pipeline, sql);
+        event.commit();
+    }
 
-        //generate the column names that are present
-        //in the returned result set
-        //at this point the insert is INSERT INTO (`col1`, `col2`, ...)
-        for (int i = 0; i < columnCount; i++) {
-            sql.append("\"")
-                    .append(metaData.getColumnName(i + 1))
-                    .append("\", ");
+    private static void endInsert(SqlPipeline pipeline, StringBuilder sql) throws SQLException {
+        if (sql != null) {
+            pipeline.text(sql.toString());
+            sql.setLength(0);
         }
+        pipeline.endInsert();
+    }
 
-        //remove the last whitespace and comma
-        sql.deleteCharAt(sql.length() - 1).deleteCharAt(sql.length() - 1).append(") VALUES \n");
+    /**
+     * This will size the first fetch window of the table from
+     * the width of its rows in the statistics of the server
+     *
+     * @param stmt  the statement to read the rows with
+     * @param table the table
+     * @param lease the share of the memory budget, can be null
+     * @throws SQLException exception
+     */
+    private void prepareFetch(Statement stmt, String table, MemoryBudget.Lease lease) throws SQLException {
+        if (lease == null) {
+            return;
+        }
+        lease.startTable(rowWidths.getOrDefault(table, 0L));
+        stmt.setFetchSize(lease.fetchSize());
+    }
 
-        //now we're going to build the values for data insertion
-        rs.beforeFirst();
+    /**
+     * This will generate the statements recreating the large objects
+     * of the database. Every object is read through the large object API
+     * and written in sections of at most LARGE_OBJECT_PIECE_SIZE bytes,
+     * so that the import also loads them one piece at a time
+     *
+     * @param stmt     the statement of the export transaction
+     * @param pipeline the pipeline of the export
+     * @throws SQLException exception
+     */
+    private void exportLargeObjects(Statement stmt, SqlPipeline pipeline) throws SQLException {
+        List<Long> oids = new ArrayList<>();
+        ResultSet rs = stmt.executeQuery("SELECT oid FROM pg_catalog.pg_largeobject_metadata ORDER BY oid;");
         while (rs.next()) {
-            sql.append("(");
-            for (int i = 0; i < columnCount; i++) {
-
-                int columnType = metaData.getColumnType(i + 1);
-                int columnIndex = i + 1;
-
-                //this is the part where the values are processed based on their type
-                if (Objects.isNull(rs.getObject(columnIndex))) {
-                    sql.append(rs.getObject(columnIndex)).append(", ");
-                } else if (columnType == Types.INTEGER || columnType == Types.TINYINT) {
-                    sql.append(rs.getInt(columnIndex)).append(", ");
-                } else if (columnType == Types.BIT) {
-                    sql.append(rs.getBoolean(columnIndex)).append(", ");
-                } else if (columnType == Types.BIGINT) {
-                    sql.append(rs.getLong(columnIndex)).append(", ");
+            oids.add(rs.getLong(1));
+        }
+        rs.close();
+        if (oids.isEmpty()) {
+            return;
+        }
+
+        long pieceSize = Long.parseLong(properties.getProperty(LARGE_OBJECT_PIECE_SIZE, String.valueOf(DEFAULT_LARGE_OBJECT_PIECE_SIZE)));
+        LargeObjectManager manager = stmt.getConnection().unwrap(PGConnection.class).getLargeObjectAPI();
+        pipeline.text("\n--" + "\n-- Large objects" + "\n--\n\n");
+
+        for (long oid : oids) {
+            if (cancelled) {
+                throw new SQLException(LOG_PREFIX + ": export cancelled");
+            }
+            //replace an existing object with the same oid
+            pipeline.text(getLargeObjectSection(oid, "PERFORM lo_unlink(oid) FROM pg_catalog.pg_largeobject_metadata WHERE oid = " + oid
+                    + "; PERFORM lo_create(" + oid + ");"));
+
+            LargeObject largeObject = manager.open(oid, LargeObjectManager.READ);
+            try (InputStream in = largeObject.getInputStream()) {
+                long offset = 0;
+                while (true) {
+                    StringBuilder piece = new StringBuilder("PERFORM lo_put(" + oid + ", " + offset + ", decode('");
+                    long read = HexEncoder.append(piece, in, pieceSize);
+                    if (read == 0) {
+                        break;
+                    }
+                    String section = getLargeObjectSection(oid, piece.append("', 'hex'));").toString());
+                    offset += read;
+                    throttleRead(section.length());
+                    pipeline.text(section);
+                }
+            } catch (IOException e) {
+                throw new SQLException(LOG_PREFIX + ": unable to read large object " + oid, e);
+            } finally {
+                largeObject.close();
+            }
+        }
+    }
+
+    private String getLargeObjectSection(long oid, String statement) {
+        return "\n--\n" +
+                PostgresqlBaseService.SQL_START_PATTERN + " large object : " + oid +
+                "\n--\n" +
+                "DO $$BEGIN " + statement + " END$$;" +
+                "\n--\n" +
+                PostgresqlBaseService.SQL_END_PATTERN + " large object : " + oid +
+                "\n--\n";
+    }
+
+    /**
+     * This will generate the post-data sections: the primary key,
+     * unique, exclusion and foreign key constraints and the indexes
+     * of the exported tables, one section per definition
+     *
+     * @param stmt the statement of the export transaction
+     * @return String
+     * @throws SQLException exception
+     */
+    private String getPostDataStatements(Statement stmt) throws SQLException {
+        StringBuilder sql = new StringBuilder();
+        boolean addIfNotExists = Boolean.parseBoolean(properties.getProperty(ADD_IF_NOT_EXISTS, "true"));
+
+        for (SqlSection definition : PostgresqlBaseService.getPostDataDefinitions(stmt)) {
+            if (isExcluded(definition.getName())) {
+                continue;
+            }
+            String query = definition.getSql();
+            if (addIfNotExists) {
+                if (definition.getKind() == SqlSection.Kind.INDEX) {
+                    query = query.replaceFirst("^CREATE (UNIQUE )?INDEX ", "CREATE $1INDEX IF NOT EXISTS ");
                 } else {
+                    //keep the constraint the table already has
+                    query = "DO $backup4j$BEGIN " + query + "; EXCEPTION WHEN duplicate_object OR duplicate_table" +
+                            " THEN NULL; END$backup4j$";
+                }
+            }
+            String label = definition.getKind().getLabel();
+            sql.append("\n--\n")
+                    .append(PostgresqlBaseService.SQL_START_PATTERN).append(" ").append(label).append(" : ").append(definition.getName())
+                    .append("\n--\n")
+                    .append(query).append(";")
+                    .append("\n--\n")
+                    .append(PostgresqlBaseService.SQL_END_PATTERN).append(" ").append(label).append(" : ").append(definition.getName())
+                    .append("\n--\n");
+        }
+        return sql.toString();
+    }
 
-                    String val = rs.getString(columnIndex);
-                    //escape the single quotes that might be in the value
-                    val = val.replace("'", "\\'");
+    /**
+     * This will build the query reading the data of a table:
+     * only the columns and rows kept by its filter are selected,
+     * so that nothing is read only to be thrown away
+     *
+     * @param stmt  the statement used to look up the columns
+     * @param table the table
+     * @return String
+     * @throws SQLException exception
+     */
+    private String getSelectQuery(Statement stmt, String table) throws SQLException {
+        TableFilter filter = getTableFilters().get(table);
+        //in a subset the rows are the ones collected, whatever the filter
+        String where = subset != null ? subset.getWhere(table) : filter != null ? filter.getWhere() : null;
+        if (filter == null && where == null) {
+            return "SELECT * FROM " + table + ";";
+        }
 
-                    sql.append("'").append(val).append("', ");
+        String columns = "*";
+        if (filter != null && filter.isProjected()) {
+            List<String> projected = filter.project(filter.needsColumns()
+                    ? PostgresqlBaseService.getColumnNames(stmt, table)
+                    : Collections.emptyList());
+            if (projected.isEmpty()) {
+                throw new SQLException(LOG_PREFIX + ": no column left to export for table " + table);
+            }
+            columns = projected.stream()
+                    .map(column -> "\"" + column.replace("\"", "\"\"") + "\"")
+                    .collect(Collectors.joining(", "));
+        }
+
+        String query = "SELECT " + columns + " FROM " + table
+                + (where != null ? " WHERE " + where : "") + ";";
+        if (subset == null) {
+            logger.debug(LOG_PREFIX + ": exporting " + table + " with " + query);
+        }
+        return query;
+    }
+
+    /**
+     * This will return the table filters set with setTableFilter()
+     * and the ones configured in the properties
+     *
+     * @return the filters by table name
+     */
+    private Map<String, TableFilter> getTableFilters() {
+        if (tableFilters == null) {
+            tableFilters = new ConcurrentHashMap<>(TableFilter.fromProperties(properties));
+        }
+        return tableFilters;
+    }
+
+    /**
+     * This will return the tables whose data is not exported: the
+     * partitioned tables, whose rows are exported with their partitions,
+     * and the partitions pruned by the filter of their partitioned table.
+     * The filter of a partitioned table is applied to its partitions
+     * that have none of their own, and a partition is pruned when the
+     * planner leaves it out of a query of its parent with the WHERE
+     * predicate of the filter, e.g. created_at >= '2024-01-01'
+     *
+     * @param stmt the statement of the export transaction
+     * @return the names of the tables
+     * @throws SQLException exception
+     */
+    private Set<String> getTablesWithoutData(Statement stmt) throws SQLException {
+        Map<String, TablePartition> partitions = PostgresqlBaseService.getPartitions(stmt);
+        Map<String, TableFilter> declared = new HashMap<>(getTableFilters());
+        Set<String> withoutData = new HashSet<>();
+        for (TablePartition partition : partitions.values()) {
+            String name = partition.getTableName();
+            if (partition.isPartitioned()) {
+                withoutData.add(name);
+            }
+            TablePartition ancestor = partition;
+            while (!declared.containsKey(name) && ancestor != null && ancestor.isPartition()) {
+                TableFilter filter = declared.get(ancestor.getParentName());
+                if (filter != null) {
+                    getTableFilters().put(name, filter.forPartition(name));
+                    break;
+                }
+                ancestor = partitions.get(ancestor.getParentName());
+            }
+        }
+
+        for (TablePartition partition : partitions.values()) {
+            TableFilter filter = declared.get(partition.getTableName());
+            if (!partition.isPartitioned() || filter == null || filter.isExcluded() || filter.getWhere() == null) {
+                continue;
+            }
+            Set<String> planned = getPlannedTables(stmt, "SELECT * FROM " + partition.getTableName() + " WHERE " + filter.getWhere());
+            if (planned == null) {
+                continue;
+            }
+            for (String leaf : getLeafPartitions(partitions, partition.getTableName())) {
+                if (!planned.contains(leaf)) {
+                    logger.debug(LOG_PREFIX + ": partition " + leaf + " is pruned by " + filter.getWhere() + ", its data is not exported");
+                    withoutData.add(leaf);
                 }
             }
+        }
+        return withoutData;
+    }
 
-            //now that we're done with a row
-            //let's remove the last whitespace and comma
-            sql.deleteCharAt(sql.length() - 1).deleteCharAt(sql.length() - 1);
+    private static List<String> getLeafPartitions(Map<String, TablePartition> partitions, String table) {
+        List<String> leaves = new ArrayList<>();
+        for (TablePartition partition : partitions.values()) {
+            if (table.equals(partition.getParentName())) {
+                if (partition.isPartitioned()) {
+                    leaves.addAll(getLeafPartitions(partitions, partition.getTableName()));
+                } else {
+                    leaves.add(partition.getTableName());
+                }
+            }
+        }
+        return leaves;
+    }
 
-            //if this is the last row, just append a closing
-            //parenthesis otherwise append a closing parenthesis and a comma
-            //for the next set of values
-            if (rs.isLast()) {
-                sql.append(")");
-            } else {
-                sql.append("),\n");
+    /**
+     * This will plan the query and return the tables the
+     * plan reads, e.g. the partitions left after the pruning
+     *
+     * @param stmt  the statement
+     * @param query the query
+     * @return the table names, or null if the query cannot be planned
+     * @throws SQLException exception
+     */
+    private Set<String> getPlannedTables(Statement stmt, String query) throws SQLException {
+        Connection connection = stmt.getConnection();
+        Savepoint savepoint = connection.getAutoCommit() ? null : connection.setSavepoint();
+        Set<String> tables = new HashSet<>();
+        try (ResultSet rs = stmt.executeQuery("EXPLAIN (FORMAT JSON) " + query)) {
+            while (rs.next()) {
+                Matcher matcher = RELATION_NAME_PATTERN.matcher(rs.getString(1));
+                while (matcher.find()) {
+                    tables.add(matcher.group(1));
+                }
+            }
+        } catch (SQLException e) {
+            logger.debug(LOG_PREFIX + ": unable to plan " + query + ", no partition is pruned. " + e.getLocalizedMessage());
+            if (savepoint != null) {
+                connection.rollback(savepoint);
             }
+            return null;
         }
+        if (savepoint != null) {
+            connection.releaseSavepoint(savepoint);
+        }
+        return tables;
+    }
+
+    /**
+     * This will return the root tables of the subset, set with
+     * setSubsetRoots() or configured in EXPORT_SUBSET_ROOTS
+     *
+     * @return the table names, empty to export every row
+     */
+    private List<String> getSubsetRoots() {
+        if (subsetRoots != null) {
+            return subsetRoots;
+        }
+        return Arrays.stream(properties.getProperty(EXPORT_SUBSET_ROOTS, "").split(","))
+                .map(String::trim)
+                .filter(table -> !table.isEmpty())
+                .collect(Collectors.toList());
+    }
 
-        //now that we are done processing the entire row
-        //let's add the terminator
-        sql.append(";");
+    /**
+     * This will collect the rows of the subset, starting from the
+     * rows of the roots matching their EXPORT_WHERE predicate
+     *
+     * @param roots the root tables
+     * @return RowSubset
+     * @throws SQLException exception
+     */
+    private RowSubset collectSubset(List<String> roots) throws SQLException {
+        Map<String, String> predicates = new LinkedHashMap<>();
+        for (String root : roots) {
+            TableFilter filter = getTableFilters().get(root);
+            predicates.put(root, filter != null ? filter.getWhere() : null);
+        }
+        boolean followChildren = Boolean.parseBoolean(properties.getProperty(EXPORT_SUBSET_FOLLOW_CHILDREN, "true"));
+        return RowSubset.collect(stmt, predicates, this::isExcluded, followChildren);
+    }
 
-        sql.append("\n--\n")
-                .append(PostgresqlBaseService.SQL_END_PATTERN).append(" table insert : ").append(table)
-                .append("\n--\n");
+    private boolean isExcluded(String table) {
+        TableFilter filter = getTableFilters().get(table.trim());
+        return filter != null && filter.isExcluded();
+    }
 
-        return sql.toString();
+    /**
+     * This will wait for the read budget of one row
+     * when a throttle is configured
+     *
+     * @param rowLength the length of the generated row
+     * @throws SQLException if interrupted while waiting
+     */
+    private void throttleRead(long rowLength) throws SQLException {
+        if (throttle == null) {
+            return;
+        }
+        try {
+            throttle.acquireRead(1, rowLength);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(LOG_PREFIX + ": interrupted while throttling the export");
+        }
     }
 
 
     /**
      * This is the entry function that'll
-     * coordinate getTableInsertStatement() and getDataInsertStatement()
+     * coordinate getTableInsertStatement() and exportTableData()
      * for every table in the database to generate a whole
-     * script of SQL
+     * script of SQL. The script is handed over to the pipeline
+     * piece by piece as the database is read
      *
-     * @return String
+     * @param pipeline the pipeline of the export
      * @throws SQLException exception
      */
-    private String exportToSql() throws SQLException {
+    private void exportToSql(SqlPipeline pipeline) throws SQLException {
 
         StringBuilder sql = new StringBuilder();
         sql.append("--");
@@ -259,40 +671,390 @@ public class PostgresqlExportService {
         sql.append("\n-- https://github.com/ludoviccarretti/postresql-backup4j");
         sql.append("\n-- Date: ").append(new SimpleDateFormat("d-M-Y H:m:s").format(new Date()));
         sql.append("\n--");
+        pipeline.text(sql.toString());
 
         // Create postgres utility function
+        // the export runs in a transaction for the cursors, commit the
+        // functions so that a failing table does not roll them back
+        Connection connection = stmt.getConnection();
         PostgresqlBaseService.createPostgresSqlFunction(stmt);
+        connection.commit();
+        useSnapshot(stmt, snapshot);
 
 
         // get all sequences that are in the database
+        BackupEvent event = BackupEvent.phase("sequences");
         try {
-            PostgresqlBaseService.getAllSequences(stmt).forEach(sequence -> {
-                sql.append(getSequenceInsertStatement(sequence));
-            });
+            for (InformationSchemaGenerator sequence : PostgresqlBaseService.getAllSequences(stmt)) {
+                pipeline.text(getSequenceInsertStatement(sequence));
+            }
         } catch (SQLException e) {
-            e.printStackTrace();
+            throw new SQLException(LOG_PREFIX + ": unable to export the sequences", e);
         }
+        event.commit();
 
         //get the tables that are in the database
-        List<InformationSchemaGenerator> tables = PostgresqlBaseService.getAllTables(stmt);
+        //excluded tables are skipped entirely, structure and data
+        //with the post-data split the constraints are left out of the table DDL
+        boolean splitPostData = Boolean.parseBoolean(properties.getProperty(SPLIT_POST_DATA, "true"));
+        Set<String> withoutData = getTablesWithoutData(stmt);
+        List<InformationSchemaGenerator> tables = PostgresqlBaseService.getAllTables(stmt, !splitPostData).stream()
+                .filter(table -> !isExcluded(table.getName()))
+                .collect(Collectors.toList());
+
+        //the rows of a subset are found by their ctid, which only holds
+        //within one snapshot, so the subset is collected and read in the same one
+        int parallelism = getParallelism();
+        List<String> roots = getSubsetRoots();
+        String dataSnapshot = parallelism > 1 || !roots.isEmpty() ? exportSnapshot(connection) : null;
+        subset = null;
+        if (!roots.isEmpty()) {
+            if (dataSnapshot == null) {
+                throw new SQLException(LOG_PREFIX + ": unable to export a snapshot, a subset cannot be exported consistently");
+            }
+            event = BackupEvent.phase("subset");
+            subset = collectSubset(roots);
+            event.rows(subset.getRowCount()).commit();
+            withoutData.clear();
+            tables.stream()
+                    .map(table -> table.getName().trim())
+                    .filter(table -> !subset.contains(table))
+                    .forEach(withoutData::add);
+        }
 
-        //for every table, get the table creation and data
-        // insert statement
-        for (InformationSchemaGenerator s : tables) {
+        //under a memory budget the fetches are sized from the width of the rows
+        rowWidths = new HashMap<>();
+        if (memoryBudget != null) {
+            for (TableEstimate estimate : PostgresqlBaseService.getTableEstimates(stmt)) {
+                rowWidths.put(estimate.getTableName(), estimate.getTotalBytes() / Math.max(1, estimate.getEstimatedRows()));
+            }
+        }
+
+        //with several workers the data of every table is read in parallel first,
+        //each table into a file of TEMP_DIR handed over to the pipeline in order
+        Map<String, File> spilledData = new ConcurrentHashMap<>();
+        MemoryBudget.Lease lease = null;
+        try {
+            if (parallelism > 1) {
+                event = BackupEvent.phase("parallel data");
+                exportDataInParallel(tables.stream()
+                        .filter(table -> !withoutData.contains(table.getName().trim()))
+                        .collect(Collectors.toList()), parallelism, dataSnapshot, spilledData);
+                event.rows(spilledData.size()).commit();
+            } else if (memoryBudget != null) {
+                lease = memoryBudget.lease();
+            }
+
+            //for every table, get the table creation and data
+            // insert statement. A table that cannot be exported fails
+            // the export, a backup missing tables is not a backup
+            event = BackupEvent.phase("tables").rows(tables.size());
+            for (InformationSchemaGenerator s : tables) {
+                if (cancelled) {
+                    throw new SQLException(LOG_PREFIX + ": export cancelled");
+                }
+                try {
+                    pipeline.text(getTableInsertStatement(s));
+                    if (withoutData.contains(s.getName().trim())) {
+                        continue;
+                    }
+                    File spilled = spilledData.remove(s.getName().trim());
+                    if (spilled != null) {
+                        copySpilledData(spilled, pipeline);
+                    } else if (parallelism == 1) {
+                        exportTableData(stmt, s.getName().trim(), pipeline, lease);
+                    }
+                } catch (SQLException e) {
+                    throw new SQLException(LOG_PREFIX + ": unable to export table " + s.getName().trim(), e);
+                }
+            }
+        } finally {
+            if (lease != null) {
+                lease.close();
+            }
+            spilledData.values().forEach(File::delete);
+            subset = null;
+        }
+
+        event.commit();
+
+        //large objects come after the tables that reference their oids,
+        //a dump missing some of them would restore dangling oids
+        if (Boolean.parseBoolean(properties.getProperty(EXPORT_LARGE_OBJECTS, "true"))) {
+            event = BackupEvent.phase("large objects");
             try {
-                sql.append(getTableInsertStatement(s));
-                sql.append(getDataInsertStatement(s.getName().trim()));
+                exportLargeObjects(stmt, pipeline);
             } catch (SQLException e) {
-                e.printStackTrace();
+                throw new SQLException(LOG_PREFIX + ": unable to export the large objects", e);
             }
+            event.commit();
+        }
+
+        //constraints and indexes come last, to be built once the data is loaded.
+        //The table definitions do not carry them, a dump without them is not a backup
+        if (splitPostData) {
+            event = BackupEvent.phase("post-data");
+            try {
+                pipeline.text(getPostDataStatements(stmt));
+            } catch (SQLException e) {
+                throw new SQLException(LOG_PREFIX + ": unable to export the constraints and indexes", e);
+            }
+            event.commit();
         }
 
         // Delete all utility functions
         PostgresqlBaseService.deletePostgresSqlFunction(stmt);
+        connection.commit();
+    }
 
+    /**
+     * This will export the database as SQL into the given stream.
+     * The export runs as a pipeline of stages on their own threads:
+     * this thread fetches the rows, the SqlPipeline encodes them and
+     * a PipelineOutputStream hands the bytes over to the thread that
+     * writes them out, compressing or chunking them. The stages are
+     * connected by bounded queues so the memory used stays the same
+     * whatever the size of the database
+     *
+     * @param outputStream where the SQL is written
+     * @param stage        the name of the stage writing to the stream
+     * @throws IOException  exception
+     * @throws SQLException exception
+     */
+    private void writeSql(OutputStream outputStream, String stage) throws IOException, SQLException {
+        //the buffers of the stages and the batches waiting to be encoded, as values and as SQL.
+        //Reserved first, a budget they do not fit in fails before any thread is started
+        long pipelineBytes = (long) getPipelineBufferSize() * getPipelineBuffers() + getPipelineBuffers() * SqlPipeline.MAX_BATCH_LENGTH * 4;
+        if (memoryBudget != null) {
+            memoryBudget.reserve(pipelineBytes);
+        }
+        PipelineOutputStream pipelineStream = new PipelineOutputStream(outputStream, stage,
+                getPipelineBufferSize(), getPipelineBuffers());
+        StringBuilder copy = Boolean.parseBoolean(properties.getProperty(KEEP_GENERATED_SQL, "false")) ? new StringBuilder() : null;
+        SqlPipeline pipeline = new SqlPipeline(new OutputStreamWriter(pipelineStream, StandardCharsets.UTF_8), copy, getPipelineBuffers());
+        try {
+            exportToSql(pipeline);
+            pipeline.finish();
+            pipelineStream.finish();
+        } catch (IOException | SQLException | RuntimeException e) {
+            pipeline.abort();
+            pipelineStream.abort();
+            throw e;
+        } finally {
+            if (memoryBudget != null) {
+                memoryBudget.release(pipelineBytes);
+            }
+        }
+        if (copy != null) {
+            this.generatedSql = copy.toString();
+        }
+    }
 
-        this.generatedSql = sql.toString();
-        return sql.toString();
+    /**
+     * This will hand the insert statements a worker wrote
+     * to a file over to the pipeline, and delete the file
+     *
+     * @param file     the file of the statements
+     * @param pipeline the pipeline of the export
+     * @throws SQLException exception
+     */
+    private void copySpilledData(File file, SqlPipeline pipeline) throws SQLException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            char[] buffer = new char[(int) SqlPipeline.MAX_BATCH_LENGTH];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                pipeline.text(new String(buffer, 0, read));
+            }
+        } catch (IOException e) {
+            throw new SQLException(LOG_PREFIX + ": unable to read the data written by a worker to " + file, e);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private int getPipelineBufferSize() {
+        return Integer.parseInt(properties.getProperty(PIPELINE_BUFFER_SIZE, String.valueOf(PipelineOutputStream.DEFAULT_BUFFER_SIZE)));
+    }
+
+    private int getPipelineBuffers() {
+        //the stages need two buffers to overlap
+        return Math.max(2, Integer.parseInt(properties.getProperty(PIPELINE_BUFFERS, String.valueOf(PipelineOutputStream.DEFAULT_BUFFERS))));
+    }
+
+    /**
+     * This will read the data of the tables with several workers,
+     * each with its own connection. The tables are handed out
+     * largest first so that a big table does not start last.
+     * When the server allows it, all the workers share the
+     * same snapshot so the data is consistent across tables
+     *
+     * @param tables      the tables to export
+     * @param parallelism the number of workers
+     * @param snapshot    the snapshot shared by the workers, can be null
+     * @param spilled     where the files of the insert statements are put by table name
+     * @throws SQLException exception
+     */
+    private void exportDataInParallel(List<InformationSchemaGenerator> tables, int parallelism, String snapshot,
+                                      Map<String, File> spilled) throws SQLException {
+
+        //size the tables and plan the export longest first
+        Map<String, TableEstimate> estimates = new HashMap<>();
+        PostgresqlBaseService.getTableEstimates(stmt).forEach(estimate -> estimates.put(estimate.getTableName(), estimate));
+        List<TableEstimate> toExport = new ArrayList<>();
+        for (InformationSchemaGenerator table : tables) {
+            String name = table.getName().trim();
+            toExport.add(estimates.getOrDefault(name, TableEstimate.TableEstimateBuilder.aTableEstimate().withTableName(name).build()));
+        }
+        ExportPlan plan = ExportPlan.longestFirst(toExport, parallelism);
+        logger.debug(LOG_PREFIX + ": " + plan.toReport());
+
+        Queue<String> pending = new ConcurrentLinkedQueue<>();
+        plan.getTables().forEach(table -> pending.add(table.getTableName()));
+
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, BackupExecutors.daemonThreadFactory(LOG_PREFIX + "-worker"));
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < parallelism; i++) {
+            futures.add(workers.submit(() -> {
+                exportDataWorker(pending, spilled, snapshot);
+                return null;
+            }));
+        }
+        workers.shutdown();
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new SQLException(LOG_PREFIX + ": interrupted while exporting the data");
+        } catch (ExecutionException e) {
+            cancel();
+            throw new SQLException(LOG_PREFIX + ": export worker failed", e.getCause());
+        }
+    }
+
+    /**
+     * A worker of the parallel export: it takes tables out of the
+     * queue until it is empty and writes their insert statements
+     * to a file in TEMP_DIR as they are read, so that a worker
+     * holds at most a few rows whatever the size of the tables
+     *
+     * @param pending  the tables left to export, largest first
+     * @param spilled  the files of the insert statements by table name
+     * @param snapshot the snapshot to read the data in, can be null
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     * @throws IOException            exception
+     */
+    private void exportDataWorker(Queue<String> pending, Map<String, File> spilled, String snapshot)
+            throws SQLException, ClassNotFoundException, IOException {
+        try (Connection connection = openConnection();
+             MemoryBudget.Lease lease = memoryBudget == null ? null : memoryBudget.lease()) {
+            Statement workerStmt = createCursorStatement(connection);
+            workerStatements.add(workerStmt);
+            try {
+                useSnapshot(workerStmt, snapshot);
+                String table;
+                while (!cancelled && (table = pending.poll()) != null) {
+                    try {
+                        spilled.put(table, spillDataInsertStatement(workerStmt, table, lease));
+                    } catch (SQLException e) {
+                        throw new SQLException(LOG_PREFIX + ": unable to export table " + table, e);
+                    }
+                }
+            } finally {
+                workerStatements.remove(workerStmt);
+            }
+        }
+    }
+
+    /**
+     * This will write the insert statements of the table
+     * to a new file in TEMP_DIR
+     *
+     * @param stmt  the statement to read the rows with
+     * @param table the table
+     * @param lease the share of the memory budget, can be null
+     * @return the file of the statements
+     * @throws SQLException exception
+     * @throws IOException  exception
+     */
+    private File spillDataInsertStatement(Statement stmt, String table, MemoryBudget.Lease lease) throws SQLException, IOException {
+        File dir = new File(properties.getProperty(TEMP_DIR, dirName), "parallel");
+        dir.mkdirs();
+        File file = File.createTempFile("table-", ".sql", dir);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 64 * 1024)) {
+            writeDataInsertStatement(stmt, table, lease, writer);
+        } catch (SQLException | IOException | RuntimeException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * This will start a repeatable read transaction on the connection
+     * and export its snapshot so that the workers can share it.
+     * It returns null if the server does not support it
+     *
+     * @param connection the main connection
+     * @return the snapshot id or null
+     * @throws SQLException exception
+     */
+    private String exportSnapshot(Connection connection) throws SQLException {
+        if (snapshot != null) {
+            return snapshot;
+        }
+        connection.commit();
+        try {
+            stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()");
+            rs.next();
+            String snapshot = rs.getString(1);
+            rs.close();
+            return snapshot;
+        } catch (SQLException e) {
+            logger.debug(LOG_PREFIX + ": unable to export a snapshot, the tables will be read in different snapshots. " + e.getLocalizedMessage());
+            connection.rollback();
+            return null;
+        }
+    }
+
+    private void useSnapshot(Statement statement, String snapshot) throws SQLException {
+        if (snapshot != null) {
+            statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            statement.execute("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+        }
+    }
+
+    private int getParallelism() {
+        return Math.max(1, Integer.parseInt(properties.getProperty(EXPORT_PARALLELISM, "1")));
+    }
+
+    /**
+     * This will compute the export plan of the database
+     * without exporting anything: the size of every table,
+     * the order they would be exported in and the expected
+     * load of every worker for the configured EXPORT_PARALLELISM
+     *
+     * @return ExportPlan or null if the properties are invalid
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     */
+    public ExportPlan plan() throws SQLException, ClassNotFoundException {
+        if (!isValidateProperties()) {
+            logger.error("Invalid config properties: The config properties is missing important parameters: DB_NAME, DB_USERNAME and DB_PASSWORD");
+            return null;
+        }
+        try (Connection connection = openConnection(); Statement statement = connection.createStatement()) {
+            Set<String> withoutData = getTablesWithoutData(statement);
+            List<TableEstimate> estimates = PostgresqlBaseService.getTableEstimates(statement).stream()
+                    .filter(estimate -> !isExcluded(estimate.getTableName()) && !withoutData.contains(estimate.getTableName()))
+                    .collect(Collectors.toList());
+            return ExportPlan.longestFirst(estimates, getParallelism());
+        }
     }
 
     /**
@@ -300,7 +1062,10 @@ public class PostgresqlExportService {
      * the database. It performs validation and
      * the initial object initializations,
      * database connection and setup
-     * before ca
+     * before ca.
+     * It throws when the properties are invalid or
+     * when anything of the database cannot be exported,
+     * a partial backup is never kept
      *
      * @throws IOException            exception
      * @throws SQLException           exception
@@ -310,67 +1075,59 @@ public class PostgresqlExportService {
 
         //check if properties is set or not
         if (!isValidateProperties()) {
-            logger.error("Invalid config properties: The config properties is missing important parameters: DB_NAME, DB_USERNAME and DB_PASSWORD");
-            return;
+            throw new IllegalStateException(LOG_PREFIX + ": Invalid config properties: The config properties is missing important parameters: " +
+                    "DB_NAME, DB_USERNAME and DB_PASSWORD");
+        }
+        //the repository stores plain chunks, never fall back to an unencrypted backup
+        if (properties.containsKey(ENCRYPTION_KEY) && properties.containsKey(DEDUP_REPOSITORY_DIR)) {
+            throw new IllegalStateException(LOG_PREFIX + ": ENCRYPTION_KEY cannot be combined with DEDUP_REPOSITORY_DIR, " +
+                    "the repository chunks are not encrypted");
         }
+        cancelled = false;
 
         //connect to the database
-        database = properties.getProperty(DB_NAME);
-        String jdbcURL = properties.getProperty(JDBC_CONNECTION_STRING, "");
-        String driverName = properties.getProperty(JDBC_DRIVER_NAME, "");
+        Connection connection = openConnection();
 
-        Connection connection;
+        stmt = createCursorStatement(connection);
+        useSnapshot(stmt, snapshot);
 
-        if (jdbcURL.isEmpty()) {
-            connection = PostgresqlBaseService.connect(properties.getProperty(DB_USERNAME), properties.getProperty(DB_PASSWORD),
-                    database, driverName);
-        } else {
-            if (jdbcURL.contains("?")) {
-                database = jdbcURL.substring(jdbcURL.lastIndexOf("/") + 1, jdbcURL.indexOf("?"));
-            } else {
-                database = jdbcURL.substring(jdbcURL.lastIndexOf("/") + 1);
-            }
-            logger.debug("database name extracted from connection string: " + database);
-            connection = PostgresqlBaseService.connectWithURL(properties.getProperty(DB_USERNAME), properties.getProperty(DB_PASSWORD),
-                    jdbcURL, driverName);
+        if (throttle == null) {
+            BackupThrottle configured = BackupThrottle.fromProperties(properties);
+            throttle = configured.isEnabled() ? configured : null;
         }
-
-        stmt = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY, ResultSet.HOLD_CURSORS_OVER_COMMIT);
-
-        //generate the final SQL
-        String sql = exportToSql();
-
-        //create a temp dir to store the exported file for processing
-        dirName = properties.getProperty(TEMP_DIR, dirName);
-        File file = new File(dirName);
-        if (!file.exists()) {
-            boolean res = file.mkdir();
-            if (!res) {
-                throw new IOException(LOG_PREFIX + ": Unable to create temp dir: " + file.getAbsolutePath());
-            }
+        if (memoryBudget == null) {
+            memoryBudget = MemoryBudget.fromProperties(properties);
         }
 
-        //write the sql file out
-        File sqlFolder = new File(dirName + "/sql");
-        if (!sqlFolder.exists()) {
-            boolean res = sqlFolder.mkdir();
-            if (!res) {
-                throw new IOException(LOG_PREFIX + ": Unable to create temp dir: " + file.getAbsolutePath());
+        //stream the zipped sql to the configured sink while it is
+        //generated, a local file in the temp dir unless told otherwise
+        sqlFileName = getSqlFilename();
+        String archiveName = sqlFileName.replace(".sql", ".zip");
+        if (properties.containsKey(ENCRYPTION_KEY)) {
+            archiveName += ".enc";
+        }
+        BackupSink backupSink = getSink();
+        try {
+            if (properties.containsKey(DEDUP_REPOSITORY_DIR)) {
+                writeToRepository();
+                return;
             }
+            writeArchive(backupSink, archiveName);
+        } finally {
+            stmt = null;
+            connection.close();
         }
 
-        sqlFileName = getSqlFilename();
-        FileOutputStream outputStream = new FileOutputStream(sqlFolder + "/" + sqlFileName);
-        outputStream.write(sql.getBytes());
-        outputStream.close();
-
-        //zip the file
-        zipFileName = dirName + "/" + sqlFileName.replace(".sql", ".zip");
-        generatedZipFile = new File(zipFileName);
-        ZipUtil.pack(sqlFolder, generatedZipFile);
+        if (backupSink instanceof LocalFileSink) {
+            generatedZipFile = ((LocalFileSink) backupSink).getFile(archiveName);
+            zipFileName = generatedZipFile.getPath();
+        } else {
+            logger.debug(LOG_PREFIX + ": " + archiveName + " written to " + backupSink.getClass().getSimpleName());
+        }
 
         //mail the zipped file if mail settings are available
-        if (isEmailPropertiesSet()) {
+        if (isEmailPropertiesSet() && generatedZipFile != null) {
+            BackupEvent event = BackupEvent.phase("email").bytes(generatedZipFile.length());
             boolean emailSendingRes = EmailService.builder()
                     .setHost(properties.getProperty(EMAIL_HOST))
                     .setPort(Integer.parseInt(properties.getProperty(EMAIL_PORT)))
@@ -381,7 +1138,11 @@ public class PostgresqlExportService {
                     .setSubject(properties.getProperty(EMAIL_SUBJECT, sqlFileName.replace(".sql", "").toUpperCase()))
                     .setMessage(properties.getProperty(EMAIL_MESSAGE, "Please find attached database backup of " + database))
                     .setAttachments(new File[]{new File(zipFileName)})
+                    .setMaxAttachmentSize(Long.parseLong(properties.getProperty(EMAIL_MAX_ATTACHMENT_SIZE,
+                            String.valueOf(EmailService.DEFAULT_MAX_ATTACHMENT_SIZE))))
+                    .setRetries(Integer.parseInt(properties.getProperty(EMAIL_RETRIES, "3")))
                     .sendMail();
+            event.commit();
 
             if (emailSendingRes) {
                 logger.debug(LOG_PREFIX + ": Zip File Sent as Attachment to Email Address Successfully");
@@ -395,6 +1156,253 @@ public class PostgresqlExportService {
 
     }
 
+    /**
+     * This will connect to the database from either the
+     * DB_NAME or the JDBC_CONNECTION_STRING property
+     *
+     * @return Connection
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     */
+    private Connection openConnection() throws SQLException, ClassNotFoundException {
+        database = properties.getProperty(DB_NAME);
+        String jdbcURL = properties.getProperty(JDBC_CONNECTION_STRING, "");
+        String driverName = properties.getProperty(JDBC_DRIVER_NAME, "");
+
+        Connection connection;
+
+        if (jdbcURL.isEmpty()) {
+            connection = PostgresqlBaseService.connect(properties.getProperty(DB_USERNAME), properties.getProperty(DB_PASSWORD),
+                    database, driverName);
+        } else {
+            if (jdbcURL.contains("?")) {
+                database = jdbcURL.substring(jdbcURL.lastIndexOf("/") + 1, jdbcURL.indexOf("?"));
+            } else {
+                database = jdbcURL.substring(jdbcURL.lastIndexOf("/") + 1);
+            }
+            logger.debug("database name extracted from connection string: " + database);
+            connection = PostgresqlBaseService.connectWithURL(properties.getProperty(DB_USERNAME), properties.getProperty(DB_PASSWORD),
+                    jdbcURL, driverName);
+        }
+        return connection;
+    }
+
+    /**
+     * This will create a statement reading rows through a cursor,
+     * FETCH_SIZE rows at a time. Cursors require a transaction
+     * so auto commit is turned off on the connection
+     *
+     * @param connection the connection
+     * @return Statement
+     * @throws SQLException exception
+     */
+    private Statement createCursorStatement(Connection connection) throws SQLException {
+        connection.setAutoCommit(false);
+        Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(Integer.parseInt(properties.getProperty(FETCH_SIZE, "1000")));
+        return statement;
+    }
+
+    /**
+     * This will return the sink the archive is written to:
+     * the one set with setSink(), an S3 sink if S3_BUCKET is set
+     * or else a local file in TEMP_DIR
+     *
+     * @return BackupSink
+     */
+    private BackupSink getSink() {
+        if (sink != null) {
+            return sink;
+        }
+        S3Sink s3Sink = S3Sink.fromProperties(properties);
+        if (s3Sink != null) {
+            return s3Sink;
+        }
+        dirName = properties.getProperty(TEMP_DIR, dirName);
+        return new LocalFileSink(new File(dirName),
+                Integer.parseInt(properties.getProperty(SINK_PART_SIZE, String.valueOf(BackupSink.DEFAULT_PART_SIZE))));
+    }
+
+    /**
+     * This will compress the sql into a zip archive streamed to the sink
+     * as parts uploaded in the background, so the archive never has to
+     * be complete on local disk. The upload is aborted on failure.
+     * The CRC-32C and SHA-256 of the entries are computed on the way
+     * and stored in a last entry of the archive. When ENCRYPTION_KEY
+     * is set the compressed archive is encrypted on its way to the sink.
+     * The compressed bytes go to the sink through a stage of their own,
+     * so compressing and writing out happen at the same time
+     *
+     * @param backupSink  the sink
+     * @param archiveName the name of the archive
+     * @throws IOException  exception
+     * @throws SQLException exception
+     */
+    private void writeArchive(BackupSink backupSink, String archiveName) throws IOException, SQLException {
+        MultipartOutputStream sinkStream = new MultipartOutputStream(backupSink, backupSink.begin(archiveName));
+        EncryptingOutputStream encryptingStream = null;
+        PipelineOutputStream sinkStage = null;
+        try {
+            OutputStream outputStream = throttle == null ? sinkStream : new ThrottledOutputStream(sinkStream, throttle);
+            if (properties.containsKey(ENCRYPTION_KEY)) {
+                outputStream = encryptingStream = new EncryptingOutputStream(outputStream, ChunkedAesGcm.key(properties.getProperty(ENCRYPTION_KEY)),
+                        Integer.parseInt(properties.getProperty(ENCRYPTION_CHUNK_SIZE, String.valueOf(ChunkedAesGcm.DEFAULT_CHUNK_SIZE))),
+                        Runtime.getRuntime().availableProcessors());
+            }
+            sinkStage = new PipelineOutputStream(outputStream, "sink", getPipelineBufferSize(), getPipelineBuffers());
+            ZipOutputStream zipOutputStream = new ZipOutputStream(sinkStage);
+            zipOutputStream.putNextEntry(new ZipEntry(sqlFileName));
+            EntryChecksum checksum = new EntryChecksum();
+            writeSql(new ChecksumOutputStream(zipOutputStream, checksum), "compress");
+            zipOutputStream.closeEntry();
+
+            //record the checksums computed while the entries were written
+            Properties checksums = new Properties();
+            checksum.store(checksums, sqlFileName);
+            zipOutputStream.putNextEntry(new ZipEntry(EntryChecksum.CHECKSUMS_ENTRY));
+            checksums.store(zipOutputStream, "Generated by postgresql-backup4j");
+            zipOutputStream.closeEntry();
+            zipOutputStream.finish();
+            sinkStage.finish();
+            if (encryptingStream != null) {
+                //seal the final chunk, this also completes the sink stream
+                encryptingStream.close();
+            }
+        } catch (IOException | SQLException | RuntimeException e) {
+            if (sinkStage != null) {
+                sinkStage.abort();
+            }
+            if (encryptingStream != null) {
+                encryptingStream.abort();
+            }
+            sinkStream.abort();
+            throw e;
+        }
+        sinkStream.close();
+    }
+
+    /**
+     * This will store the sql in the deduplicating repository
+     * configured with DEDUP_REPOSITORY_DIR instead of a zip archive.
+     * Only the chunks that are not already in the repository are written
+     *
+     * @throws IOException  exception
+     * @throws SQLException exception
+     */
+    private void writeToRepository() throws IOException, SQLException {
+        DedupRepository repository = new DedupRepository(new File(properties.getProperty(DEDUP_REPOSITORY_DIR)));
+        String backupName = sqlFileName.replace(".sql", "");
+        ChunkingOutputStream chunkingStream = repository.create(backupName);
+        OutputStream outputStream = throttle == null ? chunkingStream : new ThrottledOutputStream(chunkingStream, throttle);
+        //the manifest is only written on close, a failed export leaves none
+        writeSql(outputStream, "chunk");
+        outputStream.close();
+        logger.debug(LOG_PREFIX + ": " + chunkingStream.getManifest() + " stored in repository, " + chunkingStream.getNewChunks() +
+                " new chunks, " + chunkingStream.getNewBytes() + " new bytes");
+    }
+
+    /**
+     * The destination of the generated zip archive, e.g. an S3Sink.
+     * When not set, the archive goes to S3 if S3_BUCKET is set
+     * and to a local file in TEMP_DIR otherwise
+     *
+     * @param sink the sink
+     * @return PostgresqlExportService
+     */
+    public PostgresqlExportService setSink(BackupSink sink) {
+        this.sink = sink;
+        return this;
+    }
+
+    /**
+     * Read the database in an exported snapshot, e.g. the one of a
+     * logical replication slot so that the changes captured from the
+     * slot start exactly where the export ends. The snapshot must
+     * stay valid for the whole export
+     *
+     * @param snapshot the snapshot name
+     * @return PostgresqlExportService
+     */
+    public PostgresqlExportService setSnapshot(String snapshot) {
+        this.snapshot = snapshot;
+        return this;
+    }
+
+    /**
+     * This will set the filter of a table, replacing
+     * the one configured in the properties if any
+     *
+     * @param tableFilter the filter
+     * @return PostgresqlExportService
+     */
+    public PostgresqlExportService setTableFilter(TableFilter tableFilter) {
+        getTableFilters().put(tableFilter.getTableName(), tableFilter);
+        return this;
+    }
+
+    /**
+     * Export a referentially consistent subset of the database: the
+     * rows of these tables matching the WHERE predicate of their filter,
+     * the rows referencing them and every row referenced by the ones
+     * kept. It replaces EXPORT_SUBSET_ROOTS
+     *
+     * @param tables the root tables
+     * @return PostgresqlExportService
+     */
+    public PostgresqlExportService setSubsetRoots(String... tables) {
+        this.subsetRoots = Arrays.asList(tables);
+        return this;
+    }
+
+    /**
+     * Limit the rows and bytes read from the database and the bytes
+     * written out. A throttle can be shared by several exports
+     * and adjusted while they run. When not set, a throttle is
+     * created from the THROTTLE_* properties
+     *
+     * @param throttle the throttle
+     * @return PostgresqlExportService
+     */
+    public PostgresqlExportService setThrottle(BackupThrottle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Limit the memory the rows of the export take on the heap.
+     * A budget can be shared by several exports and imports and
+     * resized while they run. When not set, a budget is created
+     * from the MEMORY_BUDGET property
+     *
+     * @param memoryBudget the memory budget
+     * @return PostgresqlExportService
+     */
+    public PostgresqlExportService setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * This will cancel a running export.
+     * The statement currently executing is cancelled on the server
+     * and the export stops before the next table
+     */
+    public void cancel() {
+        cancelled = true;
+        List<Statement> running = new ArrayList<>(workerStatements);
+        Statement current = stmt;
+        if (current != null) {
+            running.add(current);
+        }
+        for (Statement statement : running) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                logger.debug(LOG_PREFIX + ": unable to cancel the running statement. " + e.getLocalizedMessage());
+            }
+        }
+    }
+
     /**
      * This function will delete all the
      * temp files generated ny the library
@@ -465,6 +1473,10 @@ public class PostgresqlExportService {
         return sqlFileName;
     }
 
+    /**
+     * @return the SQL of the last export when KEEP_GENERATED_SQL
+     * is set, an empty String otherwise
+     */
     public String getGeneratedSql() {
         return generatedSql;
     }
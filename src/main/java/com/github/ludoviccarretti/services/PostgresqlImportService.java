@@ -1,15 +1,26 @@
 package com.github.ludoviccarretti.services;
 
+import com.github.ludoviccarretti.model.ForeignKey;
 import com.github.ludoviccarretti.model.InformationSchemaGenerator;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.replication.LogSequenceNumber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
  * Created by lcarretti on 30-Sep-19.
@@ -20,59 +31,103 @@ public class PostgresqlImportService {
     private String username;
     private String password;
     private String sqlString;
+    private File sqlFile;
+    private InputStream sqlStream;
     private String jdbcConnString;
     private String jdbcDriver;
+    private String encryptionKey;
+    private List<File> deltaFiles;
+    private String replayUntil;
+    private boolean useCopy;
     private boolean deleteExisting;
     private boolean dropExisting;
+    private int batchSize;
+    private MemoryBudget memoryBudget;
+    private volatile Statement stmt;
+    private volatile boolean cancelled;
+    private final Set<Statement> workerStatements = ConcurrentHashMap.newKeySet();
+    private int postDataParallelism;
+    private boolean fastLoad;
+    private String maintenanceWorkMem;
     private List<InformationSchemaGenerator> tables;
+    private Set<String> includeTables;
+    private Set<String> excludeTables;
+    private Boolean includeLargeObjects;
     private Logger logger = LoggerFactory.getLogger(PostgresqlImportService.class);
+    private static final long MAX_BATCH_CHARS = 16L * 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+    private static final String DEADLOCK_DETECTED = "40P01";
 
     private PostgresqlImportService() {
         this.deleteExisting = false;
         this.dropExisting = false;
+        this.batchSize = 100;
+        this.useCopy = true;
+        this.postDataParallelism = Math.min(4, Runtime.getRuntime().availableProcessors());
+        this.fastLoad = false;
+        this.deltaFiles = new ArrayList<>();
+        this.maintenanceWorkMem = "1GB";
         this.tables = new ArrayList<>();
+        this.includeTables = new HashSet<>();
+        this.excludeTables = new HashSet<>();
     }
 
     /**
      * @return bool
      * @throws SQLException           exception
      * @throws ClassNotFoundException exception
+     * @throws IOException            exception
      */
-    public boolean importDatabase() throws SQLException, ClassNotFoundException {
+    public boolean importDatabase() throws SQLException, ClassNotFoundException, IOException {
 
         if (!this.assertValidParams()) {
             logger.error("Required Parameters not set or empty \n" +
-                    "Ensure database, username, password, sqlString params are configured \n" +
+                    "Ensure database, username, password, sqlString (or sqlFile) params are configured \n" +
                     "using their respective setters");
             return false;
         }
-
+        cancelled = false;
 
         //connect to the database
-        Connection connection;
-        if (jdbcConnString == null || jdbcConnString.isEmpty()) {
-            connection = PostgresqlBaseService.connect(username, password,
-                    database, jdbcDriver);
-        } else {
+        Connection connection = connect();
 
-            if (jdbcConnString.contains("?")) {
-                database = jdbcConnString.substring(jdbcConnString.lastIndexOf("/") + 1, jdbcConnString.indexOf("?"));
-            } else {
-                database = jdbcConnString.substring(jdbcConnString.lastIndexOf("/") + 1);
+        try {
+            if (hasDump()) {
+                doImport(connection);
             }
-
-            logger.debug("database name extracted from connection string: " + database);
-            connection = PostgresqlBaseService.connectWithURL(username, password,
-                    jdbcConnString, jdbcDriver);
+            if (!deltaFiles.isEmpty()) {
+                replayDeltas(connection);
+            }
+        } finally {
+            stmt = null;
+            connection.close();
         }
 
-        Statement stmt = connection.createStatement();
+        return true;
+    }
+
+    /**
+     * This will run the import over the given connection
+     *
+     * @param connection the connection to the target database
+     * @throws SQLException exception
+     * @throws IOException  exception
+     */
+    private void doImport(Connection connection) throws SQLException, IOException {
+
+        stmt = connection.createStatement();
 
         if (deleteExisting || dropExisting) {
 
             //get all the tables, so as to eliminate delete errors due to non-existent tables
-            tables = PostgresqlBaseService.getAllTables(stmt);
+            tables = PostgresqlBaseService.getAllTables(stmt).stream()
+                    .filter(table -> isSelected(table.getName()))
+                    .collect(Collectors.toList());
             logger.debug("tables found for deleting/dropping: \n" + tables.toString());
+            //read before any statement is added to the batch
+            List<ForeignKey> foreignKeys = deleteExisting && !dropExisting && fastLoad
+                    ? PostgresqlBaseService.getForeignKeys(stmt)
+                    : Collections.emptyList();
 
             //execute delete query
             for (InformationSchemaGenerator table : tables) {
@@ -80,40 +135,125 @@ public class PostgresqlImportService {
                 //if deleteExisting and dropExisting is true
                 //skip the deleteExisting query
                 //dropExisting will take care of both
-                if (deleteExisting && !dropExisting) {
-                    String delQ = "DELETE FROM '" + table.getName() + "';";
+                if (deleteExisting && !dropExisting && !fastLoad) {
+                    String delQ = "DELETE FROM \"" + table.getName() + "\";";
                     logger.debug("adding " + delQ + " to batch");
                     stmt.addBatch(delQ);
                 }
 
                 if (dropExisting) {
-                    String dropQ = "DROP TABLE IF EXISTS '" + table.getName() + "'";
+                    String dropQ = "DROP TABLE IF EXISTS \"" + table.getName() + "\"";
                     logger.debug("adding " + dropQ + " to batch");
                     stmt.addBatch(dropQ);
                 }
 
             }
+
+            //in fast load mode the tables are emptied at once. TRUNCATE fails on a table
+            //referenced by a foreign key of a table that is not truncated with it, whatever
+            //session_replication_role, so those tables are emptied with DELETE
+            if (deleteExisting && !dropExisting && fastLoad && !tables.isEmpty()) {
+                Set<String> truncated = tables.stream().map(InformationSchemaGenerator::getName).collect(Collectors.toSet());
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    for (ForeignKey foreignKey : foreignKeys) {
+                        if (!truncated.contains(foreignKey.getTableName()) && truncated.remove(foreignKey.getReferencedTableName())) {
+                            changed = true;
+                        }
+                    }
+                }
+
+                List<String> toTruncate = new ArrayList<>();
+                for (InformationSchemaGenerator table : tables) {
+                    if (truncated.contains(table.getName())) {
+                        toTruncate.add("\"" + table.getName() + "\"");
+                    } else {
+                        String delQ = "DELETE FROM \"" + table.getName() + "\";";
+                        logger.debug("adding " + delQ + " to batch, the table is referenced from outside the selection");
+                        stmt.addBatch(delQ);
+                    }
+                }
+                if (!toTruncate.isEmpty()) {
+                    String truncateQ = "TRUNCATE TABLE " + String.join(", ", toTruncate) + ";";
+                    logger.debug("adding " + truncateQ + " to batch");
+                    stmt.addBatch(truncateQ);
+                }
+            }
         }
 
         //disable foreign key check
         stmt.addBatch("SET session_replication_role = 'replica';");
 
+        Set<String> unloggedTables = new LinkedHashSet<>();
+        Set<String> alreadyUnlogged = new HashSet<>();
+        if (fastLoad) {
+            prepareSession(stmt);
+            alreadyUnlogged.addAll(getUnloggedTables(stmt));
+        }
 
-        //now process the sql string supplied
-        while (sqlString.contains(PostgresqlBaseService.SQL_START_PATTERN)) {
-
-            //get the chunk of the first statement to execute
-            int startIndex = sqlString.indexOf(PostgresqlBaseService.SQL_START_PATTERN);
-            int endIndex = sqlString.indexOf(PostgresqlBaseService.SQL_END_PATTERN);
-
-            String executable = sqlString.substring(startIndex, endIndex);
-            logger.debug("adding extracted executable SQL chunk to batch : \n" + executable);
-            stmt.addBatch(executable);
-
-            //remove the chunk from the whole to reduce it
-            sqlString = sqlString.substring(endIndex + 1);
 
-            //repeat
+        //now process the sections of the dump
+        //only the selected ones are kept in memory and the batch
+        //is flushed regularly so that large dumps are not held on the heap,
+        //also when its sections are big like the pieces of large objects
+        List<Long> results = new ArrayList<>();
+        CopyManager copyManager = useCopy ? getCopyManager(connection) : null;
+        List<SqlSection> postData = new ArrayList<>();
+        BackupEvent loadEvent = BackupEvent.phase("load");
+        int pending = 0;
+        long pendingChars = 0;
+        //the batch is never empty at first, it holds the DELETE, TRUNCATE
+        //and SET statements above, which are not counted in pending
+        boolean batched = true;
+        //under a memory budget the batch is sized from the sections read so far
+        try (SqlSectionSource source = openSectionSource();
+             MemoryBudget.Lease lease = memoryBudget == null ? null : memoryBudget.lease()) {
+            SqlSection section;
+            while ((section = source.next()) != null) {
+                if (cancelled) {
+                    throw new SQLException("import cancelled");
+                }
+                if (useCopy && section.getKind() == SqlSection.Kind.TABLE_INSERT && copyManager != null) {
+                    //the tables must exist and be emptied, and the foreign key
+                    //checks be off, before their data is copied
+                    if (batched) {
+                        executeBatch(results, pending, pendingChars);
+                        pending = 0;
+                        pendingChars = 0;
+                        batched = false;
+                    }
+                    BackupEvent event = BackupEvent.importBatch("copy", section.getName()).bytes(section.getSql().length());
+                    long copied = copyInsertSection(copyManager, section);
+                    event.rows(copied).commit();
+                    results.add(copied);
+                    continue;
+                }
+                //partitioned tables hold no data and cannot be unlogged
+                if (fastLoad && section.getKind() == SqlSection.Kind.TABLE_DUMP && !section.getSql().contains("PARTITION BY ")) {
+                    //tables created during the load skip the WAL until they are set logged
+                    section = section.withSql(section.getSql().replaceFirst("CREATE TABLE ", "CREATE UNLOGGED TABLE "));
+                    unloggedTables.add(section.getName());
+                }
+                if (section.isPostData()) {
+                    postData.add(section);
+                    continue;
+                }
+                logger.debug("adding extracted executable SQL chunk to batch : \n" + section.getName());
+                stmt.addBatch(section.getSql());
+                batched = true;
+                pendingChars += section.getSql().length();
+                if (lease != null) {
+                    lease.sample(section.getSql().length());
+                }
+                if (lease == null ? ++pending >= batchSize || pendingChars >= MAX_BATCH_CHARS
+                        : ++pending >= lease.batchSize() || pendingChars * 2 >= lease.batchBytes()) {
+                    executeBatch(results, pending, pendingChars);
+                    pending = 0;
+                    pendingChars = 0;
+                    batched = false;
+                }
+            }
         }
 
 
@@ -121,17 +261,503 @@ public class PostgresqlImportService {
         stmt.addBatch("SET session_replication_role = 'origin';");
 
         //now execute the batch
-        long[] result = stmt.executeLargeBatch();
+        executeBatch(results, pending + 1, pendingChars);
+        loadEvent.commit();
+
+        String resultString = results.stream()
+                .map(String::valueOf)
+                .collect(Collectors.joining(", "));
+        logger.debug(results.size() + " queries were executed in batches for provided SQL String with the following result : \n" + resultString);
+
+        if (fastLoad) {
+            unloggedTables.removeAll(alreadyUnlogged);
+            BackupEvent event = BackupEvent.phase("set logged").rows(unloggedTables.size());
+            setLogged(unloggedTables);
+            event.commit();
+        }
 
-        String resultString = Arrays.stream(result)
-                .mapToObj(String::valueOf)
-                .reduce("", (s1, s2) -> s1 + ", " + s2 + ", ");
-        logger.debug(result.length + " queries were executed in batches for provided SQL String with the following result : \n" + resultString);
+        BackupEvent event = BackupEvent.phase("post-data").rows(postData.size());
+        buildPostData(postData);
+        event.commit();
 
+        if (fastLoad) {
+            stmt.execute("RESET synchronous_commit;");
+            stmt.execute("RESET maintenance_work_mem;");
+        }
         stmt.close();
-        connection.close();
+    }
 
-        return true;
+    /**
+     * This will execute the statements added to the batch
+     *
+     * @param results    the update counts of the import
+     * @param statements the number of statements in the batch
+     * @param chars      the size of the statements
+     * @throws SQLException exception
+     */
+    private void executeBatch(List<Long> results, int statements, long chars) throws SQLException {
+        BackupEvent event = BackupEvent.importBatch("batch", null).rows(statements).bytes(chars);
+        //executeLargeBatch is not implemented by the driver
+        Arrays.stream(stmt.executeBatch()).forEach(count -> results.add((long) count));
+        event.commit();
+    }
+
+    /**
+     * This will replay the delta segments written by the change capture,
+     * in LSN order, each captured transaction in its own transaction,
+     * up to the replayUntil LSN when one is set
+     *
+     * @param connection the connection to the target database
+     * @throws SQLException exception
+     * @throws IOException  exception
+     */
+    private void replayDeltas(Connection connection) throws SQLException, IOException {
+        List<File> segments = new ArrayList<>(deltaFiles);
+        segments.sort(Comparator.comparing(File::getName));
+        long until = replayUntil == null ? Long.MAX_VALUE : LogSequenceNumber.valueOf(replayUntil).asLong();
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        long replayed = 0;
+        try (Statement replayStmt = connection.createStatement()) {
+            stmt = replayStmt;
+            for (File segment : segments) {
+                try (SqlSectionReader reader = new SqlSectionReader(new InputStreamReader(
+                        new GZIPInputStream(new FileInputStream(segment), 64 * 1024), StandardCharsets.UTF_8),
+                        section -> section.getKind() == SqlSection.Kind.CHANGE)) {
+                    SqlSection section;
+                    while ((section = reader.next()) != null) {
+                        if (cancelled) {
+                            throw new SQLException("import cancelled");
+                        }
+                        if (LogSequenceNumber.valueOf(section.getName()).asLong() > until) {
+                            logger.debug("replayed " + replayed + " transactions up to " + replayUntil);
+                            return;
+                        }
+                        BackupEvent event = BackupEvent.importBatch("change", section.getName()).bytes(section.getSql().length());
+                        replayStmt.execute(section.getSql());
+                        connection.commit();
+                        event.rows(1).commit();
+                        replayed++;
+                    }
+                }
+            }
+            logger.debug("replayed " + replayed + " transactions of " + segments.size() + " delta segments");
+        } catch (SQLException | IOException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * This will relax the durability of a session for the fast load
+     * mode and give it more memory for the index builds. The settings
+     * only apply to the session and are reset at the end of the import
+     *
+     * @param statement a statement of the session
+     * @throws SQLException exception
+     */
+    private void prepareSession(Statement statement) throws SQLException {
+        statement.execute("SET synchronous_commit = off;");
+        statement.execute("SET maintenance_work_mem = '" + maintenanceWorkMem.replace("'", "''") + "';");
+    }
+
+    private Set<String> getUnloggedTables(Statement statement) throws SQLException {
+        Set<String> unlogged = new HashSet<>();
+        ResultSet rs = statement.executeQuery("SELECT relname FROM pg_catalog.pg_class WHERE relkind = 'r' AND relpersistence = 'u';");
+        while (rs.next()) {
+            unlogged.add(rs.getString(1));
+        }
+        rs.close();
+        return unlogged;
+    }
+
+    /**
+     * This will turn the tables created unlogged by the fast load back
+     * into regular tables, in parallel. A table referencing another one
+     * that is still unlogged cannot be set logged before it, so the
+     * tables that fail are retried as long as some progress is made
+     *
+     * @param tableNames the tables created during the load
+     * @throws SQLException if some tables could not be set logged
+     */
+    private void setLogged(Set<String> tableNames) throws SQLException {
+        List<SqlSection> remaining = tableNames.stream()
+                .map(name -> new SqlSection(SqlSection.Kind.UNKNOWN, name, "ALTER TABLE \"" + name + "\" SET LOGGED;"))
+                .collect(Collectors.toList());
+        Queue<SQLException> failures = new ConcurrentLinkedQueue<>();
+        while (!remaining.isEmpty()) {
+            failures.clear();
+            List<SqlSection> failed = executeInParallel(remaining, failures);
+            if (failed.size() == remaining.size()) {
+                SQLException failure = new SQLException(failed.size() + " tables could not be set logged");
+                failures.forEach(failure::addSuppressed);
+                throw failure;
+            }
+            remaining = failed;
+        }
+    }
+
+    /**
+     * This will build the constraints and indexes of the post-data
+     * sections now that the data is loaded, on several connections
+     * in parallel. Primary, unique and exclusion keys and the indexes
+     * are built first, then the foreign keys that reference them
+     *
+     * @param postData the post-data sections of the dump
+     * @throws SQLException with the failures of the definitions that could not be built
+     */
+    private void buildPostData(List<SqlSection> postData) throws SQLException {
+        if (postData.isEmpty()) {
+            return;
+        }
+        List<SqlSection> keysAndIndexes = postData.stream()
+                .filter(section -> section.getKind() != SqlSection.Kind.FOREIGN_KEY)
+                .collect(Collectors.toList());
+        List<SqlSection> foreignKeys = postData.stream()
+                .filter(section -> section.getKind() == SqlSection.Kind.FOREIGN_KEY)
+                .collect(Collectors.toList());
+        logger.debug("building " + keysAndIndexes.size() + " keys and indexes and " + foreignKeys.size()
+                + " foreign keys with " + postDataParallelism + " connections");
+
+        Queue<SQLException> failures = new ConcurrentLinkedQueue<>();
+        executeInParallel(keysAndIndexes, failures);
+        executeInParallel(foreignKeys, failures);
+        if (!failures.isEmpty()) {
+            SQLException failure = new SQLException(failures.size() + " constraints or indexes could not be built");
+            failures.forEach(failure::addSuppressed);
+            throw failure;
+        }
+    }
+
+    /**
+     * This will execute the sections with up to postDataParallelism
+     * workers, each on its own connection. A failing section does not
+     * stop the others
+     *
+     * @param sections the sections to execute
+     * @param failures the failures of the sections
+     * @return the sections that failed
+     * @throws SQLException if interrupted or cancelled
+     */
+    private List<SqlSection> executeInParallel(List<SqlSection> sections, Queue<SQLException> failures) throws SQLException {
+        List<SqlSection> failed = Collections.synchronizedList(new ArrayList<>());
+        if (sections.isEmpty()) {
+            return failed;
+        }
+        Queue<SqlSection> pending = new ConcurrentLinkedQueue<>(sections);
+        int workers = Math.min(postDataParallelism, sections.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers, BackupExecutors.daemonThreadFactory("java-postgresql-exporter-post-data"));
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            futures.add(executor.submit(() -> {
+                postDataWorker(pending, failed, failures);
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new SQLException("interrupted while finishing the tables");
+        } catch (ExecutionException e) {
+            cancel();
+            throw new SQLException("unable to finish the tables", e.getCause());
+        }
+
+        if (cancelled) {
+            throw new SQLException("import cancelled");
+        }
+        return failed;
+    }
+
+    /**
+     * A worker executing sections until none is left.
+     * A statement aborted by a deadlock with another worker,
+     * e.g. two foreign keys between the same tables, is retried
+     *
+     * @param pending  the sections left to execute
+     * @param failed   the sections that failed
+     * @param failures the failures of the sections
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     */
+    private void postDataWorker(Queue<SqlSection> pending, List<SqlSection> failed, Queue<SQLException> failures) throws SQLException, ClassNotFoundException {
+        try (Connection connection = connect(); Statement workerStmt = connection.createStatement()) {
+            workerStatements.add(workerStmt);
+            try {
+                if (fastLoad) {
+                    prepareSession(workerStmt);
+                }
+                SqlSection section;
+                while (!cancelled && (section = pending.poll()) != null) {
+                    logger.debug("executing " + section.getSql());
+                    BackupEvent event = BackupEvent.importBatch(section.getKind() == SqlSection.Kind.UNKNOWN
+                            ? "statement" : section.getKind().getLabel(), section.getName());
+                    for (int attempt = 1; ; attempt++) {
+                        try {
+                            workerStmt.execute(section.getSql());
+                            break;
+                        } catch (SQLException e) {
+                            if (!DEADLOCK_DETECTED.equals(e.getSQLState()) || attempt >= 3) {
+                                logger.debug("unable to execute " + section.getSql() + ": " + e.getLocalizedMessage());
+                                failed.add(section);
+                                failures.add(e);
+                                break;
+                            }
+                        }
+                    }
+                    event.rows(1).commit();
+                }
+            } finally {
+                workerStatements.remove(workerStmt);
+            }
+        }
+    }
+
+    /**
+     * @return the COPY API of the connection, or null if the driver is not the PostgreSQL one
+     */
+    private CopyManager getCopyManager(Connection connection) {
+        try {
+            return connection.unwrap(PGConnection.class).getCopyAPI();
+        } catch (SQLException e) {
+            logger.debug("COPY is not available on this connection, the inserts are executed as is: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * This will load the rows of a table insert section with COPY
+     * instead of executing its INSERT: the VALUES tuples are rewritten
+     * on the fly into a COPY stream, COPY_BUFFER_SIZE characters at a time.
+     * If the section contains something the conversion does not
+     * understand, the copy is cancelled and the INSERT is executed instead
+     *
+     * @param copyManager the COPY API of the connection
+     * @param section     the table insert section
+     * @return the number of rows loaded
+     * @throws SQLException exception
+     */
+    private long copyInsertSection(CopyManager copyManager, SqlSection section) throws SQLException {
+        InsertToCopyConverter converter;
+        try {
+            converter = new InsertToCopyConverter(section.getSql());
+        } catch (IllegalArgumentException e) {
+            logger.debug("unable to load " + section.getName() + " with COPY, executing its INSERT: " + e.getLocalizedMessage());
+            return stmt.executeLargeUpdate(section.getSql());
+        }
+
+        logger.debug("loading " + section.getName() + " with " + converter.getCopyCommand());
+        CopyIn copyIn = copyManager.copyIn(converter.getCopyCommand());
+        try {
+            StringBuilder rows = new StringBuilder();
+            while (converter.nextRow(rows)) {
+                if (cancelled) {
+                    throw new SQLException("import cancelled");
+                }
+                if (rows.length() >= COPY_BUFFER_SIZE) {
+                    writeToCopy(copyIn, rows);
+                }
+            }
+            writeToCopy(copyIn, rows);
+        } catch (IllegalArgumentException e) {
+            copyIn.cancelCopy();
+            logger.debug("unable to load " + section.getName() + " with COPY, executing its INSERT: " + e.getLocalizedMessage());
+            return stmt.executeLargeUpdate(section.getSql());
+        } catch (SQLException e) {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+            throw e;
+        }
+        long copied = copyIn.endCopy();
+
+        String remainder = converter.getRemainder();
+        if (!remainder.isEmpty()) {
+            stmt.execute(remainder);
+        }
+        return copied;
+    }
+
+    private void writeToCopy(CopyIn copyIn, StringBuilder rows) throws SQLException {
+        byte[] data = rows.toString().getBytes(StandardCharsets.UTF_8);
+        copyIn.writeToCopy(data, 0, data.length);
+        rows.setLength(0);
+    }
+
+    /**
+     * This will open a connection to the target database
+     * from either the database name or the JDBC connection string
+     *
+     * @return Connection
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     */
+    private Connection connect() throws SQLException, ClassNotFoundException {
+        Connection connection;
+        if (jdbcConnString == null || jdbcConnString.isEmpty()) {
+            connection = PostgresqlBaseService.connect(username, password,
+                    database, jdbcDriver);
+        } else {
+
+            if (jdbcConnString.contains("?")) {
+                database = jdbcConnString.substring(jdbcConnString.lastIndexOf("/") + 1, jdbcConnString.indexOf("?"));
+            } else {
+                database = jdbcConnString.substring(jdbcConnString.lastIndexOf("/") + 1);
+            }
+
+            logger.debug("database name extracted from connection string: " + database);
+            connection = PostgresqlBaseService.connectWithURL(username, password,
+                    jdbcConnString, jdbcDriver);
+        }
+        return connection;
+    }
+
+    /**
+     * This will cancel a running import.
+     * The batch currently executing is cancelled on the server
+     * and no further section is read from the dump
+     */
+    public void cancel() {
+        cancelled = true;
+        List<Statement> running = new ArrayList<>(workerStatements);
+        Statement current = stmt;
+        if (current != null) {
+            running.add(current);
+        }
+        for (Statement statement : running) {
+            try {
+                statement.cancel();
+            } catch (SQLException e) {
+                logger.debug("unable to cancel the running statement. " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * This function will open a source over the supplied dump.
+     * A plain .sql file is memory mapped and a zip archive
+     * is read entry by entry without being extracted
+     *
+     * @return SqlSectionSource
+     * @throws IOException exception
+     */
+    private SqlSectionSource openSectionSource() throws IOException {
+        if (sqlString != null && !sqlString.isEmpty()) {
+            return new SqlSectionReader(new StringReader(sqlString), this::isSelected);
+        }
+
+        if (sqlStream != null) {
+            BufferedInputStream inputStream = new BufferedInputStream(sqlStream, 64 * 1024);
+            if (isEncrypted(inputStream)) {
+                return openSqlEntry(new ZipInputStream(new BufferedInputStream(decrypt(inputStream), 64 * 1024)), "stream");
+            }
+            return new SqlSectionReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), this::isSelected);
+        }
+
+        //encrypted archives are decrypted as a stream, the plaintext never touches the disk
+        BufferedInputStream fileStream = new BufferedInputStream(new FileInputStream(sqlFile), 64 * 1024);
+        if (isEncrypted(fileStream)) {
+            return openSqlEntry(new ZipInputStream(new BufferedInputStream(decrypt(fileStream), 64 * 1024)), sqlFile.getAbsolutePath());
+        }
+
+        if (!sqlFile.getName().toLowerCase().endsWith(".zip")) {
+            fileStream.close();
+            return new MappedSqlSectionSource(sqlFile, this::isSelected);
+        }
+
+        return openSqlEntry(new ZipInputStream(fileStream), sqlFile.getAbsolutePath());
+    }
+
+    /**
+     * This will position the archive on its first .sql entry
+     *
+     * @param zipInputStream the archive
+     * @param archiveName    the archive name used in errors
+     * @return SqlSectionSource
+     * @throws IOException if there is no .sql entry
+     */
+    private SqlSectionSource openSqlEntry(ZipInputStream zipInputStream, String archiveName) throws IOException {
+        ZipEntry entry;
+        while ((entry = zipInputStream.getNextEntry()) != null) {
+            if (entry.getName().toLowerCase().endsWith(".sql")) {
+                break;
+            }
+        }
+        if (entry == null) {
+            zipInputStream.close();
+            throw new IOException("No .sql entry found in archive " + archiveName);
+        }
+        return new SqlSectionReader(new InputStreamReader(zipInputStream, StandardCharsets.UTF_8), this::isSelected);
+    }
+
+    /**
+     * This function will check, without consuming it,
+     * if a stream starts with the encrypted backup header
+     *
+     * @param inputStream the stream
+     * @return bool
+     * @throws IOException exception
+     */
+    private boolean isEncrypted(BufferedInputStream inputStream) throws IOException {
+        byte[] header = new byte[ChunkedAesGcm.MAGIC.length];
+        inputStream.mark(header.length);
+        int read = 0;
+        int n;
+        while (read < header.length && (n = inputStream.read(header, read, header.length - read)) != -1) {
+            read += n;
+        }
+        inputStream.reset();
+        return ChunkedAesGcm.isEncrypted(header, read);
+    }
+
+    private InputStream decrypt(InputStream inputStream) throws IOException {
+        if (encryptionKey == null || encryptionKey.isEmpty()) {
+            inputStream.close();
+            throw new IOException("The backup is encrypted, set the key with setEncryptionKey()");
+        }
+        return new DecryptingInputStream(inputStream, ChunkedAesGcm.key(encryptionKey));
+    }
+
+    /**
+     * Large objects are not tied to a table, they are part of
+     * the restore unless it is limited to some tables, or
+     * as set with setIncludeLargeObjects()
+     */
+    private boolean isSelected(SqlSection section) {
+        if (section.getKind() == SqlSection.Kind.LARGE_OBJECT) {
+            return includeLargeObjects != null ? includeLargeObjects : includeTables.isEmpty();
+        }
+        return isSelected(section.getName());
+    }
+
+    /**
+     * This function will check if a table or sequence
+     * is part of the restore according to the include
+     * and exclude lists. Empty lists select everything
+     *
+     * @param name the table or sequence name
+     * @return bool
+     */
+    private boolean isSelected(String name) {
+        String trimmed = name == null ? "" : name.trim();
+        if (!includeTables.isEmpty() && !includeTables.contains(trimmed)) {
+            return false;
+        }
+        return !excludeTables.contains(trimmed);
+    }
+
+    private boolean hasDump() {
+        return (sqlString != null && !this.sqlString.isEmpty()) || (sqlFile != null && sqlFile.isFile()) || sqlStream != null;
     }
 
     /**
@@ -143,7 +769,7 @@ public class PostgresqlImportService {
     private boolean assertValidParams() {
         return username != null && !this.username.isEmpty() &&
                 password != null && !this.password.isEmpty() &&
-                sqlString != null && !this.sqlString.isEmpty() &&
+                (hasDump() || !deltaFiles.isEmpty()) &&
                 ((database != null && !this.database.isEmpty()) || (jdbcConnString != null && !jdbcConnString.isEmpty()));
     }
 
@@ -178,6 +804,186 @@ public class PostgresqlImportService {
         return this;
     }
 
+    /**
+     * Read the dump from a file instead of a string.
+     * Plain .sql files, .zip archives generated by the
+     * export service and their encrypted form are supported
+     *
+     * @param sqlFile the dump file
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setSqlFile(File sqlFile) {
+        this.sqlFile = sqlFile;
+        return this;
+    }
+
+    /**
+     * Read the dump from a stream of UTF-8 SQL, e.g. a backup
+     * opened from a DedupRepository. The stream is closed at the end
+     *
+     * @param sqlStream the dump content
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setSqlStream(InputStream sqlStream) {
+        this.sqlStream = sqlStream;
+        return this;
+    }
+
+    /**
+     * The number of dump sections sent to the database in one batch.
+     * Smaller values keep less SQL on the heap at a time
+     *
+     * @param batchSize number of sections per batch
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+        return this;
+    }
+
+    /**
+     * Limit the SQL held on the heap by the batches of the import.
+     * When set, the batch size is derived from the budget and the
+     * size of the sections read so far instead of setBatchSize().
+     * A budget can be shared by several exports and imports
+     *
+     * @param memoryBudget the memory budget
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * Restrict the import to these tables (and sequences).
+     * Delete and drop are only applied to them as well
+     *
+     * @param includeTables table names
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setIncludeTables(Collection<String> includeTables) {
+        this.includeTables = new HashSet<>(includeTables);
+        return this;
+    }
+
+    /**
+     * Restore the large objects of the dump, replacing the ones
+     * with the same oid, or leave them out. By default they are
+     * restored unless the import is limited with setIncludeTables()
+     *
+     * @param includeLargeObjects bool
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setIncludeLargeObjects(boolean includeLargeObjects) {
+        this.includeLargeObjects = includeLargeObjects;
+        return this;
+    }
+
+    /**
+     * Skip these tables (and sequences) during the import.
+     * They are neither deleted nor dropped
+     *
+     * @param excludeTables table names
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setExcludeTables(Collection<String> excludeTables) {
+        this.excludeTables = new HashSet<>(excludeTables);
+        return this;
+    }
+
+    /**
+     * The base64 AES key of encrypted backups,
+     * the same as the ENCRYPTION_KEY of the export
+     *
+     * @param encryptionKey base64 encoded key
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setEncryptionKey(String encryptionKey) {
+        this.encryptionKey = encryptionKey;
+        return this;
+    }
+
+    /**
+     * Load the rows of the table insert sections with COPY,
+     * converting their INSERT on the fly. Enabled by default
+     *
+     * @param useCopy false to execute the INSERT statements as they are
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setUseCopy(boolean useCopy) {
+        this.useCopy = useCopy;
+        return this;
+    }
+
+    /**
+     * The number of connections building the constraints and
+     * indexes of the post-data sections once the data is loaded
+     *
+     * @param postDataParallelism number of connections
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setPostDataParallelism(int postDataParallelism) {
+        this.postDataParallelism = Math.max(1, postDataParallelism);
+        return this;
+    }
+
+    /**
+     * Restore as fast as possible into a database that can afford
+     * to lose the restore on a crash, e.g. a staging database:
+     * existing tables are emptied with a single TRUNCATE, new tables
+     * are created UNLOGGED and set logged once loaded, and the import
+     * sessions run with synchronous_commit off and a larger
+     * maintenance_work_mem. The settings are reset at the end.
+     * A selected table referenced by a foreign key of a table left
+     * out of the restore is emptied with DELETE instead of TRUNCATE
+     *
+     * @param fastLoad true to enable the fast load mode
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setFastLoad(boolean fastLoad) {
+        this.fastLoad = fastLoad;
+        return this;
+    }
+
+    /**
+     * The maintenance_work_mem of the import sessions
+     * in fast load mode, 1GB by default
+     *
+     * @param maintenanceWorkMem a PostgreSQL memory setting like 512MB
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setMaintenanceWorkMem(String maintenanceWorkMem) {
+        this.maintenanceWorkMem = maintenanceWorkMem;
+        return this;
+    }
+
+    /**
+     * The delta segments written by a ChangeCaptureService,
+     * replayed in LSN order after the dump is imported.
+     * They can also be replayed without a dump onto a database
+     * that already holds the base backup
+     *
+     * @param deltaFiles the delta-*.sql.gz segments
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setDeltaFiles(Collection<File> deltaFiles) {
+        this.deltaFiles = new ArrayList<>(deltaFiles);
+        return this;
+    }
+
+    /**
+     * Stop the replay of the deltas after the last transaction
+     * committed at or before this LSN, e.g. 0/16B3748
+     *
+     * @param replayUntil the LSN
+     * @return PostgresqlImportService
+     */
+    public PostgresqlImportService setReplayUntil(String replayUntil) {
+        this.replayUntil = replayUntil;
+        return this;
+    }
+
     public PostgresqlImportService setDeleteExisting(boolean deleteExisting) {
         this.deleteExisting = deleteExisting;
         return this;
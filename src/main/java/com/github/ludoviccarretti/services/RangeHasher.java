@@ -0,0 +1,138 @@
+package com.github.ludoviccarretti.services;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Computes order independent hashes of the rows of a table on the
+ * server, for the whole table or per range of its primary key.
+ * Every row is hashed from its text form and the hashes are summed,
+ * so two tables with the same rows have the same hash whatever
+ * their physical order, and only the sums leave the server
+ */
+final class RangeHasher {
+
+    static final long DEFAULT_RANGE_SIZE = 100_000;
+
+    private static final String ROW_HASH = "('x' || substr(md5(t::text), 1, 15))::bit(60)::bigint";
+    private static final List<String> RANGE_KEY_TYPES = Arrays.asList("smallint", "integer", "bigint");
+
+    private RangeHasher() {
+    }
+
+    /**
+     * The row count and hash of a table or of a range of its rows
+     */
+    static final class Hash {
+        private final long rows;
+        private final BigDecimal sum;
+
+        Hash(long rows, BigDecimal sum) {
+            this.rows = rows;
+            this.sum = sum;
+        }
+
+        long getRows() {
+            return rows;
+        }
+
+        BigDecimal getSum() {
+            return sum;
+        }
+
+        /**
+         * The hashes are sums, so the hash of a range is
+         * the sum of the hashes of its sub-ranges
+         *
+         * @param other the hash of other rows
+         * @return the hash of the rows of both
+         */
+        Hash add(Hash other) {
+            return new Hash(rows + other.rows, sum.add(other.sum));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Hash)) {
+                return false;
+            }
+            Hash hash = (Hash) o;
+            return rows == hash.rows && sum.compareTo(hash.sum) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(rows) * 31 + sum.stripTrailingZeros().hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return rows + ":" + sum.toPlainString();
+        }
+    }
+
+    /**
+     * @param primaryKey the columns of the primary key with their type
+     * @return the key column the ranges can be computed on, or null
+     * if the key is not made of a single integer column
+     */
+    static String getRangeColumn(Map<String, String> primaryKey) {
+        if (primaryKey.size() != 1) {
+            return null;
+        }
+        Map.Entry<String, String> column = primaryKey.entrySet().iterator().next();
+        return RANGE_KEY_TYPES.contains(column.getValue()) ? column.getKey() : null;
+    }
+
+    /**
+     * @param stmt  the statement
+     * @param table the table
+     * @return the hash of all the rows of the table
+     * @throws SQLException exception
+     */
+    static Hash hashTable(Statement stmt, String table) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT count(*), coalesce(sum(" + ROW_HASH + "), 0) FROM " + quote(table) + " t")) {
+            rs.next();
+            return new Hash(rs.getLong(1), rs.getBigDecimal(2));
+        }
+    }
+
+    /**
+     * This will hash the rows of the table per range of rangeSize
+     * values of the key column, between from (included) and
+     * to (excluded). Only the ranges that have rows are returned
+     *
+     * @param stmt      the statement
+     * @param table     the table
+     * @param column    the integer key column
+     * @param rangeSize the number of key values of a range
+     * @param from      the first key value
+     * @param to        the key value after the last one
+     * @return the hashes by the first key value of their range
+     * @throws SQLException exception
+     */
+    static SortedMap<Long, Hash> hashRanges(Statement stmt, String table, String column, long rangeSize, long from, long to) throws SQLException {
+        String key = quote(column);
+        SortedMap<Long, Hash> hashes = new TreeMap<>();
+        try (ResultSet rs = stmt.executeQuery("SELECT floor(" + key + "::numeric / " + rangeSize + ")::bigint, count(*), sum(" + ROW_HASH + ")" +
+                " FROM " + quote(table) + " t" +
+                " WHERE " + key + " >= " + from + " AND " + key + " < " + to +
+                " GROUP BY 1 ORDER BY 1")) {
+            while (rs.next()) {
+                hashes.put(rs.getLong(1) * rangeSize, new Hash(rs.getLong(2), rs.getBigDecimal(3)));
+            }
+        }
+        return hashes;
+    }
+
+    static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+}
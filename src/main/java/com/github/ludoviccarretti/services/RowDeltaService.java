@@ -0,0 +1,553 @@
+package com.github.ludoviccarretti.services;
+
+import com.github.ludoviccarretti.model.TableEstimate;
+import com.github.ludoviccarretti.model.TableFilter;
+import org.postgresql.replication.LogSequenceNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the rows that changed since the previous run as a delta
+ * segment, without reading the rows that did not change. The rows of
+ * every table with a single integer primary key are hashed on the
+ * server per range of their key and the hashes are kept in a state
+ * file. The next run hashes coarse ranges of the key, drills into the
+ * ranges of the coarse ones that changed and only reads the rows of
+ * the ranges that changed: they are written as upserts, and the keys
+ * that are gone as deletes. Tables without such a key are hashed as a
+ * whole and written again when they changed.
+ * <p>
+ * The segments are named and laid out like the ones of the change
+ * capture, delta-LSN-LSN.sql.gz with change sections, so that the
+ * import service replays them after the base backup
+ */
+public class RowDeltaService {
+
+    static final String STATE_FILE = "row-delta.state.gz";
+    static final String RANGE_SIZE = "range.size";
+    static final long DEFAULT_RANGE_SIZE = 10_000;
+
+    //the number of ranges in a coarse range
+    private static final int FANOUT = 100;
+    private static final int ROWS_PER_INSERT = 512;
+    private static final int SECTION_SIZE = 16 * 1024 * 1024;
+
+    private Properties properties;
+    private File deltaDir;
+    private Set<String> tables;
+    private long rangeSize;
+    private Logger logger = LoggerFactory.getLogger(RowDeltaService.class);
+    private final String LOG_PREFIX = "java-postgresql-exporter";
+
+    private RowDeltaService() {
+        this.rangeSize = DEFAULT_RANGE_SIZE;
+    }
+
+    /**
+     * This function will create a new
+     * RowDeltaService instance thereby facilitating
+     * a builder pattern
+     *
+     * @return RowDeltaService
+     */
+    public static RowDeltaService builder() {
+        return new RowDeltaService();
+    }
+
+    /**
+     * The connection properties of the database, as for the export.
+     * They are also used for the base backup and the tables
+     * excluded or filtered by the properties are left out
+     *
+     * @param properties the export properties
+     * @return RowDeltaService
+     */
+    public RowDeltaService setProperties(Properties properties) {
+        this.properties = properties;
+        return this;
+    }
+
+    /**
+     * @param deltaDir the directory of the state file and of the delta segments
+     * @return RowDeltaService
+     */
+    public RowDeltaService setDeltaDir(File deltaDir) {
+        this.deltaDir = deltaDir;
+        return this;
+    }
+
+    /**
+     * Only track these tables instead of all the tables of the database
+     *
+     * @param tables the table names
+     * @return RowDeltaService
+     */
+    public RowDeltaService setTables(Collection<String> tables) {
+        this.tables = new LinkedHashSet<>(tables);
+        return this;
+    }
+
+    /**
+     * The number of key values of the smallest ranges, the rows of a
+     * range are exported again as soon as one of them changes.
+     * It cannot change once the state file is written
+     *
+     * @param rangeSize the number of key values of a range
+     * @return RowDeltaService
+     */
+    public RowDeltaService setRangeSize(long rangeSize) {
+        this.rangeSize = Math.max(1, rangeSize);
+        return this;
+    }
+
+    /**
+     * This will export the database and hash its tables in the same
+     * snapshot, so that the first delta starts exactly where the
+     * base backup ends, and write the state file
+     *
+     * @return the export service of the base backup
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     * @throws IOException            exception
+     */
+    public PostgresqlExportService baseBackup() throws SQLException, ClassNotFoundException, IOException {
+        deltaDir.mkdirs();
+        try (Connection connection = PostgresqlBaseService.connect(properties);
+             Statement stmt = connection.createStatement()) {
+            connection.setAutoCommit(false);
+            stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+            String snapshot;
+            try (ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()")) {
+                rs.next();
+                snapshot = rs.getString(1);
+            }
+
+            //the snapshot stays valid as long as this transaction is open
+            PostgresqlExportService exportService = new PostgresqlExportService(properties).setSnapshot(snapshot);
+            exportService.export();
+
+            Map<String, TableState> state = new LinkedHashMap<>();
+            for (String table : getTables(stmt)) {
+                BackupEvent event = BackupEvent.table("hash", table);
+                TableState tableState = hash(stmt, table);
+                state.put(table, tableState);
+                event.rows(tableState.getRows()).commit();
+            }
+            connection.commit();
+            saveState(state);
+            logger.debug(LOG_PREFIX + ": " + state.size() + " tables hashed for the row deltas");
+            return exportService;
+        }
+    }
+
+    /**
+     * This will write the rows that changed since the previous run
+     * into a new delta segment and update the state file once the
+     * segment is on disk
+     *
+     * @return the delta segment, or null if no row changed
+     * @throws SQLException           exception
+     * @throws ClassNotFoundException exception
+     * @throws IOException            exception
+     */
+    public File exportDelta() throws SQLException, ClassNotFoundException, IOException {
+        Map<String, TableState> previous = loadState();
+        try (Connection connection = PostgresqlBaseService.connect(properties);
+             Statement stmt = connection.createStatement()) {
+            connection.setAutoCommit(false);
+            stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+            stmt.setFetchSize(1000);
+            String lsn;
+            try (ResultSet rs = stmt.executeQuery("SELECT CASE WHEN pg_is_in_recovery() THEN pg_last_wal_replay_lsn() ELSE pg_current_wal_lsn() END")) {
+                rs.next();
+                lsn = rs.getString(1);
+            }
+
+            Map<String, TableState> state = new LinkedHashMap<>();
+            Segment segment = new Segment(lsn);
+            try {
+                for (String table : getTables(stmt)) {
+                    BackupEvent event = BackupEvent.table("delta", table);
+                    long rows = segment.rows;
+                    TableState old = previous.get(table);
+                    String column = RangeHasher.getRangeColumn(PostgresqlBaseService.getPrimaryKeyColumns(stmt, table));
+                    TableState current = column == null
+                            ? diffTable(stmt, table, old, segment)
+                            : diffRanges(stmt, table, column, old != null && column.equals(old.column) ? old.hashes : new TreeMap<>(), segment);
+                    state.put(table, current);
+                    event.rows(segment.rows - rows).commit();
+                }
+                connection.commit();
+            } catch (SQLException | IOException | RuntimeException e) {
+                segment.discard();
+                throw e;
+            }
+
+            File file = segment.close();
+            saveState(state);
+            if (file == null) {
+                logger.debug(LOG_PREFIX + ": no row changed since the previous delta");
+            } else {
+                logger.debug(LOG_PREFIX + ": " + segment.rows + " rows changed, delta written to " + file);
+            }
+            return file;
+        }
+    }
+
+    /**
+     * This will compare the coarse ranges of the table with the ones
+     * summed from the previous state, then the ranges of the coarse
+     * ones that differ, and write the rows of the ranges that differ
+     *
+     * @param stmt    the statement
+     * @param table   the table
+     * @param column  the integer key column
+     * @param old     the range hashes of the previous run
+     * @param segment the delta segment
+     * @return the state of the table
+     * @throws SQLException exception
+     * @throws IOException  exception
+     */
+    private TableState diffRanges(Statement stmt, String table, String column, SortedMap<Long, RangeHasher.Hash> old, Segment segment) throws SQLException, IOException {
+        long coarseSize = rangeSize * FANOUT;
+        SortedMap<Long, RangeHasher.Hash> coarse = RangeHasher.hashRanges(stmt, table, column, coarseSize, Long.MIN_VALUE, Long.MAX_VALUE);
+        SortedMap<Long, RangeHasher.Hash> oldCoarse = new TreeMap<>();
+        old.forEach((start, hash) -> oldCoarse.merge(Math.floorDiv(start, coarseSize) * coarseSize, hash, RangeHasher.Hash::add));
+
+        SortedMap<Long, RangeHasher.Hash> hashes = new TreeMap<>();
+        SortedSet<Long> coarseStarts = new TreeSet<>(coarse.keySet());
+        coarseStarts.addAll(oldCoarse.keySet());
+        for (long coarseStart : coarseStarts) {
+            long coarseEnd = end(coarseStart, coarseSize);
+            SortedMap<Long, RangeHasher.Hash> oldRanges = old.subMap(coarseStart, coarseEnd);
+            if (Objects.equals(coarse.get(coarseStart), oldCoarse.get(coarseStart))) {
+                hashes.putAll(oldRanges);
+                continue;
+            }
+
+            SortedMap<Long, RangeHasher.Hash> ranges = coarse.containsKey(coarseStart)
+                    ? RangeHasher.hashRanges(stmt, table, column, rangeSize, coarseStart, coarseEnd)
+                    : new TreeMap<>();
+            hashes.putAll(ranges);
+
+            //consecutive ranges that differ are written together
+            SortedSet<Long> starts = new TreeSet<>(ranges.keySet());
+            starts.addAll(oldRanges.keySet());
+            Long from = null;
+            long to = 0;
+            for (long start : starts) {
+                if (Objects.equals(ranges.get(start), oldRanges.get(start))) {
+                    continue;
+                }
+                if (from != null && to != start) {
+                    writeRange(stmt, table, column, from, to, segment);
+                    from = null;
+                }
+                if (from == null) {
+                    from = start;
+                }
+                to = end(start, rangeSize);
+            }
+            if (from != null) {
+                writeRange(stmt, table, column, from, to, segment);
+            }
+        }
+        return new TableState(column, hashes);
+    }
+
+    /**
+     * This will compare the hash of a table without an integer key
+     * with the previous one and write all its rows if it differs
+     *
+     * @param stmt    the statement
+     * @param table   the table
+     * @param old     the state of the previous run, can be null
+     * @param segment the delta segment
+     * @return the state of the table
+     * @throws SQLException exception
+     * @throws IOException  exception
+     */
+    private TableState diffTable(Statement stmt, String table, TableState old, Segment segment) throws SQLException, IOException {
+        RangeHasher.Hash hash = RangeHasher.hashTable(stmt, table);
+        TableState current = new TableState(null, new TreeMap<>(Collections.singletonMap(0L, hash)));
+        if (old != null && old.column == null && hash.equals(old.hashes.get(0L))) {
+            return current;
+        }
+        logger.debug(LOG_PREFIX + ": " + table + " has no integer primary key and changed, its " + hash.getRows() + " rows are exported again");
+        segment.sql.append("DELETE FROM ").append(RangeHasher.quote(table)).append(";\n");
+        try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + RangeHasher.quote(table))) {
+            writeRows(rs, table, null, segment, null);
+        }
+        segment.endStatement();
+        return current;
+    }
+
+    /**
+     * This will write the rows of a range of the key as upserts,
+     * followed by the delete of the keys of the range that are gone
+     *
+     * @param stmt    the statement
+     * @param table   the table
+     * @param column  the integer key column
+     * @param from    the first key value
+     * @param to      the key value after the last one
+     * @param segment the delta segment
+     * @throws SQLException exception
+     * @throws IOException  exception
+     */
+    private void writeRange(Statement stmt, String table, String column, long from, long to, Segment segment) throws SQLException, IOException {
+        String key = RangeHasher.quote(column);
+        String range = key + " >= " + from + " AND " + key + " < " + to;
+        StringBuilder keys = new StringBuilder();
+        try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + RangeHasher.quote(table) + " WHERE " + range + " ORDER BY " + key)) {
+            writeRows(rs, table, column, segment, keys);
+        }
+        segment.sql.append("DELETE FROM ").append(RangeHasher.quote(table))
+                .append(" WHERE ").append(range)
+                .append(" AND NOT (").append(key).append(" = ANY ('{").append(keys).append("}'::bigint[]));\n");
+        segment.endStatement();
+    }
+
+    /**
+     * This will write the rows of the result set as inserts of
+     * ROWS_PER_INSERT rows, upserts on the key column when one is set
+     *
+     * @param rs      the rows
+     * @param table   the table
+     * @param column  the key column or null
+     * @param segment the delta segment
+     * @param keys    the key values written, separated by commas, can be null
+     * @throws SQLException exception
+     * @throws IOException  exception
+     */
+    private void writeRows(ResultSet rs, String table, String column, Segment segment, StringBuilder keys) throws SQLException, IOException {
+        String[] columns = RowEncoder.getColumnNames(rs.getMetaData());
+        int[] types = RowEncoder.getColumnTypes(rs.getMetaData());
+        int keyIndex = column == null ? -1 : Arrays.asList(columns).indexOf(column);
+        String insert = "INSERT INTO " + RangeHasher.quote(table) + " ("
+                + Arrays.stream(columns).map(RangeHasher::quote).collect(Collectors.joining(", ")) + ") VALUES \n";
+        String conflict = column == null ? ";\n" : getConflictClause(columns, column);
+
+        int inserted = 0;
+        while (rs.next()) {
+            if (inserted == 0) {
+                segment.sql.append(insert);
+            }
+            //a change section is executed as it is and whole, the statement stays in the segment
+            RowEncoder.appendRow(segment.sql, rs, types, inserted == 0, true, null);
+            if (keys != null) {
+                if (keys.length() > 0) {
+                    keys.append(',');
+                }
+                keys.append(rs.getLong(keyIndex + 1));
+            }
+            segment.rows++;
+            if (++inserted == ROWS_PER_INSERT) {
+                segment.sql.append(conflict);
+                segment.endStatement();
+                inserted = 0;
+            }
+        }
+        if (inserted > 0) {
+            segment.sql.append(conflict);
+        }
+    }
+
+    private static String getConflictClause(String[] columns, String column) {
+        String updates = Arrays.stream(columns)
+                .filter(name -> !name.equals(column))
+                .map(name -> RangeHasher.quote(name) + " = EXCLUDED." + RangeHasher.quote(name))
+                .collect(Collectors.joining(", "));
+        return "\nON CONFLICT (" + RangeHasher.quote(column) + ") DO " + (updates.isEmpty() ? "NOTHING" : "UPDATE SET " + updates) + ";\n";
+    }
+
+    private TableState hash(Statement stmt, String table) throws SQLException {
+        String column = RangeHasher.getRangeColumn(PostgresqlBaseService.getPrimaryKeyColumns(stmt, table));
+        if (column == null) {
+            return new TableState(null, new TreeMap<>(Collections.singletonMap(0L, RangeHasher.hashTable(stmt, table))));
+        }
+        return new TableState(column, RangeHasher.hashRanges(stmt, table, column, rangeSize, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    /**
+     * @return the tables to track: the tables of the database or the
+     * ones set, without the ones excluded or filtered by the properties
+     */
+    private List<String> getTables(Statement stmt) throws SQLException {
+        Map<String, TableFilter> filters = TableFilter.fromProperties(properties);
+        List<String> names = new ArrayList<>();
+        for (TableEstimate estimate : PostgresqlBaseService.getTableEstimates(stmt)) {
+            String table = estimate.getTableName();
+            TableFilter filter = filters.get(table);
+            if (tables != null && !tables.contains(table) || filter != null && filter.isExcluded()) {
+                continue;
+            }
+            if (filter != null && (filter.getWhere() != null || filter.isProjected())) {
+                //the deltas hold whole rows, they would not match a filtered base backup
+                logger.debug(LOG_PREFIX + ": " + table + " is filtered by the properties, it has no row delta");
+                continue;
+            }
+            names.add(table);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static long end(long start, long size) {
+        return start > Long.MAX_VALUE - size ? Long.MAX_VALUE : start + size;
+    }
+
+    /**
+     * The state file holds the range size and one line per range:
+     * table, key column (empty when the table is hashed as a whole),
+     * first key value, rows and hash
+     */
+    private Map<String, TableState> loadState() throws IOException {
+        File file = new File(deltaDir, STATE_FILE);
+        if (!file.isFile()) {
+            throw new IllegalStateException(LOG_PREFIX + ": no row delta state in " + deltaDir + ", take a base backup first");
+        }
+        Map<String, TableState> state = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file), 64 * 1024), StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            if (header == null || !header.equals(RANGE_SIZE + "=" + rangeSize)) {
+                throw new IllegalStateException(LOG_PREFIX + ": the row delta state was written with " + header
+                        + " instead of " + RANGE_SIZE + "=" + rangeSize + ", take a base backup first");
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                String column = fields[1].isEmpty() ? null : fields[1];
+                state.computeIfAbsent(fields[0], table -> new TableState(column, new TreeMap<>()))
+                        .hashes.put(Long.parseLong(fields[2]), new RangeHasher.Hash(Long.parseLong(fields[3]), new BigDecimal(fields[4])));
+            }
+        }
+        return state;
+    }
+
+    private void saveState(Map<String, TableState> state) throws IOException {
+        File temp = new File(deltaDir, STATE_FILE + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(temp);
+             GZIPOutputStream gzipStream = new GZIPOutputStream(outputStream, 64 * 1024);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(gzipStream, StandardCharsets.UTF_8))) {
+            writer.write(RANGE_SIZE + "=" + rangeSize + "\n");
+            for (Map.Entry<String, TableState> table : state.entrySet()) {
+                String column = table.getValue().column == null ? "" : table.getValue().column;
+                for (Map.Entry<Long, RangeHasher.Hash> range : table.getValue().hashes.entrySet()) {
+                    writer.write(table.getKey() + "\t" + column + "\t" + range.getKey() + "\t"
+                            + range.getValue().getRows() + "\t" + range.getValue().getSum().toPlainString() + "\n");
+                }
+            }
+            writer.flush();
+            gzipStream.finish();
+            outputStream.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(deltaDir, STATE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The range hashes of a table, a single one
+     * under 0 when the table has no integer key
+     */
+    private static final class TableState {
+        private final String column;
+        private final SortedMap<Long, RangeHasher.Hash> hashes;
+
+        private TableState(String column, SortedMap<Long, RangeHasher.Hash> hashes) {
+            this.column = column;
+            this.hashes = hashes;
+        }
+
+        private long getRows() {
+            return hashes.values().stream().mapToLong(RangeHasher.Hash::getRows).sum();
+        }
+    }
+
+    /**
+     * A delta segment being written. The statements are buffered
+     * and written as change sections of about SECTION_SIZE, each
+     * replayed in its own transaction without the foreign key
+     * checks, like the import of a dump, and with the doubled
+     * quotes of its literals read as standard strings
+     */
+    private final class Segment {
+        private final String lsn;
+        private final File partFile;
+        private final FileOutputStream fileStream;
+        private final GZIPOutputStream gzipStream;
+        private final Writer writer;
+        private final StringBuilder sql = new StringBuilder();
+        private long sections;
+        private long rows;
+
+        private Segment(String lsn) throws IOException {
+            this.lsn = lsn;
+            this.partFile = new File(deltaDir, "delta-" + ChangeCaptureService.formatLsn(LogSequenceNumber.valueOf(lsn)) + ".part");
+            this.fileStream = new FileOutputStream(partFile);
+            this.gzipStream = new GZIPOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+            this.writer = new OutputStreamWriter(gzipStream, StandardCharsets.UTF_8);
+        }
+
+        private void endStatement() throws IOException {
+            if (sql.length() >= SECTION_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (sql.length() == 0) {
+                return;
+            }
+            writer.write("\n--\n" + PostgresqlBaseService.SQL_START_PATTERN + " change : " + lsn + "\n--\n"
+                    + "SET LOCAL session_replication_role = 'replica';\n"
+                    + "SET LOCAL standard_conforming_strings = on;\n");
+            writer.append(sql);
+            writer.write("--\n" + PostgresqlBaseService.SQL_END_PATTERN + " change : " + lsn + "\n--\n");
+            sql.setLength(0);
+            sections++;
+        }
+
+        /**
+         * @return the segment, or null if it is empty and was deleted
+         */
+        private File close() throws IOException {
+            flush();
+            if (sections == 0) {
+                discard();
+                return null;
+            }
+            writer.flush();
+            gzipStream.finish();
+            gzipStream.flush();
+            fileStream.getFD().sync();
+            writer.close();
+            String name = ChangeCaptureService.formatLsn(LogSequenceNumber.valueOf(lsn));
+            File file = new File(deltaDir, "delta-" + name + "-" + name + ".sql.gz");
+            Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return file;
+        }
+
+        private void discard() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.debug(LOG_PREFIX + ": unable to close segment. " + e.getLocalizedMessage());
+            }
+            partFile.delete();
+        }
+    }
+}
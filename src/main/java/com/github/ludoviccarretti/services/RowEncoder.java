@@ -0,0 +1,245 @@
+package com.github.ludoviccarretti.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Turns the rows of a table into the insert statement of the dump.
+ * Reading the values out of the result set and encoding them as SQL
+ * are kept apart so that they can run on different threads
+ */
+final class RowEncoder {
+
+    //the SQL of a row handed over at a time, the hex digits of two pieces
+    static final int FLUSH_LENGTH = 4 * HexEncoder.PIECE_SIZE;
+
+    private RowEncoder() {
+    }
+
+    /**
+     * @param metaData the metadata of the result set
+     * @return the column names
+     * @throws SQLException exception
+     */
+    static String[] getColumnNames(ResultSetMetaData metaData) throws SQLException {
+        String[] columns = new String[metaData.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = metaData.getColumnName(i + 1);
+        }
+        return columns;
+    }
+
+    /**
+     * @param metaData the metadata of the result set
+     * @return the JDBC types of the columns
+     * @throws SQLException exception
+     */
+    static int[] getColumnTypes(ResultSetMetaData metaData) throws SQLException {
+        int[] types = new int[metaData.getColumnCount()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = metaData.getColumnType(i + 1);
+        }
+        return types;
+    }
+
+    /**
+     * This will read the values of the current row: null,
+     * an Integer, Boolean or Long for the numeric and boolean
+     * columns and a String otherwise. The binary columns are
+     * not read this way, see hasBinary() and the appendRow()
+     * reading the result set
+     *
+     * @param rs    the result set on the row
+     * @param types the JDBC types of the columns
+     * @return the values of the row
+     * @throws SQLException exception
+     */
+    static Object[] readRow(ResultSet rs, int[] types) throws SQLException {
+        Object[] values = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            values[i] = readValue(rs, i + 1, types[i]);
+        }
+        return values;
+    }
+
+    private static Object readValue(ResultSet rs, int columnIndex, int columnType) throws SQLException {
+        Object value;
+        if (columnType == Types.INTEGER || columnType == Types.TINYINT) {
+            value = rs.getInt(columnIndex);
+        } else if (columnType == Types.BIT) {
+            value = rs.getBoolean(columnIndex);
+        } else if (columnType == Types.BIGINT) {
+            value = rs.getLong(columnIndex);
+        } else {
+            value = rs.getString(columnIndex);
+        }
+        return rs.wasNull() ? null : value;
+    }
+
+    /**
+     * @param values the values of a row
+     * @return the approximate size of the row once encoded
+     */
+    static long estimateLength(Object[] values) {
+        long length = 4;
+        for (Object value : values) {
+            if (value instanceof String) {
+                length += ((String) value).length() + 4;
+            } else {
+                length += 12;
+            }
+        }
+        return length;
+    }
+
+    static void appendHeader(StringBuilder sql, String table, String[] columns) {
+        sql.append("\n--").append("\n-- Inserts of ").append(table).append("\n--\n\n");
+
+        sql.append("\n--\n")
+                .append(PostgresqlBaseService.SQL_START_PATTERN).append(" table insert : ").append(table)
+                .append("\n--\n");
+
+        //at this point the insert is INSERT INTO (`col1`, `col2`, ...)
+        sql.append("INSERT INTO \"").append(table).append("\" (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append("\"").append(columns[i]).append("\"");
+        }
+        sql.append(") VALUES \n");
+    }
+
+    /**
+     * This will append the set of values of a row,
+     * separated from the previous one unless it is the first
+     *
+     * @param sql      the generated SQL
+     * @param values   the values of the row
+     * @param firstRow whether it is the first row of the insert
+     */
+    static void appendRow(StringBuilder sql, Object[] values, boolean firstRow) {
+        if (!firstRow) {
+            sql.append(",\n");
+        }
+        sql.append("(");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            appendValue(sql, values[i], false);
+        }
+        sql.append(")");
+    }
+
+    /**
+     * This will read the current row and append its set of values like
+     * the appendRow() of the values, except that the binary cells are
+     * hex encoded straight from the stream of the driver, a piece at
+     * a time. The SQL is handed over to out whenever it reaches
+     * FLUSH_LENGTH, so a large cell is never held as a whole,
+     * what is left of the row stays in sql. The strings are escaped
+     * like in the dump, or with doubled quotes for SQL run as it is
+     * with standard_conforming_strings, as the server defaults to
+     *
+     * @param sql             the generated SQL
+     * @param rs              the result set on the row
+     * @param types           the JDBC types of the columns
+     * @param firstRow        whether it is the first row of the insert
+     * @param standardStrings whether the quotes are doubled rather than escaped
+     * @param out             where the SQL is handed over, null to keep it all in sql
+     * @return the length of the row once encoded
+     * @throws SQLException exception
+     * @throws IOException  exception
+     */
+    static long appendRow(StringBuilder sql, ResultSet rs, int[] types, boolean firstRow, boolean standardStrings, Output out)
+            throws SQLException, IOException {
+        long start = sql.length();
+        long flushed = 0;
+        if (!firstRow) {
+            sql.append(",\n");
+        }
+        sql.append("(");
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            if (!isBinary(types[i])) {
+                appendValue(sql, readValue(rs, i + 1, types[i]), standardStrings);
+                flushed += flush(sql, out);
+                continue;
+            }
+            try (InputStream in = rs.getBinaryStream(i + 1)) {
+                if (in == null) {
+                    sql.append("null");
+                    continue;
+                }
+                sql.append("decode('");
+                byte[] piece = new byte[HexEncoder.PIECE_SIZE];
+                while (HexEncoder.append(sql, in, piece) != -1) {
+                    flushed += flush(sql, out);
+                }
+                sql.append("', 'hex')");
+            }
+        }
+        sql.append(")");
+        return flushed + sql.length() - start;
+    }
+
+    private static void appendValue(StringBuilder sql, Object value, boolean standardStrings) {
+        if (value == null) {
+            sql.append("null");
+        } else if (value instanceof String && standardStrings) {
+            sql.append("'").append(((String) value).replace("'", "''")).append("'");
+        } else if (value instanceof String) {
+            //escape the single quotes that might be in the value
+            sql.append("'").append(((String) value).replace("'", "\\'")).append("'");
+        } else {
+            sql.append(value);
+        }
+    }
+
+    private static long flush(StringBuilder sql, Output out) throws SQLException, IOException {
+        if (out == null || sql.length() < FLUSH_LENGTH) {
+            return 0;
+        }
+        long length = sql.length();
+        out.write(sql.toString());
+        sql.setLength(0);
+        return length;
+    }
+
+    static void appendFooter(StringBuilder sql, String table) {
+        //now that we are done processing the entire table
+        //let's add the terminator
+        sql.append(";");
+
+        sql.append("\n--\n")
+                .append(PostgresqlBaseService.SQL_END_PATTERN).append(" table insert : ").append(table)
+                .append("\n--\n");
+    }
+
+    static boolean isBinary(int columnType) {
+        return columnType == Types.BINARY || columnType == Types.VARBINARY || columnType == Types.LONGVARBINARY;
+    }
+
+    static boolean hasBinary(int[] types) {
+        for (int type : types) {
+            if (isBinary(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Where the SQL of a row is handed over while it is encoded
+     */
+    interface Output {
+        void write(String sql) throws SQLException, IOException;
+    }
+}
@@ -0,0 +1,223 @@
+package com.github.ludoviccarretti.services;
+
+import com.github.ludoviccarretti.model.ForeignKey;
+import com.github.ludoviccarretti.model.TablePartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * The rows of a referentially consistent subset of the database.
+ * It starts from the rows of root tables matching a predicate, follows
+ * the foreign keys down to the rows referencing them, e.g. the orders
+ * of the selected customers, and then up to every row referenced by
+ * a kept row, e.g. the products of those orders, until no new row is
+ * found. Rows are identified by their ctid, so the subset must be
+ * collected and exported in the same snapshot
+ */
+final class RowSubset {
+
+    //the rows looked up in one query
+    private static final int BATCH_ROWS = 10_000;
+
+    private final String LOG_PREFIX = "java-postgresql-exporter";
+    private final Logger logger = LoggerFactory.getLogger(RowSubset.class);
+    private final Statement stmt;
+    private final Map<String, TablePartition> partitions;
+    private final Map<Long, String> tableNames;
+    private final List<ForeignKey> foreignKeys;
+    private final Predicate<String> excluded;
+    private final boolean followChildren;
+    private final Map<String, Set<Long>> kept = new HashMap<>();
+    private final Map<String, Set<Long>> descended = new HashMap<>();
+    private final Deque<Step> steps = new ArrayDeque<>();
+
+    private RowSubset(Statement stmt, Predicate<String> excluded, boolean followChildren) throws SQLException {
+        this.stmt = stmt;
+        this.partitions = PostgresqlBaseService.getPartitions(stmt);
+        this.tableNames = PostgresqlBaseService.getTableNamesByOid(stmt);
+        this.foreignKeys = PostgresqlBaseService.getForeignKeys(stmt);
+        this.excluded = excluded;
+        this.followChildren = followChildren;
+    }
+
+    /**
+     * This will collect the subset reachable from the roots
+     *
+     * @param stmt           the statement of the export transaction
+     * @param roots          the WHERE predicate of every root table, null for all of its rows
+     * @param excluded       the tables left out of the export, not followed
+     * @param followChildren follow the foreign keys down from the roots as well
+     * @return RowSubset
+     * @throws SQLException exception
+     */
+    static RowSubset collect(Statement stmt, Map<String, String> roots, Predicate<String> excluded, boolean followChildren) throws SQLException {
+        RowSubset subset = new RowSubset(stmt, excluded, followChildren);
+        for (Map.Entry<String, String> root : roots.entrySet()) {
+            subset.add(subset.query("SELECT t.tableoid, t.ctid FROM " + RangeHasher.quote(root.getKey()) + " t"
+                    + (root.getValue() != null ? " WHERE " + root.getValue() : ""), null), followChildren);
+        }
+        Step step;
+        while ((step = subset.steps.poll()) != null) {
+            subset.follow(step);
+        }
+        subset.logger.debug(subset.LOG_PREFIX + ": the subset has " + subset.getRowCount() + " rows in " + subset.kept.size() + " tables");
+        return subset;
+    }
+
+    /**
+     * @param table a table
+     * @return true if rows of the table are in the subset
+     */
+    boolean contains(String table) {
+        return kept.containsKey(table);
+    }
+
+    /**
+     * This will return the predicate selecting the rows of the table
+     * in the subset, to read them with a TID scan
+     *
+     * @param table a table
+     * @return the predicate, or null if no row of the table is in the subset
+     */
+    String getWhere(String table) {
+        Set<Long> rows = kept.get(table);
+        if (rows == null) {
+            return null;
+        }
+        return "ctid = ANY('" + toArray(rows.stream().sorted().collect(Collectors.toList())) + "'::tid[])";
+    }
+
+    long getRowCount() {
+        return kept.values().stream().mapToLong(Set::size).sum();
+    }
+
+    /**
+     * This will look up the rows related to the rows of a step,
+     * in batches: the referenced ones, and the referencing ones
+     * when the rows were reached from a root going down
+     */
+    private void follow(Step step) throws SQLException {
+        Set<String> lineage = getLineage(step.table);
+        for (int from = 0; from < step.rows.size(); from += BATCH_ROWS) {
+            String rows = toArray(step.rows.subList(from, Math.min(step.rows.size(), from + BATCH_ROWS)));
+            for (ForeignKey foreignKey : foreignKeys) {
+                if (!step.down && lineage.contains(foreignKey.getTableName()) && !excluded.test(foreignKey.getReferencedTableName())) {
+                    add(query("SELECT p.tableoid, p.ctid FROM " + RangeHasher.quote(foreignKey.getReferencedTableName()) + " p"
+                            + " WHERE (" + columns("p", foreignKey.getReferencedColumns()) + ") IN (SELECT "
+                            + columns("c", foreignKey.getColumns()) + " FROM " + RangeHasher.quote(step.table) + " c"
+                            + " WHERE c.ctid = ANY(CAST(? AS tid[])))", rows), false);
+                }
+                if (step.down && lineage.contains(foreignKey.getReferencedTableName()) && !excluded.test(foreignKey.getTableName())) {
+                    add(query("SELECT c.tableoid, c.ctid FROM " + RangeHasher.quote(foreignKey.getTableName()) + " c"
+                            + " WHERE (" + columns("c", foreignKey.getColumns()) + ") IN (SELECT "
+                            + columns("p", foreignKey.getReferencedColumns()) + " FROM " + RangeHasher.quote(step.table) + " p"
+                            + " WHERE p.ctid = ANY(CAST(? AS tid[])))", rows), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * This will keep the rows found and queue the new ones, to
+     * follow their references and, going down, their children
+     */
+    private void add(Map<String, List<Long>> found, boolean down) {
+        for (Map.Entry<String, List<Long>> entry : found.entrySet()) {
+            String table = entry.getKey();
+            if (excluded.test(table)) {
+                continue;
+            }
+            Set<Long> tableRows = kept.computeIfAbsent(table, t -> new HashSet<>());
+            List<Long> newRows = entry.getValue().stream().filter(tableRows::add).collect(Collectors.toList());
+            if (!newRows.isEmpty()) {
+                steps.add(new Step(table, newRows, false));
+            }
+            if (down && followChildren) {
+                Set<Long> descendedRows = descended.computeIfAbsent(table, t -> new HashSet<>());
+                List<Long> newDescended = entry.getValue().stream().filter(descendedRows::add).collect(Collectors.toList());
+                if (!newDescended.isEmpty()) {
+                    steps.add(new Step(table, newDescended, true));
+                }
+            }
+        }
+    }
+
+    /**
+     * This will run a query returning the tableoid and the ctid of rows.
+     * The rows of a partitioned table are returned under their partition
+     */
+    private Map<String, List<Long>> query(String query, String rows) throws SQLException {
+        Map<String, List<Long>> found = new HashMap<>();
+        try (PreparedStatement ps = stmt.getConnection().prepareStatement(query)) {
+            if (rows != null) {
+                ps.setString(1, rows);
+            }
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                String table = tableNames.get(rs.getLong(1));
+                if (table != null) {
+                    found.computeIfAbsent(table, t -> new ArrayList<>()).add(parseCtid(rs.getString(2)));
+                }
+            }
+            rs.close();
+        }
+        return found;
+    }
+
+    /**
+     * @return the table and the partitioned tables it is a partition of,
+     * whose foreign keys apply to it
+     */
+    private Set<String> getLineage(String table) {
+        Set<String> lineage = new HashSet<>();
+        String name = table;
+        while (name != null && lineage.add(name)) {
+            TablePartition partition = partitions.get(name);
+            name = partition != null ? partition.getParentName() : null;
+        }
+        return lineage;
+    }
+
+    private static String columns(String alias, List<String> columns) {
+        return columns.stream()
+                .map(column -> alias + "." + RangeHasher.quote(column))
+                .collect(Collectors.joining(", "));
+    }
+
+    //a ctid (block, offset) packed in a long, the offset fits in 16 bits
+    private static long parseCtid(String ctid) {
+        int comma = ctid.indexOf(',');
+        return Long.parseLong(ctid.substring(1, comma)) << 16 | Integer.parseInt(ctid.substring(comma + 1, ctid.length() - 1));
+    }
+
+    private static String toArray(List<Long> rows) {
+        StringBuilder array = new StringBuilder("{");
+        for (Long row : rows) {
+            if (array.length() > 1) {
+                array.append(',');
+            }
+            array.append("\"(").append(row >>> 16).append(',').append(row & 0xFFFF).append(")\"");
+        }
+        return array.append('}').toString();
+    }
+
+    private static final class Step {
+        private final String table;
+        private final List<Long> rows;
+        private final boolean down;
+
+        private Step(String table, List<Long> rows, boolean down) {
+            this.table = table;
+            this.rows = rows;
+            this.down = down;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.ludoviccarretti.services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The stage between the JDBC fetch and the rest of the export:
+ * the thread reading the database hands over text and batches of
+ * row values, and a thread of the pipeline encodes them as SQL and
+ * writes it out in the same order. At most a fixed number of batches
+ * are waiting, the reader blocks beyond that
+ */
+class SqlPipeline {
+
+    static final int DEFAULT_BATCHES = 16;
+    static final int MAX_BATCH_ROWS = 512;
+    static final long MAX_BATCH_LENGTH = 1024 * 1024;
+
+    private static final Object INSERT_END = new Object();
+    private static final Object END = new Object();
+
+    private final Writer out;
+    private final StringBuilder copy;
+    private final BlockingQueue<Object> queue;
+    private final Thread thread;
+
+    private volatile Throwable failure;
+    private List<Object[]> batch;
+    private long batchLength;
+    private boolean finished;
+
+    /**
+     * @param out     where the SQL is written
+     * @param copy    where a copy of the SQL is kept, can be null
+     * @param batches the number of batches that can wait to be encoded
+     */
+    SqlPipeline(Writer out, StringBuilder copy, int batches) {
+        this.out = out;
+        this.copy = copy;
+        this.queue = new ArrayBlockingQueue<>(Math.max(2, batches));
+        this.thread = BackupExecutors.daemonThreadFactory("java-postgresql-exporter-encode").newThread(this::encode);
+        this.thread.start();
+    }
+
+    /**
+     * @param sql SQL to write as it is
+     * @throws SQLException if the pipeline failed
+     */
+    void text(String sql) throws SQLException {
+        if (!sql.isEmpty()) {
+            put(sql);
+        }
+    }
+
+    /**
+     * This will start the insert statement of a table,
+     * the rows follow with row() and it ends with endInsert()
+     *
+     * @param table   the table
+     * @param columns the names of the columns
+     * @throws SQLException if the pipeline failed
+     */
+    void beginInsert(String table, String[] columns) throws SQLException {
+        put(new Insert(table, columns));
+        batch = new ArrayList<>();
+        batchLength = 0;
+    }
+
+    /**
+     * @param values the values of a row, see RowEncoder.readRow()
+     * @param length the approximate size of the row once encoded
+     * @throws SQLException if the pipeline failed
+     */
+    void row(Object[] values, long length) throws SQLException {
+        batch.add(values);
+        batchLength += length;
+        if (batch.size() >= MAX_BATCH_ROWS || batchLength >= MAX_BATCH_LENGTH) {
+            put(batch);
+            batch = new ArrayList<>();
+            batchLength = 0;
+        }
+    }
+
+    void endInsert() throws SQLException {
+        if (!batch.isEmpty()) {
+            put(batch);
+        }
+        batch = null;
+        put(INSERT_END);
+    }
+
+    /**
+     * This will wait for everything handed over so far
+     * to be written and flush the writer
+     *
+     * @throws IOException the failure of the writer
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            thread.interrupt();
+            throw new InterruptedIOException("interrupted while encoding the export");
+        }
+        checkFailure();
+        out.flush();
+    }
+
+    /**
+     * This will stop the encoding without
+     * writing what is still waiting
+     */
+    void abort() {
+        finished = true;
+        thread.interrupt();
+    }
+
+    private void put(Object item) throws SQLException {
+        BackupEvent stall = null;
+        try {
+            checkFailure();
+            if (!queue.offer(item)) {
+                //every batch is waiting to be encoded
+                stall = BackupEvent.stall("encode");
+                queue.put(item);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("java-postgresql-exporter: interrupted while exporting the data");
+        } catch (IOException e) {
+            throw new SQLException("java-postgresql-exporter: unable to write the export", e);
+        } finally {
+            if (stall != null) {
+                stall.commit();
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable error = failure;
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        } else if (error != null) {
+            throw new IOException(error);
+        }
+    }
+
+    /**
+     * The loop of the thread. After a failure the queue is still
+     * drained so that the reader never waits forever and gets
+     * the failure on its next call
+     */
+    @SuppressWarnings("unchecked")
+    private void encode() {
+        StringBuilder sql = new StringBuilder();
+        Insert insert = null;
+        BackupEvent event = null;
+        boolean firstRow = true;
+        try {
+            Object item;
+            while ((item = queue.take()) != END) {
+                if (failure != null) {
+                    continue;
+                }
+                try {
+                    sql.setLength(0);
+                    if (item instanceof String) {
+                        sql.append((String) item);
+                    } else if (item instanceof Insert) {
+                        insert = (Insert) item;
+                        event = BackupEvent.table("encode", insert.table);
+                        firstRow = true;
+                        RowEncoder.appendHeader(sql, insert.table, insert.columns);
+                    } else if (item == INSERT_END) {
+                        RowEncoder.appendFooter(sql, insert.table);
+                    } else {
+                        List<Object[]> rows = (List<Object[]>) item;
+                        for (Object[] values : rows) {
+                            RowEncoder.appendRow(sql, values, firstRow);
+                            firstRow = false;
+                        }
+                        event.rows(rows.size());
+                    }
+                    out.append(sql);
+                    if (event != null) {
+                        event.bytes(sql.length());
+                        if (item == INSERT_END) {
+                            event.commit();
+                            event = null;
+                        }
+                    }
+                    if (copy != null) {
+                        copy.append(sql);
+                    }
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                //do not keep the memory of a large batch
+                if (sql.capacity() > 4 * MAX_BATCH_LENGTH) {
+                    sql = new StringBuilder();
+                }
+            }
+        } catch (InterruptedException e) {
+            if (failure == null) {
+                failure = new InterruptedIOException("encoding interrupted");
+            }
+        }
+    }
+
+    private static final class Insert {
+        private final String table;
+        private final String[] columns;
+
+        private Insert(String table, String[] columns) {
+            this.table = table;
+            this.columns = columns;
+        }
+    }
+}
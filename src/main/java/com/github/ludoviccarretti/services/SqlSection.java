@@ -0,0 +1,101 @@
+package com.github.ludoviccarretti.services;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single executable chunk of a dump, delimited by the
+ * start and end patterns written by the export service
+ */
+class SqlSection {
+
+    enum Kind {
+        SEQUENCE_DUMP("sequence dump"),
+        TABLE_DUMP("table dump"),
+        TABLE_INSERT("table insert"),
+        LARGE_OBJECT("large object"),
+        CONSTRAINT("constraint"),
+        INDEX("index"),
+        FOREIGN_KEY("foreign key"),
+        CHANGE("change"),
+        UNKNOWN("");
+
+        private final String label;
+
+        Kind(String label) {
+            this.label = label;
+        }
+
+        String getLabel() {
+            return label;
+        }
+
+        static Kind fromLabel(String label) {
+            for (Kind kind : values()) {
+                if (kind != UNKNOWN && kind.label.equals(label)) {
+                    return kind;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    private static final Pattern HEADER_PATTERN = Pattern.compile("^" + PostgresqlBaseService.SQL_START_PATTERN + "\\s+(.+?)\\s*:\\s*(.*)$");
+
+    private final Kind kind;
+    private final String name;
+    private final String sql;
+
+    SqlSection(Kind kind, String name, String sql) {
+        this.kind = kind;
+        this.name = name;
+        this.sql = sql;
+    }
+
+    /**
+     * This will parse a start pattern line like
+     * "-- start  table dump : users" into a section
+     * with an empty body. It returns null if the line is not a header
+     *
+     * @param line the header line
+     * @return SqlSection
+     */
+    static SqlSection parseHeader(String line) {
+        Matcher matcher = HEADER_PATTERN.matcher(line.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        return new SqlSection(Kind.fromLabel(matcher.group(1).trim()), matcher.group(2).trim(), "");
+    }
+
+    SqlSection withSql(String sql) {
+        return new SqlSection(kind, name, sql);
+    }
+
+    /**
+     * @return true for the constraints and indexes built after the data is loaded
+     */
+    boolean isPostData() {
+        return kind == Kind.CONSTRAINT || kind == Kind.INDEX || kind == Kind.FOREIGN_KEY;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    @Override
+    public String toString() {
+        return "SqlSection{" +
+                "kind=" + kind +
+                ", name='" + name + '\'' +
+                '}';
+    }
+}
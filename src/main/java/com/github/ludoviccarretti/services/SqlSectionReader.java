@@ -0,0 +1,65 @@
+package com.github.ludoviccarretti.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.function.Predicate;
+
+/**
+ * Reads the sections of a dump one after the other,
+ * line by line, so that the whole dump never has to be held in memory.
+ * Sections rejected by the filter are skipped without being buffered.
+ */
+class SqlSectionReader implements SqlSectionSource {
+
+    private final BufferedReader reader;
+    private final Predicate<SqlSection> filter;
+    private String unterminatedSection;
+
+    SqlSectionReader(Reader reader, Predicate<SqlSection> filter) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, 64 * 1024);
+        this.filter = filter;
+    }
+
+    @Override
+    public SqlSection next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith(PostgresqlBaseService.SQL_START_PATTERN)) {
+                continue;
+            }
+
+            SqlSection header = SqlSection.parseHeader(line);
+            boolean keep = header != null && filter.test(header);
+            StringBuilder sql = keep ? new StringBuilder(line).append('\n') : null;
+
+            //consume the section up to its end pattern
+            while ((line = reader.readLine()) != null && !line.startsWith(PostgresqlBaseService.SQL_END_PATTERN)) {
+                if (keep) {
+                    sql.append(line).append('\n');
+                }
+            }
+            if (line == null) {
+                unterminatedSection = header != null ? header.getName() : "";
+            }
+
+            if (keep) {
+                return header.withSql(sql.toString());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the name of a section whose end pattern is missing, or null.
+     * It is only known once the end of the dump is reached
+     */
+    String getUnterminatedSection() {
+        return unterminatedSection;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
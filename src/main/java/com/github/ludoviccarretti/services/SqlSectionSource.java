@@ -0,0 +1,19 @@
+package com.github.ludoviccarretti.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A source of dump sections for the import service
+ */
+interface SqlSectionSource extends Closeable {
+
+    /**
+     * This will return the next section accepted by the source filter
+     * or null when the end of the dump is reached
+     *
+     * @return SqlSection
+     * @throws IOException exception
+     */
+    SqlSection next() throws IOException;
+}
@@ -0,0 +1,262 @@
+package com.github.ludoviccarretti.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns the change messages of the test_decoding output plugin, like
+ * <pre>
+ * table public.users: UPDATE: id[integer]:1 name[text]:'joe'
+ * </pre>
+ * into the SQL statements replaying them
+ */
+final class TestDecodingParser {
+
+    private static final Pattern CHANGE_PATTERN = Pattern.compile("^table (.+?): (INSERT|UPDATE|DELETE|TRUNCATE): ?(.*)$", Pattern.DOTALL);
+    private static final String UNCHANGED_TOAST = "unchanged-toast-datum";
+
+    private TestDecodingParser() {
+    }
+
+    /**
+     * A column of a change, its value is kept as the SQL literal
+     * printed by the plugin, or null for SQL NULL
+     */
+    static final class Column {
+        final String name;
+        final String type;
+        final String value;
+
+        Column(String name, String type, String value) {
+            this.name = name;
+            this.type = type;
+            this.value = value;
+        }
+
+        boolean isUnchangedToast() {
+            return UNCHANGED_TOAST.equals(value);
+        }
+
+        String toLiteral() {
+            if (value == null) {
+                return "NULL";
+            }
+            return value.startsWith("'") ? value + "::" + type : value;
+        }
+    }
+
+    static final class Change {
+        final String table;
+        final String operation;
+        final List<Column> oldKey;
+        final List<Column> columns;
+
+        Change(String table, String operation, List<Column> oldKey, List<Column> columns) {
+            this.table = table;
+            this.operation = operation;
+            this.oldKey = oldKey;
+            this.columns = columns;
+        }
+    }
+
+    /**
+     * This will parse a change message
+     *
+     * @param message the message of the plugin
+     * @return Change or null if the message is not a table change, e.g. BEGIN or COMMIT
+     * @throws IllegalArgumentException if the change cannot be parsed
+     */
+    static Change parse(String message) {
+        Matcher matcher = CHANGE_PATTERN.matcher(message);
+        if (!matcher.matches()) {
+            return null;
+        }
+        String table = matcher.group(1);
+        String operation = matcher.group(2);
+        String data = matcher.group(3);
+
+        List<Column> oldKey = new ArrayList<>();
+        List<Column> columns = new ArrayList<>();
+        if (operation.equals("TRUNCATE") || data.startsWith("(no-tuple data)")) {
+            return new Change(table, operation, oldKey, columns);
+        }
+        if (data.startsWith("old-key: ")) {
+            int newTuple = findNewTuple(data);
+            parseColumns(data.substring("old-key: ".length(), newTuple), oldKey);
+            data = data.substring(newTuple + " new-tuple: ".length());
+        }
+        parseColumns(data, columns);
+        return new Change(table, operation, oldKey, columns);
+    }
+
+    /**
+     * This will generate the statement replaying a change
+     *
+     * @param change      the change
+     * @param keyColumns  the primary key or replica identity columns of the table
+     * @return the SQL or null if the row of an UPDATE cannot be identified
+     */
+    static String toSql(Change change, List<String> keyColumns) {
+        StringBuilder sql = new StringBuilder();
+        switch (change.operation) {
+            case "TRUNCATE":
+                return "TRUNCATE TABLE " + change.table + ";";
+            case "INSERT":
+                sql.append("INSERT INTO ").append(change.table).append(" (");
+                appendJoined(sql, change.columns, true);
+                sql.append(") VALUES (");
+                appendJoined(sql, change.columns, false);
+                return sql.append(");").toString();
+            case "DELETE":
+                if (change.columns.isEmpty()) {
+                    return null;
+                }
+                sql.append("DELETE FROM ").append(change.table);
+                appendWhere(sql, change.columns);
+                return sql.append(";").toString();
+            default:
+                List<Column> key = change.oldKey;
+                if (key.isEmpty()) {
+                    key = new ArrayList<>();
+                    for (Column column : change.columns) {
+                        if (keyColumns.contains(column.name)) {
+                            key.add(column);
+                        }
+                    }
+                    if (key.isEmpty()) {
+                        return null;
+                    }
+                }
+                sql.append("UPDATE ").append(change.table).append(" SET ");
+                boolean first = true;
+                for (Column column : change.columns) {
+                    if (column.isUnchangedToast()) {
+                        continue;
+                    }
+                    if (!first) {
+                        sql.append(", ");
+                    }
+                    first = false;
+                    sql.append(column.name).append(" = ").append(column.toLiteral());
+                }
+                appendWhere(sql, key);
+                return sql.append(";").toString();
+        }
+    }
+
+    private static void appendJoined(StringBuilder sql, List<Column> columns, boolean names) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(names ? columns.get(i).name : columns.get(i).toLiteral());
+        }
+    }
+
+    private static void appendWhere(StringBuilder sql, List<Column> key) {
+        sql.append(" WHERE ");
+        for (int i = 0; i < key.size(); i++) {
+            if (i > 0) {
+                sql.append(" AND ");
+            }
+            Column column = key.get(i);
+            sql.append(column.name).append(column.value == null ? " IS NULL" : " = " + column.toLiteral());
+        }
+    }
+
+    /**
+     * This will find the new-tuple marker that is outside of a quoted value
+     */
+    private static int findNewTuple(String data) {
+        boolean quoted = false;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && data.startsWith(" new-tuple: ", i)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("new-tuple expected in " + data);
+    }
+
+    /**
+     * This will parse columns printed as name[type]:value separated
+     * by spaces. Names may be quoted identifiers, types may contain
+     * spaces and brackets, values are null, a quoted literal with
+     * doubled quotes, or a bare token
+     */
+    private static void parseColumns(String data, List<Column> columns) {
+        int pos = 0;
+        int length = data.length();
+        while (pos < length) {
+            while (pos < length && data.charAt(pos) == ' ') {
+                pos++;
+            }
+            if (pos >= length) {
+                break;
+            }
+
+            //the name, up to the bracket of the type
+            int nameStart = pos;
+            if (data.charAt(pos) == '"') {
+                pos++;
+                while (pos < length && !(data.charAt(pos) == '"' && (pos + 1 >= length || data.charAt(pos + 1) != '"'))) {
+                    pos += data.charAt(pos) == '"' ? 2 : 1;
+                }
+                pos++;
+            } else {
+                while (pos < length && data.charAt(pos) != '[') {
+                    pos++;
+                }
+            }
+            String name = data.substring(nameStart, pos);
+
+            //the type, in brackets that can be nested by array types
+            if (pos >= length || data.charAt(pos) != '[') {
+                throw new IllegalArgumentException("column type expected at offset " + pos + " of " + data);
+            }
+            int depth = 0;
+            int typeStart = pos + 1;
+            do {
+                char c = data.charAt(pos++);
+                if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth--;
+                }
+            } while (depth > 0 && pos < length);
+            String type = data.substring(typeStart, pos - 1);
+
+            if (pos >= length || data.charAt(pos) != ':') {
+                throw new IllegalArgumentException("column value expected at offset " + pos + " of " + data);
+            }
+            pos++;
+
+            //the value
+            int valueStart = pos;
+            if (pos < length && data.charAt(pos) == '\'') {
+                pos++;
+                while (pos < length) {
+                    if (data.charAt(pos) == '\'') {
+                        if (pos + 1 < length && data.charAt(pos + 1) == '\'') {
+                            pos += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    pos++;
+                }
+                pos++;
+            } else {
+                while (pos < length && data.charAt(pos) != ' ') {
+                    pos++;
+                }
+            }
+            String value = data.substring(valueStart, Math.min(pos, length));
+            columns.add(new Column(name, type, value.equals("null") ? null : value));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.ludoviccarretti.services;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream limited by the write budget of a BackupThrottle
+ */
+class ThrottledOutputStream extends FilterOutputStream {
+
+    private final BackupThrottle throttle;
+
+    ThrottledOutputStream(OutputStream out, BackupThrottle throttle) {
+        super(out);
+        this.throttle = throttle;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        acquire(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        acquire(len);
+        out.write(b, off, len);
+    }
+
+    private void acquire(int len) throws IOException {
+        try {
+            throttle.acquireWrite(len);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while throttling the output");
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.ludoviccarretti.services;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread safe token bucket refilled at a fixed rate per second,
+ * with a burst of one second worth of tokens.
+ * The rate can be changed while the bucket is in use.
+ * A rate of zero or less disables the limit
+ */
+public class TokenBucket {
+
+    private long ratePerSecond;
+    private double available;
+    private long lastRefill;
+
+    public TokenBucket(long ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+        this.available = Math.max(0, ratePerSecond);
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * This will take the given number of tokens, waiting
+     * until the bucket has been refilled enough.
+     * Requests larger than the burst are allowed and
+     * delay the following callers accordingly
+     *
+     * @param permits the number of tokens to take
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public void acquire(long permits) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            if (ratePerSecond <= 0 || permits <= 0) {
+                return;
+            }
+            refill();
+            available -= permits;
+            waitNanos = available >= 0 ? 0 : (long) (-available * TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        available = Math.min(ratePerSecond, available + (now - lastRefill) * (double) ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    public synchronized long getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    /**
+     * This will change the rate of the bucket,
+     * taking effect for the next acquire() calls
+     *
+     * @param ratePerSecond tokens per second, zero or less for unlimited
+     */
+    public synchronized void setRatePerSecond(long ratePerSecond) {
+        if (this.ratePerSecond > 0) {
+            refill();
+        } else {
+            available = Math.max(0, ratePerSecond);
+            lastRefill = System.nanoTime();
+        }
+        this.ratePerSecond = ratePerSecond;
+    }
+}
@@ -0,0 +1,37 @@
+package com.github.ludoviccarretti.sink;
+
+import java.io.IOException;
+
+/**
+ * The destination of a generated backup archive.
+ * Archives are written as numbered parts of getPartSize() bytes,
+ * only the last part may be smaller, and parts can be uploaded
+ * concurrently so the archive never has to be complete on local disk
+ */
+public interface BackupSink {
+
+    int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * This will start writing a new object to the sink
+     *
+     * @param name the name of the object e.g. the zip file name
+     * @return BackupUpload
+     * @throws IOException exception
+     */
+    BackupUpload begin(String name) throws IOException;
+
+    /**
+     * @return the size of every part but the last one
+     */
+    default int getPartSize() {
+        return DEFAULT_PART_SIZE;
+    }
+
+    /**
+     * @return the number of parts that can be written at the same time
+     */
+    default int getUploadConcurrency() {
+        return 4;
+    }
+}
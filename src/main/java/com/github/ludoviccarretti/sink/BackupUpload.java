@@ -0,0 +1,35 @@
+package com.github.ludoviccarretti.sink;
+
+import java.io.IOException;
+
+/**
+ * An object being written to a BackupSink
+ */
+public interface BackupUpload {
+
+    /**
+     * This will write one part of the object. Parts are numbered
+     * from 1 and can be written concurrently and in any order.
+     * The data array is reused once this method returns
+     *
+     * @param partNumber the part number, starting at 1
+     * @param data       the part content
+     * @param length     the number of bytes of data to write
+     * @throws IOException exception
+     */
+    void writePart(int partNumber, byte[] data, int length) throws IOException;
+
+    /**
+     * This will make the object available once all its parts are written
+     *
+     * @throws IOException exception
+     */
+    void complete() throws IOException;
+
+    /**
+     * This will discard the parts written so far
+     *
+     * @throws IOException exception
+     */
+    void abort() throws IOException;
+}
@@ -0,0 +1,81 @@
+package com.github.ludoviccarretti.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes archives to a local directory. Parts are written
+ * concurrently at their offset in a temporary file which is
+ * renamed to the final name once the upload completes
+ */
+public class LocalFileSink implements BackupSink {
+
+    private final File directory;
+    private final int partSize;
+
+    public LocalFileSink(File directory) {
+        this(directory, DEFAULT_PART_SIZE);
+    }
+
+    public LocalFileSink(File directory, int partSize) {
+        this.directory = directory;
+        this.partSize = partSize;
+    }
+
+    @Override
+    public BackupUpload begin(String name) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory: " + directory.getAbsolutePath());
+        }
+        File target = getFile(name);
+        File temp = new File(directory, name + ".part");
+        FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        return new BackupUpload() {
+            @Override
+            public void writePart(int partNumber, byte[] data, int length) throws IOException {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(data, 0, length);
+                long position = (long) (partNumber - 1) * partSize;
+                while (byteBuffer.hasRemaining()) {
+                    position += channel.write(byteBuffer, position);
+                }
+            }
+
+            @Override
+            public void complete() throws IOException {
+                channel.force(false);
+                channel.close();
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            @Override
+            public void abort() throws IOException {
+                channel.close();
+                Files.deleteIfExists(temp.toPath());
+            }
+        };
+    }
+
+    /**
+     * @param name the object name
+     * @return the file the object is written to
+     */
+    public File getFile(String name) {
+        return new File(directory, name);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public int getPartSize() {
+        return partSize;
+    }
+}
@@ -0,0 +1,176 @@
+package com.github.ludoviccarretti.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An output stream cutting what is written into parts of a BackupUpload.
+ * Parts are uploaded in the background, up to the sink upload concurrency
+ * at the same time, using a fixed pool of reusable buffers: when all
+ * the buffers are in flight, writers wait. Closing the stream completes
+ * the upload, abort() discards it
+ */
+public class MultipartOutputStream extends OutputStream {
+
+    private static final AtomicInteger STREAM_COUNTER = new AtomicInteger();
+
+    private final BackupUpload upload;
+    private final int partSize;
+    private final int maxBuffers;
+    private final ExecutorService executor;
+    private final BlockingQueue<byte[]> freeBuffers;
+    private final List<Future<?>> parts = new ArrayList<>();
+    private int allocatedBuffers = 0;
+    private byte[] buffer;
+    private int count = 0;
+    private int partNumber = 0;
+    private boolean closed = false;
+    private volatile IOException failure;
+    private Logger logger = LoggerFactory.getLogger(MultipartOutputStream.class);
+
+    public MultipartOutputStream(BackupSink sink, BackupUpload upload) {
+        this.upload = upload;
+        this.partSize = sink.getPartSize();
+        int concurrency = Math.max(1, sink.getUploadConcurrency());
+        this.maxBuffers = concurrency + 1;
+        this.freeBuffers = new ArrayBlockingQueue<>(maxBuffers);
+        String name = "backup4j-upload-" + STREAM_COUNTER.incrementAndGet();
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(concurrency, runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureBuffer();
+        buffer[count++] = (byte) b;
+        if (count == partSize) {
+            flushPart();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureBuffer();
+            int n = Math.min(len, partSize - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == partSize) {
+                flushPart();
+            }
+        }
+    }
+
+    private void ensureBuffer() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (buffer != null) {
+            return;
+        }
+        buffer = freeBuffers.poll();
+        if (buffer == null && allocatedBuffers < maxBuffers) {
+            allocatedBuffers++;
+            buffer = new byte[partSize];
+        }
+        if (buffer == null) {
+            //every buffer is being uploaded, wait for one to come back
+            try {
+                buffer = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for an upload buffer");
+            }
+        }
+    }
+
+    private void flushPart() throws IOException {
+        checkFailure();
+        byte[] data = buffer;
+        int length = count;
+        int number = ++partNumber;
+        buffer = null;
+        count = 0;
+        parts.add(executor.submit(() -> {
+            try {
+                if (failure == null) {
+                    upload.writePart(number, data, length);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("unable to write part " + number, e);
+            } finally {
+                freeBuffers.offer(data);
+            }
+        }));
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("upload of a part failed", failure);
+        }
+    }
+
+    /**
+     * This will upload the last part, wait for all the parts and
+     * complete the upload. On failure the upload is aborted
+     *
+     * @throws IOException exception
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            //an empty object still needs one part
+            if (count > 0 || partNumber == 0) {
+                ensureBuffer();
+                flushPart();
+            }
+            closed = true;
+            for (Future<?> part : parts) {
+                part.get();
+            }
+            checkFailure();
+            upload.complete();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new InterruptedIOException("interrupted while completing the upload");
+        } catch (ExecutionException | IOException | RuntimeException e) {
+            abort();
+            throw e instanceof IOException ? (IOException) e : new IOException("unable to complete the upload", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * This will stop the upload and discard the parts written so far
+     */
+    public void abort() {
+        closed = true;
+        executor.shutdownNow();
+        try {
+            upload.abort();
+        } catch (IOException e) {
+            logger.debug("unable to abort the upload. " + e.getLocalizedMessage());
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.github.ludoviccarretti.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+
+/**
+ * Writes archives to an S3 compatible object storage (AWS S3, MinIO, ...)
+ * with the multipart upload API, signing the requests with AWS signature V4.
+ * Part sizes must be at least 5 MB, which is what S3 requires
+ */
+public class S3Sink implements BackupSink {
+
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final Pattern UPLOAD_ID_PATTERN = Pattern.compile("<UploadId>(.+?)</UploadId>");
+
+    private final String endpoint;
+    private final String region;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+    private final String prefix;
+    private final boolean pathStyle;
+    private final int partSize;
+    private final int uploadConcurrency;
+    private Logger logger = LoggerFactory.getLogger(S3Sink.class);
+
+    private S3Sink(String endpoint, String region, String bucket, String accessKey, String secretKey, String prefix,
+                   boolean pathStyle, int partSize, int uploadConcurrency) {
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.prefix = prefix;
+        this.pathStyle = pathStyle;
+        this.partSize = Math.max(MIN_PART_SIZE, partSize);
+        this.uploadConcurrency = uploadConcurrency;
+    }
+
+    /**
+     * This will create a sink from the S3_* properties.
+     * It returns null if S3_BUCKET is not set
+     *
+     * @param properties the export properties
+     * @return S3Sink
+     */
+    public static S3Sink fromProperties(Properties properties) {
+        if (!properties.containsKey(S3_BUCKET)) {
+            return null;
+        }
+        return S3SinkBuilder.anS3Sink()
+                .withEndpoint(properties.getProperty(S3_ENDPOINT, "https://s3.amazonaws.com"))
+                .withRegion(properties.getProperty(S3_REGION, "us-east-1"))
+                .withBucket(properties.getProperty(S3_BUCKET))
+                .withAccessKey(properties.getProperty(S3_ACCESS_KEY))
+                .withSecretKey(properties.getProperty(S3_SECRET_KEY))
+                .withPrefix(properties.getProperty(S3_PREFIX, ""))
+                .withPathStyle(Boolean.parseBoolean(properties.getProperty(S3_PATH_STYLE, "true")))
+                .withPartSize(Integer.parseInt(properties.getProperty(SINK_PART_SIZE, String.valueOf(DEFAULT_PART_SIZE))))
+                .withUploadConcurrency(Integer.parseInt(properties.getProperty(SINK_UPLOAD_CONCURRENCY, "4")))
+                .build();
+    }
+
+    @Override
+    public BackupUpload begin(String name) throws IOException {
+        String key = prefix + name;
+        String response = new String(request("POST", key, query("uploads", ""), new byte[0], 0), StandardCharsets.UTF_8);
+        Matcher matcher = UPLOAD_ID_PATTERN.matcher(response);
+        if (!matcher.find()) {
+            throw new IOException("No UploadId in CreateMultipartUpload response for " + key + ": " + response);
+        }
+        String uploadId = matcher.group(1);
+        logger.debug("multipart upload " + uploadId + " started for s3://" + bucket + "/" + key);
+
+        Map<Integer, String> etags = new ConcurrentSkipListMap<>();
+        return new BackupUpload() {
+            @Override
+            public void writePart(int partNumber, byte[] data, int length) throws IOException {
+                Map<String, String> query = query("partNumber", String.valueOf(partNumber));
+                query.put("uploadId", uploadId);
+                IOException last = null;
+                for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+                    try {
+                        String[] etag = new String[1];
+                        request("PUT", key, query, data, length, etag);
+                        etags.put(partNumber, etag[0]);
+                        return;
+                    } catch (IOException e) {
+                        last = e;
+                        logger.debug("upload of part " + partNumber + " failed, attempt " + attempt + ". " + e.getLocalizedMessage());
+                    }
+                }
+                throw last;
+            }
+
+            @Override
+            public void complete() throws IOException {
+                StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+                etags.forEach((partNumber, etag) -> xml.append("<Part><PartNumber>").append(partNumber)
+                        .append("</PartNumber><ETag>").append(etag).append("</ETag></Part>"));
+                xml.append("</CompleteMultipartUpload>");
+                byte[] body = xml.toString().getBytes(StandardCharsets.UTF_8);
+                String response = new String(request("POST", key, query("uploadId", uploadId), body, body.length), StandardCharsets.UTF_8);
+                //errors can be reported with a 200 status once the response has started
+                if (response.contains("<Error>")) {
+                    throw new IOException("Unable to complete multipart upload of " + key + ": " + response);
+                }
+                logger.debug("multipart upload " + uploadId + " completed with " + etags.size() + " parts");
+            }
+
+            @Override
+            public void abort() throws IOException {
+                request("DELETE", key, query("uploadId", uploadId), new byte[0], 0);
+            }
+        };
+    }
+
+    private static Map<String, String> query(String name, String value) {
+        Map<String, String> query = new TreeMap<>();
+        query.put(name, value);
+        return query;
+    }
+
+    private byte[] request(String method, String key, Map<String, String> query, byte[] body, int length) throws IOException {
+        return request(method, key, query, body, length, null);
+    }
+
+    /**
+     * This will send a signed request and return the response body
+     */
+    private byte[] request(String method, String key, Map<String, String> query, byte[] body, int length, String[] etag) throws IOException {
+        URL base = new URL(endpoint);
+        String host = pathStyle ? base.getHost() : bucket + "." + base.getHost();
+        String hostHeader = base.getPort() == -1 || base.getPort() == base.getDefaultPort() ? host : host + ":" + base.getPort();
+        String path = (pathStyle ? "/" + encodePath(bucket) : "") + "/" + encodePath(key);
+
+        StringBuilder canonicalQuery = new StringBuilder();
+        for (Map.Entry<String, String> entry : query.entrySet()) {
+            if (canonicalQuery.length() > 0) {
+                canonicalQuery.append('&');
+            }
+            canonicalQuery.append(encode(entry.getKey())).append('=').append(encode(entry.getValue()));
+        }
+
+        SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String timestamp = timestampFormat.format(new Date());
+        String date = timestamp.substring(0, 8);
+        String payloadHash = hex(sha256(body, length));
+
+        String canonicalRequest = method + "\n" +
+                path + "\n" +
+                canonicalQuery + "\n" +
+                "host:" + hostHeader + "\n" +
+                "x-amz-content-sha256:" + payloadHash + "\n" +
+                "x-amz-date:" + timestamp + "\n" +
+                "\n" +
+                "host;x-amz-content-sha256;x-amz-date\n" +
+                payloadHash;
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + timestamp + "\n" + scope + "\n" +
+                hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        String signature = hex(hmac(signingKey, stringToSign));
+
+        URL url = new URL(base.getProtocol(), host, base.getPort(), path + "?" + canonicalQuery);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("x-amz-date", timestamp);
+            connection.setRequestProperty("x-amz-content-sha256", payloadHash);
+            connection.setRequestProperty("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope +
+                    ", SignedHeaders=host;x-amz-content-sha256;x-amz-date, Signature=" + signature);
+            if (length > 0 || method.equals("PUT") || method.equals("POST")) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(length);
+                try (OutputStream outputStream = connection.getOutputStream()) {
+                    outputStream.write(body, 0, length);
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status < 200 || status >= 300) {
+                InputStream errorStream = connection.getErrorStream();
+                String error = errorStream == null ? "" : new String(readAll(errorStream), StandardCharsets.UTF_8);
+                throw new IOException(method + " " + url + " failed with status " + status + ": " + error);
+            }
+            if (etag != null) {
+                etag[0] = connection.getHeaderField("ETag");
+            }
+            return readAll(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        try (InputStream in = inputStream) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
+    }
+
+    private static String encodePath(String path) throws IOException {
+        StringBuilder encoded = new StringBuilder();
+        for (String segment : path.split("/", -1)) {
+            if (encoded.length() > 0) {
+                encoded.append('/');
+            }
+            encoded.append(encode(segment));
+        }
+        return encoded.toString();
+    }
+
+    private static byte[] sha256(byte[] data) throws IOException {
+        return sha256(data, data.length);
+    }
+
+    private static byte[] sha256(byte[] data, int length) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length);
+            return digest.digest();
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public int getPartSize() {
+        return partSize;
+    }
+
+    @Override
+    public int getUploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public static final class S3SinkBuilder {
+        private String endpoint = "https://s3.amazonaws.com";
+        private String region = "us-east-1";
+        private String bucket;
+        private String accessKey;
+        private String secretKey;
+        private String prefix = "";
+        private boolean pathStyle = true;
+        private int partSize = DEFAULT_PART_SIZE;
+        private int uploadConcurrency = 4;
+
+        private S3SinkBuilder() {
+        }
+
+        public static S3SinkBuilder anS3Sink() {
+            return new S3SinkBuilder();
+        }
+
+        public S3SinkBuilder withEndpoint(String endpoint) {
+            this.endpoint = endpoint;
+            return this;
+        }
+
+        public S3SinkBuilder withRegion(String region) {
+            this.region = region;
+            return this;
+        }
+
+        public S3SinkBuilder withBucket(String bucket) {
+            this.bucket = bucket;
+            return this;
+        }
+
+        public S3SinkBuilder withAccessKey(String accessKey) {
+            this.accessKey = accessKey;
+            return this;
+        }
+
+        public S3SinkBuilder withSecretKey(String secretKey) {
+            this.secretKey = secretKey;
+            return this;
+        }
+
+        public S3SinkBuilder withPrefix(String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        /**
+         * Path style URLs (endpoint/bucket/key) are used by default
+         * as they work with MinIO and other S3 compatible stores.
+         * Set to false for virtual hosted URLs (bucket.endpoint/key)
+         *
+         * @param pathStyle bool
+         * @return S3SinkBuilder
+         */
+        public S3SinkBuilder withPathStyle(boolean pathStyle) {
+            this.pathStyle = pathStyle;
+            return this;
+        }
+
+        public S3SinkBuilder withPartSize(int partSize) {
+            this.partSize = partSize;
+            return this;
+        }
+
+        public S3SinkBuilder withUploadConcurrency(int uploadConcurrency) {
+            this.uploadConcurrency = uploadConcurrency;
+            return this;
+        }
+
+        public S3Sink build() {
+            return new S3Sink(endpoint, region, bucket, accessKey, secretKey, prefix == null ? "" : prefix,
+                    pathStyle, partSize, uploadConcurrency);
+        }
+    }
+}
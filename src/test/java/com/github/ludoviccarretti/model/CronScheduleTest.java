@@ -0,0 +1,65 @@
+package com.github.ludoviccarretti.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CronScheduleTest {
+
+    private static LocalDateTime next(String expression, String after) {
+        return CronSchedule.parse(expression).next(LocalDateTime.parse(after));
+    }
+
+    @Test
+    void skipsToTheNextWeekday() {
+        //2026-10-24 is a saturday
+        assertEquals(LocalDateTime.parse("2026-10-26T02:00"), next("0 2 * * 1-5", "2026-10-24T10:00"));
+    }
+
+    @Test
+    void supportsSteps() {
+        assertEquals(LocalDateTime.parse("2026-10-19T10:15"), next("0-59/15 * * * *", "2026-10-19T10:07:30"));
+        assertEquals(LocalDateTime.parse("2026-10-19T11:00"), next("*/20 * * * *", "2026-10-19T10:40"));
+    }
+
+    @Test
+    void isStrictlyAfterTheReference() {
+        assertEquals(LocalDateTime.parse("2026-10-20T00:00"), next("@daily", "2026-10-19T00:00"));
+        assertEquals(LocalDateTime.parse("2026-10-19T01:00"), next("@hourly", "2026-10-19T00:00"));
+    }
+
+    @Test
+    void skipsMonthsWithoutTheDay() {
+        assertEquals(LocalDateTime.parse("2026-03-31T00:00"), next("0 0 31 * *", "2026-02-01T00:00"));
+    }
+
+    @Test
+    void matchesEitherDayFieldWhenBothAreRestricted() {
+        //the friday comes before the 13th
+        assertEquals(LocalDateTime.parse("2026-10-23T00:00"), next("0 0 13 * 5", "2026-10-19T00:00"));
+    }
+
+    @Test
+    void treatsSevenAsSunday() {
+        assertEquals(LocalDateTime.parse("2026-10-25T00:00"), next("0 0 * * 7", "2026-10-19T00:00"));
+        assertEquals(LocalDateTime.parse("2026-10-25T00:00"), next("@weekly", "2026-10-19T00:00"));
+    }
+
+    @Test
+    void returnsNullWhenNothingMatches() {
+        assertNull(next("0 0 30 2 *", "2026-10-19T00:00"));
+    }
+
+    @Test
+    void rejectsInvalidExpressions() {
+        assertThrows(IllegalArgumentException.class, () -> CronSchedule.parse("61 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> CronSchedule.parse("* * *"));
+        assertThrows(IllegalArgumentException.class, () -> CronSchedule.parse("a * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> CronSchedule.parse("5-1 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> CronSchedule.parse(null));
+    }
+}
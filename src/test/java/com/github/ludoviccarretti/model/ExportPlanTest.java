@@ -0,0 +1,76 @@
+package com.github.ludoviccarretti.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExportPlanTest {
+
+    private static TableEstimate table(String name, long bytes) {
+        return TableEstimate.TableEstimateBuilder.aTableEstimate()
+                .withTableName(name)
+                .withTotalBytes(bytes)
+                .withEstimatedRows(bytes / 10)
+                .build();
+    }
+
+    private static List<String> names(List<TableEstimate> tables) {
+        return tables.stream().map(TableEstimate::getTableName).collect(Collectors.toList());
+    }
+
+    @Test
+    void ordersTablesLargestFirstThenByName() {
+        ExportPlan plan = ExportPlan.longestFirst(Arrays.asList(
+                table("b", 30), table("a", 30), table("c", 70), table("d", 5)), 2);
+        assertEquals(Arrays.asList("c", "a", "b", "d"), names(plan.getTables()));
+    }
+
+    @Test
+    void assignsEachTableToTheLeastLoadedWorker() {
+        ExportPlan plan = ExportPlan.longestFirst(Arrays.asList(
+                table("t7", 70), table("t5", 50), table("t4", 40), table("t3a", 30), table("t3b", 30), table("t2", 20)), 2);
+
+        assertEquals(Arrays.asList("t7", "t3a", "t2"), names(plan.getWorkers().get(0)));
+        assertEquals(Arrays.asList("t5", "t4", "t3b"), names(plan.getWorkers().get(1)));
+        assertEquals(120, plan.getWorkerBytes(0));
+        assertEquals(120, plan.getWorkerBytes(1));
+        assertEquals(120, plan.getMakespanBytes());
+        assertEquals(240, plan.getTotalBytes());
+        assertEquals(24, plan.getTotalRows());
+    }
+
+    @Test
+    void aSingleLargeTableBoundsTheMakespan() {
+        List<TableEstimate> tables = new ArrayList<>();
+        tables.add(table("big", 1000));
+        for (int i = 0; i < 10; i++) {
+            tables.add(table("small" + i, 10));
+        }
+        ExportPlan plan = ExportPlan.longestFirst(tables, 4);
+
+        assertEquals(Collections.singletonList("big"), names(plan.getWorkers().get(0)));
+        assertEquals(1000, plan.getMakespanBytes());
+    }
+
+    @Test
+    void usesAtLeastOneWorker() {
+        ExportPlan plan = ExportPlan.longestFirst(Arrays.asList(table("a", 1), table("b", 2)), 0);
+        assertEquals(1, plan.getWorkers().size());
+        assertEquals(Arrays.asList("b", "a"), names(plan.getWorkers().get(0)));
+    }
+
+    @Test
+    void reportsEveryWorker() {
+        ExportPlan plan = ExportPlan.longestFirst(Arrays.asList(table("a", 10), table("b", 20)), 3);
+        String report = plan.toReport();
+        assertTrue(report.startsWith("Export plan: 2 tables, 30 bytes"));
+        assertTrue(report.contains("worker 3: 0 bytes"));
+    }
+}
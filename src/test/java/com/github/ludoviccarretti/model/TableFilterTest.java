@@ -0,0 +1,86 @@
+package com.github.ludoviccarretti.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TableFilterTest {
+
+    @Test
+    void readsTheFiltersOfEveryTableFromTheProperties() {
+        Properties properties = new Properties();
+        properties.setProperty(EXPORT_EXCLUDE_TABLES, " sessions, ,audit_log ");
+        properties.setProperty(EXPORT_WHERE + "audit_log", " created_at > now() - interval '7 days' ");
+        properties.setProperty(EXPORT_INCLUDE_COLUMNS + "users", "id, email");
+        properties.setProperty(EXPORT_EXCLUDE_COLUMNS + "orders", "notes");
+        properties.setProperty(EXPORT_WHERE + "blank", " ");
+        properties.setProperty(EXPORT_WHERE, "no table");
+
+        Map<String, TableFilter> filters = TableFilter.fromProperties(properties);
+        assertEquals(5, filters.size(), filters.toString());
+
+        assertTrue(filters.get("sessions").isExcluded());
+        assertNull(filters.get("sessions").getWhere());
+        assertFalse(filters.get("sessions").isProjected());
+
+        TableFilter auditLog = filters.get("audit_log");
+        assertTrue(auditLog.isExcluded());
+        assertEquals("created_at > now() - interval '7 days'", auditLog.getWhere());
+
+        TableFilter users = filters.get("users");
+        assertFalse(users.isExcluded());
+        assertEquals(Arrays.asList("id", "email"), users.getIncludeColumns());
+        assertTrue(users.isProjected());
+        assertFalse(users.needsColumns());
+
+        TableFilter orders = filters.get("orders");
+        assertTrue(orders.isProjected());
+        assertTrue(orders.needsColumns());
+
+        assertNull(filters.get("blank").getWhere());
+        assertFalse(filters.get("blank").isProjected());
+    }
+
+    @Test
+    void projectsTheColumnsInTheirOrder() {
+        TableFilter include = TableFilter.TableFilterBuilder.aTableFilter()
+                .withIncludeColumns(Arrays.asList("email", "id", "password"))
+                .withExcludeColumns(Collections.singleton("password"))
+                .build();
+        //the columns of the table are not needed with an include list
+        assertEquals(Arrays.asList("email", "id"), include.project(Collections.emptyList()));
+
+        TableFilter exclude = TableFilter.TableFilterBuilder.aTableFilter()
+                .withExcludeColumns(Arrays.asList("password", "missing"))
+                .build();
+        assertEquals(Arrays.asList("id", "email"), exclude.project(Arrays.asList("id", "password", "email")));
+
+        TableFilter none = TableFilter.TableFilterBuilder.aTableFilter().build();
+        assertEquals(Arrays.asList("id", "email"), none.project(Arrays.asList("id", "email")));
+    }
+
+    @Test
+    void appliesToThePartitions() {
+        TableFilter table = TableFilter.TableFilterBuilder.aTableFilter()
+                .withTableName("events")
+                .withWhere("kind = 'click'")
+                .withExcludeColumns(Collections.singleton("payload"))
+                .withExcluded(true)
+                .build();
+        TableFilter partition = table.forPartition("events_2026_10");
+        assertEquals("events_2026_10", partition.getTableName());
+        assertEquals("kind = 'click'", partition.getWhere());
+        assertEquals(Collections.singleton("payload"), partition.getExcludeColumns());
+        assertTrue(partition.isExcluded());
+        assertEquals("events", table.getTableName());
+    }
+}
@@ -0,0 +1,109 @@
+package com.github.ludoviccarretti.repository;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkingOutputStreamTest {
+
+    @TempDir
+    File directory;
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static ChunkingOutputStream store(DedupRepository repository, String name, byte[] data) throws IOException {
+        ChunkingOutputStream out = repository.create(name);
+        out.write(data);
+        out.close();
+        return out;
+    }
+
+    private static byte[] read(DedupRepository repository, String name) throws IOException {
+        try (InputStream in = repository.open(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    void cutsChunksBetweenTheMinimumAndMaximumSize() throws IOException {
+        DedupRepository repository = new DedupRepository(directory);
+        byte[] data = randomBytes(4 * 1024 * 1024, 1);
+        List<BackupManifest.ChunkRef> chunks = store(repository, "random", data).getManifest().getChunks();
+
+        for (int i = 0; i < chunks.size() - 1; i++) {
+            int length = chunks.get(i).getLength();
+            assertTrue(length >= ChunkingOutputStream.MIN_CHUNK_SIZE && length <= ChunkingOutputStream.MAX_CHUNK_SIZE);
+        }
+        //about 64 chunks of 64 KB on average
+        assertTrue(chunks.size() > 16 && chunks.size() < 256, chunks.size() + " chunks");
+        assertArrayEquals(data, read(repository, "random"));
+    }
+
+    @Test
+    void cutsContentWithoutBoundariesAtTheMaximumSize() throws IOException {
+        DedupRepository repository = new DedupRepository(directory);
+        List<BackupManifest.ChunkRef> chunks = store(repository, "zeros", new byte[1024 * 1024]).getManifest().getChunks();
+
+        assertEquals(4, chunks.size());
+        chunks.forEach(chunk -> assertEquals(ChunkingOutputStream.MAX_CHUNK_SIZE, chunk.getLength()));
+    }
+
+    @Test
+    void findsTheSameBoundariesWhateverTheWriteSizes() throws IOException {
+        DedupRepository repository = new DedupRepository(directory);
+        byte[] data = randomBytes(1024 * 1024, 2);
+        BackupManifest whole = store(repository, "whole", data).getManifest();
+
+        ChunkingOutputStream out = repository.create("bytes");
+        for (int i = 0; i < data.length; i += 1000) {
+            if (i % 3000 == 0) {
+                for (int j = i; j < Math.min(i + 1000, data.length); j++) {
+                    out.write(data[j]);
+                }
+            } else {
+                out.write(data, i, Math.min(1000, data.length - i));
+            }
+        }
+        out.close();
+
+        assertEquals(0, out.getNewChunks());
+        assertEquals(whole.getChunks().size(), out.getManifest().getChunks().size());
+    }
+
+    @Test
+    void onlyTheChunksAroundAnInsertionChange() throws IOException {
+        DedupRepository repository = new DedupRepository(directory);
+        byte[] data = randomBytes(2 * 1024 * 1024, 3);
+        ChunkingOutputStream first = store(repository, "first", data);
+        assertEquals(first.getManifest().getChunks().size(), first.getNewChunks());
+
+        byte[] edited = new byte[data.length + 10];
+        int at = 300_000;
+        System.arraycopy(data, 0, edited, 0, at);
+        System.arraycopy(randomBytes(10, 4), 0, edited, at, 10);
+        System.arraycopy(data, at, edited, at + 10, data.length - at);
+        ChunkingOutputStream second = store(repository, "second", edited);
+
+        assertTrue(second.getNewChunks() <= 2, second.getNewChunks() + " new chunks");
+        assertTrue(second.getNewBytes() <= 2L * ChunkingOutputStream.MAX_CHUNK_SIZE);
+        assertArrayEquals(edited, read(repository, "second"));
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.ludoviccarretti.services;
+
+import com.github.ludoviccarretti.model.VerificationResult;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BackupVerifyServiceTest {
+
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[16]);
+    private static final String SQL = "-- start  table dump : users\n" +
+            "CREATE TABLE \"users\" (\"id\" bigint);\n" +
+            "-- end table dump : users\n" +
+            "-- start  table insert : users\n" +
+            "INSERT INTO \"users\" (\"id\") VALUES (1),(2);\n" +
+            "-- end table insert : users\n";
+
+    @TempDir
+    File directory;
+
+    private static byte[] zip(String sql) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(out)) {
+            byte[] bytes = sql.getBytes(StandardCharsets.UTF_8);
+            EntryChecksum checksum = new EntryChecksum();
+            checksum.update(bytes, 0, bytes.length);
+            zipOutputStream.putNextEntry(new ZipEntry("db.sql"));
+            zipOutputStream.write(bytes);
+            zipOutputStream.closeEntry();
+
+            Properties checksums = new Properties();
+            checksum.store(checksums, "db.sql");
+            zipOutputStream.putNextEntry(new ZipEntry(EntryChecksum.CHECKSUMS_ENTRY));
+            checksums.store(zipOutputStream, null);
+            zipOutputStream.closeEntry();
+        }
+        return out.toByteArray();
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private static byte[] encrypt(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encrypting = new EncryptingOutputStream(out, ChunkedAesGcm.key(KEY), 64, 2)) {
+            encrypting.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void verifiesAnArchive() throws IOException {
+        VerificationResult result = BackupVerifyService.builder()
+                .setArchive(write("db.zip", zip(SQL)))
+                .verify();
+
+        assertTrue(result.isValid(), result.toString());
+        assertEquals(1, result.getEntries().size());
+        assertTrue(result.getEntries().get(0).isChecksumVerified());
+        assertEquals(2, result.getEntries().get(0).getSections());
+    }
+
+    @Test
+    void detectsATruncatedSection() throws IOException {
+        VerificationResult result = BackupVerifyService.builder()
+                .setArchive(write("db.zip", zip(SQL.substring(0, SQL.lastIndexOf("-- end")))))
+                .verify();
+
+        assertFalse(result.isValid());
+    }
+
+    @Test
+    void verifiesAnEncryptedArchive() throws IOException {
+        VerificationResult result = BackupVerifyService.builder()
+                .setArchive(write("db.zip.enc", encrypt(zip(SQL))))
+                .setEncryptionKey(KEY)
+                .verify();
+
+        assertTrue(result.isValid(), result.toString());
+        assertEquals(1, result.getEntries().size());
+        assertTrue(result.getEntries().get(0).isChecksumVerified());
+        assertEquals(2, result.getEntries().get(0).getSections());
+    }
+
+    @Test
+    void detectsAnAlteredEncryptedArchive() throws IOException {
+        byte[] encrypted = encrypt(zip(SQL));
+        encrypted[encrypted.length - 20] ^= 1;
+
+        VerificationResult result = BackupVerifyService.builder()
+                .setArchive(write("db.zip.enc", encrypted))
+                .setEncryptionKey(KEY)
+                .verify();
+
+        assertFalse(result.isValid());
+    }
+
+    @Test
+    void requiresTheKeyOfAnEncryptedArchive() throws IOException {
+        File archive = write("db.zip.enc", encrypt(zip(SQL)));
+        IOException e = assertThrows(IOException.class, () -> BackupVerifyService.builder().setArchive(archive).verify());
+        assertTrue(e.getMessage().contains("setEncryptionKey"));
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedAesGcmTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    //final flag, ciphertext length, ciphertext and tag
+    private static final int CHUNK_LENGTH = 1 + 4 + CHUNK_SIZE + ChunkedAesGcm.TAG_LENGTH;
+
+    private static final SecretKey KEY = ChunkedAesGcm.key(Base64.getEncoder().encodeToString(new byte[32]));
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(7).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] encrypt(byte[] data, SecretKey key) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (EncryptingOutputStream encrypting = new EncryptingOutputStream(out, key, CHUNK_SIZE, 3)) {
+            //uneven writes so that chunks are cut in the middle of a write
+            for (int offset = 0; offset < data.length; offset += 700) {
+                encrypting.write(data, offset, Math.min(700, data.length - offset));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] encrypted, SecretKey key) throws IOException {
+        try (InputStream in = new DecryptingInputStream(new ByteArrayInputStream(encrypted), key)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[500];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    void roundTrips() throws IOException {
+        for (int length : new int[]{0, 1, CHUNK_SIZE, 5 * CHUNK_SIZE + 17}) {
+            byte[] data = randomBytes(length);
+            byte[] encrypted = encrypt(data, KEY);
+            assertTrue(ChunkedAesGcm.isEncrypted(encrypted, encrypted.length));
+            assertArrayEquals(data, decrypt(encrypted, KEY));
+        }
+    }
+
+    @Test
+    void usesAFreshNoncePerBackup() throws IOException {
+        byte[] data = randomBytes(3 * CHUNK_SIZE);
+        assertFalse(Arrays.equals(encrypt(data, KEY), encrypt(data, KEY)));
+    }
+
+    @Test
+    void detectsAlteredCiphertext() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK_SIZE), KEY);
+        encrypted[ChunkedAesGcm.HEADER_LENGTH + CHUNK_LENGTH + 100] ^= 1;
+        assertThrows(IOException.class, () -> decrypt(encrypted, KEY));
+    }
+
+    @Test
+    void detectsAnAlteredHeader() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK_SIZE), KEY);
+        //the last byte of the nonce prefix
+        encrypted[ChunkedAesGcm.HEADER_LENGTH - 1] ^= 1;
+        assertThrows(IOException.class, () -> decrypt(encrypted, KEY));
+    }
+
+    @Test
+    void detectsReorderedChunks() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK_SIZE + 1), KEY);
+        byte[] swapped = encrypted.clone();
+        int first = ChunkedAesGcm.HEADER_LENGTH;
+        System.arraycopy(encrypted, first, swapped, first + CHUNK_LENGTH, CHUNK_LENGTH);
+        System.arraycopy(encrypted, first + CHUNK_LENGTH, swapped, first, CHUNK_LENGTH);
+        assertThrows(IOException.class, () -> decrypt(swapped, KEY));
+    }
+
+    @Test
+    void detectsATruncatedBackup() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK_SIZE + 1), KEY);
+        //cut at a chunk boundary, before the final chunk
+        byte[] truncated = Arrays.copyOf(encrypted, ChunkedAesGcm.HEADER_LENGTH + 3 * CHUNK_LENGTH);
+        IOException e = assertThrows(IOException.class, () -> decrypt(truncated, KEY));
+        assertTrue(e.getMessage().contains("truncated"));
+    }
+
+    @Test
+    void detectsAWrongKey() throws IOException {
+        byte[] encrypted = encrypt(randomBytes(100), KEY);
+        byte[] other = new byte[32];
+        other[0] = 1;
+        SecretKey otherKey = ChunkedAesGcm.key(Base64.getEncoder().encodeToString(other));
+        assertThrows(IOException.class, () -> decrypt(encrypted, otherKey));
+    }
+
+    @Test
+    void rejectsInvalidKeys() {
+        assertThrows(IllegalArgumentException.class, () -> ChunkedAesGcm.key(Base64.getEncoder().encodeToString(new byte[20])));
+        assertThrows(IOException.class, () -> new DecryptingInputStream(new ByteArrayInputStream(new byte[32]), KEY));
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class Crc32cTest {
+
+    private static long crc(byte[] data) {
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    @Test
+    void matchesTheCheckValue() {
+        assertEquals(0xE3069283L, crc("123456789".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(0L, crc(new byte[0]));
+    }
+
+    @Test
+    void matchesTheIscsiVectors() {
+        //RFC 3720, B.4
+        byte[] data = new byte[32];
+        assertEquals(0x8A9136AAL, crc(data));
+
+        Arrays.fill(data, (byte) 0xFF);
+        assertEquals(0x62A8AB43L, crc(data));
+
+        for (int i = 0; i < 32; i++) {
+            data[i] = (byte) i;
+        }
+        assertEquals(0x46DD794EL, crc(data));
+
+        for (int i = 0; i < 32; i++) {
+            data[i] = (byte) (31 - i);
+        }
+        assertEquals(0x113FDB5CL, crc(data));
+    }
+
+    @Test
+    void byteAndArrayUpdatesAgree() {
+        byte[] data = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.US_ASCII);
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, 10);
+        for (int i = 10; i < 20; i++) {
+            crc.update(data[i]);
+        }
+        crc.update(data, 20, data.length - 20);
+        assertEquals(crc(data), crc.getValue());
+        assertEquals(0x22620404L, crc.getValue());
+
+        crc.reset();
+        assertEquals(0L, crc.getValue());
+    }
+}
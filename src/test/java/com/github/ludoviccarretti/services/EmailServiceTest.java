@@ -0,0 +1,40 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmailServiceTest {
+
+    @Test
+    void encodedSizeCoversBase64AndLineBreaks() {
+        assertEquals(0, EmailService.encodedSize(0));
+        assertEquals(6, EmailService.encodedSize(1));
+        assertEquals(78, EmailService.encodedSize(57));
+        assertEquals(84, EmailService.encodedSize(58));
+        for (int length = 0; length < 2000; length += 7) {
+            int mime = Base64.getMimeEncoder().encode(new byte[length]).length;
+            assertTrue(EmailService.encodedSize(length) >= mime);
+        }
+    }
+
+    @Test
+    void maxRawSizeFitsTheEncodedSize() {
+        for (long encoded = 10; encoded < 5000; encoded += 13) {
+            long raw = EmailService.maxRawSize(encoded);
+            assertTrue(EmailService.encodedSize(raw) <= encoded);
+            //at most one line of room is left unused
+            assertTrue(EmailService.encodedSize(raw + 60) > encoded);
+        }
+    }
+
+    @Test
+    void defaultVolumesStayUnderTheDefaultSize() {
+        long raw = EmailService.maxRawSize(EmailService.DEFAULT_MAX_ATTACHMENT_SIZE);
+        assertTrue(raw < EmailService.DEFAULT_MAX_ATTACHMENT_SIZE * 3 / 4);
+        assertTrue(EmailService.encodedSize(raw) <= EmailService.DEFAULT_MAX_ATTACHMENT_SIZE);
+    }
+}
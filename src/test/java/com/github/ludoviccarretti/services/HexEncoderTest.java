@@ -0,0 +1,61 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HexEncoderTest {
+
+    @Test
+    void encodesEveryByteValue() throws IOException {
+        byte[] bytes = new byte[256];
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+            expected.append(String.format("%02x", i));
+        }
+        StringBuilder sql = new StringBuilder("decode('");
+        assertEquals(256, HexEncoder.append(sql, new ByteArrayInputStream(bytes), Long.MAX_VALUE));
+        assertEquals("decode('" + expected, sql.toString());
+    }
+
+    @Test
+    void readsAtMostTheLimit() throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5});
+        StringBuilder sql = new StringBuilder();
+        assertEquals(3, HexEncoder.append(sql, in, 3));
+        assertEquals("010203", sql.toString());
+        assertEquals(2, HexEncoder.append(sql, in, 3));
+        assertEquals(0, HexEncoder.append(sql, in, 3));
+        assertEquals("0102030405", sql.toString());
+    }
+
+    @Test
+    void keepsReadingShortReadsUpToTheLimit() throws IOException {
+        //a stream returning a byte at a time, like a slow network read
+        InputStream in = new ByteArrayInputStream(new byte[HexEncoder.PIECE_SIZE + 10]) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(1, len));
+            }
+        };
+        StringBuilder sql = new StringBuilder();
+        assertEquals(HexEncoder.PIECE_SIZE + 4, HexEncoder.append(sql, in, HexEncoder.PIECE_SIZE + 4));
+        assertEquals(2 * (HexEncoder.PIECE_SIZE + 4), sql.length());
+    }
+
+    @Test
+    void encodesOneReadIntoAPiece() throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[]{(byte) 0xff, 0x10, 0x0a});
+        byte[] piece = new byte[2];
+        StringBuilder sql = new StringBuilder();
+        assertEquals(2, HexEncoder.append(sql, in, piece));
+        assertEquals(1, HexEncoder.append(sql, in, piece));
+        assertEquals(-1, HexEncoder.append(sql, in, piece));
+        assertEquals("ff100a", sql.toString());
+    }
+}
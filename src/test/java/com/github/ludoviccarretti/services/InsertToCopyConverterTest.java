@@ -0,0 +1,83 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InsertToCopyConverterTest {
+
+    private static String convert(InsertToCopyConverter converter) {
+        StringBuilder out = new StringBuilder();
+        while (converter.nextRow(out)) {
+            //read all rows
+        }
+        return out.toString();
+    }
+
+    @Test
+    void buildsTheCopyCommand() {
+        InsertToCopyConverter converter = new InsertToCopyConverter(
+                "-- start  table insert : users\nINSERT INTO \"users\" (\"id\", \"name\") VALUES (1, 'a');\n");
+        assertEquals("COPY \"users\" (\"id\", \"name\") FROM STDIN", converter.getCopyCommand());
+    }
+
+    @Test
+    void convertsQuotedStrings() {
+        InsertToCopyConverter converter = new InsertToCopyConverter(
+                "INSERT INTO \"t\" (\"a\") VALUES ('it''s'),('x\\'y'),('tab\there'),('back\\slash'),('two\nlines');");
+        assertEquals("it's\nx'y\ntab\\there\nback\\\\slash\ntwo\\nlines\n", convert(converter));
+    }
+
+    @Test
+    void convertsNumbersBooleansAndNull() {
+        InsertToCopyConverter converter = new InsertToCopyConverter(
+                "INSERT INTO \"t\" (\"a\", \"b\", \"c\", \"d\") VALUES (-12, 3.5e10, true, NULL), (0, 1.25, false, null);");
+        assertEquals("-12\t3.5e10\ttrue\t\\N\n0\t1.25\tfalse\t\\N\n", convert(converter));
+    }
+
+    @Test
+    void convertsHexDecodedBytea() {
+        InsertToCopyConverter converter = new InsertToCopyConverter(
+                "INSERT INTO \"t\" (\"id\", \"data\") VALUES (1, decode('00ff10','hex'));");
+        assertEquals("1\t\\\\x00ff10\n", convert(converter));
+    }
+
+    @Test
+    void keepsWhatFollowsTheInsert() {
+        InsertToCopyConverter converter = new InsertToCopyConverter(
+                "INSERT INTO \"t\" (\"a\") VALUES (1);\n-- end table insert\nSELECT 1;");
+        convert(converter);
+        assertEquals("SELECT 1;", converter.getRemainder());
+    }
+
+    @Test
+    void rejectsUnsupportedValues() {
+        InsertToCopyConverter converter = new InsertToCopyConverter(
+                "INSERT INTO \"t\" (\"a\") VALUES (now());");
+        assertThrows(IllegalArgumentException.class, () -> converter.nextRow(new StringBuilder()));
+    }
+
+    @Test
+    void rejectsUnsupportedDecodeFormats() {
+        InsertToCopyConverter converter = new InsertToCopyConverter(
+                "INSERT INTO \"t\" (\"a\") VALUES (decode('AAE=','base64'));");
+        assertThrows(IllegalArgumentException.class, () -> converter.nextRow(new StringBuilder()));
+    }
+
+    @Test
+    void rejectsOtherStatements() {
+        assertThrows(IllegalArgumentException.class, () -> new InsertToCopyConverter("UPDATE \"t\" SET \"a\" = 1;"));
+        assertThrows(IllegalArgumentException.class, () -> new InsertToCopyConverter("INSERT INTO \"t\" SELECT 1;"));
+    }
+
+    @Test
+    void stopsAfterTheLastRow() {
+        InsertToCopyConverter converter = new InsertToCopyConverter("INSERT INTO \"t\" (\"a\") VALUES (1);");
+        StringBuilder out = new StringBuilder();
+        assertTrue(converter.nextRow(out));
+        assertFalse(converter.nextRow(out));
+    }
+}
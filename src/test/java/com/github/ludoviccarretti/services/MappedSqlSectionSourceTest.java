@@ -0,0 +1,47 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MappedSqlSectionSourceTest {
+
+    @TempDir
+    File tempDir;
+
+    /**
+     * Every window size up to beyond the largest section moves the window
+     * boundaries over every line, header, section and multi-byte character
+     */
+    private void readsLikeTheReader(Predicate<SqlSection> filter) throws IOException {
+        File file = new File(tempDir, "dump.sql");
+        Files.write(file.toPath(), SqlSectionReaderTest.DUMP.getBytes(StandardCharsets.UTF_8));
+        List<String> expected = SqlSectionReaderTest.read(new SqlSectionReader(new StringReader(SqlSectionReaderTest.DUMP), filter));
+
+        for (long windowSize = 1; windowSize <= 160; windowSize++) {
+            assertEquals(expected, SqlSectionReaderTest.read(new MappedSqlSectionSource(file, filter, windowSize)), "window of " + windowSize);
+        }
+        assertEquals(expected, SqlSectionReaderTest.read(new MappedSqlSectionSource(file, filter)));
+    }
+
+    @Test
+    void readsEverySectionAcrossTheWindows() throws IOException {
+        readsLikeTheReader(section -> true);
+    }
+
+    @Test
+    void skipsSectionsAcrossTheWindows() throws IOException {
+        readsLikeTheReader(section -> section.getKind() == SqlSection.Kind.TABLE_INSERT);
+        readsLikeTheReader(section -> section.getName().equals("logs"));
+        readsLikeTheReader(section -> false);
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.MEMORY_BUDGET;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MemoryBudgetTest {
+
+    @Test
+    void isOnlyCreatedWhenTheBudgetIsSet() {
+        Properties properties = new Properties();
+        assertNull(MemoryBudget.fromProperties(properties));
+
+        properties.setProperty(MEMORY_BUDGET, "0");
+        assertNull(MemoryBudget.fromProperties(properties));
+
+        properties.setProperty(MEMORY_BUDGET, "1048576");
+        MemoryBudget budget = MemoryBudget.fromProperties(properties);
+        assertNotNull(budget);
+        assertEquals(1048576, budget.getBytes());
+    }
+
+    @Test
+    void sharesWhatTheReservedBuffersLeaveBetweenTheLeases() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        budget.reserve(200);
+        try (MemoryBudget.Lease first = budget.lease()) {
+            assertEquals(800, budget.getShare());
+            try (MemoryBudget.Lease second = budget.lease()) {
+                assertEquals(400, budget.getShare());
+            }
+            assertEquals(800, budget.getShare());
+        }
+        budget.release(200);
+        assertEquals(1000, budget.getShare());
+    }
+
+    @Test
+    void closingALeaseTwiceReleasesItOnce() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        MemoryBudget.Lease kept = budget.lease();
+        MemoryBudget.Lease closed = budget.lease();
+        closed.close();
+        closed.close();
+        assertEquals(1000, budget.getShare());
+        kept.close();
+    }
+
+    @Test
+    void neverHasANegativeShare() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        budget.reserve(500);
+        budget.setBytes(100);
+        assertEquals(0, budget.getShare());
+    }
+
+    @Test
+    void rejectsBuffersThatLeaveNothingForTheRows() {
+        MemoryBudget budget = new MemoryBudget(1000);
+        budget.reserve(600);
+        assertThrows(IllegalStateException.class, () -> budget.reserve(400));
+        assertEquals(400, budget.getShare());
+
+        budget.reserve(399);
+        assertEquals(1, budget.getShare());
+        budget.release(999);
+        assertEquals(1000, budget.getShare());
+    }
+
+    @Test
+    void sizesFromTheEstimatedWidthUntilRowsAreSampled() {
+        MemoryBudget budget = new MemoryBudget(8_000_000);
+        try (MemoryBudget.Lease lease = budget.lease()) {
+            lease.startTable(1000);
+            //rows are held as UTF-16
+            assertEquals(2000, lease.getRowBytes());
+            assertEquals(1000, lease.fetchSize());
+            assertEquals(1000, lease.insertRows());
+            assertEquals(2000, lease.batchSize());
+
+            lease.sample(100);
+            lease.sample(300);
+            assertEquals(400, lease.getRowBytes());
+            assertEquals(5000, lease.fetchSize());
+
+            //a new table forgets the samples
+            lease.startTable(0);
+            assertEquals(2048, lease.getRowBytes());
+        }
+    }
+
+    @Test
+    void followsAResizedBudget() {
+        MemoryBudget budget = new MemoryBudget(8_000_000);
+        try (MemoryBudget.Lease lease = budget.lease()) {
+            lease.startTable(1000);
+            assertEquals(1000, lease.fetchSize());
+            budget.setBytes(16_000_000);
+            assertEquals(2000, lease.fetchSize());
+        }
+    }
+
+    @Test
+    void clampsTheSizes() {
+        MemoryBudget small = new MemoryBudget(1);
+        try (MemoryBudget.Lease lease = small.lease()) {
+            lease.startTable(1_000_000);
+            assertEquals(MemoryBudget.MIN_FETCH_SIZE, lease.fetchSize());
+            assertEquals(1, lease.insertRows());
+            assertEquals(1, lease.batchSize());
+            assertEquals(1, lease.batchBytes());
+        }
+
+        MemoryBudget large = new MemoryBudget(Long.MAX_VALUE / 2);
+        try (MemoryBudget.Lease lease = large.lease()) {
+            lease.startTable(1);
+            assertEquals(MemoryBudget.MAX_FETCH_SIZE, lease.fetchSize());
+            assertEquals(MemoryBudget.MAX_INSERT_ROWS, lease.insertRows());
+            assertEquals(MemoryBudget.MAX_BATCH_SIZE, lease.batchSize());
+        }
+    }
+}
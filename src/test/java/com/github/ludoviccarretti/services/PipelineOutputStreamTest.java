@@ -0,0 +1,116 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelineOutputStreamTest {
+
+    @Test
+    void writesEverythingInOrder() throws IOException {
+        AtomicBoolean closed = new AtomicBoolean();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        byte[] data = new byte[10_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+
+        PipelineOutputStream stream = new PipelineOutputStream(out, "test", 7, 2);
+        int off = 0;
+        for (int len = 1; off < data.length; len = len % 50 + 1) {
+            int n = Math.min(len, data.length - off);
+            stream.write(data, off, n);
+            off += n;
+        }
+        stream.write(42);
+        stream.finish();
+        assertFalse(closed.get());
+
+        byte[] expected = new byte[data.length + 1];
+        System.arraycopy(data, 0, expected, 0, data.length);
+        expected[data.length] = 42;
+        assertArrayEquals(expected, out.toByteArray());
+
+        stream.close();
+        assertTrue(closed.get());
+    }
+
+    @Test
+    void blocksTheWriterOnceEveryBufferIsWaiting() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream slow = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                written.write(b, off, len);
+            }
+        };
+        PipelineOutputStream stream = new PipelineOutputStream(slow, "test", 100, 3);
+        AtomicLong handedOver = new AtomicLong();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 10_000; i++) {
+                    stream.write(i);
+                    handedOver.incrementAndGet();
+                }
+                stream.finish();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        writer.start();
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (writer.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        //the three buffers are written or waiting, the writer waits for one
+        assertEquals(Thread.State.WAITING, writer.getState());
+        assertEquals(300, handedOver.get());
+
+        release.countDown();
+        writer.join(10_000);
+        assertFalse(writer.isAlive());
+        assertEquals(10_000, written.size());
+    }
+
+    @Test
+    void reportsTheFailureOfTheUnderlyingStream() {
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("disk full");
+            }
+        };
+        PipelineOutputStream stream = new PipelineOutputStream(failing, "test", 4, 2);
+        IOException e = assertThrows(IOException.class, () -> {
+            for (int i = 0; i < 1000; i++) {
+                stream.write(new byte[4], 0, 4);
+            }
+            stream.finish();
+        });
+        assertEquals("disk full", e.getMessage());
+    }
+}
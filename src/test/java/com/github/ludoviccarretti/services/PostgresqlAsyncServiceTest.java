@@ -0,0 +1,40 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PostgresqlAsyncServiceTest {
+
+    @Test
+    void failsAnExportWithInvalidProperties() {
+        PostgresqlAsyncService asyncService = PostgresqlAsyncService.builder().setExecutor(Runnable::run);
+        BackupFuture<PostgresqlExportService> export = asyncService.exportAsync(new Properties());
+        assertTrue(export.isCompletedExceptionally());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> export.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException, String.valueOf(e.getCause()));
+    }
+
+    @Test
+    void buildsAnImportServicePerJob() throws Exception {
+        List<PostgresqlImportService> built = new ArrayList<>();
+        PostgresqlAsyncService asyncService = PostgresqlAsyncService.builder().setExecutor(Runnable::run);
+        for (int i = 0; i < 2; i++) {
+            //nothing to import, the job completes without connecting
+            BackupFuture<Boolean> restore = asyncService.importAsync(() -> {
+                PostgresqlImportService importService = PostgresqlImportService.builder();
+                built.add(importService);
+                return importService;
+            });
+            assertFalse(restore.get(1, TimeUnit.SECONDS));
+        }
+        assertEquals(2, built.size());
+        assertNotSame(built.get(0), built.get(1));
+    }
+}
@@ -0,0 +1,163 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs exports against the database given with -Dit.jdbcUrl, see TestDatabase
+ */
+class PostgresqlExportServiceIntegrationTest {
+
+    //a role that can find the orders of the subset but not read their notes
+    private static final String READER = "backup4j_it_reader";
+
+    private TestDatabase database;
+
+    @TempDir
+    File tempDir;
+
+    @BeforeEach
+    void createDatabase() throws SQLException {
+        database = TestDatabase.create("backup4j_it_export");
+        database.execute("CREATE TABLE customers (id INT PRIMARY KEY, country TEXT);" +
+                "CREATE TABLE orders (id INT PRIMARY KEY, customer_id INT REFERENCES customers (id), note TEXT);" +
+                "INSERT INTO customers VALUES (1, 'FR'), (2, 'DE');" +
+                "INSERT INTO orders VALUES (1, 1, 'first'), (2, 2, 'second');" +
+                "DO $$BEGIN CREATE ROLE " + READER + " LOGIN; EXCEPTION WHEN duplicate_object THEN NULL; END$$;" +
+                "GRANT CREATE ON SCHEMA public TO " + READER + ";" +
+                "GRANT SELECT ON customers TO " + READER + ";" +
+                "GRANT SELECT (ctid, tableoid, id, customer_id) ON orders TO " + READER + ";");
+    }
+
+    @AfterEach
+    void dropDatabase() throws SQLException {
+        if (database != null) {
+            database.close();
+            TestDatabase.executeOnServer("DROP ROLE IF EXISTS " + READER);
+        }
+    }
+
+    private Properties subsetProperties(String username, int parallelism) {
+        Properties properties = database.exportProperties();
+        properties.setProperty(DB_USERNAME, username);
+        properties.setProperty(TEMP_DIR, tempDir.getPath());
+        properties.setProperty(EXPORT_PARALLELISM, String.valueOf(parallelism));
+        properties.setProperty(EXPORT_SUBSET_ROOTS, "customers");
+        properties.setProperty(EXPORT_WHERE + "customers", "country = 'FR'");
+        properties.setProperty(EXPORT_LARGE_OBJECTS, "false");
+        properties.setProperty(KEEP_GENERATED_SQL, "true");
+        return properties;
+    }
+
+    @Test
+    void exportsASubset() throws Exception {
+        for (int parallelism : new int[]{1, 2}) {
+            PostgresqlExportService service = new PostgresqlExportService(subsetProperties(TestDatabase.USERNAME, parallelism));
+            service.export();
+            String sql = service.getGeneratedSql();
+            assertTrue(sql.contains("'first'"), sql);
+            assertFalse(sql.contains("'second'"), sql);
+        }
+    }
+
+    @Test
+    void exportsLargeBinaryCells() throws Exception {
+        database.execute("CREATE TABLE blobs (id INT PRIMARY KEY, data BYTEA);" +
+                "INSERT INTO blobs SELECT i, decode(repeat(md5(i::text), 20000), 'hex') FROM generate_series(1, 3) i;" +
+                "INSERT INTO blobs VALUES (4, NULL);");
+        String hex;
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT encode(data, 'hex') FROM blobs WHERE id = 2")) {
+            rs.next();
+            hex = rs.getString(1);
+        }
+        for (int parallelism : new int[]{1, 2}) {
+            Properties properties = database.exportProperties();
+            properties.setProperty(TEMP_DIR, tempDir.getPath());
+            properties.setProperty(EXPORT_PARALLELISM, String.valueOf(parallelism));
+            properties.setProperty(KEEP_GENERATED_SQL, "true");
+            PostgresqlExportService service = new PostgresqlExportService(properties);
+            service.export();
+            String sql = service.getGeneratedSql();
+            assertTrue(sql.contains("(2, decode('" + hex + "', 'hex'))"), "parallelism " + parallelism);
+            assertTrue(sql.contains("(4, null)"), "parallelism " + parallelism);
+        }
+    }
+
+    @Test
+    void rejectsAMemoryBudgetThePipelineDoesNotFitIn() {
+        Properties properties = database.exportProperties();
+        properties.setProperty(TEMP_DIR, tempDir.getPath());
+        properties.setProperty(MEMORY_BUDGET, "1048576");
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> new PostgresqlExportService(properties).export());
+        assertTrue(e.getMessage().contains("MEMORY_BUDGET"), e.getMessage());
+        assertEquals(0, tempDir.listFiles((dir, name) -> name.endsWith(".zip")).length);
+
+        //fewer pipeline buffers fit in the same budget
+        properties.setProperty(PIPELINE_BUFFERS, "2");
+        properties.setProperty(PIPELINE_BUFFER_SIZE, "1024");
+        properties.setProperty(MEMORY_BUDGET, String.valueOf(16L * 1024 * 1024));
+        assertDoesNotThrow(() -> new PostgresqlExportService(properties).export());
+    }
+
+    @Test
+    void failsWhenATableCannotBeRead() {
+        for (int parallelism : new int[]{1, 2}) {
+            Properties properties = subsetProperties(READER, parallelism);
+            properties.remove(EXPORT_SUBSET_ROOTS);
+            PostgresqlExportService service = new PostgresqlExportService(properties);
+            SQLException e = assertThrows(SQLException.class, service::export, "parallelism " + parallelism);
+            assertTrue(causes(e).contains("orders"), causes(e));
+            assertEquals(0, tempDir.listFiles((dir, name) -> name.endsWith(".zip")).length);
+        }
+    }
+
+    @Test
+    void failsASubsetWhenATableCannotBeRead() {
+        //the subset is collected from the keys, reading the notes of the orders fails
+        for (int parallelism : new int[]{1, 2}) {
+            PostgresqlExportService service = new PostgresqlExportService(subsetProperties(READER, parallelism));
+            SQLException e = assertThrows(SQLException.class, service::export, "parallelism " + parallelism);
+            assertTrue(causes(e).contains("orders"), causes(e));
+        }
+    }
+
+    @Test
+    void failsASubsetReadInAGivenSnapshotWhenATableCannotBeRead() throws SQLException {
+        try (Connection holder = database.connect(); Statement statement = holder.createStatement()) {
+            holder.setAutoCommit(false);
+            statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            ResultSet rs = statement.executeQuery("SELECT pg_export_snapshot()");
+            rs.next();
+            PostgresqlExportService service = new PostgresqlExportService(subsetProperties(READER, 1))
+                    .setSnapshot(rs.getString(1));
+            SQLException e = assertThrows(SQLException.class, service::export);
+            assertTrue(causes(e).contains("orders"), causes(e));
+            holder.rollback();
+        }
+    }
+
+    private static String causes(Throwable e) {
+        StringBuilder messages = new StringBuilder();
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            messages.append(cause.getMessage()).append('\n');
+        }
+        return messages.toString();
+    }
+}
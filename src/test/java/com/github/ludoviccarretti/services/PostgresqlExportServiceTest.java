@@ -0,0 +1,19 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Properties;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PostgresqlExportServiceTest {
+
+    @Test
+    void rejectsPropertiesWithoutTheConnectionParameters() {
+        Properties properties = new Properties();
+        properties.setProperty(DB_NAME, "database");
+        properties.setProperty(DB_USERNAME, "postgres");
+        assertThrows(IllegalStateException.class, () -> new PostgresqlExportService(properties).export());
+    }
+}
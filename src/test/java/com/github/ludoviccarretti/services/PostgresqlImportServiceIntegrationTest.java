@@ -0,0 +1,66 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs imports against the database given with -Dit.jdbcUrl, see TestDatabase
+ */
+class PostgresqlImportServiceIntegrationTest {
+
+    private static final String NOTES = "SELECT string_agg(id || '=' || body, '|' ORDER BY id) FROM notes";
+
+    private TestDatabase target;
+
+    @BeforeEach
+    void createDatabase() throws SQLException {
+        target = TestDatabase.create("backup4j_it_import");
+    }
+
+    @AfterEach
+    void dropDatabase() throws SQLException {
+        if (target != null) {
+            target.close();
+        }
+    }
+
+    @Test
+    void copiesTheRowsOnceTheForeignKeysAreOff() throws Exception {
+        //a dump of the rows alone, its first section is copied
+        //while the rows they reference are not loaded yet
+        StringBuilder dump = new StringBuilder();
+        RowEncoder.appendHeader(dump, "notes", new String[]{"id", "body", "author_id"});
+        RowEncoder.appendRow(dump, new Object[]{1, "first", 7}, true);
+        RowEncoder.appendFooter(dump, "notes");
+        RowEncoder.appendHeader(dump, "authors", new String[]{"id"});
+        RowEncoder.appendRow(dump, new Object[]{7}, true);
+        RowEncoder.appendFooter(dump, "authors");
+
+        target.execute("CREATE TABLE authors (id INT PRIMARY KEY);" +
+                "CREATE TABLE notes (id INT PRIMARY KEY, body TEXT, author_id INT REFERENCES authors (id));");
+        assertTrue(target.importService()
+                .setSqlString(dump.toString())
+                .importDatabase());
+        assertEquals("1=first\n", query(target, NOTES));
+    }
+
+    private static String query(TestDatabase database, String query) throws SQLException {
+        StringBuilder rows = new StringBuilder();
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(query)) {
+            while (rs.next()) {
+                rows.append(rs.getString(1)).append('\n');
+            }
+        }
+        return rows.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.SortedMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Hashes tables of the database given with -Dit.jdbcUrl, see TestDatabase
+ */
+class RangeHasherIntegrationTest {
+
+    private TestDatabase database;
+
+    @BeforeEach
+    void createDatabase() throws SQLException {
+        database = TestDatabase.create("backup4j_it_hash");
+        database.execute("CREATE TABLE ordered (id BIGINT PRIMARY KEY, name TEXT);" +
+                "CREATE TABLE shuffled (id BIGINT PRIMARY KEY, name TEXT);" +
+                "INSERT INTO ordered SELECT i, 'row ' || i FROM generate_series(-250, 249) i;" +
+                "INSERT INTO shuffled SELECT i, 'row ' || i FROM generate_series(-250, 249) i ORDER BY md5(i::text);");
+    }
+
+    @AfterEach
+    void dropDatabase() throws SQLException {
+        if (database != null) {
+            database.close();
+        }
+    }
+
+    @Test
+    void hashesTheSameRowsTheSameWhateverTheirOrder() throws SQLException {
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement()) {
+            RangeHasher.Hash ordered = RangeHasher.hashTable(statement, "ordered");
+            assertEquals(500, ordered.getRows());
+            assertEquals(ordered, RangeHasher.hashTable(statement, "shuffled"));
+            assertEquals(RangeHasher.hashRanges(statement, "ordered", "id", 100, Long.MIN_VALUE, Long.MAX_VALUE),
+                    RangeHasher.hashRanges(statement, "shuffled", "id", 100, Long.MIN_VALUE, Long.MAX_VALUE));
+
+            statement.execute("UPDATE shuffled SET name = 'changed' WHERE id = 42");
+            assertNotEquals(ordered, RangeHasher.hashTable(statement, "shuffled"));
+        }
+    }
+
+    @Test
+    void splitsTheTableHashIntoRanges() throws SQLException {
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement()) {
+            SortedMap<Long, RangeHasher.Hash> ranges = RangeHasher.hashRanges(statement, "ordered", "id", 100, Long.MIN_VALUE, Long.MAX_VALUE);
+            //negative keys fall in the range below them
+            assertEquals(Arrays.asList(-300L, -200L, -100L, 0L, 100L, 200L), Arrays.asList(ranges.keySet().toArray()));
+            assertEquals(50, ranges.get(-300L).getRows());
+            assertEquals(100, ranges.get(0L).getRows());
+
+            RangeHasher.Hash sum = new RangeHasher.Hash(0, BigDecimal.ZERO);
+            for (RangeHasher.Hash hash : ranges.values()) {
+                sum = sum.add(hash);
+            }
+            assertEquals(RangeHasher.hashTable(statement, "ordered"), sum);
+
+            //the bounds cut the ranges, those without rows are left out
+            SortedMap<Long, RangeHasher.Hash> bounded = RangeHasher.hashRanges(statement, "ordered", "id", 100, 0, 150);
+            assertEquals(Arrays.asList(0L, 100L), Arrays.asList(bounded.keySet().toArray()));
+            assertEquals(ranges.get(0L), bounded.get(0L));
+            assertEquals(50, bounded.get(100L).getRows());
+            assertEquals(0, RangeHasher.hashRanges(statement, "ordered", "id", 100, 1000, 2000).size());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RangeHasherTest {
+
+    @Test
+    void onlyComputesRangesOnASingleIntegerKey() {
+        assertEquals("id", RangeHasher.getRangeColumn(Collections.singletonMap("id", "integer")));
+        assertEquals("id", RangeHasher.getRangeColumn(Collections.singletonMap("id", "bigint")));
+        assertNull(RangeHasher.getRangeColumn(Collections.singletonMap("id", "uuid")));
+        assertNull(RangeHasher.getRangeColumn(Collections.emptyMap()));
+
+        Map<String, String> composite = new LinkedHashMap<>();
+        composite.put("order_id", "integer");
+        composite.put("product_id", "integer");
+        assertNull(RangeHasher.getRangeColumn(composite));
+    }
+
+    @Test
+    void quotesIdentifiers() {
+        assertEquals("\"users\"", RangeHasher.quote("users"));
+        assertEquals("\"say \"\"hi\"\"\"", RangeHasher.quote("say \"hi\""));
+    }
+
+    @Test
+    void addsAndComparesHashes() {
+        RangeHasher.Hash first = new RangeHasher.Hash(2, new BigDecimal("10"));
+        RangeHasher.Hash second = new RangeHasher.Hash(3, new BigDecimal("5"));
+        RangeHasher.Hash sum = first.add(second);
+        assertEquals(5, sum.getRows());
+        assertEquals(new RangeHasher.Hash(5, new BigDecimal("15")), sum);
+        assertEquals(second.add(first), sum);
+
+        //the scale of the sum does not matter
+        RangeHasher.Hash scaled = new RangeHasher.Hash(5, new BigDecimal("15.00"));
+        assertEquals(scaled, sum);
+        assertEquals(scaled.hashCode(), sum.hashCode());
+        assertNotEquals(new RangeHasher.Hash(4, new BigDecimal("15")), sum);
+        assertEquals("5:15", sum.toString());
+    }
+}
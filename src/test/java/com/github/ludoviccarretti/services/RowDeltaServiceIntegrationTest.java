@@ -0,0 +1,91 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Properties;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Replays row deltas against the database given with -Dit.jdbcUrl, see TestDatabase
+ */
+class RowDeltaServiceIntegrationTest {
+
+    private TestDatabase source;
+    private TestDatabase target;
+
+    @TempDir
+    File tempDir;
+
+    @BeforeEach
+    void createDatabases() throws SQLException {
+        source = TestDatabase.create("backup4j_it_delta_source");
+        target = TestDatabase.create("backup4j_it_delta_target");
+        //the target starts as a restore of the base backup
+        for (TestDatabase database : new TestDatabase[]{source, target}) {
+            database.execute("CREATE TABLE notes (id INT PRIMARY KEY, body TEXT);" +
+                    "CREATE TABLE tags (name TEXT);" +
+                    "INSERT INTO notes VALUES (1, 'plain'), (2, 'second');" +
+                    "INSERT INTO tags VALUES ('first');");
+        }
+    }
+
+    @AfterEach
+    void dropDatabases() throws SQLException {
+        if (source != null) {
+            source.close();
+        }
+        if (target != null) {
+            target.close();
+        }
+    }
+
+    @Test
+    void replaysRowsWithQuotesAndBackslashes() throws Exception {
+        Properties properties = source.exportProperties();
+        properties.setProperty(TEMP_DIR, tempDir.getPath());
+        properties.setProperty(EXPORT_LARGE_OBJECTS, "false");
+        RowDeltaService rowDelta = RowDeltaService.builder()
+                .setProperties(properties)
+                .setDeltaDir(new File(tempDir, "deltas"));
+        rowDelta.baseBackup();
+
+        source.execute("UPDATE notes SET body = 'don''t' WHERE id = 1;" +
+                "DELETE FROM notes WHERE id = 2;" +
+                "INSERT INTO notes VALUES (3, 'O''Brien said \\n ''hi''');" +
+                "INSERT INTO tags VALUES ('it''s');");
+        File delta = rowDelta.exportDelta();
+        assertNotNull(delta);
+
+        target.importService()
+                .setDeltaFiles(Collections.singletonList(delta))
+                .importDatabase();
+        //the delta has the rows of both tables, as upserts and as a whole
+        String query = "SELECT string_agg(id || '=' || body, '|' ORDER BY id) FROM notes" +
+                " UNION ALL SELECT string_agg(name, '|' ORDER BY name) FROM tags";
+        assertEquals(rows(source, query), rows(target, query));
+        assertEquals("1=don't|3=O'Brien said \\n 'hi'\nfirst|it's\n", rows(target, query));
+    }
+
+    private static String rows(TestDatabase database, String query) throws SQLException {
+        StringBuilder rows = new StringBuilder();
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(query)) {
+            while (rs.next()) {
+                rows.append(rs.getString(1)).append('\n');
+            }
+        }
+        return rows.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RowEncoderTest {
+
+    /**
+     * @param values the values of the row by column, byte[] for the binary ones
+     * @return a result set on a single row
+     */
+    private static ResultSet row(Object... values) {
+        Object[] last = new Object[1];
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getBinaryStream":
+                            byte[] bytes = (byte[]) values[(int) args[0] - 1];
+                            return bytes == null ? null : new ByteArrayInputStream(bytes);
+                        case "getInt":
+                            last[0] = values[(int) args[0] - 1];
+                            return last[0] == null ? 0 : last[0];
+                        case "getString":
+                            last[0] = values[(int) args[0] - 1];
+                            return last[0];
+                        case "wasNull":
+                            return last[0] == null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    void encodesTheValuesOfARow() throws Exception {
+        int[] types = {Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.BINARY, Types.BINARY};
+        ResultSet rs = row(1, "it's", null, new byte[]{0, (byte) 0xAB, 0x7F}, null);
+
+        Object[] values = RowEncoder.readRow(rs, new int[]{Types.INTEGER, Types.VARCHAR, Types.VARCHAR});
+        StringBuilder fromValues = new StringBuilder();
+        RowEncoder.appendRow(fromValues, values, true);
+        assertEquals("(1, 'it\\'s', null)", fromValues.toString());
+
+        StringBuilder sql = new StringBuilder();
+        long length = RowEncoder.appendRow(sql, rs, types, false, false, null);
+        assertEquals(",\n(1, 'it\\'s', null, decode('00ab7f', 'hex'), null)", sql.toString());
+        assertEquals(sql.length(), length);
+        assertTrue(RowEncoder.hasBinary(types));
+    }
+
+    @Test
+    void doublesTheQuotesOfStandardStrings() throws Exception {
+        StringBuilder sql = new StringBuilder();
+        RowEncoder.appendRow(sql, row(1, "it's \\ 'quoted'"), new int[]{Types.INTEGER, Types.VARCHAR}, true, true, null);
+        assertEquals("(1, 'it''s \\ ''quoted''')", sql.toString());
+    }
+
+    @Test
+    void handsALargeCellOverInPieces() throws Exception {
+        byte[] cell = new byte[8 * HexEncoder.PIECE_SIZE + 5];
+        for (int i = 0; i < cell.length; i++) {
+            cell[i] = (byte) i;
+        }
+        StringBuilder expected = new StringBuilder("(7, decode('");
+        HexEncoder.append(expected, new ByteArrayInputStream(cell), cell.length);
+        expected.append("', 'hex'))");
+
+        List<String> pieces = new ArrayList<>();
+        StringBuilder sql = new StringBuilder();
+        long length = RowEncoder.appendRow(sql, row(7, cell), new int[]{Types.INTEGER, Types.VARBINARY}, true, false, pieces::add);
+
+        //the cell is never held whole, at most a piece over the flush length
+        assertTrue(pieces.size() > 1, String.valueOf(pieces.size()));
+        for (String piece : pieces) {
+            assertTrue(piece.length() < RowEncoder.FLUSH_LENGTH + 2 * HexEncoder.PIECE_SIZE, String.valueOf(piece.length()));
+        }
+        assertEquals(expected.toString(), String.join("", pieces) + sql);
+        assertEquals(expected.length(), length);
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Collects subsets of the database given with -Dit.jdbcUrl, see TestDatabase
+ */
+class RowSubsetIntegrationTest {
+
+    private TestDatabase database;
+
+    @BeforeEach
+    void createDatabase() throws SQLException {
+        database = TestDatabase.create("backup4j_it_subset");
+        database.execute("CREATE TABLE customers (id INT PRIMARY KEY, country TEXT);" +
+                "CREATE TABLE products (id INT PRIMARY KEY);" +
+                "CREATE TABLE orders (id INT PRIMARY KEY, customer_id INT REFERENCES customers (id));" +
+                "CREATE TABLE items (order_id INT REFERENCES orders (id), product_id INT REFERENCES products (id), PRIMARY KEY (order_id, product_id));" +
+                "CREATE TABLE events (id INT, customer_id INT REFERENCES customers (id)) PARTITION BY RANGE (id);" +
+                "CREATE TABLE events_a PARTITION OF events FOR VALUES FROM (0) TO (100);" +
+                "CREATE TABLE events_b PARTITION OF events FOR VALUES FROM (100) TO (200);" +
+                "INSERT INTO customers VALUES (1, 'FR'), (2, 'DE');" +
+                "INSERT INTO products VALUES (1), (2), (3);" +
+                "INSERT INTO orders VALUES (1, 1), (2, 2), (3, 1);" +
+                "INSERT INTO items VALUES (1, 1), (2, 2), (3, 1);" +
+                "INSERT INTO events VALUES (1, 1), (2, 2), (150, 1);");
+    }
+
+    @AfterEach
+    void dropDatabase() throws SQLException {
+        if (database != null) {
+            database.close();
+        }
+    }
+
+    @Test
+    void followsTheKeysDownFromTheRootsAndUpFromEveryRow() throws SQLException {
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement()) {
+            RowSubset subset = RowSubset.collect(statement, Collections.singletonMap("customers", "country = 'FR'"), table -> false, true);
+            assertEquals(ids(1), select(statement, subset, "customers", "id"));
+            assertEquals(ids(1, 3), select(statement, subset, "orders", "id"));
+            assertEquals(ids(1, 3), select(statement, subset, "items", "order_id"));
+            assertEquals(ids(1), select(statement, subset, "products", "id"));
+            //the rows of a partitioned table are kept under their partition
+            assertFalse(subset.contains("events"));
+            assertEquals(ids(1), select(statement, subset, "events_a", "id"));
+            assertEquals(ids(150), select(statement, subset, "events_b", "id"));
+            assertEquals(8, subset.getRowCount());
+        }
+    }
+
+    @Test
+    void onlyFollowsTheKeysUpWithoutTheChildren() throws SQLException {
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement()) {
+            RowSubset subset = RowSubset.collect(statement, Collections.singletonMap("items", "order_id = 2"), table -> false, false);
+            assertEquals(ids(2), select(statement, subset, "items", "order_id"));
+            assertEquals(ids(2), select(statement, subset, "orders", "id"));
+            assertEquals(ids(2), select(statement, subset, "customers", "id"));
+            assertEquals(ids(2), select(statement, subset, "products", "id"));
+            //the other orders of the customer are not reached
+            assertFalse(subset.contains("events_a"));
+            assertNull(subset.getWhere("events_a"));
+        }
+    }
+
+    @Test
+    void neitherKeepsNorFollowsTheExcludedTables() throws SQLException {
+        Predicate<String> excluded = new HashSet<>(Arrays.asList("orders", "events_b"))::contains;
+        try (Connection connection = database.connect(); Statement statement = connection.createStatement()) {
+            Map<String, String> roots = Collections.singletonMap("customers", null);
+            RowSubset subset = RowSubset.collect(statement, roots, excluded, true);
+            assertEquals(ids(1, 2), select(statement, subset, "customers", "id"));
+            assertEquals(ids(1, 2), select(statement, subset, "events_a", "id"));
+            assertFalse(subset.contains("orders"));
+            assertFalse(subset.contains("items"));
+            assertFalse(subset.contains("products"));
+            assertFalse(subset.contains("events_b"));
+        }
+    }
+
+    private static Set<Integer> select(Statement statement, RowSubset subset, String table, String column) throws SQLException {
+        Set<Integer> ids = new HashSet<>();
+        try (ResultSet rs = statement.executeQuery("SELECT " + column + " FROM " + table + " WHERE " + subset.getWhere(table))) {
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+        }
+        return ids;
+    }
+
+    private static Set<Integer> ids(Integer... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SqlPipelineTest {
+
+    private static final String[] COLUMNS = {"id", "name"};
+
+    @Test
+    void encodesTheTextAndTheRowsInOrder() throws Exception {
+        StringWriter out = new StringWriter();
+        StringBuilder copy = new StringBuilder();
+        StringBuilder expected = new StringBuilder("-- before\n");
+
+        SqlPipeline pipeline = new SqlPipeline(out, copy, 2);
+        pipeline.text("-- before\n");
+        pipeline.text("");
+        //more rows than a batch, and a row longer than a batch
+        for (int insert = 0; insert < 2; insert++) {
+            pipeline.beginInsert("users", COLUMNS);
+            RowEncoder.appendHeader(expected, "users", COLUMNS);
+            for (int i = 0; i < SqlPipeline.MAX_BATCH_ROWS * 2 + 3; i++) {
+                Object[] values = {i, i == 7 ? new String(new char[(int) SqlPipeline.MAX_BATCH_LENGTH]).replace('\0', 'x') : "it's " + i};
+                pipeline.row(values, RowEncoder.estimateLength(values));
+                RowEncoder.appendRow(expected, values, i == 0);
+            }
+            pipeline.endInsert();
+            RowEncoder.appendFooter(expected, "users");
+        }
+        pipeline.text("-- after\n");
+        expected.append("-- after\n");
+        pipeline.finish();
+
+        assertEquals(expected.toString(), out.toString());
+        assertEquals(expected.toString(), copy.toString());
+    }
+
+    @Test
+    void reportsTheFailureOfTheWriter() {
+        Writer failing = new Writer() {
+            @Override
+            public void write(char[] buffer, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        SqlPipeline pipeline = new SqlPipeline(failing, null, 2);
+        //the reader gets the failure on one of its next calls
+        SQLException e = assertThrows(SQLException.class, () -> {
+            for (int i = 0; i < 1000; i++) {
+                pipeline.text("INSERT " + i + ";\n");
+                Thread.sleep(1);
+            }
+        });
+        assertTrue(e.getCause().getMessage().contains("disk full"), e.getCause().getMessage());
+        IOException finish = assertThrows(IOException.class, pipeline::finish);
+        assertTrue(finish.getMessage().contains("disk full"), finish.getMessage());
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class SqlSectionReaderTest {
+
+    static final String DUMP = "--\n-- Generated\n--\n\n" +
+            "--\n-- start  table dump : users\n--\nCREATE TABLE users (name TEXT);\n--\n-- end  table dump : users\n--\n\n" +
+            "--\n-- start table insert : users\n--\nINSERT INTO \"users\" (\"name\") VALUES \n('Zoë'),\n('€uro');\n--\n-- end table insert : users\n--\n\n" +
+            "--\n-- start  table dump : logs\n--\nCREATE TABLE logs (line TEXT);\n--\n-- end  table dump : logs\n--\n\n" +
+            "--\n-- start table insert : logs\n--\nINSERT INTO \"logs\" (\"line\") VALUES \n('a'),\n('b');\n--\n-- end table insert : logs\n--\n\n" +
+            "--\n-- start constraint : users\n--\nALTER TABLE users ADD PRIMARY KEY (name);\n--\n-- end constraint : users\n--\n";
+
+    /**
+     * @return the sections of the source as kind, name and SQL
+     */
+    static List<String> read(SqlSectionSource source) throws IOException {
+        List<String> sections = new ArrayList<>();
+        try (SqlSectionSource closed = source) {
+            SqlSection section;
+            while ((section = closed.next()) != null) {
+                sections.add(section.getKind() + " " + section.getName() + "\n" + section.getSql());
+            }
+        }
+        return sections;
+    }
+
+    private static List<String> read(String dump, Predicate<SqlSection> filter) throws IOException {
+        return read(new SqlSectionReader(new StringReader(dump), filter));
+    }
+
+    @Test
+    void readsEverySection() throws IOException {
+        List<String> sections = read(DUMP, section -> true);
+        assertEquals(5, sections.size());
+        assertEquals("TABLE_DUMP users\n-- start  table dump : users\n--\nCREATE TABLE users (name TEXT);\n--\n", sections.get(0));
+        assertEquals("TABLE_INSERT users\n-- start table insert : users\n--\nINSERT INTO \"users\" (\"name\") VALUES \n('Zoë'),\n('€uro');\n--\n",
+                sections.get(1));
+        assertEquals("CONSTRAINT users\n-- start constraint : users\n--\nALTER TABLE users ADD PRIMARY KEY (name);\n--\n", sections.get(4));
+    }
+
+    @Test
+    void skipsTheSectionsTheFilterRejects() throws IOException {
+        List<String> sections = read(DUMP, section -> section.getName().equals("logs"));
+        assertEquals(2, sections.size());
+        assertEquals("TABLE_DUMP logs\n-- start  table dump : logs\n--\nCREATE TABLE logs (line TEXT);\n--\n", sections.get(0));
+        assertEquals("TABLE_INSERT logs\n-- start table insert : logs\n--\nINSERT INTO \"logs\" (\"line\") VALUES \n('a'),\n('b');\n--\n",
+                sections.get(1));
+
+        //the filter sees the kind and the name before the body is read
+        List<String> seen = new ArrayList<>();
+        read(DUMP, section -> {
+            seen.add(section.getKind() + " " + section.getName() + " " + section.getSql().isEmpty());
+            return false;
+        });
+        assertEquals(5, seen.size());
+        assertEquals("TABLE_INSERT logs true", seen.get(3));
+    }
+
+    @Test
+    void reportsAnUnterminatedSection() throws IOException {
+        String dump = DUMP + "--\n-- start table insert : cut\n--\nINSERT INTO \"cut\" (\"id\") VALUES \n(1),\n";
+        SqlSectionReader reader = new SqlSectionReader(new StringReader(dump), section -> !section.getName().equals("users"));
+        assertEquals(3, read(reader).size());
+        assertEquals("cut", reader.getUnterminatedSection());
+
+        SqlSectionReader complete = new SqlSectionReader(new StringReader(DUMP), section -> true);
+        read(complete);
+        assertNull(complete.getUnterminatedSection());
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Assumptions;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+
+/**
+ * A throwaway database for the integration tests, created on the server
+ * given with -Dit.jdbcUrl, e.g. jdbc:postgresql://127.0.0.1:5432/postgres,
+ * as the it.username user with it.password, both postgres by default.
+ * The tests using it are skipped when it.jdbcUrl is not set
+ */
+final class TestDatabase implements AutoCloseable {
+
+    private static final String SERVER_URL = System.getProperty("it.jdbcUrl");
+    static final String USERNAME = System.getProperty("it.username", "postgres");
+    static final String PASSWORD = System.getProperty("it.password", "postgres");
+
+    private final String name;
+
+    private TestDatabase(String name) {
+        this.name = name;
+    }
+
+    /**
+     * This will create the database, dropping a leftover of a previous run
+     *
+     * @param name the database name
+     * @return TestDatabase
+     * @throws SQLException exception
+     */
+    static TestDatabase create(String name) throws SQLException {
+        Assumptions.assumeTrue(SERVER_URL != null, "it.jdbcUrl is not set");
+        executeOnServer("DROP DATABASE IF EXISTS \"" + name + "\"");
+        executeOnServer("CREATE DATABASE \"" + name + "\"");
+        return new TestDatabase(name);
+    }
+
+    /**
+     * @param sql the statements to run on the server, e.g. to drop a role
+     * @throws SQLException exception
+     */
+    static void executeOnServer(String sql) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(SERVER_URL, USERNAME, PASSWORD);
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    String getUrl() {
+        return SERVER_URL.replaceFirst("/[^/?]*(\\?|$)", "/" + name + "$1");
+    }
+
+    Connection connect() throws SQLException {
+        return DriverManager.getConnection(getUrl(), USERNAME, PASSWORD);
+    }
+
+    /**
+     * @param sql the statements to run in the database
+     * @throws SQLException exception
+     */
+    void execute(String sql) throws SQLException {
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * @return the properties of an export of the database
+     */
+    Properties exportProperties() {
+        Properties properties = new Properties();
+        properties.setProperty(DB_NAME, name);
+        properties.setProperty(DB_USERNAME, USERNAME);
+        properties.setProperty(DB_PASSWORD, PASSWORD);
+        properties.setProperty(JDBC_CONNECTION_STRING, getUrl());
+        return properties;
+    }
+
+    /**
+     * @return an import service loading into the database
+     */
+    PostgresqlImportService importService() {
+        return PostgresqlImportService.builder()
+                .setDatabase(name)
+                .setUsername(USERNAME)
+                .setPassword(PASSWORD)
+                .setJdbcConnString(getUrl());
+    }
+
+    @Override
+    public void close() throws SQLException {
+        executeOnServer("DROP DATABASE IF EXISTS \"" + name + "\"");
+    }
+}
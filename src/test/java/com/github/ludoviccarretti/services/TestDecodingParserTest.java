@@ -0,0 +1,101 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestDecodingParserTest {
+
+    private static final List<String> NO_KEY = Collections.emptyList();
+
+    private static String toSql(String message, List<String> keyColumns) {
+        return TestDecodingParser.toSql(TestDecodingParser.parse(message), keyColumns);
+    }
+
+    @Test
+    void ignoresMessagesThatAreNotTableChanges() {
+        assertNull(TestDecodingParser.parse("BEGIN"));
+        assertNull(TestDecodingParser.parse("COMMIT"));
+        assertNull(TestDecodingParser.parse("message: transactional: 1 prefix: p, sz: 1 content:x"));
+    }
+
+    @Test
+    void parsesColumns() {
+        TestDecodingParser.Change change = TestDecodingParser.parse(
+                "table public.users: INSERT: id[integer]:1 name[character varying]:'it''s me' bio[text]:null tags[text[]]:'{a,b}'");
+
+        assertEquals("public.users", change.table);
+        assertEquals("INSERT", change.operation);
+        assertEquals(4, change.columns.size());
+        assertEquals("character varying", change.columns.get(1).type);
+        assertEquals("'it''s me'", change.columns.get(1).value);
+        assertNull(change.columns.get(2).value);
+        assertEquals("text[]", change.columns.get(3).type);
+        assertEquals("'{a,b}'", change.columns.get(3).value);
+    }
+
+    @Test
+    void replaysAnInsert() {
+        assertEquals("INSERT INTO public.users (id, name, bio) VALUES (1, 'it''s me'::text, NULL);",
+                toSql("table public.users: INSERT: id[integer]:1 name[text]:'it''s me' bio[text]:null", NO_KEY));
+    }
+
+    @Test
+    void keepsSpacesAndMarkersInsideQuotedValues() {
+        assertEquals("INSERT INTO public.notes (id, body) VALUES (1, 'a new-tuple: b c[text]:d'::text);",
+                toSql("table public.notes: INSERT: id[integer]:1 body[text]:'a new-tuple: b c[text]:d'", NO_KEY));
+    }
+
+    @Test
+    void supportsQuotedColumnNames() {
+        assertEquals("INSERT INTO public.t (\"Weird [name]\", \"a\"\"b\") VALUES (1, 2);",
+                toSql("table public.t: INSERT: \"Weird [name]\"[integer]:1 \"a\"\"b\"[integer]:2", NO_KEY));
+    }
+
+    @Test
+    void replaysAnUpdateByPrimaryKey() {
+        assertEquals("UPDATE public.users SET id = 1, name = 'joe'::text WHERE id = 1;",
+                toSql("table public.users: UPDATE: id[integer]:1 name[text]:'joe'", Arrays.asList("id")));
+    }
+
+    @Test
+    void replaysAnUpdateByOldKey() {
+        assertEquals("UPDATE public.users SET id = 2, name = 'joe'::text WHERE id = 1;",
+                toSql("table public.users: UPDATE: old-key: id[integer]:1 new-tuple: id[integer]:2 name[text]:'joe'", NO_KEY));
+    }
+
+    @Test
+    void leavesUnchangedToastValuesOut() {
+        assertEquals("UPDATE public.docs SET id = 1 WHERE id = 1;",
+                toSql("table public.docs: UPDATE: id[integer]:1 body[text]:unchanged-toast-datum", Arrays.asList("id")));
+    }
+
+    @Test
+    void replaysADelete() {
+        assertEquals("DELETE FROM public.users WHERE id = 1 AND name IS NULL;",
+                toSql("table public.users: DELETE: id[integer]:1 name[text]:null", NO_KEY));
+    }
+
+    @Test
+    void replaysATruncate() {
+        assertEquals("TRUNCATE TABLE public.users;", toSql("table public.users: TRUNCATE: (no-flags)", NO_KEY));
+    }
+
+    @Test
+    void cannotReplayChangesWithoutAKey() {
+        assertNull(toSql("table public.logs: UPDATE: msg[text]:'x'", NO_KEY));
+        assertNull(toSql("table public.logs: DELETE: (no-tuple data)", NO_KEY));
+    }
+
+    @Test
+    void rejectsMalformedChanges() {
+        assertThrows(IllegalArgumentException.class, () -> TestDecodingParser.parse("table public.t: INSERT: id:1"));
+        assertThrows(IllegalArgumentException.class, () -> TestDecodingParser.parse("table public.t: INSERT: id[integer]"));
+        assertThrows(IllegalArgumentException.class,
+                () -> TestDecodingParser.parse("table public.t: UPDATE: old-key: id[integer]:1 id[integer]:2"));
+    }
+}
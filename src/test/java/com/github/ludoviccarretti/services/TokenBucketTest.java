@@ -0,0 +1,57 @@
+package com.github.ludoviccarretti.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    private static long millisToAcquire(TokenBucket bucket, long permits) throws InterruptedException {
+        long start = System.nanoTime();
+        bucket.acquire(permits);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    void allowsABurstOfOneSecond() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000);
+        assertTrue(millisToAcquire(bucket, 1000) < 100);
+    }
+
+    @Test
+    void waitsOnceTheBurstIsSpent() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.acquire(1000);
+        assertTrue(millisToAcquire(bucket, 200) >= 150);
+    }
+
+    @Test
+    void allowsRequestsLargerThanTheBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000);
+        //1200 permits with a burst of 1000 wait for the missing 200
+        long millis = millisToAcquire(bucket, 1200);
+        assertTrue(millis >= 150 && millis < 1000);
+    }
+
+    @Test
+    void zeroRateIsUnlimited() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(0);
+        assertTrue(millisToAcquire(bucket, Long.MAX_VALUE / 2) < 100);
+    }
+
+    @Test
+    void rateCanBeChangedWhileInUse() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.acquire(1000);
+        bucket.setRatePerSecond(0);
+        assertTrue(millisToAcquire(bucket, 1_000_000) < 100);
+
+        bucket.setRatePerSecond(500);
+        assertEquals(500, bucket.getRatePerSecond());
+        assertTrue(millisToAcquire(bucket, 500) < 100);
+        assertTrue(millisToAcquire(bucket, 100) >= 150);
+    }
+}
@@ -0,0 +1,301 @@
+package com.github.ludoviccarretti.sink;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A MinIO-style stand-in for S3 serving the multipart upload API
+ * of a single bucket with path style URLs. Every request must be
+ * signed with AWS signature V4, which is checked independently of
+ * the S3Sink implementation
+ */
+class LocalS3Server implements AutoCloseable {
+
+    private static final Pattern PART_PATTERN = Pattern.compile(
+            "<Part><PartNumber>(\\d+)</PartNumber><ETag>(.+?)</ETag></Part>");
+    private static final Pattern CREDENTIAL_PATTERN = Pattern.compile(
+            "AWS4-HMAC-SHA256 Credential=([^/]+)/(\\d{8})/([^/]+)/s3/aws4_request, " +
+                    "SignedHeaders=([^,]+), Signature=([0-9a-f]{64})");
+
+    private final HttpServer server;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final Map<String, String> uploadKeys = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadCounter = new AtomicInteger();
+    private final AtomicInteger partFailures = new AtomicInteger();
+    private final AtomicInteger abortedUploads = new AtomicInteger();
+
+    LocalS3Server(String bucket, String accessKey, String secretKey) throws IOException {
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.setExecutor(Executors.newCachedThreadPool());
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param count the number of part uploads to reject with a 500 before accepting them again
+     */
+    void failNextParts(int count) {
+        partFailures.set(count);
+    }
+
+    byte[] getObject(String key) {
+        return objects.get(key);
+    }
+
+    int getPendingUploads() {
+        return uploads.size();
+    }
+
+    int getAbortedUploads() {
+        return abortedUploads.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = readAll(exchange.getRequestBody());
+            String error = checkSignature(exchange, body);
+            if (error != null) {
+                respond(exchange, 403, "<Error><Code>SignatureDoesNotMatch</Code><Message>" + error + "</Message></Error>");
+                return;
+            }
+
+            String path = exchange.getRequestURI().getRawPath();
+            String prefix = "/" + bucket + "/";
+            if (!path.startsWith(prefix)) {
+                respond(exchange, 404, "<Error><Code>NoSuchBucket</Code></Error>");
+                return;
+            }
+            String key = URLDecoder.decode(path.substring(prefix.length()), "UTF-8");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+
+            if (method.equals("POST") && query.containsKey("uploads")) {
+                String uploadId = "upload-" + uploadCounter.incrementAndGet();
+                uploads.put(uploadId, new ConcurrentSkipListMap<>());
+                uploadKeys.put(uploadId, key);
+                respond(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + key +
+                        "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            } else if (method.equals("PUT") && query.containsKey("partNumber")) {
+                Map<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+                if (parts == null) {
+                    respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+                } else if (partFailures.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+                    respond(exchange, 500, "<Error><Code>InternalError</Code></Error>");
+                } else {
+                    int partNumber = Integer.parseInt(query.get("partNumber"));
+                    parts.put(partNumber, body);
+                    exchange.getResponseHeaders().add("ETag", etag(body));
+                    respond(exchange, 200, "");
+                }
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                complete(exchange, query.get("uploadId"), new String(body, StandardCharsets.UTF_8));
+            } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+                uploads.remove(query.get("uploadId"));
+                uploadKeys.remove(query.get("uploadId"));
+                abortedUploads.incrementAndGet();
+                respond(exchange, 204, null);
+            } else {
+                respond(exchange, 400, "<Error><Code>NotImplemented</Code></Error>");
+            }
+        } catch (RuntimeException e) {
+            respond(exchange, 500, "<Error><Code>InternalError</Code><Message>" + e + "</Message></Error>");
+        }
+    }
+
+    private void complete(HttpExchange exchange, String uploadId, String xml) throws IOException {
+        Map<Integer, byte[]> parts = uploads.get(uploadId);
+        if (parts == null) {
+            respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+            return;
+        }
+
+        ByteArrayOutputStream object = new ByteArrayOutputStream();
+        Matcher matcher = PART_PATTERN.matcher(xml);
+        int expected = 1;
+        while (matcher.find()) {
+            int partNumber = Integer.parseInt(matcher.group(1));
+            byte[] part = parts.get(partNumber);
+            if (partNumber != expected++ || part == null || !etag(part).equals(matcher.group(2))) {
+                //like S3, errors of a started response come with a 200 status
+                respond(exchange, 200, "<Error><Code>InvalidPart</Code><PartNumber>" + partNumber + "</PartNumber></Error>");
+                return;
+            }
+            object.write(part);
+        }
+        if (expected == 1) {
+            respond(exchange, 400, "<Error><Code>MalformedXML</Code></Error>");
+            return;
+        }
+
+        String key = uploadKeys.remove(uploadId);
+        uploads.remove(uploadId);
+        objects.put(key, object.toByteArray());
+        respond(exchange, 200, "<CompleteMultipartUploadResult><Key>" + key + "</Key></CompleteMultipartUploadResult>");
+    }
+
+    /**
+     * This will recompute the signature of the request
+     *
+     * @return the reason the request is rejected, or null if it is valid
+     */
+    private String checkSignature(HttpExchange exchange, byte[] body) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String timestamp = exchange.getRequestHeaders().getFirst("x-amz-date");
+        String payloadHash = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        if (authorization == null || timestamp == null || payloadHash == null) {
+            return "missing authentication headers";
+        }
+        Matcher matcher = CREDENTIAL_PATTERN.matcher(authorization);
+        if (!matcher.matches()) {
+            return "malformed Authorization header";
+        }
+        if (!matcher.group(1).equals(accessKey)) {
+            return "unknown access key";
+        }
+        if (!payloadHash.equals(hex(sha256(body)))) {
+            return "payload hash mismatch";
+        }
+
+        String date = matcher.group(2);
+        String region = matcher.group(3);
+        StringBuilder canonicalHeaders = new StringBuilder();
+        for (String header : matcher.group(4).split(";")) {
+            String value = exchange.getRequestHeaders().getFirst(header);
+            canonicalHeaders.append(header).append(':').append(value == null ? "" : value.trim()).append('\n');
+        }
+
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        List<String> pairs = new ArrayList<>();
+        if (rawQuery != null && !rawQuery.isEmpty()) {
+            for (String pair : rawQuery.split("&")) {
+                pairs.add(pair.contains("=") ? pair : pair + "=");
+            }
+        }
+        Collections.sort(pairs);
+
+        String canonicalRequest = exchange.getRequestMethod() + "\n" +
+                exchange.getRequestURI().getRawPath() + "\n" +
+                String.join("&", pairs) + "\n" +
+                canonicalHeaders + "\n" +
+                matcher.group(4) + "\n" +
+                payloadHash;
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + timestamp + "\n" + scope + "\n" +
+                hex(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8)));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, "s3");
+        signingKey = hmac(signingKey, "aws4_request");
+        if (!hex(hmac(signingKey, stringToSign)).equals(matcher.group(5))) {
+            return "signature mismatch";
+        }
+        return null;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery != null && !rawQuery.isEmpty()) {
+            for (String pair : rawQuery.split("&")) {
+                int equals = pair.indexOf('=');
+                String name = equals < 0 ? pair : pair.substring(0, equals);
+                String value = equals < 0 ? "" : pair.substring(equals + 1);
+                query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        if (body == null || body.isEmpty()) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String etag(byte[] data) throws IOException {
+        try {
+            return "\"" + hex(MessageDigest.getInstance("MD5").digest(data)) + "\"";
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] sha256(byte[] data) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.ludoviccarretti.sink;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+import static com.github.ludoviccarretti.options.PropertiesOptions.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class S3SinkTest {
+
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    private LocalS3Server server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new LocalS3Server("backups", "minio", "minio-secret");
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    private S3Sink sink(String secretKey) {
+        return S3Sink.S3SinkBuilder.anS3Sink()
+                .withEndpoint(server.getEndpoint())
+                .withRegion("eu-west-3")
+                .withBucket("backups")
+                .withAccessKey("minio")
+                .withSecretKey(secretKey)
+                .withPrefix("nightly/")
+                .withPartSize(PART_SIZE)
+                .withUploadConcurrency(3)
+                .build();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void uploadsPartsConcurrentlyAndAssemblesThemInOrder() throws IOException {
+        S3Sink sink = sink("minio-secret");
+        byte[] data = randomBytes(3 * PART_SIZE + 12345);
+
+        try (MultipartOutputStream out = new MultipartOutputStream(sink, sink.begin("db 2026.zip"))) {
+            //uneven writes so that parts are cut in the middle of a write
+            for (int offset = 0; offset < data.length; offset += 100_003) {
+                out.write(data, offset, Math.min(100_003, data.length - offset));
+            }
+        }
+
+        assertArrayEquals(data, server.getObject("nightly/db 2026.zip"));
+        assertEquals(0, server.getPendingUploads());
+    }
+
+    @Test
+    void uploadsAnEmptyObject() throws IOException {
+        S3Sink sink = sink("minio-secret");
+        new MultipartOutputStream(sink, sink.begin("empty.zip")).close();
+        assertArrayEquals(new byte[0], server.getObject("nightly/empty.zip"));
+    }
+
+    @Test
+    void retriesAFailedPart() throws IOException {
+        S3Sink sink = sink("minio-secret");
+        byte[] data = randomBytes(PART_SIZE + 1);
+        server.failNextParts(2);
+
+        try (MultipartOutputStream out = new MultipartOutputStream(sink, sink.begin("retried.zip"))) {
+            out.write(data);
+        }
+
+        assertArrayEquals(data, server.getObject("nightly/retried.zip"));
+    }
+
+    @Test
+    void abortsTheUploadWhenAPartKeepsFailing() throws IOException {
+        S3Sink sink = sink("minio-secret");
+        server.failNextParts(Integer.MAX_VALUE);
+
+        MultipartOutputStream out = new MultipartOutputStream(sink, sink.begin("failed.zip"));
+        out.write(randomBytes(PART_SIZE));
+        assertThrows(IOException.class, out::close);
+
+        assertNull(server.getObject("nightly/failed.zip"));
+        assertEquals(0, server.getPendingUploads());
+        assertEquals(1, server.getAbortedUploads());
+    }
+
+    @Test
+    void rejectsAWrongSignature() {
+        IOException e = assertThrows(IOException.class, () -> sink("wrong-secret").begin("denied.zip"));
+        assertTrue(e.getMessage().contains("403"));
+    }
+
+    @Test
+    void isConfiguredFromProperties() {
+        Properties properties = new Properties();
+        assertNull(S3Sink.fromProperties(properties));
+
+        properties.setProperty(S3_BUCKET, "backups");
+        properties.setProperty(S3_PREFIX, "nightly/");
+        properties.setProperty(SINK_PART_SIZE, "1024");
+        S3Sink sink = S3Sink.fromProperties(properties);
+        assertEquals("backups", sink.getBucket());
+        assertEquals("nightly/", sink.getPrefix());
+        //S3 requires parts of at least 5 MB
+        assertEquals(PART_SIZE, sink.getPartSize());
+    }
+}